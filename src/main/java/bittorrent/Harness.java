@@ -0,0 +1,429 @@
+package bittorrent;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import bittorrent.dht.DhtNode;
+import bittorrent.dht.NodeId;
+import bittorrent.dht.RoutingTable;
+import bittorrent.download.Downloader;
+import bittorrent.download.WebSeed;
+import bittorrent.peer.ConnectionManager;
+import bittorrent.peer.PeerPool;
+import bittorrent.piece.BlockTable;
+import bittorrent.storage.DiskCache;
+import bittorrent.storage.FileStorage;
+import bittorrent.torrent.FileLayout;
+import bittorrent.torrent.Torrent;
+import bittorrent.torrent.TorrentCreator;
+import bittorrent.torrent.TorrentInfo;
+import bittorrent.tracker.TransferStatistics;
+import bittorrent.transport.utp.Impairment;
+import bittorrent.transport.utp.UtpSocket;
+import bittorrent.transport.utp.UtpTransport;
+import bittorrent.util.DigestUtils;
+
+/**
+ * Checks of the transports and of the swarm logic against endpoints on the loopback interface, and a hashing benchmark, apart from the commands of {@link Main}.
+ * Each one throws on a regression, so that the process fails instead of only printing numbers.
+ */
+public class Harness {
+
+	public static void main(String[] args) throws Exception {
+		final var name = args[0];
+
+		switch (name) {
+			case "create_benchmark" -> createBenchmark(args[1]);
+			case "utp_loopback" -> utpLoopback(Integer.parseInt(args[1]), args.length > 2 ? Double.parseDouble(args[2]) : 0, args.length > 3 ? Integer.parseInt(args[3]) : 0);
+			case "dht_loopback" -> dhtLoopback(Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 2);
+			case "webseed_loopback" -> webSeedLoopback(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+			default -> throw new IllegalArgumentException("unknown harness: %s".formatted(name));
+		}
+	}
+
+	/** hash the same files on one thread, then on every core */
+	private static void createBenchmark(String path) throws IOException, InterruptedException {
+		final var creator = new TorrentCreator(FileLayout.of(Path.of(path)));
+		final var length = creator.getLayout().length();
+
+		byte[] reference = null;
+		for (final var parallelism : new int[] { 1, Runtime.getRuntime().availableProcessors() }) {
+			final var start = System.nanoTime();
+			final var hashes = creator.hashPieces(parallelism);
+			final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+			if (reference == null) {
+				reference = hashes;
+			} else if (!Arrays.equals(reference, hashes)) {
+				throw new IllegalStateException("hashes differ with %d thread(s)".formatted(parallelism));
+			}
+
+			final var throughput = length / 1024d / 1024d / Math.max(elapsed.toNanos() / 1e9, 1e-9);
+			System.out.println("%d thread(s): %d ms, %.1f MiB/s".formatted(parallelism, elapsed.toMillis(), throughput));
+		}
+	}
+
+	/** send data between two uTP endpoints over the loopback, with some packets lost or delayed on the way */
+	private static void utpLoopback(int megabytes, double lossRate, int delayMillis) throws IOException, InterruptedException {
+		final var impairment = new Impairment(lossRate, Duration.ofMillis(delayMillis), Duration.ofMillis(delayMillis / 10));
+		final var length = megabytes * 1024l * 1024l;
+
+		try (
+			final var server = UtpTransport.open(0);
+			final var client = UtpTransport.open(0);
+		) {
+			server.setAccepting(true);
+			server.setImpairment(impairment);
+			client.setImpairment(impairment);
+
+			final var sending = new UtpSocket[1];
+			final var failure = new IOException[1];
+			final var start = System.nanoTime();
+			final var sender = Thread.ofPlatform().start(() -> {
+				try (final var socket = (UtpSocket) client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), Duration.ofSeconds(10))) {
+					sending[0] = socket;
+
+					final var output = socket.getOutputStream();
+					final var random = new Random(length);
+					final var buffer = new byte[64 * 1024];
+
+					for (var sent = 0l; sent < length; sent += buffer.length) {
+						random.nextBytes(buffer);
+						output.write(buffer, 0, (int) Math.min(buffer.length, length - sent));
+					}
+				} catch (IOException exception) {
+					failure[0] = exception;
+				}
+			});
+
+			final var socket = (UtpSocket) server.accept(Duration.ofSeconds(10));
+			if (socket == null) {
+				throw new IllegalStateException("no connection");
+			}
+
+			try (socket) {
+				socket.setSoTimeout(30_000);
+
+				final var input = new DataInputStream(socket.getInputStream());
+				final var random = new Random(length);
+				final var expected = new byte[64 * 1024];
+				final var actual = new byte[expected.length];
+
+				for (var received = 0l; received < length; received += expected.length) {
+					final var count = (int) Math.min(expected.length, length - received);
+
+					random.nextBytes(expected);
+					input.readFully(actual, 0, count);
+
+					if (!Arrays.equals(expected, 0, count, actual, 0, count)) {
+						throw new IllegalStateException("corrupted data around offset %d".formatted(received));
+					}
+				}
+
+				if (input.read() != -1) {
+					throw new IllegalStateException("more data than sent");
+				}
+			}
+
+			sender.join();
+
+			if (failure[0] != null) {
+				throw new IllegalStateException("send failed", failure[0]);
+			}
+
+			final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+			final var throughput = length / 1024d / 1024d / Math.max(elapsed.toNanos() / 1e9, 1e-9);
+			System.out.println("%d MiB in %d ms, %.1f MiB/s, loss %.1f%%, delay %d ms".formatted(megabytes, elapsed.toMillis(), throughput, lossRate * 100, delayMillis));
+			System.out.println("sender: %s".formatted(sending[0].getStatistics()));
+		}
+	}
+
+	/**
+	 * Run a cluster of nodes on the loopback interface: the routing tables must split as they fill, every node must be found, and once some nodes are gone the others must ping and replace them.
+	 * @param staleSeconds how long before a silent node is questionable, much shorter than on the real network so that replacements happen during the run
+	 */
+	private static void dhtLoopback(int nodeCount, int staleSeconds) throws IOException, InterruptedException {
+		final var staleAfter = Duration.ofSeconds(staleSeconds);
+		final var nodes = new ArrayList<DhtNode>(nodeCount);
+
+		try {
+			for (var index = 0; index < nodeCount; ++index) {
+				nodes.add(new DhtNode(NodeId.random(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), staleAfter));
+			}
+
+			final var seed = List.of(nodes.getFirst().getLocalAddress());
+			for (final var node : nodes.subList(1, nodeCount)) {
+				node.bootstrap(seed);
+			}
+
+			nodes.getFirst().bootstrap(List.of(nodes.getLast().getLocalAddress()));
+
+			/* the nodes learn about each other as they query, until the far buckets are full */
+			for (var round = 0; round < 3; ++round) {
+				refresh(nodes);
+			}
+
+			var buckets = 0;
+			var contacts = 0;
+			for (final var node : nodes) {
+				buckets += node.getRoutingTable().bucketCount();
+				contacts += node.getRoutingTable().size();
+			}
+
+			System.out.println("%d nodes, %.1f buckets and %.1f contacts per table".formatted(nodeCount, buckets / (double) nodeCount, contacts / (double) nodeCount));
+
+			/* more nodes than two buckets can hold must make the tables split */
+			if (nodeCount > 2 * RoutingTable.K && buckets == nodeCount) {
+				throw new IllegalStateException("no routing table split");
+			}
+
+			final var random = new Random(nodeCount);
+			final var lookupCount = Math.min(nodeCount, 50);
+
+			var found = 0;
+			for (var index = 0; index < lookupCount; ++index) {
+				final var from = nodes.get(random.nextInt(nodeCount));
+				final var target = nodes.get(random.nextInt(nodeCount)).getLocalId();
+
+				final var closest = from.lookup(target, false).closest();
+				if (target.equals(from.getLocalId()) || (!closest.isEmpty() && closest.getFirst().id().equals(target))) {
+					++found;
+				}
+			}
+
+			System.out.println("%d/%d lookups found their target".formatted(found, lookupCount));
+
+			if (found != lookupCount) {
+				throw new IllegalStateException("%d lookup(s) missed their target".formatted(lookupCount - found));
+			}
+
+			/* a quarter of the cluster is replaced: the newcomers only get in the full buckets once the gone nodes are questionable and fail to answer a ping */
+			final var leaving = nodes.subList(nodeCount - nodeCount / 4, nodeCount);
+			final var gone = new ArrayList<InetSocketAddress>();
+			for (final var node : leaving) {
+				gone.add(node.getLocalAddress());
+				node.close();
+			}
+
+			leaving.clear();
+
+			final var goneContacts = countContacts(nodes, gone);
+			System.out.println("%d nodes left, %d contacts of them in the other tables".formatted(gone.size(), goneContacts));
+
+			Thread.sleep(staleAfter.toMillis());
+
+			final var joined = new ArrayList<InetSocketAddress>();
+			try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (var index = 0; index < gone.size(); ++index) {
+					final var node = new DhtNode(NodeId.random(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), staleAfter);
+					executor.submit(() -> node.bootstrap(seed));
+
+					nodes.add(node);
+					joined.add(node.getLocalAddress());
+				}
+			}
+
+			for (var round = 0; round < 3; ++round) {
+				refresh(nodes);
+
+				/* the pings of the questionable nodes time out in the background */
+				Thread.sleep(DhtNode.QUERY_TIMEOUT.toMillis());
+			}
+
+			final var joinedContacts = countContacts(nodes, joined);
+			final var remainingContacts = countContacts(nodes, gone);
+			System.out.println("%d nodes joined, %d contacts of them in the other tables, %d of the gone ones left".formatted(joined.size(), joinedContacts, remainingContacts));
+
+			if (goneContacts != 0 && (joinedContacts == 0 || remainingContacts >= goneContacts)) {
+				throw new IllegalStateException("gone nodes were not replaced");
+			}
+		} finally {
+			for (final var node : nodes) {
+				node.close();
+			}
+		}
+	}
+
+	/**
+	 * Check the web seed client against a server on the loopback interface, whose behavior is picked by the first segment of the path.
+	 * Ranges answered with a 206 and a whole file answered with a 200 must be read right, a body ending early must be noticed, and a download from a server failing every other request must back off and still complete.
+	 */
+	private static void webSeedLoopback(int megabytes) throws IOException, InterruptedException {
+		final var payload = new byte[megabytes * 1024 * 1024 + 1234];
+		new Random(payload.length).nextBytes(payload);
+
+		final var requests = new AtomicInteger();
+		final var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.createContext("/", (exchange) -> {
+			try (exchange) {
+				final var mode = exchange.getRequestURI().getPath().split("/")[1];
+				final var bounds = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+				final var start = Integer.parseInt(bounds[0]);
+				final var end = Integer.parseInt(bounds[1]) + 1;
+
+				if (requests.incrementAndGet() % 2 == 1 && mode.equals("flaky")) {
+					exchange.sendResponseHeaders(503, -1);
+					return;
+				}
+
+				switch (mode) {
+					case "whole" -> {
+						exchange.sendResponseHeaders(200, payload.length);
+						exchange.getResponseBody().write(payload);
+					}
+
+					/* chunked, so that the body can end early without breaking the connection */
+					case "short" -> {
+						exchange.sendResponseHeaders(206, 0);
+						exchange.getResponseBody().write(payload, start, (end - start) / 2);
+					}
+
+					default -> {
+						exchange.getResponseHeaders().add("Content-Range", "bytes %d-%d/%d".formatted(start, end - 1, payload.length));
+						exchange.sendResponseHeaders(206, end - start);
+						exchange.getResponseBody().write(payload, start, end - start);
+					}
+				}
+			}
+		});
+
+		server.start();
+
+		try {
+			final var base = "http://%s:%d/".formatted(server.getAddress().getHostString(), server.getAddress().getPort());
+			final var blockSize = BlockTable.BLOCK_SIZE;
+
+			final var partial = new WebSeed(Main.CLIENT, base + "partial/payload", "payload");
+			final var middle = 100_000;
+			checkRange(partial, payload, middle, middle + 3 * blockSize + 17);
+			System.out.println("206 range: ok");
+
+			final var whole = new WebSeed(Main.CLIENT, base + "whole/payload", "payload");
+			checkRange(whole, payload, 0, 5 * blockSize);
+			try {
+				checkRange(whole, payload, blockSize, 2 * blockSize);
+				throw new IllegalStateException("a whole file was used for a range not starting at 0");
+			} catch (IOException exception) {
+				System.out.println("200 whole file: ok, refused past 0 with: %s".formatted(exception.getMessage()));
+			}
+
+			try {
+				checkRange(new WebSeed(Main.CLIENT, base + "short/payload", "payload"), payload, 0, 4 * blockSize);
+				throw new IllegalStateException("a short body was not noticed");
+			} catch (EOFException exception) {
+				System.out.println("short body: ok, %s".formatted(exception.getMessage()));
+			}
+
+			final var backoff = new WebSeed(Main.CLIENT, base + "flaky/payload", "payload");
+			for (var failure = 1; failure <= WebSeed.MAXIMUM_FAILURES; ++failure) {
+				final var expected = WebSeed.MINIMUM_BACKOFF.multipliedBy(1l << (failure - 1));
+				final var delay = backoff.onFailure();
+
+				if (!delay.equals(expected.compareTo(WebSeed.MAXIMUM_BACKOFF) > 0 ? WebSeed.MAXIMUM_BACKOFF : expected)) {
+					throw new IllegalStateException("backoff %s after %d failures".formatted(delay, failure));
+				}
+			}
+
+			if (!backoff.isGivenUp()) {
+				throw new IllegalStateException("not given up after %d failures".formatted(WebSeed.MAXIMUM_FAILURES));
+			}
+
+			backoff.onSuccess();
+			if (backoff.isGivenUp()) {
+				throw new IllegalStateException("still given up after a success");
+			}
+
+			System.out.println("backoff: ok");
+
+			final var pieceLength = 256 * 1024;
+			final var pieces = new ArrayList<byte[]>();
+			for (var offset = 0; offset < payload.length; offset += pieceLength) {
+				pieces.add(DigestUtils.sha1(Arrays.copyOfRange(payload, offset, Math.min(offset + pieceLength, payload.length))));
+			}
+
+			final var torrentInfo = new TorrentInfo(new byte[20], payload.length, "payload", pieceLength, pieces);
+			final var torrent = new Torrent(null, torrentInfo, List.of(base + "flaky/"));
+			final var output = Files.createTempFile("webseed-loopback", ".bin");
+
+			try {
+				requests.set(0);
+				final var start = System.nanoTime();
+
+				try (
+					final var connectionManager = new ConnectionManager(new PeerPool(), torrent);
+					final var cache = new DiskCache(new FileStorage(output, torrentInfo.length()), torrentInfo);
+					final var downloader = new Downloader(torrentInfo, connectionManager, new TransferStatistics(torrentInfo.length()), cache);
+				) {
+					downloader.addWebSeed(new WebSeed(Main.CLIENT, torrent.webSeeds().getFirst(), torrentInfo.name()));
+					downloader.run(0, null);
+				}
+
+				if (!Arrays.equals(payload, Files.readAllBytes(output))) {
+					throw new IllegalStateException("downloaded file differs from the payload");
+				}
+
+				System.out.println("flaky download: ok, %d MiB in %d ms with %d requests, half of them failed".formatted(megabytes, Duration.ofNanos(System.nanoTime() - start).toMillis(), requests.get()));
+			} finally {
+				Files.deleteIfExists(output);
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/** fetch a range, and check that it arrives in order and in blocks, byte for byte */
+	private static void checkRange(WebSeed webSeed, byte[] payload, int start, int end) throws IOException, InterruptedException {
+		final var next = new long[] { start };
+
+		webSeed.fetch(start, end, BlockTable.BLOCK_SIZE, (offset, block) -> {
+			if (offset != next[0] || block.length > BlockTable.BLOCK_SIZE || !Arrays.equals(payload, (int) offset, (int) offset + block.length, block, 0, block.length)) {
+				throw new IllegalStateException("%s: wrong block at %d".formatted(webSeed, offset));
+			}
+
+			next[0] += block.length;
+		});
+
+		if (next[0] != end) {
+			throw new IllegalStateException("%s: range ended at %d instead of %d".formatted(webSeed, next[0], end));
+		}
+	}
+
+	/** every node looks up a random id at once */
+	private static void refresh(List<DhtNode> nodes) {
+		try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (final var node : nodes) {
+				executor.submit(() -> node.lookup(NodeId.random(), false));
+			}
+		}
+	}
+
+	private static int countContacts(List<DhtNode> nodes, List<InetSocketAddress> addresses) {
+		var count = 0;
+
+		for (final var node : nodes) {
+			for (final var contact : node.getRoutingTable().all()) {
+				if (addresses.contains(contact.address())) {
+					++count;
+				}
+			}
+		}
+
+		return count;
+	}
+
+}
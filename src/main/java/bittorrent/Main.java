@@ -1,22 +1,54 @@
 package bittorrent;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HexFormat;
-import java.util.Map;
-
-import com.google.gson.Gson;
-
-import bittorrent.bencode.BencodeDeserializer;
+import java.util.List;
+
+import bittorrent.bencode.BencodeJsonWriter;
+import bittorrent.bencode.BencodeReader;
+import bittorrent.daemon.Daemon;
+import bittorrent.daemon.DaemonClient;
+import bittorrent.dht.DhtNode;
+import bittorrent.dht.DhtPeerSource;
+import bittorrent.dht.NodeId;
+import bittorrent.download.Downloader;
+import bittorrent.download.RarestFirstPicker;
+import bittorrent.download.StreamingPicker;
+import bittorrent.download.WebSeed;
 import bittorrent.magnet.Magnet;
+import bittorrent.peer.ConnectionManager;
 import bittorrent.peer.Peer;
+import bittorrent.peer.PeerPool;
+import bittorrent.peer.PieceHashException;
+import bittorrent.peer.PieceRejectedException;
+import bittorrent.session.Session;
+import bittorrent.session.SessionTorrent;
+import bittorrent.storage.DiskCache;
+import bittorrent.storage.FileStorage;
+import bittorrent.storage.PieceVerifier;
+import bittorrent.storage.ResumeFile;
+import bittorrent.torrent.FileLayout;
+import bittorrent.torrent.MetadataStore;
 import bittorrent.torrent.Torrent;
+import bittorrent.torrent.TorrentCreator;
+import bittorrent.torrent.TorrentFile;
 import bittorrent.torrent.TorrentInfo;
+import bittorrent.tracker.AnnounceScheduler;
+import bittorrent.tracker.Announceable;
 import bittorrent.tracker.TrackerClient;
+import bittorrent.tracker.TransferStatistics;
 import okhttp3.OkHttpClient;
 
 public class Main {
@@ -25,17 +57,47 @@ public class Main {
 
 	public static final HexFormat HEX_FORMAT = HexFormat.of();
 	public static final OkHttpClient CLIENT = new OkHttpClient();
+	public static final TrackerClient TRACKER_CLIENT = new TrackerClient();
+
+	public static final Duration ACQUIRE_TIMEOUT = Duration.ofMinutes(1);
+
+	/** a stream fails once no piece was verified for that long, instead of waiting forever */
+	public static final Duration STALL_TIMEOUT = Duration.ofMinutes(2);
+
+	/** peers sending a corrupt piece are banned and replaced, up to that many times */
+	public static final int MAXIMUM_PIECE_ATTEMPTS = 5;
+	public static final Path DHT_CACHE = Path.of(System.getProperty("user.home"), ".cache", "bittorrent", "dht.dat");
+	public static final MetadataStore METADATA_STORE = new MetadataStore(Path.of(System.getProperty("user.home"), ".cache", "bittorrent", "metadata"));
 
 	public static void main(String[] args) throws Exception {
+		/* a running daemon answers faster than a fresh process */
+		if (DaemonClient.isForwardable(args)) {
+			final var exitCode = DaemonClient.forward(args);
+
+			if (exitCode != null) {
+				System.exit(exitCode);
+			}
+		}
+
+		run(args);
+	}
+
+	/** the commands, also run by the daemon for its clients */
+	public static void run(String[] args) throws Exception {
 		final var command = args[0];
 
 		switch (command) {
-			case "decode" -> decode(args[1]);
+			case "decode" -> decode(args[1], args.length > 2 ? args[2] : null);
 			case "info" -> info(args[1]);
 			case "peers" -> peers(args[1]);
 			case "handshake" -> handshake(args[1], args[2]);
 			case "download_piece" -> downloadPiece(args[3], Integer.parseInt(args[4]), args[2]);
 			case "download" -> download(args[3], args[2]);
+			case "stream" -> stream(args[1], args[2]);
+			case "session" -> session(args[1], Arrays.copyOfRange(args, 2, args.length));
+			case "verify" -> verify(args[1], args[2], args.length > 3 && "--resume".equals(args[3]));
+			case "create" -> create(args[2], args[3], args.length > 4 ? args[4] : null);
+			case "daemon" -> daemon(args.length > 1 ? args[1] : "start");
 			case "magnet_parse" -> magnetParse(args[1]);
 			case "magnet_handshake" -> magnetHandshake(args[1]);
 			case "magnet_info" -> magnetInfo(args[1]);
@@ -45,12 +107,31 @@ public class Main {
 		}
 	}
 
-	private static void decode(String encoded) throws IOException {
-		final var gson = new Gson();
-
-		final var decoded = new BencodeDeserializer(encoded).parse();
-
-		System.out.println(gson.toJson(decoded));
+	/**
+	 * Streamed, so that dumps of any size are decoded in constant memory.
+	 * @param input the bencoded value, {@code @path} for a file, or {@code -} for the standard input
+	 * @param path keys separated by slashes, {@code *} for any, to only print the values found there
+	 */
+	private static void decode(String input, String path) throws IOException {
+		final var inputStream = switch (input) {
+			case "-" -> System.in;
+			case String file when file.startsWith("@") -> Files.newInputStream(Path.of(file.substring(1)));
+			default -> new ByteArrayInputStream(input.getBytes());
+		};
+
+		final var writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()));
+		try (final var reader = new BencodeReader(inputStream)) {
+			final var jsonWriter = new BencodeJsonWriter(writer);
+
+			if (path == null) {
+				jsonWriter.write(reader);
+				writer.write(System.lineSeparator());
+			} else {
+				jsonWriter.write(reader, path.split("/"));
+			}
+		} finally {
+			writer.flush();
+		}
 	}
 
 	private static void info(String path) throws IOException {
@@ -63,8 +144,7 @@ public class Main {
 	private static void peers(String path) throws IOException {
 		final var torrent = load(path);
 
-		final var trackerClient = new TrackerClient();
-		final var response = trackerClient.announce(torrent);
+		final var response = TRACKER_CLIENT.lookup(torrent);
 
 		for (final var peer : response.peers()) {
 			final var line = "%s:%d".formatted(peer.getAddress().getHostAddress(), peer.getPort());
@@ -77,9 +157,9 @@ public class Main {
 		final var torrent = load(path);
 
 		final var parts = peerIpAndPort.split(":", 2);
-		final var socket = new Socket(parts[0], Integer.parseInt(parts[1]));
+		final var address = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
 
-		try (final var peer = Peer.connect(socket, torrent)) {
+		try (final var peer = Peer.connect(address, torrent)) {
 			System.out.println("Peer ID: %s".formatted(HEX_FORMAT.formatHex(peer.getId())));
 		}
 	}
@@ -88,33 +168,169 @@ public class Main {
 		final var torrent = load(path);
 		final var torrentInfo = torrent.info();
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(torrent).peers().getFirst();
+		final var peerPool = discover(torrent);
 
 		try (
-			final var peer = Peer.connect(firstPeer, torrent);
+			final var connectionManager = new ConnectionManager(peerPool, torrent);
 			final var fileOutputStream = new FileOutputStream(new File(outputPath));
 		) {
-			final var data = peer.downloadPiece(torrentInfo, pieceIndex);
+			final var data = downloadPiece(connectionManager, acquire(connectionManager), torrentInfo, pieceIndex);
 			fileOutputStream.write(data);
 		}
 	}
 
 	private static void download(String path, String outputPath) throws IOException, InterruptedException {
+		final var torrentFile = TorrentFile.open(Path.of(path));
+		final var torrent = torrentFile.toTorrent();
+		final var torrentInfo = torrent.info();
+		final var metadata = torrentFile.metadata();
+
+		final var statistics = new TransferStatistics(torrentInfo.length());
+		final var peerPool = new PeerPool();
+
+		try (
+			final var scheduler = startAnnounceScheduler(torrent, statistics, peerPool);
+			final var dhtPeerSource = peerPool.size() == 0 ? startDhtPeerSource(torrent, peerPool) : null;
+		) {
+			try (
+				final var connectionManager = new ConnectionManager(peerPool, torrent);
+				final var cache = openOutput(outputPath, torrentInfo);
+				final var downloader = new Downloader(torrentInfo, connectionManager, statistics, cache);
+			) {
+				downloader.setMetadata(metadata);
+
+				final var verified = ResumeFile.load(Path.of(outputPath), torrent.getInfoHash(), torrentInfo.pieceCount());
+				if (verified != null) {
+					downloader.resume(verified);
+				}
+
+				addWebSeeds(downloader, torrent);
+				downloader.run(Downloader.DEFAULT_PEER_COUNT, null);
+			}
+
+			/* every piece is on disk now */
+			ResumeFile.delete(Path.of(outputPath));
+
+			if (scheduler != null) {
+				scheduler.completed();
+			}
+		}
+	}
+
+	/** download many torrents at once, sharing the listen port, the connections and the bandwidth */
+	private static void session(String outputDirectory, String[] paths) throws IOException, InterruptedException {
+		try (final var session = new Session()) {
+			session.start();
+			System.err.println("session: listening on port %d".formatted(session.getPort()));
+
+			final List<SessionTorrent> torrents = new ArrayList<>();
+			for (final var path : paths) {
+				final var torrentFile = TorrentFile.open(Path.of(path));
+				final var torrent = torrentFile.toTorrent();
+
+				final var sessionTorrent = session.add(torrent, torrent.info(), torrentFile.metadata(), outputPath(outputDirectory, torrent.info().name()));
+				addWebSeeds(sessionTorrent.getDownloader(), torrent);
+
+				torrents.add(sessionTorrent);
+			}
+
+			for (final var torrent : torrents) {
+				torrent.awaitCompletion();
+				System.out.println("Downloaded %s to %s.".formatted(torrent.getName(), torrent.getOutput()));
+			}
+		}
+	}
+
+	/** check a payload against its torrent, and optionally keep the good pieces for the next download */
+	private static void verify(String path, String payloadPath, boolean writeResume) throws IOException {
+		final var torrent = load(path);
+		final var torrentInfo = torrent.info();
+		final var payload = Path.of(payloadPath);
+
+		final var result = new PieceVerifier(torrentInfo, payload).verify();
+
+		System.out.println("Verified %d/%d piece(s) in %d ms, %.1f MiB/s.".formatted(
+			result.valid().cardinality(),
+			result.valid().size(),
+			result.elapsed().toMillis(),
+			result.throughput() / 1024 / 1024
+		));
+
+		for (final var range : result.badRanges()) {
+			System.out.println("Bad piece(s) %d-%d: bytes %d-%d".formatted(range.firstPiece(), range.lastPiece(), range.start(), range.end() - 1));
+		}
+
+		if (writeResume) {
+			ResumeFile.save(payload, torrent.getInfoHash(), result.valid());
+			System.out.println("Resume bitfield written to %s.".formatted(ResumeFile.pathOf(payload)));
+		}
+	}
+
+	private static void create(String outputPath, String path, String announce) throws IOException, InterruptedException {
+		final var creator = new TorrentCreator(FileLayout.of(Path.of(path)));
+		final var metainfo = creator.create(announce, Runtime.getRuntime().availableProcessors());
+
+		Files.write(Path.of(outputPath), metainfo);
+
+		System.out.println("Created %s: %d piece(s) of %d bytes.".formatted(outputPath, creator.pieceCount(), creator.getPieceLength()));
+	}
+
+	/** keep a process around, so that the next commands skip the startup and reuse its connections and caches */
+	private static void daemon(String action) throws IOException, InterruptedException {
+		switch (action) {
+			case "start" -> {
+				try (final var daemon = Daemon.start(Main::run)) {
+					System.err.println("daemon: listening on port %d".formatted(daemon.getPort()));
+					daemon.await();
+				}
+			}
+
+			case "status" -> System.out.println(DaemonClient.status());
+			case "stop" -> DaemonClient.stop();
+			default -> System.out.println("Unknown daemon action: " + action);
+		}
+	}
+
+	/** download to a file, while writing the pieces in order to the standard output as soon as they are verified */
+	private static void stream(String path, String storagePath) throws IOException, InterruptedException {
 		final var torrent = load(path);
 		final var torrentInfo = torrent.info();
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(torrent).peers().getFirst();
+		final var statistics = new TransferStatistics(torrentInfo.length());
+		final var peerPool = new PeerPool();
 
 		try (
-			final var peer = Peer.connect(firstPeer, torrent);
-			final var fileOutputStream = new FileOutputStream(new File(outputPath));
+			final var scheduler = startAnnounceScheduler(torrent, statistics, peerPool);
+			final var dhtPeerSource = peerPool.size() == 0 ? startDhtPeerSource(torrent, peerPool) : null;
+			final var connectionManager = new ConnectionManager(peerPool, torrent);
+			final var cache = openOutput(storagePath, torrentInfo);
+			final var downloader = new Downloader(torrentInfo, connectionManager, statistics, cache);
 		) {
-			final var pieceCount = torrent.info().pieces().size();
+			final var picker = new StreamingPicker(
+				new RarestFirstPicker(downloader.getAvailability(), downloader.getCompleted()),
+				downloader.getCompleted(),
+				StreamingPicker.DEFAULT_WINDOW_SIZE
+			);
+
+			downloader.setPiecePicker(picker);
+			addWebSeeds(downloader, torrent);
+			downloader.start(Downloader.DEFAULT_PEER_COUNT, null);
+
+			final var output = System.out;
+			final var pieceCount = torrentInfo.pieceCount();
 			for (var index = 0; index < pieceCount; ++index) {
-				final var data = peer.downloadPiece(torrentInfo, index);
-				fileOutputStream.write(data);
+				if (!downloader.awaitPiece(index, STALL_TIMEOUT)) {
+					throw new IllegalStateException("no piece verified in %s, waiting for piece %d".formatted(STALL_TIMEOUT, index));
+				}
+
+				output.write(cache.readBlock(index, 0, torrentInfo.pieceLength(index)));
+				picker.setPlayhead(index + 1);
+			}
+
+			output.flush();
+
+			if (scheduler != null) {
+				scheduler.completed();
 			}
 		}
 	}
@@ -129,10 +345,12 @@ public class Main {
 	private static void magnetHandshake(String link) throws IOException, InterruptedException {
 		final var magnet = Magnet.parse(link);
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(magnet).peers().getFirst();
+		final var peerPool = discover(magnet);
 
-		try (final var peer = Peer.connect(firstPeer, magnet)) {
+		try (
+			final var connectionManager = new ConnectionManager(peerPool, magnet);
+			final var peer = acquire(connectionManager);
+		) {
 			System.out.println("Peer ID: %s".formatted(HEX_FORMAT.formatHex(peer.getId())));
 			peer.awaitBitfield();
 
@@ -143,30 +361,46 @@ public class Main {
 	private static void magnetInfo(String link) throws IOException, InterruptedException {
 		final var magnet = Magnet.parse(link);
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(magnet).peers().getFirst();
+		final var cached = METADATA_STORE.loadInfo(magnet.hash());
+		if (cached != null) {
+			info(magnet.announce(), cached);
+			return;
+		}
+
+		final var peerPool = discover(magnet);
 
-		try (final var peer = Peer.connect(firstPeer, magnet)) {
+		try (
+			final var connectionManager = new ConnectionManager(peerPool, magnet);
+			final var peer = acquire(connectionManager);
+		) {
 			System.out.println("Peer ID: %s".formatted(HEX_FORMAT.formatHex(peer.getId())));
 
-			final var torrentInfo = peer.queryTorrentInfoViaMetadataExtension();
+			final var torrentInfo = TorrentInfo.parse(queryMetadata(peer, magnet));
 			info(magnet.announce(), torrentInfo);
 		}
 	}
 
 	private static void magnetDownloadPiece(String link, int pieceIndex, String outputPath) throws IOException, InterruptedException {
 		final var magnet = Magnet.parse(link);
+		final var cached = METADATA_STORE.load(magnet.hash());
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(magnet).peers().getFirst();
+		final var peerPool = discover(magnet);
 
 		try (
-			final var peer = Peer.connect(firstPeer, magnet);
+			final var connectionManager = new ConnectionManager(peerPool, magnet);
 			final var fileOutputStream = new FileOutputStream(new File(outputPath));
 		) {
-			final var torrentInfo = peer.queryTorrentInfoViaMetadataExtension();
+			final var peer = acquire(connectionManager);
+
+			final TorrentInfo torrentInfo;
+			try {
+				torrentInfo = TorrentInfo.parse(cached != null ? cached : queryMetadata(peer, magnet));
+			} catch (IOException | RuntimeException exception) {
+				connectionManager.release(peer, true);
+				throw exception;
+			}
 
-			final var data = peer.downloadPiece(torrentInfo, pieceIndex);
+			final var data = downloadPiece(connectionManager, peer, torrentInfo, pieceIndex);
 			fileOutputStream.write(data);
 		}
 	}
@@ -174,31 +408,196 @@ public class Main {
 	private static void magnetDownload(String link, String outputPath) throws IOException, InterruptedException {
 		final var magnet = Magnet.parse(link);
 
-		final var trackerClient = new TrackerClient();
-		final var firstPeer = trackerClient.announce(magnet).peers().getFirst();
-
-		//		final var firstPeer = new java.net.InetSocketAddress(java.net.InetAddress.getByName("2.204.166.236"), 51414);
+		final var statistics = new TransferStatistics(magnet.getInfoLength());
+		final var peerPool = new PeerPool();
 
 		try (
-			final var peer = Peer.connect(firstPeer, magnet);
-			final var fileOutputStream = new FileOutputStream(new File(outputPath));
+			final var scheduler = startAnnounceScheduler(magnet, statistics, peerPool);
+			final var dhtPeerSource = peerPool.size() == 0 ? startDhtPeerSource(magnet, peerPool) : null;
 		) {
-			final var torrentInfo = peer.queryTorrentInfoViaMetadataExtension();
+			//		peerPool.add(new java.net.InetSocketAddress(java.net.InetAddress.getByName("2.204.166.236"), 51414));
+
+			try (
+				final var connectionManager = new ConnectionManager(peerPool, magnet);
+			) {
+				var metadata = METADATA_STORE.load(magnet.hash());
+
+				/* the peer that gave the metadata is kept as the first one of the download */
+				Peer peer = null;
+				if (metadata == null) {
+					peer = acquire(connectionManager);
+
+					try {
+						metadata = queryMetadata(peer, magnet);
+					} catch (IOException | RuntimeException exception) {
+						connectionManager.release(peer, true);
+						throw exception;
+					}
+				}
+
+				final var torrentInfo = TorrentInfo.parse(metadata);
+
+				statistics.setLeft(torrentInfo.length());
+
+				try (
+					final var cache = openOutput(outputPath, torrentInfo);
+					final var downloader = new Downloader(torrentInfo, connectionManager, statistics, cache);
+				) {
+					downloader.setMetadata(metadata);
+					downloader.run(Downloader.DEFAULT_PEER_COUNT, peer);
+				}
+			}
 
-			final var pieceCount = torrentInfo.pieces().size();
-			for (var index = 0; index < pieceCount; ++index) {
-				final var data = peer.downloadPiece(torrentInfo, index);
-				fileOutputStream.write(data);
+			if (scheduler != null) {
+				scheduler.completed();
 			}
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private static Torrent load(String path) throws IOException {
-		final var content = Files.readAllBytes(Paths.get(path));
-		final var decoded = new BencodeDeserializer(content).parse();
+	/** announce once, and fallback to the dht if the tracker is missing, dead or empty */
+	private static PeerPool discover(Announceable announceable) throws IOException, InterruptedException {
+		final var peerPool = new PeerPool();
+
+		if (announceable.getTrackerUrl() != null) {
+			try {
+				peerPool.addAll(TRACKER_CLIENT.lookup(announceable).peers());
+			} catch (IOException | RuntimeException exception) {
+				System.err.println("tracker: announce failed: %s".formatted(exception));
+			}
+		}
+
+		if (peerPool.size() == 0) {
+			try (final var dhtNode = DhtNode.open(DHT_CACHE)) {
+				dhtNode.bootstrap();
+				peerPool.addAll(dhtNode.lookup(new NodeId(announceable.getInfoHash()), true).peers());
+			}
+		}
+
+		return peerPool;
+	}
+
+	/** @return {@code null} if trackerless */
+	private static AnnounceScheduler startAnnounceScheduler(Announceable announceable, TransferStatistics statistics, PeerPool peerPool) {
+		if (announceable.getTrackerUrl() == null) {
+			return null;
+		}
+
+		final var scheduler = new AnnounceScheduler(TRACKER_CLIENT, announceable, statistics, peerPool);
+
+		try {
+			scheduler.start();
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("tracker: announce failed: %s".formatted(exception));
+		}
+
+		return scheduler;
+	}
+
+	private static DhtPeerSource startDhtPeerSource(Announceable announceable, PeerPool peerPool) throws IOException, InterruptedException {
+		final var dhtPeerSource = new DhtPeerSource(DhtNode.open(DHT_CACHE), announceable.getInfoHash(), peerPool, 0);
+
+		try {
+			dhtPeerSource.start();
+		} catch (InterruptedException | RuntimeException exception) {
+			dhtPeerSource.close();
+			throw exception;
+		}
 
-		return Torrent.of((Map<String, Object>) decoded);
+		return dhtPeerSource;
+	}
+
+	/** the verified metadata is stored, so that the next runs do not need to ask again */
+	private static byte[] queryMetadata(Peer peer, Magnet magnet) throws IOException {
+		final var metadata = peer.queryMetadata();
+
+		try {
+			METADATA_STORE.save(magnet.hash(), metadata);
+		} catch (IOException exception) {
+			System.err.println("metadata store: could not save: %s".formatted(exception));
+		}
+
+		return metadata;
+	}
+
+	/** a peer that sent a corrupt piece is banned, and the piece is asked to another one, as when it is rejected; the peers are released */
+	private static byte[] downloadPiece(ConnectionManager connectionManager, Peer firstPeer, TorrentInfo torrentInfo, int pieceIndex) throws IOException, InterruptedException {
+		var peer = firstPeer;
+
+		for (var attempt = 1;; ++attempt) {
+			var failed = true;
+			try {
+				final var data = peer.downloadPiece(torrentInfo, pieceIndex);
+				failed = false;
+
+				return data;
+			} catch (PieceHashException exception) {
+				System.err.println("download piece: %s from %s, banning it".formatted(exception.getMessage(), peer.getAddress()));
+
+				connectionManager.ban(peer);
+				peer = null;
+
+				if (attempt == MAXIMUM_PIECE_ATTEMPTS) {
+					throw exception;
+				}
+			} catch (PieceRejectedException exception) {
+				System.err.println("download piece: %s from %s, trying another peer".formatted(exception.getMessage(), peer.getAddress()));
+
+				if (attempt == MAXIMUM_PIECE_ATTEMPTS) {
+					throw exception;
+				}
+			} finally {
+				if (peer != null) {
+					connectionManager.release(peer, failed);
+				}
+			}
+
+			peer = acquire(connectionManager);
+		}
+	}
+
+	private static Peer acquire(ConnectionManager connectionManager) throws InterruptedException {
+		final var peer = connectionManager.acquire(ACQUIRE_TIMEOUT);
+
+		if (peer == null) {
+			throw new IllegalStateException("no peer could be reached in %s".formatted(ACQUIRE_TIMEOUT));
+		}
+
+		return peer;
+	}
+
+	private static DiskCache openOutput(String outputPath, TorrentInfo torrentInfo) throws IOException {
+		return new DiskCache(new FileStorage(Path.of(outputPath), torrentInfo.length()), torrentInfo);
+	}
+
+	/** the name comes from the torrent, it must not lead out of the output directory */
+	private static Path outputPath(String outputDirectory, String name) {
+		if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/") || name.contains("\\")) {
+			throw new IllegalArgumentException("unsafe torrent name: %s".formatted(name));
+		}
+
+		final var directory = Path.of(outputDirectory).toAbsolutePath().normalize();
+		final var path = directory.resolve(name).normalize();
+		if (!path.startsWith(directory) || path.equals(directory)) {
+			throw new IllegalArgumentException("torrent name leads out of %s: %s".formatted(directory, name));
+		}
+
+		return path;
+	}
+
+	/** the mirrors are used next to the peers, and make a difference when the swarm has few seeders */
+	private static void addWebSeeds(Downloader downloader, Torrent torrent) {
+		for (final var url : torrent.webSeeds()) {
+			try {
+				downloader.addWebSeed(new WebSeed(CLIENT, url, torrent.info().name()));
+			} catch (IllegalArgumentException exception) {
+				System.err.println("download: ignoring web seed: %s".formatted(exception.getMessage()));
+			}
+		}
+	}
+
+	/** the file is mapped, and its fields only decoded when used */
+	private static Torrent load(String path) throws IOException {
+		return TorrentFile.open(Path.of(path)).toTorrent();
 	}
 
 	private static void info(String trackerUrl, TorrentInfo info) throws IOException {
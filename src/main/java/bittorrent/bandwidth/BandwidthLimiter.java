@@ -0,0 +1,55 @@
+package bittorrent.bandwidth;
+
+import java.time.Duration;
+
+/** tokens are taken from every level at once, like the peer, the torrent and the whole client */
+public class BandwidthLimiter {
+
+	private final TokenBucket[] buckets;
+
+	public BandwidthLimiter(TokenBucket... buckets) {
+		this.buckets = buckets;
+	}
+
+	/** @return {@code false} if any level is out of tokens, nothing is consumed then */
+	public boolean tryAcquire(long amount) {
+		for (var index = 0; index < buckets.length; ++index) {
+			if (!buckets[index].tryConsume(amount)) {
+				for (var previous = 0; previous < index; ++previous) {
+					buckets[previous].refund(amount);
+				}
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public void acquire(long amount) throws InterruptedException {
+		while (!tryAcquire(amount)) {
+			Thread.sleep(timeUntil(amount));
+		}
+	}
+
+	public void refund(long amount) {
+		for (final var bucket : buckets) {
+			bucket.refund(amount);
+		}
+	}
+
+	/** @return how long until the amount is available at every level */
+	public Duration timeUntil(long amount) {
+		var longest = Duration.ZERO;
+
+		for (final var bucket : buckets) {
+			final var duration = bucket.timeUntil(amount);
+			if (duration.compareTo(longest) > 0) {
+				longest = duration;
+			}
+		}
+
+		return longest;
+	}
+
+}
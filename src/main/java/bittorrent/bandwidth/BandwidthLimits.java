@@ -0,0 +1,25 @@
+package bittorrent.bandwidth;
+
+import lombok.experimental.UtilityClass;
+
+/** limits shared by every torrent of the client, in bytes per second, set with system properties; the global buckets can be changed at runtime */
+@UtilityClass
+public class BandwidthLimits {
+
+	public static final TokenBucket GLOBAL_DOWNLOAD = new TokenBucket(Long.getLong("bittorrent.download.rate", TokenBucket.UNLIMITED));
+	public static final TokenBucket GLOBAL_UPLOAD = new TokenBucket(Long.getLong("bittorrent.upload.rate", TokenBucket.UNLIMITED));
+
+	private static final long PEER_DOWNLOAD_RATE = Long.getLong("bittorrent.peer.download.rate", TokenBucket.UNLIMITED);
+	private static final long PEER_UPLOAD_RATE = Long.getLong("bittorrent.peer.upload.rate", TokenBucket.UNLIMITED);
+
+	/** initial rate of each peer, every downloader can change its own */
+	public static long getPeerDownloadRate() {
+		return PEER_DOWNLOAD_RATE;
+	}
+
+	/** initial rate of each peer, every downloader can change its own */
+	public static long getPeerUploadRate() {
+		return PEER_UPLOAD_RATE;
+	}
+
+}
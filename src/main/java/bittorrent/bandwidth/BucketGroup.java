@@ -0,0 +1,45 @@
+package bittorrent.bandwidth;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/** buckets of the same kind, one per peer, sharing a rate that can be changed for all of them at once */
+public class BucketGroup {
+
+	private final Set<TokenBucket> buckets = new HashSet<>();
+	private long rate;
+
+	public BucketGroup(long rate) {
+		this.rate = rate;
+	}
+
+	/** @return a new bucket, following the rate of the group until it is released */
+	public synchronized TokenBucket acquire() {
+		final var bucket = new TokenBucket(rate);
+		buckets.add(bucket);
+
+		return bucket;
+	}
+
+	public synchronized void release(TokenBucket bucket) {
+		buckets.remove(bucket);
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/** applied to the buckets in use as well, {@link TokenBucket#UNLIMITED} disables the limit */
+	public synchronized void setRate(long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative: %d".formatted(rate));
+		}
+
+		this.rate = rate;
+
+		for (final var bucket : buckets) {
+			bucket.setRate(rate);
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package bittorrent.bandwidth;
+
+import java.time.Duration;
+
+/** bytes per second, refilled continuously, with up to one second of burst */
+public class TokenBucket {
+
+	public static final long UNLIMITED = 0;
+
+	/** a full block must always fit, even with a very low rate */
+	public static final long MINIMUM_BURST = 32 * 1024;
+
+	private long rate;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	public TokenBucket(long rate) {
+		setRate(rate);
+		this.tokens = burst();
+	}
+
+	/** can be changed at any time, {@link #UNLIMITED} disables the limit */
+	public synchronized void setRate(long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative: %d".formatted(rate));
+		}
+
+		refill();
+		this.rate = rate;
+		this.tokens = Math.min(tokens, burst());
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	public synchronized boolean isUnlimited() {
+		return rate == UNLIMITED;
+	}
+
+	public synchronized boolean tryConsume(long amount) {
+		if (rate == UNLIMITED) {
+			return true;
+		}
+
+		refill();
+		if (tokens < amount) {
+			return false;
+		}
+
+		tokens -= amount;
+		return true;
+	}
+
+	/** give back tokens that were not used, like for a request that was not sent */
+	public synchronized void refund(long amount) {
+		if (rate == UNLIMITED) {
+			return;
+		}
+
+		tokens = Math.min(tokens + amount, burst());
+	}
+
+	/** @return how long until the amount is available, zero if already is */
+	public synchronized Duration timeUntil(long amount) {
+		if (rate == UNLIMITED) {
+			return Duration.ZERO;
+		}
+
+		refill();
+		if (tokens >= amount) {
+			return Duration.ZERO;
+		}
+
+		return Duration.ofNanos((long) ((amount - tokens) * 1_000_000_000d / rate));
+	}
+
+	private void refill() {
+		final var now = System.nanoTime();
+
+		if (rate != UNLIMITED) {
+			tokens = Math.min(tokens + (now - lastRefill) * rate / 1_000_000_000d, burst());
+		}
+
+		lastRefill = now;
+	}
+
+	private long burst() {
+		return Math.max(rate, MINIMUM_BURST);
+	}
+
+}
@@ -0,0 +1,153 @@
+package bittorrent.bencode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Print bencoded values as JSON while they are read, without ever holding them.
+ * The output is the one of Gson on the decoded values: one char per byte, escaped like Gson does by default, HTML characters included.
+ * Keys are kept in the order of the input, which is the sorted one for valid bencode.
+ */
+public class BencodeJsonWriter {
+
+	/** wildcard of a path, matching every key or index */
+	public static final String ANY = "*";
+
+	/** Gson escapes the control characters and the HTML ones, everything else is written as is */
+	private static final String[] REPLACEMENTS = new String[128];
+
+	static {
+		for (var character = 0; character < 0x20; ++character) {
+			REPLACEMENTS[character] = "\\u%04x".formatted(character);
+		}
+
+		REPLACEMENTS['"'] = "\\\"";
+		REPLACEMENTS['\\'] = "\\\\";
+		REPLACEMENTS['\t'] = "\\t";
+		REPLACEMENTS['\b'] = "\\b";
+		REPLACEMENTS['\n'] = "\\n";
+		REPLACEMENTS['\r'] = "\\r";
+		REPLACEMENTS['\f'] = "\\f";
+		REPLACEMENTS['<'] = "\\u003c";
+		REPLACEMENTS['>'] = "\\u003e";
+		REPLACEMENTS['&'] = "\\u0026";
+		REPLACEMENTS['='] = "\\u003d";
+		REPLACEMENTS['\''] = "\\u0027";
+	}
+
+	private final Writer writer;
+	private final byte[] chunk = new byte[8 * 1024];
+
+	public BencodeJsonWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/** write the next value of the reader, a whole dictionary or list included */
+	public void write(BencodeReader reader) throws IOException {
+		final var start = reader.depth();
+
+		/* a separator is due before anything but the first element of a container and a value after its key */
+		var separated = true;
+		do {
+			final var closesDictionary = reader.isInDictionary();
+			final var token = reader.next();
+
+			if (!separated && token != BencodeReader.Token.END) {
+				writer.write(',');
+			}
+
+			separated = false;
+			switch (token) {
+				case START_DICT -> {
+					writer.write('{');
+					separated = true;
+				}
+
+				case START_LIST -> {
+					writer.write('[');
+					separated = true;
+				}
+
+				case KEY -> {
+					writeString(reader);
+					writer.write(':');
+					separated = true;
+				}
+
+				case BYTES -> writeString(reader);
+				case INT -> writer.write(Long.toString(reader.number()));
+				case END -> writer.write(closesDictionary ? '}' : ']');
+				case EOF -> throw new EOFException("no value left");
+			}
+		} while (reader.depth() != start);
+	}
+
+	/**
+	 * Write only the values found at a path, each one on its own line, and skip the rest without decoding it.
+	 * @param path keys of dictionaries or indexes of lists, {@link #ANY} for all of them
+	 * @return the number of values written
+	 */
+	public int write(BencodeReader reader, String[] path) throws IOException {
+		return write(reader, path, 0);
+	}
+
+	private int write(BencodeReader reader, String[] path, int level) throws IOException {
+		if (level == path.length) {
+			write(reader);
+			writer.write(System.lineSeparator());
+
+			return 1;
+		}
+
+		final var token = reader.next();
+		if (token != BencodeReader.Token.START_DICT && token != BencodeReader.Token.START_LIST) {
+			/* a scalar has nothing below, and is already consumed past its header */
+			return 0;
+		}
+
+		final var segment = path[level];
+
+		var written = 0;
+		for (var index = 0; reader.peek() != BencodeReader.Token.END; ++index) {
+			final String name;
+			if (token == BencodeReader.Token.START_DICT) {
+				reader.next();
+				name = reader.string();
+			} else {
+				name = Integer.toString(index);
+			}
+
+			if (ANY.equals(segment) || segment.equals(name)) {
+				written += write(reader, path, level + 1);
+			} else {
+				reader.skipValue();
+			}
+		}
+
+		reader.next();
+		return written;
+	}
+
+	private void writeString(BencodeReader reader) throws IOException {
+		writer.write('"');
+
+		int read;
+		while ((read = reader.read(chunk)) != -1) {
+			for (var index = 0; index < read; ++index) {
+				/* one char per byte, like the deserializer */
+				final var character = (char) (chunk[index] & 0xff);
+
+				final var replacement = character < REPLACEMENTS.length ? REPLACEMENTS[character] : null;
+				if (replacement != null) {
+					writer.write(replacement);
+				} else {
+					writer.write(character);
+				}
+			}
+		}
+
+		writer.write('"');
+	}
+
+}
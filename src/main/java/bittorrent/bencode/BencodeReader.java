@@ -0,0 +1,271 @@
+package bittorrent.bencode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull bencoded data token by token from a stream, so that documents of any size are read in constant memory.
+ * The content of a string is only read when asked for, and skipped otherwise; whole values can be skipped without being decoded.
+ * Only the kind of each open container is remembered.
+ */
+public class BencodeReader implements AutoCloseable {
+
+	public enum Token {
+		START_DICT,
+		START_LIST,
+		/** a string in the key position of a dictionary */
+		KEY,
+		BYTES,
+		INT,
+		/** the end of the innermost dictionary or list */
+		END,
+		EOF
+	}
+
+	private final InputStream inputStream;
+	private long position;
+
+	/** whether each open container is a dictionary */
+	private boolean[] dictionaries = new boolean[16];
+	private int depth;
+
+	/** inside a dictionary, whether the next string is a key */
+	private boolean expectingKey;
+
+	private Token peeked;
+	private long number;
+
+	/** bytes of the current string not read yet */
+	private long pending;
+
+	public BencodeReader(InputStream inputStream) {
+		this.inputStream = inputStream instanceof BufferedInputStream ? inputStream : new BufferedInputStream(inputStream, 64 * 1024);
+	}
+
+	public BencodeReader(byte[] input) {
+		this(new ByteArrayInputStream(input));
+	}
+
+	/** @return the next token, without moving past it */
+	public Token peek() throws IOException {
+		if (peeked == null) {
+			peeked = read();
+		}
+
+		return peeked;
+	}
+
+	/** @return the next token, its value is then available until {@link #peek()} or {@link #next()} is called again */
+	public Token next() throws IOException {
+		final var token = peek();
+		peeked = null;
+
+		switch (token) {
+			case START_DICT -> push(true);
+			case START_LIST -> push(false);
+			case END -> --depth;
+			default -> {}
+		}
+
+		/* in a dictionary, after a key comes its value, and after a value the next key */
+		expectingKey = isInDictionary() && token != Token.KEY;
+
+		return token;
+	}
+
+	/** nesting level of the last token, {@code 0} at the top */
+	public int depth() {
+		return depth;
+	}
+
+	/** whether the innermost open container is a dictionary, like to know what an {@link Token#END} closes */
+	public boolean isInDictionary() {
+		return depth != 0 && dictionaries[depth - 1];
+	}
+
+	/** @return the value of the last {@link Token#INT} */
+	public long number() {
+		return number;
+	}
+
+	/** @return the length of the last {@link Token#KEY} or {@link Token#BYTES} */
+	public long length() {
+		return number;
+	}
+
+	/** read the content of the last string, only for the small ones */
+	public byte[] bytes() throws IOException {
+		if (pending > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("string too big to be read at once: %d bytes".formatted(pending));
+		}
+
+		final var bytes = inputStream.readNBytes((int) pending);
+		consumed(bytes.length);
+
+		if (pending != 0) {
+			throw new EOFException("string ended %d bytes early".formatted(pending));
+		}
+
+		return bytes;
+	}
+
+	/** same as {@link #bytes()}, one char per byte like {@link BencodeDeserializer} */
+	public String string() throws IOException {
+		return new String(bytes(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Read the content of the last string in chunks.
+	 * @return the number of bytes read, or {@code -1} once the whole string was read
+	 */
+	public int read(byte[] buffer) throws IOException {
+		if (pending == 0) {
+			return -1;
+		}
+
+		final var read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, pending));
+		if (read == -1) {
+			throw new EOFException("string ended %d bytes early".formatted(pending));
+		}
+
+		consumed(read);
+		return read;
+	}
+
+	/** move past the next value, a whole dictionary or list included, without decoding it */
+	public void skipValue() throws IOException {
+		final var start = depth;
+
+		do {
+			final var token = next();
+
+			if (token == Token.EOF) {
+				throw new EOFException("nothing left to skip at %d".formatted(position));
+			}
+
+			if (token == Token.END && depth < start) {
+				throw new IllegalStateException("no value to skip, the container ends at %d".formatted(position));
+			}
+		} while (depth != start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		inputStream.close();
+	}
+
+	private Token read() throws IOException {
+		skipPending();
+
+		final var first = inputStream.read();
+		if (first == -1) {
+			if (depth != 0) {
+				throw new EOFException("%d container(s) not closed".formatted(depth));
+			}
+
+			return Token.EOF;
+		}
+
+		++position;
+
+		if (expectingKey && first != BencodeSerializer.END_BYTE && !Character.isDigit(first)) {
+			throw new IllegalArgumentException("dictionary key is not a string at %d: %c".formatted(position - 1, (char) first));
+		}
+
+		if (Character.isDigit(first)) {
+			number = readNumber(first - '0', BencodeSerializer.COLON_BYTE);
+			pending = number;
+
+			return expectingKey ? Token.KEY : Token.BYTES;
+		}
+
+		return switch (first) {
+			case BencodeSerializer.INTEGER_BYTE -> {
+				number = readNumber(-1, BencodeSerializer.END_BYTE);
+				yield Token.INT;
+			}
+
+			case BencodeSerializer.LIST_BYTE -> Token.START_LIST;
+			case BencodeSerializer.MAP_BYTE -> Token.START_DICT;
+
+			case BencodeSerializer.END_BYTE -> {
+				if (depth == 0) {
+					throw new IllegalArgumentException("unexpected end at %d".formatted(position - 1));
+				}
+
+				if (dictionaries[depth - 1] && !expectingKey) {
+					throw new IllegalArgumentException("dictionary key without a value at %d".formatted(position - 1));
+				}
+
+				yield Token.END;
+			}
+
+			default -> throw new IllegalArgumentException("unknown character at %d: %c".formatted(position - 1, (char) first));
+		};
+	}
+
+	/** @param first the first digit if already read, or {@code -1} */
+	private long readNumber(int first, byte end) throws IOException {
+		final var builder = new StringBuilder(20);
+		if (first != -1) {
+			builder.append((char) ('0' + first));
+		}
+
+		int value;
+		while ((value = inputStream.read()) != end) {
+			if (value == -1) {
+				throw new EOFException("unterminated number at %d".formatted(position));
+			}
+
+			++position;
+			builder.append((char) value);
+
+			if (builder.length() > 20) {
+				throw new IllegalArgumentException("number too long at %d".formatted(position));
+			}
+		}
+
+		++position;
+
+		try {
+			return Long.parseLong(builder.toString());
+		} catch (NumberFormatException exception) {
+			throw new IllegalArgumentException("invalid number at %d: %s".formatted(position, builder));
+		}
+	}
+
+	private void skipPending() throws IOException {
+		while (pending != 0) {
+			final var skipped = inputStream.skip(pending);
+
+			if (skipped <= 0) {
+				if (inputStream.read() == -1) {
+					throw new EOFException("string ended %d bytes early".formatted(pending));
+				}
+
+				consumed(1);
+			} else {
+				consumed(skipped);
+			}
+		}
+	}
+
+	private void consumed(long count) {
+		pending -= count;
+		position += count;
+	}
+
+	private void push(boolean dictionary) {
+		if (depth == dictionaries.length) {
+			dictionaries = Arrays.copyOf(dictionaries, depth * 2);
+		}
+
+		dictionaries[depth++] = dictionary;
+	}
+
+}
@@ -0,0 +1,134 @@
+package bittorrent.bencode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** walk bencoded data in place, only remembering where values are, so that big documents are never fully decoded */
+public class BencodeScanner {
+
+	private final ByteBuffer buffer;
+
+	public BencodeScanner(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/** @return the position right after the value starting at the position */
+	public int skip(int position) {
+		final var first = buffer.get(position);
+
+		if (Character.isDigit(first)) {
+			final var colon = indexOf(BencodeSerializer.COLON_BYTE, position);
+			return colon + 1 + (int) parseLong(position, colon);
+		}
+
+		return switch (first) {
+			case BencodeSerializer.INTEGER_BYTE -> indexOf(BencodeSerializer.END_BYTE, position) + 1;
+
+			case BencodeSerializer.LIST_BYTE, BencodeSerializer.MAP_BYTE -> {
+				var next = position + 1;
+				while (buffer.get(next) != BencodeSerializer.END_BYTE) {
+					next = skip(next);
+				}
+
+				yield next + 1;
+			}
+
+			default -> throw new IllegalArgumentException("unknown character at %d: %c".formatted(position, (char) first));
+		};
+	}
+
+	/** @return where the value of each key of the dictionary starting at the position is */
+	public Map<String, Span> index(int position) {
+		if (buffer.get(position) != BencodeSerializer.MAP_BYTE) {
+			throw new IllegalArgumentException("not a dictionary at %d".formatted(position));
+		}
+
+		final var entries = new LinkedHashMap<String, Span>();
+
+		var next = position + 1;
+		while (buffer.get(next) != BencodeSerializer.END_BYTE) {
+			final var keyEnd = skip(next);
+			final var key = readString(new Span(next, keyEnd));
+
+			final var valueEnd = skip(keyEnd);
+			entries.put(key, new Span(keyEnd, valueEnd));
+
+			next = valueEnd;
+		}
+
+		return entries;
+	}
+
+	/** @return where the content of the string is, without its length prefix */
+	public Span content(Span string) {
+		final var colon = indexOf(BencodeSerializer.COLON_BYTE, string.start());
+
+		return new Span(colon + 1, string.end());
+	}
+
+	public String readString(Span string) {
+		final var content = content(string);
+
+		final var bytes = new byte[content.length()];
+		buffer.get(content.start(), bytes);
+
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	public long readNumber(Span number) {
+		if (buffer.get(number.start()) != BencodeSerializer.INTEGER_BYTE) {
+			throw new IllegalArgumentException("not a number at %d".formatted(number.start()));
+		}
+
+		return parseLong(number.start() + 1, number.end() - 1);
+	}
+
+	/** a view of the raw bytes, nothing is copied */
+	public ByteBuffer slice(Span span) {
+		return buffer.slice(span.start(), span.length());
+	}
+
+	public byte[] readBytes(Span span) {
+		final var bytes = new byte[span.length()];
+		buffer.get(span.start(), bytes);
+
+		return bytes;
+	}
+
+	/** fully decode a value, only for the small ones */
+	public Object decode(Span span) throws IOException {
+		return new BencodeDeserializer(readBytes(span)).parse();
+	}
+
+	private int indexOf(byte value, int from) {
+		for (var index = from; index < buffer.limit(); ++index) {
+			if (buffer.get(index) == value) {
+				return index;
+			}
+		}
+
+		throw new IllegalArgumentException("unterminated value at %d".formatted(from));
+	}
+
+	private long parseLong(int start, int end) {
+		final var bytes = new byte[end - start];
+		buffer.get(start, bytes);
+
+		return Long.parseLong(new String(bytes, StandardCharsets.US_ASCII));
+	}
+
+	public record Span(
+		int start,
+		int end
+	) {
+
+		public int length() {
+			return end - start;
+		}
+
+	}
+
+}
@@ -0,0 +1,269 @@
+package bittorrent.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import bittorrent.Main;
+
+/**
+ * Resident process that runs the commands for its clients over a local HTTP API.
+ * The JVM, the HTTP connections, the tracker answers and the metadata store stay warm between commands.
+ * The API only listens on the loopback, and every call needs the token written in the state file, which only the owner can read.
+ */
+public class Daemon implements AutoCloseable {
+
+	/** the port, and the token on the second line */
+	public static final Path STATE_FILE = Path.of(System.getProperty("user.home"), ".cache", "bittorrent", "daemon");
+	public static final String TOKEN_HEADER = "X-Daemon-Token";
+
+	public static final String RUN_PATH = "/run";
+	public static final String STATUS_PATH = "/status";
+	public static final String STOP_PATH = "/stop";
+
+	private static final Gson GSON = new Gson();
+
+	private final Command command;
+	private final String token;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final OutputRouter outputRouter;
+	private final OutputRouter errorRouter;
+	private final PrintStream originalOutput;
+	private final PrintStream originalError;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private final Instant startedAt = Instant.now();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong served = new AtomicLong();
+
+	private Daemon(Command command, String token, HttpServer server) {
+		this.command = command;
+		this.token = token;
+		this.server = server;
+		this.executor = Executors.newVirtualThreadPerTaskExecutor();
+		this.originalOutput = System.out;
+		this.outputRouter = new OutputRouter(originalOutput);
+		this.originalError = System.err;
+		this.errorRouter = new OutputRouter(originalError);
+	}
+
+	/** listen on a free loopback port, and publish it in the state file */
+	public static Daemon start(Command command) throws IOException {
+		final var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		final var daemon = new Daemon(command, generateToken(), server);
+
+		server.createContext(RUN_PATH, daemon::handleRun);
+		server.createContext(STATUS_PATH, daemon::handleStatus);
+		server.createContext(STOP_PATH, daemon::handleStop);
+		server.setExecutor(daemon.executor);
+
+		System.setOut(new PrintStream(daemon.outputRouter, true, StandardCharsets.UTF_8));
+		System.setErr(new PrintStream(daemon.errorRouter, true, StandardCharsets.UTF_8));
+		server.start();
+
+		try {
+			daemon.writeStateFile();
+		} catch (IOException exception) {
+			daemon.close();
+			throw exception;
+		}
+
+		return daemon;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** block until a client asks to stop */
+	public void await() throws InterruptedException {
+		stopped.await();
+	}
+
+	public Status getStatus() {
+		return new Status(
+			ProcessHandle.current().pid(),
+			getPort(),
+			Duration.between(startedAt, Instant.now()).toSeconds(),
+			running.get(),
+			served.get()
+		);
+	}
+
+	private void handleRun(HttpExchange exchange) throws IOException {
+		if (!authorize(exchange, "POST")) {
+			return;
+		}
+
+		final RunRequest request;
+		try (final var reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+			request = GSON.fromJson(reader, RunRequest.class);
+		} catch (JsonParseException exception) {
+			respond(exchange, 400, new RunResponse(2, "", "", "invalid request: %s".formatted(exception.getMessage())));
+			return;
+		}
+
+		if (request == null || request.args() == null || request.args().isEmpty() || "daemon".equals(request.args().getFirst())) {
+			respond(exchange, 400, new RunResponse(2, "", "", "invalid command"));
+			return;
+		}
+
+		respond(exchange, 200, run(request.args()));
+	}
+
+	/** both outputs of the command thread are sent back, the standard error as well, like if it had run in the client; the threads it started log to the daemon */
+	private RunResponse run(List<String> args) {
+		final var output = new ByteArrayOutputStream();
+		final var errorOutput = new ByteArrayOutputStream();
+
+		running.incrementAndGet();
+		outputRouter.route(output);
+		errorRouter.route(errorOutput);
+		try {
+			command.run(args.toArray(String[]::new));
+
+			return new RunResponse(0, output.toString(StandardCharsets.UTF_8), errorOutput.toString(StandardCharsets.UTF_8), null);
+		} catch (Exception exception) {
+			originalError.println("daemon: %s failed: %s".formatted(args, exception));
+
+			return new RunResponse(1, output.toString(StandardCharsets.UTF_8), errorOutput.toString(StandardCharsets.UTF_8), String.valueOf(exception));
+		} finally {
+			outputRouter.clear();
+			errorRouter.clear();
+			running.decrementAndGet();
+			served.incrementAndGet();
+		}
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		if (!authorize(exchange, "GET")) {
+			return;
+		}
+
+		respond(exchange, 200, getStatus());
+	}
+
+	private void handleStop(HttpExchange exchange) throws IOException {
+		if (!authorize(exchange, "POST")) {
+			return;
+		}
+
+		respond(exchange, 200, getStatus());
+		stopped.countDown();
+	}
+
+	private boolean authorize(HttpExchange exchange, String method) throws IOException {
+		if (!token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+			exchange.sendResponseHeaders(403, -1);
+			exchange.close();
+			return false;
+		}
+
+		if (!method.equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(405, -1);
+			exchange.close();
+			return false;
+		}
+
+		return true;
+	}
+
+	private static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+		final var bytes = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		try (final var outputStream = exchange.getResponseBody()) {
+			outputStream.write(bytes);
+		}
+	}
+
+	private void writeStateFile() throws IOException {
+		Files.createDirectories(STATE_FILE.getParent());
+
+		final var temporary = Files.createTempFile(STATE_FILE.getParent(), STATE_FILE.getFileName().toString(), ".tmp");
+		try {
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+				Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+			}
+
+			Files.writeString(temporary, "%d%n%s%n".formatted(getPort(), token));
+			Files.move(temporary, STATE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static String generateToken() {
+		final var bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+
+		return Main.HEX_FORMAT.formatHex(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		/* another daemon may have replaced it */
+		if (Files.exists(STATE_FILE) && Files.readAllLines(STATE_FILE).contains(token)) {
+			Files.deleteIfExists(STATE_FILE);
+		}
+
+		server.stop(1);
+		executor.shutdownNow();
+		System.setOut(originalOutput);
+		System.setErr(originalError);
+
+		System.err.println("daemon: stopped after %d command(s)".formatted(served.get()));
+	}
+
+	@FunctionalInterface
+	public interface Command {
+
+		void run(String[] args) throws Exception;
+
+	}
+
+	public record RunRequest(
+		List<String> args
+	) {}
+
+	public record RunResponse(
+		int exitCode,
+		String output,
+		String errorOutput,
+		String error
+	) {}
+
+	public record Status(
+		long pid,
+		int port,
+		long uptimeSeconds,
+		int running,
+		long served
+	) {}
+
+}
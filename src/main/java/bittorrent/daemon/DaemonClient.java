@@ -0,0 +1,148 @@
+package bittorrent.daemon;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+import bittorrent.Main;
+import lombok.experimental.UtilityClass;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+/** forward a command line to a running daemon */
+@UtilityClass
+public class DaemonClient {
+
+	/** the daemon's own commands, the stream, whose binary output is only useful as it comes, and the decode, which reads the standard input and writes too much to be buffered */
+	public static final Set<String> LOCAL_COMMANDS = Set.of("daemon", "stream", "decode");
+
+	private static final Gson GSON = new Gson();
+	private static final MediaType JSON = MediaType.get("application/json");
+
+	/** commands can run for as long as a download */
+	private static final OkHttpClient CLIENT = Main.CLIENT.newBuilder()
+		.readTimeout(Duration.ZERO)
+		.build();
+
+	public static boolean isForwardable(String[] args) {
+		return args.length != 0 && !LOCAL_COMMANDS.contains(args[0]) && Files.exists(Daemon.STATE_FILE);
+	}
+
+	/** @return the exit code, or {@code null} if no daemon answered */
+	public static Integer forward(String[] args) {
+		final var state = readState();
+		if (state == null) {
+			return null;
+		}
+
+		final var body = GSON.toJson(new Daemon.RunRequest(absolutize(args)));
+
+		final Daemon.RunResponse response;
+		try {
+			response = GSON.fromJson(call(state, Daemon.RUN_PATH, RequestBody.create(body, JSON)), Daemon.RunResponse.class);
+		} catch (IOException exception) {
+			/* a stale state file, left by a daemon that crashed, or whose port and token went to another one */
+			return null;
+		}
+
+		System.out.print(response.output());
+		System.out.flush();
+
+		if (response.errorOutput() != null) {
+			System.err.print(response.errorOutput());
+			System.err.flush();
+		}
+
+		if (response.error() != null) {
+			System.err.println(response.error());
+		}
+
+		return response.exitCode();
+	}
+
+	public static String status() throws IOException {
+		final var state = readState();
+		if (state == null) {
+			return "not running";
+		}
+
+		return call(state, Daemon.STATUS_PATH, null);
+	}
+
+	public static void stop() throws IOException {
+		final var state = readState();
+		if (state == null) {
+			return;
+		}
+
+		call(state, Daemon.STOP_PATH, RequestBody.create(new byte[0], null));
+	}
+
+	/** the daemon does not share the working directory, paths are made absolute if they look like ones */
+	private static List<String> absolutize(String[] args) {
+		final var result = new ArrayList<String>(args.length);
+
+		for (var index = 0; index < args.length; ++index) {
+			final var arg = args[index];
+			final var isOutput = index != 0 && "-o".equals(args[index - 1]);
+
+			if (isOutput || (index != 0 && Files.exists(Path.of(arg)))) {
+				result.add(Path.of(arg).toAbsolutePath().toString());
+			} else {
+				result.add(arg);
+			}
+		}
+
+		return result;
+	}
+
+	/** @param body {@code null} for a {@code GET} */
+	private static String call(State state, String path, RequestBody body) throws IOException {
+		final var builder = new Request.Builder()
+			.url("http://127.0.0.1:%d%s".formatted(state.port(), path))
+			.header(Daemon.TOKEN_HEADER, state.token());
+
+		if (body != null) {
+			builder.post(body);
+		}
+
+		try (
+			final var response = CLIENT.newCall(builder.build()).execute();
+			final var responseBody = response.body();
+		) {
+			if (response.code() == 403) {
+				throw new IOException("daemon: token rejected");
+			}
+
+			return responseBody.string();
+		}
+	}
+
+	private static State readState() {
+		try {
+			final var lines = Files.readAllLines(Daemon.STATE_FILE);
+
+			return new State(Integer.parseInt(lines.get(0).strip()), lines.get(1).strip());
+		} catch (NoSuchFileException exception) {
+			return null;
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("daemon: unreadable state file: %s".formatted(exception));
+			return null;
+		}
+	}
+
+	private record State(
+		int port,
+		String token
+	) {}
+
+}
@@ -0,0 +1,48 @@
+package bittorrent.daemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Standard output of the daemon, where each command writes into its own buffer.
+ * Only the thread running the command is routed: the threads it starts may outlive it, like the uTP transport or the pools of the HTTP client, so they write to the daemon's own output.
+ */
+class OutputRouter extends OutputStream {
+
+	private final OutputStream fallback;
+	private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+	OutputRouter(OutputStream fallback) {
+		this.fallback = fallback;
+	}
+
+	/** route the writes of the current thread until {@link #clear()} */
+	void route(OutputStream outputStream) {
+		target.set(outputStream);
+	}
+
+	void clear() {
+		target.remove();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		current().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		current().write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		current().flush();
+	}
+
+	private OutputStream current() {
+		final var outputStream = target.get();
+		return outputStream != null ? outputStream : fallback;
+	}
+
+}
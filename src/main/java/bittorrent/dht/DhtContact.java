@@ -0,0 +1,75 @@
+package bittorrent.dht;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import bittorrent.util.NetworkUtils;
+import lombok.SneakyThrows;
+
+public record DhtContact(
+	NodeId id,
+	InetSocketAddress address
+) {
+
+	public static final int V4_LENGTH = NodeId.LENGTH + 4 + 2;
+	public static final int V6_LENGTH = NodeId.LENGTH + 16 + 2;
+
+	public byte[] toCompact() {
+		final var compactAddress = NetworkUtils.toCompact(address);
+
+		final var bytes = Arrays.copyOf(id.bytes(), NodeId.LENGTH + compactAddress.length);
+		System.arraycopy(compactAddress, 0, bytes, NodeId.LENGTH, compactAddress.length);
+
+		return bytes;
+	}
+
+	/** @return the compact node info of the contacts whose address is {@code addressLength} bytes long */
+	public static String toCompactString(Collection<DhtContact> contacts, int addressLength) {
+		final var builder = new StringBuilder();
+
+		for (final var contact : contacts) {
+			if (contact.address().getAddress().getAddress().length == addressLength) {
+				builder.append(new String(contact.toCompact(), StandardCharsets.ISO_8859_1));
+			}
+		}
+
+		return builder.toString();
+	}
+
+	public static List<DhtContact> parseV4(String input) {
+		return parse(V4_LENGTH, input);
+	}
+
+	public static List<DhtContact> parseV6(String input) {
+		return parse(V6_LENGTH, input);
+	}
+
+	@SneakyThrows
+	private static List<DhtContact> parse(int length, String input) {
+		if (input == null) {
+			return Collections.emptyList();
+		}
+
+		final var contacts = new ArrayList<DhtContact>();
+
+		final var bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+		for (var start = 0; start + length <= bytes.length; start += length) {
+			final var id = new NodeId(Arrays.copyOfRange(bytes, start, start + NodeId.LENGTH));
+
+			final var addressEnd = start + length - 2;
+			final var address = InetAddress.getByAddress(Arrays.copyOfRange(bytes, start + NodeId.LENGTH, addressEnd));
+			final var port = ((bytes[addressEnd] & 0xff) << 8) + (bytes[addressEnd + 1] & 0xff);
+
+			contacts.add(new DhtContact(id, new InetSocketAddress(address, port)));
+		}
+
+		return contacts;
+	}
+
+}
@@ -0,0 +1,740 @@
+package bittorrent.dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittorrent.bencode.BencodeDeserializer;
+import bittorrent.bencode.BencodeSerializer;
+import bittorrent.util.DigestUtils;
+import bittorrent.util.NetworkUtils;
+
+/** mainline dht node, speaking krpc over udp as described by BEP 5 */
+public class DhtNode implements AutoCloseable {
+
+	public static final int DEFAULT_PORT = 6881;
+	public static final int ALPHA = 3;
+	public static final Duration QUERY_TIMEOUT = Duration.ofSeconds(2);
+	public static final Duration TOKEN_ROTATION = Duration.ofMinutes(5);
+	public static final Duration PEER_EXPIRATION = Duration.ofMinutes(30);
+
+	/** announces past these limits are dropped, or replace the oldest peer of the torrent, so that the storage stays bounded */
+	public static final int MAXIMUM_STORED_INFO_HASHES = 2000;
+	public static final int MAXIMUM_STORED_PEERS = 50;
+
+	/** expired peers are removed that often, even for torrents that nobody asks for */
+	public static final Duration SWEEP_INTERVAL = Duration.ofMinutes(5);
+	public static final int MAXIMUM_PACKET_SIZE = 2048;
+
+	public static final List<InetSocketAddress> BOOTSTRAP_NODES = List.of(
+		InetSocketAddress.createUnresolved("router.bittorrent.com", 6881),
+		InetSocketAddress.createUnresolved("dht.transmissionbt.com", 6881),
+		InetSocketAddress.createUnresolved("router.utorrent.com", 6881)
+	);
+
+	public static final String TRANSACTION_ID_KEY = "t";
+	public static final String TYPE_KEY = "y";
+	public static final String QUERY_KEY = "q";
+	public static final String ARGUMENTS_KEY = "a";
+	public static final String RESPONSE_KEY = "r";
+	public static final String ERROR_KEY = "e";
+	public static final String ID_KEY = "id";
+	public static final String TARGET_KEY = "target";
+	public static final String INFO_HASH_KEY = "info_hash";
+	public static final String NODES_KEY = "nodes";
+	public static final String NODES6_KEY = "nodes6";
+	public static final String VALUES_KEY = "values";
+	public static final String TOKEN_KEY = "token";
+	public static final String PORT_KEY = "port";
+	public static final String IMPLIED_PORT_KEY = "implied_port";
+
+	public static final String PING = "ping";
+	public static final String FIND_NODE = "find_node";
+	public static final String GET_PEERS = "get_peers";
+	public static final String ANNOUNCE_PEER = "announce_peer";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final NodeId localId;
+	private final DatagramSocket socket;
+	private final RoutingTable routingTable;
+	private final Path cachePath;
+	private final Map<String, PendingQuery> transactions = new ConcurrentHashMap<>();
+
+	/** announce time of the peers of each torrent, oldest first, only accessed while computing the entry */
+	private final Map<NodeId, LinkedHashMap<InetSocketAddress, Long>> storedPeers = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService sweeper;
+	private final AtomicInteger nextTransactionId = new AtomicInteger(RANDOM.nextInt());
+	private final Thread receiver;
+
+	private byte[] tokenSecret = newTokenSecret();
+	private byte[] previousTokenSecret = tokenSecret;
+	private long tokenRotatedAt = System.nanoTime();
+
+	private long lookupCount;
+	private long totalLookupNanos;
+	private long maximumLookupNanos;
+	private long lastLookupNanos;
+
+	public DhtNode(NodeId localId, InetSocketAddress bindAddress) throws SocketException {
+		this(localId, bindAddress, KBucket.STALE_AFTER);
+	}
+
+	/** @param staleAfter how long before a silent node is pinged when a full bucket has someone new to take */
+	public DhtNode(NodeId localId, InetSocketAddress bindAddress, Duration staleAfter) throws SocketException {
+		this(localId, bindAddress, staleAfter, null);
+	}
+
+	private DhtNode(NodeId localId, InetSocketAddress bindAddress, Duration staleAfter, Path cachePath) throws SocketException {
+		this.localId = localId;
+		this.socket = new DatagramSocket(bindAddress);
+		this.routingTable = new RoutingTable(localId, staleAfter);
+		this.cachePath = cachePath;
+
+		routingTable.setPinger((contact) -> ping(contact.address()).whenComplete((response, error) -> routingTable.onPinged(contact.id(), error == null)));
+
+		this.receiver = Thread.ofPlatform().name("dht-receiver").daemon().start(this::receiveLoop);
+
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("dht-sweeper").daemon().factory());
+		sweeper.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL.toMillis(), SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public NodeId getLocalId() {
+		return localId;
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) socket.getLocalSocketAddress();
+	}
+
+	public RoutingTable getRoutingTable() {
+		return routingTable;
+	}
+
+	public CompletableFuture<Map<String, Object>> ping(InetSocketAddress address) {
+		return query(address, PING, new TreeMap<>());
+	}
+
+	public CompletableFuture<Map<String, Object>> findNode(InetSocketAddress address, NodeId target) {
+		final var arguments = new TreeMap<String, Object>();
+		arguments.put(TARGET_KEY, string(target.bytes()));
+
+		return query(address, FIND_NODE, arguments);
+	}
+
+	public CompletableFuture<Map<String, Object>> getPeers(InetSocketAddress address, NodeId infoHash) {
+		final var arguments = new TreeMap<String, Object>();
+		arguments.put(INFO_HASH_KEY, string(infoHash.bytes()));
+
+		return query(address, GET_PEERS, arguments);
+	}
+
+	public CompletableFuture<Map<String, Object>> announcePeer(InetSocketAddress address, NodeId infoHash, int port, String token) {
+		final var arguments = new TreeMap<String, Object>();
+		arguments.put(INFO_HASH_KEY, string(infoHash.bytes()));
+		arguments.put(PORT_KEY, port);
+		arguments.put(TOKEN_KEY, token);
+		arguments.put(IMPLIED_PORT_KEY, 0);
+
+		return query(address, ANNOUNCE_PEER, arguments);
+	}
+
+	/** @return the number of nodes in the routing table afterwards */
+	public int bootstrap() throws InterruptedException {
+		final var seeds = new ArrayList<InetSocketAddress>();
+
+		for (final var contact : routingTable.all()) {
+			seeds.add(contact.address());
+		}
+
+		if (seeds.size() < RoutingTable.K) {
+			for (final var node : BOOTSTRAP_NODES) {
+				final var resolved = new InetSocketAddress(node.getHostString(), node.getPort());
+
+				if (!resolved.isUnresolved()) {
+					seeds.add(resolved);
+				}
+			}
+		}
+
+		return bootstrap(seeds);
+	}
+
+	/** @return the number of nodes in the routing table afterwards */
+	public int bootstrap(Collection<InetSocketAddress> seeds) throws InterruptedException {
+		final var futures = new ArrayList<CompletableFuture<?>>();
+
+		for (final var seed : seeds) {
+			futures.add(findNode(seed, localId).exceptionally((__) -> null));
+		}
+
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+		lookup(localId, false);
+
+		return routingTable.size();
+	}
+
+	/** iterative lookup of the nodes closest to the target, querying {@link #ALPHA} of them at once */
+	@SuppressWarnings("unchecked")
+	public LookupResult lookup(NodeId target, boolean wantPeers) throws InterruptedException {
+		final var start = System.nanoTime();
+
+		final var method = wantPeers ? GET_PEERS : FIND_NODE;
+		final var comparator = target.byDistance();
+
+		final var shortlist = new TreeSet<DhtContact>(comparator);
+		final var seen = new HashSet<NodeId>();
+		final var queried = new HashSet<NodeId>();
+		final var responded = new TreeSet<DhtContact>(comparator);
+		final var tokens = new HashMap<NodeId, String>();
+		final var peers = new LinkedHashSet<InetSocketAddress>();
+		final var replies = new LinkedBlockingQueue<Reply>();
+
+		for (final var contact : routingTable.closest(target, RoutingTable.K)) {
+			shortlist.add(contact);
+			seen.add(contact.id());
+		}
+
+		var inFlight = 0;
+		while (true) {
+			var rank = 0;
+			for (final var contact : shortlist) {
+				if (rank++ >= RoutingTable.K || inFlight >= ALPHA) {
+					break;
+				}
+
+				if (!queried.add(contact.id())) {
+					continue;
+				}
+
+				++inFlight;
+
+				final var future = wantPeers ? getPeers(contact.address(), target) : findNode(contact.address(), target);
+				future.whenComplete((response, error) -> replies.add(new Reply(contact, response, error)));
+			}
+
+			if (inFlight == 0) {
+				break;
+			}
+
+			final var reply = replies.take();
+			--inFlight;
+
+			if (reply.error() != null) {
+				shortlist.remove(reply.contact());
+				routingTable.markFailed(reply.contact().id());
+				continue;
+			}
+
+			final var response = reply.response();
+			responded.add(reply.contact());
+
+			final var discovered = new ArrayList<DhtContact>();
+			discovered.addAll(DhtContact.parseV4((String) response.get(NODES_KEY)));
+			discovered.addAll(DhtContact.parseV6((String) response.get(NODES6_KEY)));
+
+			for (final var contact : discovered) {
+				if (!contact.id().equals(localId) && seen.add(contact.id())) {
+					shortlist.add(contact);
+				}
+			}
+
+			final var token = response.get(TOKEN_KEY);
+			if (token instanceof String string) {
+				tokens.put(reply.contact().id(), string);
+			}
+
+			final var values = response.get(VALUES_KEY);
+			if (values instanceof List<?> list) {
+				for (final var value : (List<Object>) list) {
+					if (value instanceof String compact) {
+						peers.addAll(compact.length() == 6 ? NetworkUtils.parseV4SocketAddresses(compact) : NetworkUtils.parseV6SocketAddresses(compact));
+					}
+				}
+			}
+		}
+
+		final var closest = new ArrayList<DhtContact>();
+		for (final var contact : responded) {
+			if (closest.size() == RoutingTable.K) {
+				break;
+			}
+
+			closest.add(contact);
+		}
+
+		final var latency = Duration.ofNanos(System.nanoTime() - start);
+		recordLookup(latency);
+
+		System.err.println("dht: %s: target=%s queried=%d peers=%d latency=%dms".formatted(method, target, queried.size(), peers.size(), latency.toMillis()));
+
+		return new LookupResult(new ArrayList<>(peers), closest, tokens, latency);
+	}
+
+	/** look for peers, then tell the closest nodes that we are also downloading the torrent */
+	public LookupResult announce(NodeId infoHash, int port) throws InterruptedException {
+		final var result = lookup(infoHash, true);
+
+		final var futures = new ArrayList<CompletableFuture<?>>();
+		for (final var contact : result.closest()) {
+			final var token = result.tokens().get(contact.id());
+
+			if (token != null) {
+				futures.add(announcePeer(contact.address(), infoHash, port, token).exceptionally((__) -> null));
+			}
+		}
+
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+		return result;
+	}
+
+	public synchronized Metrics getMetrics() {
+		return new Metrics(
+			lookupCount,
+			Duration.ofNanos(lastLookupNanos),
+			Duration.ofNanos(lookupCount == 0 ? 0 : totalLookupNanos / lookupCount),
+			Duration.ofNanos(maximumLookupNanos)
+		);
+	}
+
+	private synchronized void recordLookup(Duration latency) {
+		final var nanos = latency.toNanos();
+
+		++lookupCount;
+		totalLookupNanos += nanos;
+		maximumLookupNanos = Math.max(maximumLookupNanos, nanos);
+		lastLookupNanos = nanos;
+	}
+
+	private CompletableFuture<Map<String, Object>> query(InetSocketAddress address, String method, Map<String, Object> arguments) {
+		final var transactionId = nextTransactionId();
+		final var future = new CompletableFuture<Map<String, Object>>();
+
+		transactions.put(transactionId, new PendingQuery(address, future));
+		future
+			.orTimeout(QUERY_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+			.whenComplete((response, error) -> transactions.remove(transactionId));
+
+		arguments.put(ID_KEY, string(localId.bytes()));
+
+		final var message = new TreeMap<String, Object>();
+		message.put(TRANSACTION_ID_KEY, transactionId);
+		message.put(TYPE_KEY, QUERY_KEY);
+		message.put(QUERY_KEY, method);
+		message.put(ARGUMENTS_KEY, arguments);
+
+		try {
+			send(message, address);
+		} catch (IOException | RuntimeException exception) {
+			future.completeExceptionally(exception);
+		}
+
+		return future;
+	}
+
+	private void send(Map<String, Object> message, InetSocketAddress address) throws IOException {
+		final var bytes = new BencodeSerializer().writeAsBytes(message);
+
+		socket.send(new DatagramPacket(bytes, bytes.length, address));
+	}
+
+	private void receiveLoop() {
+		final var buffer = new byte[MAXIMUM_PACKET_SIZE];
+
+		while (!socket.isClosed()) {
+			final var packet = new DatagramPacket(buffer, buffer.length);
+
+			try {
+				socket.receive(packet);
+			} catch (IOException exception) {
+				continue;
+			}
+
+			final var source = (InetSocketAddress) packet.getSocketAddress();
+
+			try {
+				final var bytes = Arrays.copyOf(packet.getData(), packet.getLength());
+				handle(new BencodeDeserializer(bytes).parse(), source);
+			} catch (Exception exception) {
+				System.err.println("dht: invalid packet from %s: %s".formatted(source, exception));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handle(Object decoded, InetSocketAddress source) throws IOException {
+		if (!(decoded instanceof Map<?, ?>)) {
+			return;
+		}
+
+		final var message = (Map<String, Object>) decoded;
+		final var transactionId = (String) message.get(TRANSACTION_ID_KEY);
+
+		switch ((String) message.get(TYPE_KEY)) {
+			case QUERY_KEY -> onQuery(transactionId, (String) message.get(QUERY_KEY), (Map<String, Object>) message.get(ARGUMENTS_KEY), source);
+
+			case RESPONSE_KEY -> {
+				final var pending = claim(transactionId, source);
+				if (pending == null) {
+					return;
+				}
+
+				final var response = (Map<String, Object>) message.get(RESPONSE_KEY);
+				learn((String) response.get(ID_KEY), source);
+
+				pending.future().complete(response);
+			}
+
+			case ERROR_KEY -> {
+				final var pending = claim(transactionId, source);
+				if (pending == null) {
+					return;
+				}
+
+				pending.future().completeExceptionally(new IllegalStateException("dht error: %s".formatted(message.get(ERROR_KEY))));
+			}
+
+			default -> {}
+		}
+	}
+
+	/** @return the query answered, or {@code null} if it is unknown or was sent to someone else than the source */
+	private PendingQuery claim(String transactionId, InetSocketAddress source) {
+		if (transactionId == null) {
+			return null;
+		}
+
+		final var pending = transactions.get(transactionId);
+		if (pending == null || !pending.address().equals(source) || !transactions.remove(transactionId, pending)) {
+			return null;
+		}
+
+		return pending;
+	}
+
+	private void onQuery(String transactionId, String method, Map<String, Object> arguments, InetSocketAddress source) throws IOException {
+		if (arguments == null) {
+			sendError(transactionId, 203, "Protocol Error", source);
+			return;
+		}
+
+		learn((String) arguments.get(ID_KEY), source);
+
+		final var response = new TreeMap<String, Object>();
+		response.put(ID_KEY, string(localId.bytes()));
+
+		switch (method) {
+			case PING -> {}
+
+			case FIND_NODE -> {
+				final var target = new NodeId(bytes((String) arguments.get(TARGET_KEY)));
+				putClosestNodes(response, target);
+			}
+
+			case GET_PEERS -> {
+				final var infoHash = new NodeId(bytes((String) arguments.get(INFO_HASH_KEY)));
+				response.put(TOKEN_KEY, token(source, tokenSecret()));
+
+				final var peers = storedPeers(infoHash);
+				if (peers.isEmpty()) {
+					putClosestNodes(response, infoHash);
+				} else {
+					final var values = new ArrayList<String>();
+					for (final var peer : peers) {
+						values.add(string(NetworkUtils.toCompact(peer)));
+					}
+
+					response.put(VALUES_KEY, values);
+				}
+			}
+
+			case ANNOUNCE_PEER -> {
+				final var infoHash = new NodeId(bytes((String) arguments.get(INFO_HASH_KEY)));
+				final var token = (String) arguments.get(TOKEN_KEY);
+
+				if (!isValidToken(token, source)) {
+					sendError(transactionId, 203, "Bad Token", source);
+					return;
+				}
+
+				final var impliedPort = (long) arguments.getOrDefault(IMPLIED_PORT_KEY, 0l) != 0;
+				final var port = impliedPort ? source.getPort() : (int) (long) arguments.get(PORT_KEY);
+
+				storePeer(infoHash, new InetSocketAddress(source.getAddress(), port));
+			}
+
+			default -> {
+				sendError(transactionId, 204, "Method Unknown", source);
+				return;
+			}
+		}
+
+		final var message = new TreeMap<String, Object>();
+		message.put(TRANSACTION_ID_KEY, transactionId);
+		message.put(TYPE_KEY, RESPONSE_KEY);
+		message.put(RESPONSE_KEY, response);
+
+		send(message, source);
+	}
+
+	private void sendError(String transactionId, int code, String description, InetSocketAddress source) throws IOException {
+		final var message = new TreeMap<String, Object>();
+		message.put(TRANSACTION_ID_KEY, transactionId);
+		message.put(TYPE_KEY, ERROR_KEY);
+		message.put(ERROR_KEY, List.of(code, description));
+
+		send(message, source);
+	}
+
+	private void putClosestNodes(Map<String, Object> response, NodeId target) {
+		final var closest = routingTable.closest(target, RoutingTable.K);
+
+		response.put(NODES_KEY, DhtContact.toCompactString(closest, 4));
+
+		final var nodes6 = DhtContact.toCompactString(closest, 16);
+		if (!nodes6.isEmpty()) {
+			response.put(NODES6_KEY, nodes6);
+		}
+	}
+
+	private void storePeer(NodeId infoHash, InetSocketAddress peer) {
+		final var now = System.nanoTime();
+
+		storedPeers.compute(infoHash, (__, peers) -> {
+			if (peers == null) {
+				/* new torrents are ignored once full, the known ones keep being served */
+				if (storedPeers.size() >= MAXIMUM_STORED_INFO_HASHES) {
+					return null;
+				}
+
+				peers = new LinkedHashMap<>();
+			}
+
+			expire(peers, now);
+
+			/* moved last, as the most recent */
+			peers.remove(peer);
+			if (peers.size() >= MAXIMUM_STORED_PEERS) {
+				peers.pollFirstEntry();
+			}
+
+			peers.put(peer, now);
+			return peers;
+		});
+	}
+
+	private List<InetSocketAddress> storedPeers(NodeId infoHash) {
+		final var now = System.nanoTime();
+		final var result = new ArrayList<InetSocketAddress>();
+
+		storedPeers.computeIfPresent(infoHash, (__, peers) -> {
+			expire(peers, now);
+			result.addAll(peers.keySet());
+
+			return peers.isEmpty() ? null : peers;
+		});
+
+		return result;
+	}
+
+	private void sweep() {
+		final var now = System.nanoTime();
+
+		for (final var infoHash : storedPeers.keySet()) {
+			storedPeers.computeIfPresent(infoHash, (__, peers) -> {
+				expire(peers, now);
+
+				return peers.isEmpty() ? null : peers;
+			});
+		}
+	}
+
+	private static void expire(Map<InetSocketAddress, Long> peers, long now) {
+		peers.values().removeIf((announcedAt) -> now - announcedAt > PEER_EXPIRATION.toNanos());
+	}
+
+	private void learn(String id, InetSocketAddress source) {
+		if (id == null || id.length() != NodeId.LENGTH) {
+			return;
+		}
+
+		routingTable.add(new DhtContact(new NodeId(bytes(id)), source));
+	}
+
+	private synchronized byte[] tokenSecret() {
+		final var now = System.nanoTime();
+
+		if (now - tokenRotatedAt >= TOKEN_ROTATION.toNanos()) {
+			previousTokenSecret = tokenSecret;
+			tokenSecret = newTokenSecret();
+			tokenRotatedAt = now;
+		}
+
+		return tokenSecret;
+	}
+
+	private boolean isValidToken(String token, InetSocketAddress source) {
+		if (token == null) {
+			return false;
+		}
+
+		final byte[] previous;
+		final var current = tokenSecret();
+		synchronized (this) {
+			previous = previousTokenSecret;
+		}
+
+		return token.equals(token(source, current)) || token.equals(token(source, previous));
+	}
+
+	private String nextTransactionId() {
+		final var value = nextTransactionId.getAndIncrement();
+
+		return string(new byte[] { (byte) (value >> 8), (byte) value });
+	}
+
+	/** persist the identity and the known nodes, to skip the public routers on the next start */
+	public void save(Path path) throws IOException {
+		final var contacts = routingTable.all();
+
+		final var root = new TreeMap<String, Object>();
+		root.put(ID_KEY, string(localId.bytes()));
+		root.put(NODES_KEY, DhtContact.toCompactString(contacts, 4));
+		root.put(NODES6_KEY, DhtContact.toCompactString(contacts, 16));
+
+		final var parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+
+		Files.write(path, new BencodeSerializer().writeAsBytes(root));
+	}
+
+	@Override
+	public void close() {
+		if (cachePath != null) {
+			try {
+				save(cachePath);
+			} catch (IOException exception) {
+				System.err.println("dht: could not save node cache: %s".formatted(exception));
+			}
+		}
+
+		socket.close();
+		receiver.interrupt();
+		sweeper.shutdownNow();
+
+		for (final var pending : transactions.values()) {
+			pending.future().cancel(false);
+		}
+	}
+
+	/** open a node on the default port, reusing the identity and the nodes of the cache if it exists */
+	@SuppressWarnings("unchecked")
+	public static DhtNode open(Path cachePath) throws IOException {
+		var localId = NodeId.random();
+		final var contacts = new ArrayList<DhtContact>();
+
+		if (Files.exists(cachePath)) {
+			try {
+				final var root = (Map<String, Object>) new BencodeDeserializer(Files.readAllBytes(cachePath)).parse();
+
+				localId = new NodeId(bytes((String) root.get(ID_KEY)));
+				contacts.addAll(DhtContact.parseV4((String) root.get(NODES_KEY)));
+				contacts.addAll(DhtContact.parseV6((String) root.get(NODES6_KEY)));
+			} catch (RuntimeException exception) {
+				System.err.println("dht: ignoring corrupted node cache: %s".formatted(exception));
+			}
+		}
+
+		DhtNode node;
+		try {
+			node = new DhtNode(localId, new InetSocketAddress(DEFAULT_PORT), KBucket.STALE_AFTER, cachePath);
+		} catch (SocketException exception) {
+			node = new DhtNode(localId, new InetSocketAddress(0), KBucket.STALE_AFTER, cachePath);
+		}
+
+		for (final var contact : contacts) {
+			node.routingTable.add(contact);
+		}
+
+		return node;
+	}
+
+	private static String token(InetSocketAddress address, byte[] secret) {
+		final var ip = address.getAddress().getAddress();
+
+		final var input = Arrays.copyOf(secret, secret.length + ip.length);
+		System.arraycopy(ip, 0, input, secret.length, ip.length);
+
+		return string(Arrays.copyOf(DigestUtils.sha1(input), 8));
+	}
+
+	private static byte[] newTokenSecret() {
+		final var secret = new byte[16];
+		RANDOM.nextBytes(secret);
+
+		return secret;
+	}
+
+	private static String string(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	public record LookupResult(
+		List<InetSocketAddress> peers,
+		List<DhtContact> closest,
+		Map<NodeId, String> tokens,
+		Duration latency
+	) {}
+
+	public record Metrics(
+		long lookups,
+		Duration lastLatency,
+		Duration averageLatency,
+		Duration maximumLatency
+	) {}
+
+	private record PendingQuery(
+		InetSocketAddress address,
+		CompletableFuture<Map<String, Object>> future
+	) {}
+
+	private record Reply(
+		DhtContact contact,
+		Map<String, Object> response,
+		Throwable error
+	) {}
+
+}
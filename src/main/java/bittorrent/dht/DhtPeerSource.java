@@ -0,0 +1,69 @@
+package bittorrent.dht;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.peer.PeerPool;
+
+/** periodically look the torrent up in the dht, and feed the new peers to the pool */
+public class DhtPeerSource implements AutoCloseable {
+
+	public static final Duration INTERVAL = Duration.ofMinutes(5);
+
+	private final DhtNode node;
+	private final NodeId infoHash;
+	private final PeerPool peerPool;
+	private final int announcePort;
+	private final ScheduledExecutorService executor;
+
+	/** @param announcePort port to announce, or {@code 0} to only look for peers */
+	public DhtPeerSource(DhtNode node, byte[] infoHash, PeerPool peerPool, int announcePort) {
+		this.node = node;
+		this.infoHash = new NodeId(infoHash);
+		this.peerPool = peerPool;
+		this.announcePort = announcePort;
+		this.executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("dht-peer-source").daemon().factory());
+	}
+
+	/** bootstrap and do the first lookup synchronously, so that the pool is filled once it returns */
+	public int start() throws InterruptedException {
+		node.bootstrap();
+
+		final var added = lookup();
+		executor.scheduleWithFixedDelay(this::lookupQuietly, INTERVAL.toMillis(), INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+		return added;
+	}
+
+	/** @return the number of new peers */
+	public int lookup() throws InterruptedException {
+		final var result = announcePort != 0
+			? node.announce(infoHash, announcePort)
+			: node.lookup(infoHash, true);
+
+		final var added = peerPool.addAll(result.peers());
+		System.err.println("dht: peers=%d new=%d %s".formatted(result.peers().size(), added, node.getMetrics()));
+
+		return added;
+	}
+
+	private void lookupQuietly() {
+		try {
+			lookup();
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException exception) {
+			System.err.println("dht: lookup failed: %s".formatted(exception));
+		}
+	}
+
+	/** also closes the node */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		node.close();
+	}
+
+}
@@ -0,0 +1,174 @@
+package bittorrent.dht;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Contacts of a range of the id space, least recently seen first.
+ * As in BEP 5, a full bucket replaces its bad nodes right away, but its questionable ones are pinged first and only replaced if they do not answer.
+ */
+public class KBucket {
+
+	/** nodes not heard of for this long are questionable */
+	public static final Duration STALE_AFTER = Duration.ofMinutes(15);
+
+	/** nodes that failed to answer that many queries in a row are bad */
+	public static final int MAXIMUM_FAILURES = 2;
+
+	private final int capacity;
+	private final Duration staleAfter;
+	private final LinkedList<Entry> entries = new LinkedList<>();
+
+	/** the questionable contact being pinged, and the one taking its place if it does not answer */
+	private DhtContact questioned;
+	private DhtContact replacement;
+
+	public KBucket(int capacity) {
+		this(capacity, STALE_AFTER);
+	}
+
+	public KBucket(int capacity, Duration staleAfter) {
+		this.capacity = capacity;
+		this.staleAfter = staleAfter;
+	}
+
+	/** @return {@code true} if the contact is now part of the bucket, {@code false} if the bucket is full of nodes that are not bad */
+	public synchronized boolean add(DhtContact contact) {
+		final var now = System.nanoTime();
+
+		final var iterator = entries.iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+
+			if (entry.contact.id().equals(contact.id())) {
+				iterator.remove();
+				entries.addLast(new Entry(contact, now, 0));
+
+				if (questioned != null && questioned.id().equals(contact.id())) {
+					questioned = null;
+					replacement = null;
+				}
+
+				return true;
+			}
+		}
+
+		if (entries.size() >= capacity) {
+			if (entries.getFirst().failures < MAXIMUM_FAILURES) {
+				return false;
+			}
+
+			entries.removeFirst();
+		}
+
+		entries.addLast(new Entry(contact, now, 0));
+		return true;
+	}
+
+	/**
+	 * Offer a contact that did not fit, it is kept aside in case the least recently seen node turns out to be gone.
+	 * @return the questionable node to ping, or {@code null} if every node is good or one is already being pinged
+	 */
+	public synchronized DhtContact question(DhtContact candidate) {
+		if (questioned != null) {
+			replacement = candidate;
+			return null;
+		}
+
+		final var oldest = entries.peekFirst();
+		if (oldest == null || System.nanoTime() - oldest.lastSeen < staleAfter.toNanos()) {
+			return null;
+		}
+
+		questioned = oldest.contact;
+		replacement = candidate;
+
+		return questioned;
+	}
+
+	/** the node answered the ping and stays, or it did not and its replacement takes its place */
+	public synchronized void onPinged(NodeId id, boolean answered) {
+		if (questioned == null || !questioned.id().equals(id)) {
+			return;
+		}
+
+		final var candidate = replacement;
+		questioned = null;
+		replacement = null;
+
+		final var iterator = entries.iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+
+			if (entry.contact.id().equals(id)) {
+				iterator.remove();
+
+				if (answered) {
+					entries.addLast(new Entry(entry.contact, System.nanoTime(), 0));
+				} else if (candidate != null) {
+					entries.addLast(new Entry(candidate, System.nanoTime(), 0));
+				}
+
+				return;
+			}
+		}
+	}
+
+	public synchronized void markFailed(NodeId id) {
+		final var iterator = entries.listIterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+
+			if (entry.contact.id().equals(id)) {
+				/* moved first, so that it is the next one to be replaced */
+				iterator.remove();
+				entries.addFirst(new Entry(entry.contact, entry.lastSeen, entry.failures + 1));
+
+				return;
+			}
+		}
+	}
+
+	/** move the contacts accepted by the filter to a new bucket, keeping their order */
+	public synchronized KBucket split(Predicate<NodeId> moved) {
+		final var bucket = new KBucket(capacity, staleAfter);
+
+		final var iterator = entries.iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+
+			if (moved.test(entry.contact.id())) {
+				iterator.remove();
+				bucket.entries.addLast(entry);
+			}
+		}
+
+		return bucket;
+	}
+
+	public synchronized List<DhtContact> contacts() {
+		final var contacts = new ArrayList<DhtContact>(entries.size());
+
+		for (final var entry : entries) {
+			if (entry.failures < MAXIMUM_FAILURES) {
+				contacts.add(entry.contact);
+			}
+		}
+
+		return contacts;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private record Entry(
+		DhtContact contact,
+		long lastSeen,
+		int failures
+	) {}
+
+}
@@ -0,0 +1,84 @@
+package bittorrent.dht;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import bittorrent.Main;
+
+/** 160-bit identifier shared by nodes and info hashes, compared by xor distance */
+public final class NodeId {
+
+	public static final int LENGTH = 20;
+	public static final int BITS = LENGTH * 8;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final byte[] bytes;
+
+	public NodeId(byte[] bytes) {
+		if (bytes.length != LENGTH) {
+			throw new IllegalArgumentException("node id must be %d bytes long: %d".formatted(LENGTH, bytes.length));
+		}
+
+		this.bytes = bytes.clone();
+	}
+
+	public byte[] bytes() {
+		return bytes.clone();
+	}
+
+	/** @return the number of leading bits shared with the other id, {@link #BITS} if equal */
+	public int commonPrefixLength(NodeId other) {
+		for (var index = 0; index < LENGTH; ++index) {
+			final var xor = (bytes[index] ^ other.bytes[index]) & 0xff;
+
+			if (xor != 0) {
+				return index * 8 + Integer.numberOfLeadingZeros(xor) - 24;
+			}
+		}
+
+		return BITS;
+	}
+
+	/** @return a negative number if {@code left} is closer to this id than {@code right} */
+	public int compareDistance(NodeId left, NodeId right) {
+		for (var index = 0; index < LENGTH; ++index) {
+			final var leftDistance = (bytes[index] ^ left.bytes[index]) & 0xff;
+			final var rightDistance = (bytes[index] ^ right.bytes[index]) & 0xff;
+
+			if (leftDistance != rightDistance) {
+				return Integer.compare(leftDistance, rightDistance);
+			}
+		}
+
+		return 0;
+	}
+
+	public Comparator<DhtContact> byDistance() {
+		return (left, right) -> compareDistance(left.id(), right.id());
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		return object instanceof NodeId other && Arrays.equals(bytes, other.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return Main.HEX_FORMAT.formatHex(bytes);
+	}
+
+	public static NodeId random() {
+		final var bytes = new byte[LENGTH];
+		RANDOM.nextBytes(bytes);
+
+		return new NodeId(bytes);
+	}
+
+}
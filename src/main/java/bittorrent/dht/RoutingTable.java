@@ -0,0 +1,139 @@
+package bittorrent.dht;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The k-buckets of BEP 5: it starts with a single bucket covering the whole id space, and the bucket holding the local id splits in two when it is full.
+ * Bucket {@code i} holds the contacts sharing exactly {@code i} leading bits with the local id, the last one all the closer ones.
+ */
+public class RoutingTable {
+
+	public static final int K = 8;
+
+	private final NodeId localId;
+	private final List<KBucket> buckets = new ArrayList<>();
+
+	/** asked to ping the questionable nodes of full buckets, the answer is given back with {@link #onPinged(NodeId, boolean)} */
+	private volatile Consumer<DhtContact> pinger;
+
+	public RoutingTable(NodeId localId) {
+		this(localId, KBucket.STALE_AFTER);
+	}
+
+	/** @param staleAfter how long before a silent node is questionable */
+	public RoutingTable(NodeId localId, Duration staleAfter) {
+		this.localId = localId;
+
+		buckets.add(new KBucket(K, staleAfter));
+	}
+
+	public void setPinger(Consumer<DhtContact> pinger) {
+		this.pinger = pinger;
+	}
+
+	public boolean add(DhtContact contact) {
+		final var prefixLength = localId.commonPrefixLength(contact.id());
+
+		/* that is us */
+		if (prefixLength == NodeId.BITS) {
+			return false;
+		}
+
+		final DhtContact questioned;
+		synchronized (this) {
+			while (true) {
+				final var index = Math.min(prefixLength, buckets.size() - 1);
+				final var bucket = buckets.get(index);
+
+				if (bucket.add(contact)) {
+					return true;
+				}
+
+				/* only the bucket of the local id splits, the far ones keep their long lived nodes */
+				if (index != buckets.size() - 1 || buckets.size() == NodeId.BITS) {
+					questioned = bucket.question(contact);
+					break;
+				}
+
+				final var depth = buckets.size();
+				buckets.add(bucket.split((id) -> localId.commonPrefixLength(id) > index));
+
+				System.err.println("dht: bucket %d split, %d buckets".formatted(index, depth + 1));
+			}
+		}
+
+		final var listener = pinger;
+		if (questioned != null && listener != null) {
+			listener.accept(questioned);
+		}
+
+		return false;
+	}
+
+	public void onPinged(NodeId id, boolean answered) {
+		final var bucket = bucketOf(id);
+
+		if (bucket != null) {
+			bucket.onPinged(id, answered);
+		}
+	}
+
+	public void markFailed(NodeId id) {
+		final var bucket = bucketOf(id);
+
+		if (bucket != null) {
+			bucket.markFailed(id);
+		}
+	}
+
+	/** @return up to {@code count} contacts, closest to the target first */
+	public List<DhtContact> closest(NodeId target, int count) {
+		final var contacts = all();
+		contacts.sort(target.byDistance());
+
+		return new ArrayList<>(contacts.subList(0, Math.min(count, contacts.size())));
+	}
+
+	public synchronized List<DhtContact> all() {
+		final var contacts = new ArrayList<DhtContact>();
+
+		for (final var bucket : buckets) {
+			contacts.addAll(bucket.contacts());
+		}
+
+		return contacts;
+	}
+
+	public synchronized int size() {
+		var size = 0;
+
+		for (final var bucket : buckets) {
+			size += bucket.size();
+		}
+
+		return size;
+	}
+
+	public synchronized int bucketCount() {
+		return buckets.size();
+	}
+
+	public NodeId localId() {
+		return localId;
+	}
+
+	private synchronized KBucket bucketOf(NodeId id) {
+		final var prefixLength = localId.commonPrefixLength(id);
+
+		/* that is us */
+		if (prefixLength == NodeId.BITS) {
+			return null;
+		}
+
+		return buckets.get(Math.min(prefixLength, buckets.size() - 1));
+	}
+
+}
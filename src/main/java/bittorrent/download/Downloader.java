@@ -0,0 +1,1160 @@
+package bittorrent.download;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import bittorrent.bandwidth.BandwidthLimiter;
+import bittorrent.bandwidth.BandwidthLimits;
+import bittorrent.bandwidth.BucketGroup;
+import bittorrent.bandwidth.TokenBucket;
+import bittorrent.peer.ConnectionManager;
+import bittorrent.peer.Peer;
+import bittorrent.peer.protocol.Message;
+import bittorrent.piece.BlockTable;
+import bittorrent.piece.MerklePieceValidator;
+import bittorrent.piece.MerkleTree;
+import bittorrent.piece.PieceAvailability;
+import bittorrent.piece.PieceBitset;
+import bittorrent.piece.PieceBufferPool;
+import bittorrent.piece.PieceValidator;
+import bittorrent.storage.DiskCache;
+import bittorrent.torrent.TorrentInfo;
+import bittorrent.tracker.TransferStatistics;
+import bittorrent.util.DigestUtils;
+
+/** download a torrent from multiple peers at once, each one in its own thread, sharing the blocks through a {@link BlockTable} */
+public class Downloader implements AutoCloseable {
+
+	public static final int DEFAULT_PEER_COUNT = 8;
+
+	/** outstanding requests per peer, enough to fill the pipe of most connections */
+	public static final int PIPELINE_DEPTH = 16;
+
+	/** requests that were not answered in time are given to other peers, a last resort after the per peer deadlines */
+	public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+	/** a peer that sent no block for that long while having requests is snubbed, and only gets a single request at a time */
+	public static final Duration SNUB_TIMEOUT = Duration.ofSeconds(30);
+
+	private static final Duration ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+	private static final Duration IDLE_DELAY = Duration.ofMillis(500);
+
+	/** how long closing waits for the workers to stop, they may be writing to the cache */
+	private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+	private final TorrentInfo torrentInfo;
+	private final ConnectionManager connectionManager;
+	private final TransferStatistics statistics;
+	private final DiskCache cache;
+	private final PieceBitset completed;
+	private final BlockTable blockTable;
+	private final PieceAvailability availability;
+	private volatile PiecePicker piecePicker;
+	private volatile byte[] metadata;
+	private final TokenBucket downloadLimit = new TokenBucket(TokenBucket.UNLIMITED);
+	private final TokenBucket uploadLimit = new TokenBucket(TokenBucket.UNLIMITED);
+	private final BucketGroup peerDownloadLimits = new BucketGroup(BandwidthLimits.getPeerDownloadRate());
+	private final BucketGroup peerUploadLimits = new BucketGroup(BandwidthLimits.getPeerUploadRate());
+	private final ExecutorService executor;
+
+	private final PieceBufferPool bufferPool;
+
+	/** pieces being received, blocks are copied in place by whoever receives them */
+	private final Map<Integer, ByteBuffer> buffers = new ConcurrentHashMap<>();
+
+	/** pieces being received, hashed as their blocks arrive */
+	private final Map<Integer, PieceValidator> validators = new ConcurrentHashMap<>();
+
+	/** who each owner of the block table is, kept after it is gone while its received blocks are not verified, so that late proofs still find it */
+	private final Map<Integer, Source> sources = new ConcurrentHashMap<>();
+	private final HashFailureTracker<Source> hashFailures = new HashFailureTracker<>();
+
+	/** ids of the owners that are gone, waiting for their received blocks to be verified or reset; guards the owner ids */
+	private final Deque<Integer> retiredOwners = new ArrayDeque<>();
+	private final Deque<Integer> freeOwners = new ArrayDeque<>();
+	private int nextOwner;
+	private final AtomicInteger peerTarget = new AtomicInteger();
+	private final AtomicInteger peerRunning = new AtomicInteger();
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/** peers being worked with, told about every new piece */
+	private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+
+	public Downloader(TorrentInfo torrentInfo, ConnectionManager connectionManager, TransferStatistics statistics, DiskCache cache) {
+		this(torrentInfo, connectionManager, statistics, cache, new PieceBufferPool(torrentInfo.pieceLength()));
+	}
+
+	public Downloader(TorrentInfo torrentInfo, ConnectionManager connectionManager, TransferStatistics statistics, DiskCache cache, PieceBufferPool bufferPool) {
+		if (bufferPool.bufferSize() < torrentInfo.pieceLength()) {
+			throw new IllegalArgumentException("buffers are smaller than pieces: %d < %d".formatted(bufferPool.bufferSize(), torrentInfo.pieceLength()));
+		}
+
+		this.torrentInfo = torrentInfo;
+		this.connectionManager = connectionManager;
+		this.statistics = statistics;
+		this.cache = cache;
+		this.completed = new PieceBitset(torrentInfo.pieceCount());
+		this.blockTable = new BlockTable(torrentInfo);
+		this.availability = new PieceAvailability(completed.size());
+		this.piecePicker = new RarestFirstPicker(availability, completed);
+		this.bufferPool = bufferPool;
+		this.executor = Executors.newVirtualThreadPerTaskExecutor();
+
+		if (completed.isComplete()) {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Block until every piece is downloaded and verified.
+	 * @param firstPeer an already connected peer to start with, like the one the metadata came from, or {@code null}
+	 */
+	public void run(int peerCount, Peer firstPeer) throws InterruptedException {
+		start(peerCount, firstPeer);
+		await();
+	}
+
+	/** same as {@link #run(int, Peer)}, without waiting */
+	public void start(int peerCount, Peer firstPeer) {
+		if (firstPeer != null) {
+			peerRunning.incrementAndGet();
+			executor.execute(() -> loop(firstPeer));
+		}
+
+		setPeerCount(peerCount);
+	}
+
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait for a piece, as long as the download makes progress: the timeout starts again whenever another piece is verified.
+	 * @return {@code false} if no piece was verified for the whole timeout
+	 */
+	public boolean awaitPiece(int pieceIndex, Duration stallTimeout) throws InterruptedException {
+		synchronized (completed) {
+			var verified = completed.cardinality();
+			var deadline = System.nanoTime() + stallTimeout.toNanos();
+
+			while (!completed.get(pieceIndex)) {
+				final var remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(completed, remaining);
+
+				final var count = completed.cardinality();
+				if (count != verified) {
+					verified = count;
+					deadline = System.nanoTime() + stallTimeout.toNanos();
+				}
+			}
+
+			return true;
+		}
+	}
+
+	public PieceBitset getCompleted() {
+		return completed;
+	}
+
+	/** pieces already on disk and verified, like found by a previous check, to be called before starting */
+	public void resume(PieceBitset verified) {
+		if (verified.size() != completed.size()) {
+			throw new IllegalArgumentException("size mismatch: %d != %d".formatted(verified.size(), completed.size()));
+		}
+
+		var bytes = 0l;
+		for (var pieceIndex = verified.nextSetBit(0); pieceIndex != -1; pieceIndex = verified.nextSetBit(pieceIndex + 1)) {
+			blockTable.markVerified(pieceIndex);
+
+			if (completed.set(pieceIndex)) {
+				bytes += torrentInfo.pieceLength(pieceIndex);
+			}
+		}
+
+		statistics.setLeft(Math.max(0, statistics.left() - bytes));
+		System.err.println("download: resuming with %d/%d piece(s)".formatted(completed.cardinality(), completed.size()));
+
+		if (completed.isComplete()) {
+			done.countDown();
+		}
+	}
+
+	public PieceAvailability getAvailability() {
+		return availability;
+	}
+
+	public void setPiecePicker(PiecePicker piecePicker) {
+		this.piecePicker = piecePicker;
+	}
+
+	/** raw info dictionary, served to the peers that ask for it */
+	public void setMetadata(byte[] metadata) {
+		this.metadata = metadata;
+	}
+
+	/** limit of this torrent, under the global one */
+	public TokenBucket getDownloadLimit() {
+		return downloadLimit;
+	}
+
+	/** limit of this torrent, under the global one */
+	public TokenBucket getUploadLimit() {
+		return uploadLimit;
+	}
+
+	/** limit of each peer of this torrent, the connected ones included */
+	public void setPeerDownloadRate(long rate) {
+		peerDownloadLimits.setRate(rate);
+	}
+
+	/** limit of each peer of this torrent, the connected ones included */
+	public void setPeerUploadRate(long rate) {
+		peerUploadLimits.setRate(rate);
+	}
+
+	/** workers above the count stop once done with their current peer */
+	public void setPeerCount(int peerCount) {
+		peerTarget.set(peerCount);
+
+		while (true) {
+			final var running = peerRunning.get();
+			if (running >= peerCount) {
+				return;
+			}
+
+			if (peerRunning.compareAndSet(running, running + 1)) {
+				executor.execute(() -> loop(null));
+			}
+		}
+	}
+
+	/** fetch the missing pieces from an HTTP mirror too, with several ranges in flight, until done */
+	public void addWebSeed(WebSeed webSeed) {
+		System.err.println("download: adding web seed %s".formatted(webSeed));
+
+		for (var index = 0; index < WebSeed.PARALLEL_REQUESTS; ++index) {
+			executor.execute(() -> new WebSeedWorker(webSeed).run());
+		}
+	}
+
+	/** work with a peer that connected to us, once completed it is only uploaded to */
+	public void accept(Peer peer) {
+		executor.execute(() -> {
+			if (completed.isComplete()) {
+				seed(peer);
+			} else {
+				work(peer);
+			}
+		});
+	}
+
+	private void loop(Peer peer) {
+		try {
+			while (!completed.isComplete() && !Thread.currentThread().isInterrupted()) {
+				final var running = peerRunning.get();
+				if (running > peerTarget.get() && peerRunning.compareAndSet(running, running - 1)) {
+					return;
+				}
+
+				if (peer == null) {
+					peer = connectionManager.acquire(ACQUIRE_TIMEOUT);
+
+					if (peer == null) {
+						continue;
+					}
+				}
+
+				work(peer);
+				peer = null;
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+
+		peerRunning.decrementAndGet();
+	}
+
+	private void work(Peer peer) {
+		var failed = true;
+		try {
+			new Worker(peer).run();
+			failed = false;
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("download: peer %s failed: %s".formatted(peer.getAddress(), exception));
+		} finally {
+			connectionManager.release(peer, failed);
+		}
+	}
+
+	/** requests are answered while receiving, until the peer goes away */
+	private void seed(Peer peer) {
+		peer.setMetadata(metadata);
+		peer.setUploadSource(this::upload);
+		peer.setHashSource(this::hashes);
+
+		final var uploadBucket = peerUploadLimits.acquire();
+		peer.setUploadLimiter(new BandwidthLimiter(uploadBucket, uploadLimit, BandwidthLimits.GLOBAL_UPLOAD));
+
+		try {
+			announceCompleted(peer);
+
+			while (!Thread.currentThread().isInterrupted()) {
+				peer.receive(false);
+			}
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("seed: peer %s left: %s".formatted(peer.getAddress(), exception));
+		} finally {
+			peerUploadLimits.release(uploadBucket);
+			connectionManager.release(peer, false);
+		}
+	}
+
+	/** @return the buffer of the piece, or {@code null} if the memory cap is reached and the piece should not be started yet */
+	private ByteBuffer reserveBuffer(int pieceIndex) {
+		final var existing = buffers.get(pieceIndex);
+		if (existing != null) {
+			return existing;
+		}
+
+		final var buffer = bufferPool.tryAcquire();
+		if (buffer == null) {
+			return null;
+		}
+
+		buffer.limit(torrentInfo.pieceLength(pieceIndex));
+
+		final var previous = buffers.putIfAbsent(pieceIndex, buffer);
+		if (previous != null) {
+			bufferPool.release(buffer);
+			return previous;
+		}
+
+		validators.put(pieceIndex, PieceValidator.of(torrentInfo, pieceIndex, buffer));
+		return buffer;
+	}
+
+	/**
+	 * Copy a block into its piece, which is verified once it is the last one missing.
+	 * The same block can be delivered by several senders at once, like after a steal or a timeout, so only the one winning it in the block table writes and hashes its copy.
+	 */
+	private void store(int pieceIndex, int blockIndex, int begin, byte[] block, int owner) throws IOException {
+		/* after a hash failure, a late block of the previous try must not slip in, only the block asked to this owner is taken */
+		final var retried = hashFailures.hasFailed(pieceIndex);
+		if (retried && hashFailures.isExcluded(pieceIndex, blockIndex, sources.get(owner))) {
+			return;
+		}
+
+		if (!blockTable.markReceived(pieceIndex, blockIndex, owner, retried)) {
+			return;
+		}
+
+		/* the piece failed in between, the block was won on its reset state */
+		if (!retried && hashFailures.hasFailed(pieceIndex)) {
+			blockTable.abandon(pieceIndex, blockIndex);
+			return;
+		}
+
+		/*
+		 * Only looked up once the block is won: the piece cannot complete before this block is written, and a piece whose buffer went back to the pool is verified, so a late duplicate never wins.
+		 * A block arriving before the buffer of its piece was reserved, which nothing requested, is given back.
+		 */
+		final var buffer = buffers.get(pieceIndex);
+		final var validator = validators.get(pieceIndex);
+		if (buffer == null || validator == null) {
+			blockTable.abandon(pieceIndex, blockIndex);
+			return;
+		}
+
+		buffer.put(begin, block);
+
+		if (!validator.offer(begin, block)) {
+			System.err.println("download: piece %d block %d hash does not match".formatted(pieceIndex, blockIndex));
+
+			blockTable.abandon(pieceIndex, blockIndex);
+
+			/* the hashes of the blocks are proved by the piece layer, so the sender is known to be wrong */
+			ban(sources.get(owner));
+			return;
+		}
+
+		if (blockTable.markWritten(pieceIndex) == 0) {
+			onPiece(pieceIndex, buffer, validator);
+		}
+	}
+
+	/** the buffer and the validator are kept after a hash failure, to be filled again */
+	private void onPiece(int pieceIndex, ByteBuffer buffer, PieceValidator validator) throws IOException {
+		if (!validator.isValid()) {
+			System.err.println("download: piece %d hash does not match".formatted(pieceIndex));
+
+			onHashFailure(pieceIndex, buffer);
+			blockTable.reset(pieceIndex);
+			return;
+		}
+
+		if (hashFailures.hasFailed(pieceIndex)) {
+			for (final var source : hashFailures.onVerified(pieceIndex, digests(pieceIndex, buffer))) {
+				ban(source);
+			}
+		}
+
+		try {
+			cache.writePiece(pieceIndex, buffer);
+		} catch (IOException exception) {
+			blockTable.reset(pieceIndex);
+			throw exception;
+		}
+
+		/* before the buffer goes back to the pool, so that no store can win a block of the piece anymore */
+		blockTable.markVerified(pieceIndex);
+		synchronized (completed) {
+			completed.set(pieceIndex);
+			completed.notifyAll();
+		}
+		statistics.addDownloaded(buffer.limit());
+
+		validators.remove(pieceIndex);
+		buffers.remove(pieceIndex);
+		bufferPool.release(buffer);
+
+		System.err.println("download: piece %d verified, %d/%d".formatted(pieceIndex, completed.cardinality(), completed.size()));
+
+		for (final var peer : peers) {
+			try {
+				peer.send(new Message.Have(pieceIndex));
+			} catch (IOException exception) {
+				/* the worker of the peer will notice too */
+			}
+		}
+
+		if (completed.isComplete()) {
+			done.countDown();
+		}
+	}
+
+	/** the senders of a failed piece are remembered with what they sent, the piece is then downloaded again from others */
+	private void onHashFailure(int pieceIndex, ByteBuffer buffer) {
+		final var digests = digests(pieceIndex, buffer);
+
+		final var blocks = new ArrayList<HashFailureTracker.Block<Source>>(digests.size());
+		for (var blockIndex = 0; blockIndex < digests.size(); ++blockIndex) {
+			blocks.add(new HashFailureTracker.Block<>(sources.get(blockTable.owner(pieceIndex, blockIndex)), digests.get(blockIndex)));
+		}
+
+		final var guilty = hashFailures.onFailed(pieceIndex, blocks);
+		for (final var source : blocks.stream().map(HashFailureTracker.Block::source).distinct().toList()) {
+			if (guilty.contains(source)) {
+				ban(source);
+			} else if (source instanceof PeerSource peerSource) {
+				connectionManager.onHashFailure(peerSource.address());
+			}
+		}
+	}
+
+	private List<byte[]> digests(int pieceIndex, ByteBuffer buffer) {
+		final var digests = new ArrayList<byte[]>();
+
+		for (var blockIndex = 0; blockIndex < blockTable.blockCount(pieceIndex); ++blockIndex) {
+			digests.add(DigestUtils.sha1(buffer.slice(blockIndex * BlockTable.BLOCK_SIZE, blockTable.blockLength(pieceIndex, blockIndex))));
+		}
+
+		return digests;
+	}
+
+	/** a peer is disconnected and never connected again, a web seed is given up */
+	private void ban(Source source) {
+		System.err.println("download: %s sent corrupt data, banning it".formatted(source));
+
+		switch (source) {
+			case PeerSource peerSource -> {
+				final var address = peerSource.address();
+				connectionManager.ban(address);
+
+				/* its worker notices and releases it */
+				for (final var peer : peers) {
+					if (peer.getAddress().equals(address)) {
+						try {
+							peer.close();
+						} catch (IOException | InterruptedException exception) {
+							System.err.println("download: could not close %s: %s".formatted(address, exception));
+						}
+					}
+				}
+			}
+
+			case WebSeedSource webSeedSource -> webSeedSource.webSeed().ban();
+		}
+	}
+
+	/** blocks of a failed piece go to others than the ones that sent them, so that the culprit shows once the piece is right */
+	private IntPredicate exclusion(int pieceIndex, Source source) {
+		if (!hashFailures.hasFailed(pieceIndex)) {
+			return null;
+		}
+
+		return (blockIndex) -> hashFailures.isExcluded(pieceIndex, blockIndex, source);
+	}
+
+	/**
+	 * Give an id of the block table to a new worker, one that nobody can be blamed through anymore, so that a failed piece never finds the wrong sender.
+	 * @throws IllegalStateException if every id is in use
+	 */
+	private int acquireOwner(Source source) {
+		synchronized (retiredOwners) {
+			if (!retiredOwners.isEmpty()) {
+				final var received = blockTable.receivedOwners();
+
+				retiredOwners.removeIf((owner) -> {
+					if (received.get(owner)) {
+						return false;
+					}
+
+					sources.remove(owner);
+					freeOwners.add(owner);
+					return true;
+				});
+			}
+
+			final int owner;
+			if (!freeOwners.isEmpty()) {
+				owner = freeOwners.poll();
+			} else if (nextOwner <= BlockTable.MAXIMUM_OWNER) {
+				owner = nextOwner++;
+			} else {
+				throw new IllegalStateException("no owner id left");
+			}
+
+			sources.put(owner, source);
+			return owner;
+		}
+	}
+
+	/** the source stays known until the next worker starts and its blocks are verified or reset */
+	private void releaseOwner(int owner) {
+		synchronized (retiredOwners) {
+			retiredOwners.add(owner);
+		}
+	}
+
+	/** the pieces completed later are announced with have messages, as the peer is already in the list */
+	private void announceCompleted(Peer peer) throws IOException {
+		peer.sendPieces(completed.copy());
+	}
+
+	/** only verified pieces are served */
+	private byte[] upload(int pieceIndex, int begin, int length) throws IOException {
+		if (pieceIndex < 0 || pieceIndex >= completed.size() || !completed.get(pieceIndex)) {
+			return null;
+		}
+
+		final var block = cache.readBlock(pieceIndex, begin, length);
+		if (block != null) {
+			statistics.addUploaded(block.length);
+		}
+
+		return block;
+	}
+
+	/** only the hashes of the blocks of a verified piece are given, without proof */
+	private byte[] hashes(Message.HashRequest request) throws IOException {
+		final var merkle = torrentInfo.merkle();
+		if (merkle == null || !Arrays.equals(merkle.piecesRoot(), request.piecesRoot()) || request.baseLayer() != 0 || request.proofLayers() != 0) {
+			return null;
+		}
+
+		final var width = merkle.pieceWidth();
+		final var length = request.length();
+		if (length < 1 || length > width || request.index() < 0 || request.index() % length != 0) {
+			return null;
+		}
+
+		final var pieceIndex = request.index() / width;
+		if (pieceIndex >= completed.size() || !completed.get(pieceIndex)) {
+			return null;
+		}
+
+		final var pieceLength = torrentInfo.pieceLength(pieceIndex);
+		final var hashes = ByteBuffer.allocate(length * MerkleTree.HASH_LENGTH);
+		for (var blockIndex = request.index() % width; blockIndex < request.index() % width + length; ++blockIndex) {
+			final var begin = blockIndex * MerkleTree.BLOCK_SIZE;
+
+			/* past the end of the file, the leaves are zeroes */
+			if (begin >= pieceLength) {
+				hashes.put(MerkleTree.ZERO);
+				continue;
+			}
+
+			final var block = cache.readBlock(pieceIndex, begin, Math.min(MerkleTree.BLOCK_SIZE, pieceLength - begin));
+			if (block == null) {
+				return null;
+			}
+
+			hashes.put(MerkleTree.hash(block));
+		}
+
+		return hashes.array();
+	}
+
+	@Override
+	/** stop the workers and wait for them, so that the cache can be closed next */
+	public void close() {
+		executor.shutdownNow();
+
+		try {
+			if (!executor.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+				System.err.println("download: workers still running after %s".formatted(CLOSE_TIMEOUT));
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** drive a single peer, owning its blocks until it is released */
+	private class Worker {
+
+		private final Peer peer;
+		private final int owner;
+		private final Source source;
+		/** send time of each request, the oldest first */
+		private final Map<Message.Request, Long> outstanding = new LinkedHashMap<>();
+		private final RttEstimator rtt = new RttEstimator();
+		private long lastBlockAt;
+		private boolean snubbed;
+		private final TokenBucket downloadBucket;
+		private final TokenBucket uploadBucket;
+		private final BandwidthLimiter downloadLimiter;
+		private boolean throttled;
+		private PieceBitset peerPieces;
+
+		/** the peer refused to give block hashes once, it is not asked again */
+		private boolean hashesRejected;
+
+		/** pieces of the peer added to the availability, removed once done */
+		private PieceBitset counted;
+		private int currentPiece = -1;
+
+		Worker(Peer peer) {
+			this.peer = peer;
+			this.source = new PeerSource(peer.getAddress());
+			this.owner = acquireOwner(source);
+			this.downloadBucket = peerDownloadLimits.acquire();
+			this.uploadBucket = peerUploadLimits.acquire();
+			this.downloadLimiter = new BandwidthLimiter(downloadBucket, downloadLimit, BandwidthLimits.GLOBAL_DOWNLOAD);
+		}
+
+		void run() throws IOException, InterruptedException {
+			peer.setMetadata(metadata);
+			peer.setUploadSource(Downloader.this::upload);
+			peer.setHashSource(Downloader.this::hashes);
+			peer.setUploadLimiter(new BandwidthLimiter(uploadBucket, uploadLimit, BandwidthLimits.GLOBAL_UPLOAD));
+			peers.add(peer);
+
+			try {
+				announceCompleted(peer);
+				peer.sendInterested();
+				peer.awaitBitfield();
+
+				peerPieces = peer.getPieces(completed.size());
+
+				counted = peerPieces.copy();
+				availability.add(counted);
+				peer.setHaveListener((pieceIndex) -> {
+					if (counted.set(pieceIndex)) {
+						availability.increment(pieceIndex);
+					}
+				});
+
+				while (!completed.isComplete()) {
+					if (peerPieces.nextSetBitAndNot(completed, 0) == -1) {
+						System.err.println("download: peer %s has nothing left for us".formatted(peer.getAddress()));
+						return;
+					}
+
+					fill();
+
+					if (outstanding.isEmpty()) {
+						if (throttled) {
+							Thread.sleep(downloadLimiter.timeUntil(BlockTable.BLOCK_SIZE));
+						} else if (peer.isChoked()) {
+							peer.awaitUnchoke();
+						} else if (blockTable.reclaimExpired(REQUEST_TIMEOUT) == 0) {
+							/* every block is requested by someone else, wait for them to finish or fail */
+							Thread.sleep(IDLE_DELAY);
+						}
+
+						continue;
+					}
+
+					receive();
+				}
+			} finally {
+				peers.remove(peer);
+				blockTable.releaseAll(owner);
+
+				peerDownloadLimits.release(downloadBucket);
+				peerUploadLimits.release(uploadBucket);
+				releaseOwner(owner);
+
+				peer.setHaveListener(null);
+				if (counted != null) {
+					availability.remove(counted);
+				}
+			}
+		}
+
+		/** bandwidth is taken when requesting, so that a limited peer is sent fewer requests instead of being read slower */
+		private void fill() throws IOException {
+			throttled = false;
+
+			final var depth = snubbed ? 1 : PIPELINE_DEPTH;
+			while (outstanding.size() < depth) {
+				if (!downloadLimiter.tryAcquire(BlockTable.BLOCK_SIZE)) {
+					throttled = true;
+					return;
+				}
+
+				final var request = claim();
+				if (request == null) {
+					downloadLimiter.refund(BlockTable.BLOCK_SIZE);
+					return;
+				}
+
+				downloadLimiter.refund(BlockTable.BLOCK_SIZE - request.length());
+
+				peer.send(request);
+
+				final var now = System.nanoTime();
+				if (outstanding.isEmpty()) {
+					/* the peer was not expected to send anything until now */
+					lastBlockAt = now;
+				}
+
+				outstanding.put(request, now);
+
+				requestBlockHashes(request.index());
+			}
+		}
+
+		/** with the hashes of the blocks, a bad block is found as soon as it arrives instead of failing the whole piece */
+		private void requestBlockHashes(int pieceIndex) throws IOException {
+			if (hashesRejected || !peer.isSupportV2() || !(validators.get(pieceIndex) instanceof MerklePieceValidator validator) || !validator.tryRequestBlockHashes(System.nanoTime())) {
+				return;
+			}
+
+			final var merkle = torrentInfo.merkle();
+			final var width = merkle.pieceWidth();
+			final var length = Math.min(width, MerkleTree.MAXIMUM_HASH_REQUEST);
+
+			for (var first = 0; first < width; first += length) {
+				peer.send(new Message.HashRequest(merkle.piecesRoot(), 0, pieceIndex * width + first, length, 0));
+			}
+		}
+
+		/** urgent pieces first, then keep on the same piece as long as possible, so that pieces complete one after the other */
+		private Message.Request claim() {
+			final var picker = piecePicker;
+
+			final var urgent = picker.urgent(peerPieces).iterator();
+			while (urgent.hasNext()) {
+				final var pieceIndex = urgent.nextInt();
+				if (!canRequest(pieceIndex)) {
+					continue;
+				}
+
+				var request = claim(pieceIndex);
+				if (request == null) {
+					request = duplicate(pieceIndex, picker.deadline(pieceIndex));
+				}
+
+				if (request != null) {
+					return request;
+				}
+			}
+
+			if (currentPiece != -1 && !completed.get(currentPiece) && canRequest(currentPiece)) {
+				final var request = claim(currentPiece);
+				if (request != null) {
+					return request;
+				}
+			}
+
+			final var candidates = picker.candidates(peerPieces).iterator();
+			while (candidates.hasNext()) {
+				final var pieceIndex = candidates.nextInt();
+				if (!canRequest(pieceIndex)) {
+					continue;
+				}
+
+				final var request = claim(pieceIndex);
+				if (request != null) {
+					currentPiece = pieceIndex;
+					return request;
+				}
+			}
+
+			return null;
+		}
+
+		/** take over a block requested from another peer that missed the deadline, whoever answers first wins */
+		private Message.Request duplicate(int pieceIndex, Duration deadline) {
+			if (deadline == null) {
+				return null;
+			}
+
+			for (var blockIndex = 0; blockIndex < blockTable.blockCount(pieceIndex); ++blockIndex) {
+				if (blockTable.state(pieceIndex, blockIndex) != BlockTable.REQUESTED || blockTable.owner(pieceIndex, blockIndex) == owner || blockTable.age(pieceIndex, blockIndex) < deadline.toMillis()) {
+					continue;
+				}
+
+				if (blockTable.steal(pieceIndex, blockIndex, owner)) {
+					System.err.println("download: piece %d block %d is late, requesting it again".formatted(pieceIndex, blockIndex));
+
+					return new Message.Request(
+						pieceIndex,
+						blockIndex * BlockTable.BLOCK_SIZE,
+						blockTable.blockLength(pieceIndex, blockIndex)
+					);
+				}
+			}
+
+			return null;
+		}
+
+		private Message.Request claim(int pieceIndex) {
+			/* backpressure: once the memory cap is reached, only the pieces already started can progress */
+			if (reserveBuffer(pieceIndex) == null) {
+				return null;
+			}
+
+			final var blockIndex = blockTable.claim(pieceIndex, owner, exclusion(pieceIndex, source));
+			if (blockIndex == -1) {
+				return null;
+			}
+
+			return new Message.Request(
+				pieceIndex,
+				blockIndex * BlockTable.BLOCK_SIZE,
+				blockTable.blockLength(pieceIndex, blockIndex)
+			);
+		}
+
+		private boolean canRequest(int pieceIndex) {
+			return !peer.isChoked() || peer.isAllowedFast(pieceIndex);
+		}
+
+		/** wait no longer than the deadline of the oldest request */
+		private void receive() throws IOException {
+			final var sentAt = outstanding.values().iterator().next();
+			final var deadline = sentAt + rtt.timeout().toNanos();
+
+			final var message = peer.waitFor((candidate) -> switch (candidate) {
+				case Message.Piece __ -> true;
+				case Message.RejectRequest __ -> true;
+				case Message.Choke __ -> true;
+				case Message.Hashes __ -> true;
+				case Message.HashReject __ -> true;
+				default -> false;
+			}, Duration.ofNanos(Math.max(deadline - System.nanoTime(), 1)));
+
+			if (message == null) {
+				onTimeout();
+				return;
+			}
+
+			switch (message) {
+				case Message.Piece piece -> onBlock(piece);
+
+				case Message.RejectRequest reject -> {
+					if (outstanding.remove(new Message.Request(reject.index(), reject.begin(), reject.length())) != null) {
+						blockTable.release(reject.index(), reject.begin() / BlockTable.BLOCK_SIZE, owner);
+					}
+				}
+
+				case Message.Choke choke -> {
+					/* without the fast extension, pending requests are silently dropped */
+					if (!peer.isSupportFast()) {
+						for (final var request : outstanding.keySet()) {
+							blockTable.release(request.index(), request.begin() / BlockTable.BLOCK_SIZE, owner);
+						}
+
+						outstanding.clear();
+					}
+				}
+
+				case Message.Hashes hashes -> onHashes(hashes);
+
+				case Message.HashReject reject -> {
+					hashesRejected = true;
+
+					final var width = torrentInfo.merkle().pieceWidth();
+					if (validators.get(reject.index() / width) instanceof MerklePieceValidator validator) {
+						validator.onBlockHashesRejected();
+					}
+				}
+
+				default -> throw new IllegalStateException("unexpected message: %s".formatted(message));
+			}
+		}
+
+		/** blocks received before the hashes are checked now, the corrupt ones are requested again */
+		private void onHashes(Message.Hashes hashes) {
+			final var merkle = torrentInfo.merkle();
+			if (hashes.baseLayer() != 0 || hashes.proofLayers() != 0 || !Arrays.equals(merkle.piecesRoot(), hashes.piecesRoot()) || hashes.hashes().length != hashes.length() * MerkleTree.HASH_LENGTH) {
+				throw new IllegalStateException("unexpected hashes: %s".formatted(hashes));
+			}
+
+			final var width = merkle.pieceWidth();
+			final var pieceIndex = hashes.index() / width;
+			if (!(validators.get(pieceIndex) instanceof MerklePieceValidator validator)) {
+				return;
+			}
+
+			final var corrupt = validator.offerBlockHashes(hashes.index() % width, MerkleTree.split(hashes.hashes()));
+			if (corrupt == null) {
+				System.err.println("download: peer %s sent wrong hashes for piece %d".formatted(peer.getAddress(), pieceIndex));
+				return;
+			}
+
+			for (final var blockIndex : corrupt) {
+				System.err.println("download: piece %d block %d hash does not match".formatted(pieceIndex, blockIndex));
+
+				final var sender = sources.get(blockTable.owner(pieceIndex, blockIndex));
+				if (blockTable.reject(pieceIndex, blockIndex)) {
+					ban(sender);
+				}
+			}
+		}
+
+		/** late requests go back to the other peers, and the peer is snubbed if it has been silent for too long */
+		private void onTimeout() throws IOException {
+			final var now = System.nanoTime();
+			final var timeout = rtt.timeout().toNanos();
+
+			if (!snubbed && now - lastBlockAt >= SNUB_TIMEOUT.toNanos()) {
+				System.err.println("download: peer %s sent nothing for %s, snubbing it".formatted(peer.getAddress(), SNUB_TIMEOUT));
+				snubbed = true;
+			}
+
+			final var iterator = outstanding.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final var entry = iterator.next();
+				if (!snubbed && now - entry.getValue() < timeout) {
+					break;
+				}
+
+				final var request = entry.getKey();
+				iterator.remove();
+				blockTable.release(request.index(), request.begin() / BlockTable.BLOCK_SIZE, owner);
+				peer.send(new Message.Cancel(request.index(), request.begin(), request.length()));
+			}
+
+			rtt.backoff();
+		}
+
+		private void onBlock(Message.Piece piece) throws IOException {
+			final var pieceIndex = piece.index();
+			final var blockIndex = piece.begin() / BlockTable.BLOCK_SIZE;
+
+			/* a block of a cancelled request is not sampled, its send time is unknown */
+			final var sentAt = outstanding.remove(new Message.Request(pieceIndex, piece.begin(), piece.block().length));
+			if (sentAt != null) {
+				final var now = System.nanoTime();
+				rtt.sample(Duration.ofNanos(now - sentAt));
+				lastBlockAt = now;
+
+				if (snubbed) {
+					System.err.println("download: peer %s is sending again".formatted(peer.getAddress()));
+					snubbed = false;
+				}
+			}
+
+			if (pieceIndex < 0 || pieceIndex >= completed.size() || completed.get(pieceIndex)) {
+				return;
+			}
+
+			if (piece.begin() % BlockTable.BLOCK_SIZE != 0 || blockIndex >= blockTable.blockCount(pieceIndex) || piece.block().length != blockTable.blockLength(pieceIndex, blockIndex)) {
+				throw new IllegalStateException("invalid block: %s".formatted(piece));
+			}
+
+			store(pieceIndex, blockIndex, piece.begin(), piece.block(), owner);
+		}
+
+	}
+
+	/** fetch runs of pieces from a web seed, a single request at a time, while other workers keep the server busy */
+	private class WebSeedWorker {
+
+		private final WebSeed webSeed;
+		private final int owner;
+		private final Source source;
+		private final BandwidthLimiter downloadLimiter;
+
+		/** a web seed has every piece */
+		private final PieceBitset everything;
+
+		WebSeedWorker(WebSeed webSeed) {
+			this.webSeed = webSeed;
+			this.source = new WebSeedSource(webSeed);
+			this.owner = acquireOwner(source);
+			this.downloadLimiter = new BandwidthLimiter(downloadLimit, BandwidthLimits.GLOBAL_DOWNLOAD);
+			this.everything = new PieceBitset(completed.size());
+			this.everything.setAll();
+		}
+
+		void run() {
+			try {
+				while (!completed.isComplete()) {
+					if (webSeed.isGivenUp()) {
+						System.err.println("web seed: giving up on %s".formatted(webSeed));
+						return;
+					}
+
+					final var requests = claim();
+					if (requests.isEmpty()) {
+						/* every missing block is requested by someone else, wait for them to finish or fail */
+						Thread.sleep(IDLE_DELAY);
+						continue;
+					}
+
+					try {
+						fetch(requests);
+						webSeed.onSuccess();
+					} catch (IOException | RuntimeException exception) {
+						System.err.println("web seed: %s failed: %s".formatted(webSeed, exception));
+						Thread.sleep(webSeed.onFailure());
+					} finally {
+						for (final var request : requests) {
+							blockTable.release(request.index(), request.begin() / BlockTable.BLOCK_SIZE, owner);
+						}
+					}
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			} finally {
+				releaseOwner(owner);
+			}
+		}
+
+		/** the most wanted piece, followed by the next ones as long as nobody started them, so that a single range covers them all */
+		private List<Message.Request> claim() {
+			final var picker = piecePicker;
+			final var requests = new ArrayList<Message.Request>();
+
+			final var candidates = IntStream.concat(picker.urgent(everything), picker.candidates(everything)).iterator();
+			while (requests.isEmpty() && candidates.hasNext()) {
+				claim(candidates.nextInt(), requests);
+			}
+
+			/* the blocks of the response are only aligned on those of the next pieces if the pieces are made of whole blocks */
+			if (requests.isEmpty() || torrentInfo.pieceLength() % BlockTable.BLOCK_SIZE != 0) {
+				return requests;
+			}
+
+			var length = (long) torrentInfo.pieceLength();
+			for (var pieceIndex = requests.getFirst().index() + 1; pieceIndex < completed.size() && length < WebSeed.MAXIMUM_RANGE; ++pieceIndex) {
+				if (completed.get(pieceIndex) || blockTable.isInProgress(pieceIndex) || !claim(pieceIndex, requests)) {
+					break;
+				}
+
+				length += torrentInfo.pieceLength(pieceIndex);
+			}
+
+			return requests;
+		}
+
+		/** @return {@code false} if no block of the piece could be claimed */
+		private boolean claim(int pieceIndex, List<Message.Request> requests) {
+			/* the whole range is fetched, so a piece it sent bad blocks of is left to the peers */
+			final var exclusion = exclusion(pieceIndex, source);
+			if (exclusion != null && IntStream.range(0, blockTable.blockCount(pieceIndex)).anyMatch(exclusion)) {
+				return false;
+			}
+
+			if (reserveBuffer(pieceIndex) == null) {
+				return false;
+			}
+
+			final var size = requests.size();
+
+			int blockIndex;
+			while ((blockIndex = blockTable.claim(pieceIndex, owner)) != -1) {
+				requests.add(new Message.Request(
+					pieceIndex,
+					blockIndex * BlockTable.BLOCK_SIZE,
+					blockTable.blockLength(pieceIndex, blockIndex)
+				));
+			}
+
+			return requests.size() != size;
+		}
+
+		/** blocks in the range that other peers requested are taken too, whoever delivers first wins */
+		private void fetch(List<Message.Request> requests) throws IOException, InterruptedException {
+			final var pieceLength = (long) torrentInfo.pieceLength();
+			final var first = requests.getFirst();
+			final var last = requests.getLast();
+
+			final var start = first.index() * pieceLength + first.begin();
+			final var end = last.index() * pieceLength + last.begin() + last.length();
+
+			webSeed.fetch(start, end, BlockTable.BLOCK_SIZE, (offset, block) -> {
+				downloadLimiter.acquire(block.length);
+
+				final var pieceIndex = (int) (offset / pieceLength);
+				final var begin = (int) (offset % pieceLength);
+				store(pieceIndex, begin / BlockTable.BLOCK_SIZE, begin, block, owner);
+			});
+		}
+
+	}
+
+	/** who blocks come from, a peer is known by its address so that it stays the same across connections */
+	private sealed interface Source {}
+
+	private record PeerSource(
+		InetSocketAddress address
+	) implements Source {
+
+		@Override
+		public String toString() {
+			return "peer %s".formatted(address);
+		}
+
+	}
+
+	private record WebSeedSource(
+		WebSeed webSeed
+	) implements Source {
+
+		@Override
+		public String toString() {
+			return "web seed %s".formatted(webSeed);
+		}
+
+	}
+
+}
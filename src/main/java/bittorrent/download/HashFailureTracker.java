@@ -0,0 +1,132 @@
+package bittorrent.download;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Find out who sent the corrupt blocks of the pieces that failed their hash check.
+ * The hash of every block of a failed piece is kept with its sender, and the piece is downloaded again from the others; once it is verified, whoever had sent a different block is guilty.
+ * A source that sent a whole failed piece alone is guilty right away, one that only took part in too many failures is guilty too.
+ * @param <S> who a block comes from, compared with {@code equals}
+ */
+public class HashFailureTracker<S> {
+
+	/** a source taking part in that many failed pieces without being cleared is guilty anyway */
+	public static final int MAXIMUM_SUSPICIONS = 3;
+
+	/** the blocks of a failed piece are not asked to their previous senders for that long, so that a piece only they have is not stuck forever */
+	public static final Duration EXCLUSION = Duration.ofMinutes(2);
+
+	private final Map<Integer, FailedPiece<S>> failedPieces = new ConcurrentHashMap<>();
+
+	/** failed pieces each source took part in and that are not verified yet */
+	private final Map<S, Integer> suspicions = new HashMap<>();
+
+	/** lock free, as it is checked for every claimed block */
+	public boolean hasFailed(int pieceIndex) {
+		return failedPieces.containsKey(pieceIndex);
+	}
+
+	/** @return {@code true} if the block should be asked to someone else than the source, which sent it for a failed try of the piece */
+	public boolean isExcluded(int pieceIndex, int blockIndex, S source) {
+		final var failedPiece = failedPieces.get(pieceIndex);
+		if (failedPiece == null) {
+			return false;
+		}
+
+		synchronized (this) {
+			if (System.nanoTime() - failedPiece.failedAt >= EXCLUSION.toNanos()) {
+				return false;
+			}
+
+			return failedPiece.blocks.get(blockIndex).stream().anyMatch((block) -> block.source().equals(source));
+		}
+	}
+
+	/**
+	 * @param blocks sender and hash of every block of the piece, in order
+	 * @return the sources found guilty
+	 */
+	public synchronized Set<S> onFailed(int pieceIndex, List<Block<S>> blocks) {
+		final var failedPiece = failedPieces.computeIfAbsent(pieceIndex, (__) -> new FailedPiece<>(blocks.size()));
+		failedPiece.failedAt = System.nanoTime();
+
+		final var senders = new LinkedHashSet<S>();
+		for (var blockIndex = 0; blockIndex < blocks.size(); ++blockIndex) {
+			final var block = blocks.get(blockIndex);
+
+			failedPiece.blocks.get(blockIndex).add(block);
+			senders.add(block.source());
+		}
+
+		final var guilty = new LinkedHashSet<S>();
+		for (final var sender : senders) {
+			final var count = suspicions.merge(sender, 1, Integer::sum);
+
+			if (senders.size() == 1 || count >= MAXIMUM_SUSPICIONS) {
+				guilty.add(sender);
+			}
+		}
+
+		return guilty;
+	}
+
+	/**
+	 * Compare what was sent for the failed tries with the right blocks, the piece is then forgotten.
+	 * @param digests hash of every block of the verified piece, in order
+	 * @return the sources found guilty
+	 */
+	public synchronized Set<S> onVerified(int pieceIndex, List<byte[]> digests) {
+		final var failedPiece = failedPieces.remove(pieceIndex);
+		if (failedPiece == null) {
+			return Set.of();
+		}
+
+		final var senders = new LinkedHashSet<S>();
+		final var guilty = new LinkedHashSet<S>();
+		for (var blockIndex = 0; blockIndex < digests.size(); ++blockIndex) {
+			for (final var block : failedPiece.blocks.get(blockIndex)) {
+				senders.add(block.source());
+
+				if (!Arrays.equals(digests.get(blockIndex), block.digest())) {
+					guilty.add(block.source());
+				}
+			}
+		}
+
+		for (final var sender : senders) {
+			suspicions.computeIfPresent(sender, (__, count) -> count > 1 ? count - 1 : null);
+		}
+
+		return guilty;
+	}
+
+	public record Block<S>(
+		S source,
+		byte[] digest
+	) {}
+
+	private static class FailedPiece<S> {
+
+		/** what was received for each block, across all the failed tries */
+		private final List<List<Block<S>>> blocks;
+		private long failedAt;
+
+		FailedPiece(int blockCount) {
+			this.blocks = new ArrayList<>(blockCount);
+
+			for (var blockIndex = 0; blockIndex < blockCount; ++blockIndex) {
+				blocks.add(new ArrayList<>());
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,24 @@
+package bittorrent.download;
+
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+import bittorrent.piece.PieceBitset;
+
+/** decide which pieces are requested from a peer */
+public interface PiecePicker {
+
+	/** @return the pieces to try, the most wanted first, among those the peer has and that are not completed */
+	IntStream candidates(PieceBitset peerPieces);
+
+	/** @return pieces that go before everything else, their late blocks are requested again from other peers */
+	default IntStream urgent(PieceBitset peerPieces) {
+		return IntStream.empty();
+	}
+
+	/** @return how long a block of an urgent piece may stay requested before being duplicated */
+	default Duration deadline(int pieceIndex) {
+		return null;
+	}
+
+}
@@ -0,0 +1,37 @@
+package bittorrent.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import bittorrent.piece.PieceAvailability;
+import bittorrent.piece.PieceBitset;
+
+/** the pieces the fewest peers have go first, so that they do not disappear from the swarm */
+public class RarestFirstPicker implements PiecePicker {
+
+	private final PieceAvailability availability;
+	private final PieceBitset completed;
+
+	public RarestFirstPicker(PieceAvailability availability, PieceBitset completed) {
+		this.availability = availability;
+		this.completed = completed;
+	}
+
+	@Override
+	public IntStream candidates(PieceBitset peerPieces) {
+		final var candidates = new ArrayList<Integer>();
+		for (var index = peerPieces.nextSetBitAndNot(completed, 0); index != -1; index = peerPieces.nextSetBitAndNot(completed, index + 1)) {
+			candidates.add(index);
+		}
+
+		/* shuffled first, so that peers do not all go for the same piece among the equally rare */
+		Collections.shuffle(candidates, ThreadLocalRandom.current());
+		candidates.sort(Comparator.comparingInt(availability::get));
+
+		return candidates.stream().mapToInt(Integer::intValue);
+	}
+
+}
@@ -0,0 +1,67 @@
+package bittorrent.download;
+
+import java.time.Duration;
+
+/**
+ * Smoothed round trip time of the requests sent to a peer, the same way TCP computes its retransmission timeout.
+ * Each timeout doubles the deadline until the next sample, so that a slow peer is not flooded with re-requests.
+ */
+public class RttEstimator {
+
+	public static final Duration INITIAL_TIMEOUT = Duration.ofSeconds(10);
+	public static final Duration MINIMUM_TIMEOUT = Duration.ofSeconds(2);
+	public static final Duration MAXIMUM_TIMEOUT = Duration.ofSeconds(60);
+
+	private static final double ALPHA = 1 / 8d;
+	private static final double BETA = 1 / 4d;
+
+	private double smoothed = -1;
+	private double variation;
+	private int backoff;
+
+	/** @param sample time between sending a request and receiving its block */
+	public void sample(Duration sample) {
+		final var value = (double) sample.toNanos();
+
+		if (smoothed < 0) {
+			smoothed = value;
+			variation = value / 2;
+		} else {
+			variation = (1 - BETA) * variation + BETA * Math.abs(smoothed - value);
+			smoothed = (1 - ALPHA) * smoothed + ALPHA * value;
+		}
+
+		backoff = 0;
+	}
+
+	/** a request timed out */
+	public void backoff() {
+		backoff = Math.min(backoff + 1, 5);
+	}
+
+	/** @return {@code null} until the first sample */
+	public Duration getSmoothed() {
+		return smoothed < 0 ? null : Duration.ofNanos((long) smoothed);
+	}
+
+	public Duration timeout() {
+		final Duration base;
+		if (smoothed < 0) {
+			base = INITIAL_TIMEOUT;
+		} else {
+			base = Duration.ofNanos((long) (smoothed + 4 * variation));
+		}
+
+		final var timeout = base.multipliedBy(1l << backoff);
+		if (timeout.compareTo(MINIMUM_TIMEOUT) < 0) {
+			return MINIMUM_TIMEOUT;
+		}
+
+		if (timeout.compareTo(MAXIMUM_TIMEOUT) > 0) {
+			return MAXIMUM_TIMEOUT;
+		}
+
+		return timeout;
+	}
+
+}
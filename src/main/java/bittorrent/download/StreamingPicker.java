@@ -0,0 +1,66 @@
+package bittorrent.download;
+
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+import bittorrent.piece.PieceBitset;
+
+/**
+ * The next pieces after the playhead are urgent, with deadlines getting shorter as they get closer to being played.
+ * Everything else is left to another picker, usually rarest first.
+ */
+public class StreamingPicker implements PiecePicker {
+
+	public static final int DEFAULT_WINDOW_SIZE = 8;
+
+	/** deadline of the piece right at the playhead */
+	public static final Duration BASE_DEADLINE = Duration.ofSeconds(2);
+
+	/** added for each piece further from the playhead */
+	public static final Duration DEADLINE_STEP = Duration.ofSeconds(1);
+
+	private final PiecePicker fallback;
+	private final PieceBitset completed;
+	private final int windowSize;
+	private volatile int playhead;
+
+	public StreamingPicker(PiecePicker fallback, PieceBitset completed, int windowSize) {
+		this.fallback = fallback;
+		this.completed = completed;
+		this.windowSize = windowSize;
+	}
+
+	/** move the window, once the pieces before were consumed */
+	public void setPlayhead(int pieceIndex) {
+		this.playhead = pieceIndex;
+	}
+
+	public int getPlayhead() {
+		return playhead;
+	}
+
+	@Override
+	public IntStream urgent(PieceBitset peerPieces) {
+		final var start = playhead;
+		final var end = Math.min(start + windowSize, completed.size());
+
+		return IntStream.range(start, end)
+			.filter((index) -> peerPieces.get(index) && !completed.get(index));
+	}
+
+	@Override
+	public Duration deadline(int pieceIndex) {
+		final var position = pieceIndex - playhead;
+		if (position < 0 || position >= windowSize) {
+			return null;
+		}
+
+		return BASE_DEADLINE.plus(DEADLINE_STEP.multipliedBy(position));
+	}
+
+	@Override
+	public IntStream candidates(PieceBitset peerPieces) {
+		return fallback.candidates(peerPieces);
+	}
+
+}
@@ -0,0 +1,117 @@
+package bittorrent.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.time.Duration;
+
+import lombok.Getter;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * An HTTP mirror of the payload (BEP 19), downloaded from like a peer that has every piece.
+ * Ranges are fetched with {@code Range} requests and streamed block by block, so that they go through the same verification as the blocks from peers.
+ */
+public class WebSeed {
+
+	/** requests in flight to the same server */
+	public static final int PARALLEL_REQUESTS = 4;
+
+	/** consecutive pieces are fetched with a single request, up to that size */
+	public static final int MAXIMUM_RANGE = 4 * 1024 * 1024;
+
+	/** a server failing that many times in a row is given up */
+	public static final int MAXIMUM_FAILURES = 8;
+
+	public static final Duration MINIMUM_BACKOFF = Duration.ofSeconds(1);
+	public static final Duration MAXIMUM_BACKOFF = Duration.ofMinutes(2);
+
+	private final OkHttpClient client;
+	private final @Getter HttpUrl url;
+	private int failures;
+	private boolean banned;
+
+	/** a url ending with a slash is a directory, where the file is found by the name of the torrent */
+	public WebSeed(OkHttpClient client, String url, String name) {
+		final var parsed = HttpUrl.parse(url);
+		if (parsed == null) {
+			throw new IllegalArgumentException("invalid web seed url: %s".formatted(url));
+		}
+
+		this.client = client;
+		this.url = url.endsWith("/") ? parsed.newBuilder().addPathSegment(name).build() : parsed;
+	}
+
+	/**
+	 * Stream the bytes of a range, in order and in chunks of at most the block size.
+	 * @param end exclusive
+	 */
+	public void fetch(long start, long end, int blockSize, BlockConsumer consumer) throws IOException, InterruptedException {
+		final var request = new Request.Builder()
+			.url(url)
+			.header("Range", "bytes=%d-%d".formatted(start, end - 1))
+			.get()
+			.build();
+
+		try (final var response = client.newCall(request).execute()) {
+			/* a server ignoring the range sends the whole file, only usable from its beginning */
+			final var partial = response.code() == 206;
+			if (!partial && !(response.code() == 200 && start == 0)) {
+				throw new IOException("unexpected status %d from %s".formatted(response.code(), url));
+			}
+
+			final var contentRange = response.header("Content-Range");
+			if (partial && contentRange != null && !contentRange.startsWith("bytes %d-".formatted(start))) {
+				throw new IOException("unexpected range %s from %s".formatted(contentRange, url));
+			}
+
+			final var input = response.body().byteStream();
+			for (var offset = start; offset < end; offset += blockSize) {
+				final var length = (int) Math.min(blockSize, end - offset);
+
+				final var block = input.readNBytes(length);
+				if (block.length != length) {
+					throw new EOFException("range of %s ended at %d instead of %d".formatted(url, offset + block.length, end));
+				}
+
+				consumer.accept(offset, block);
+			}
+		}
+	}
+
+	public synchronized void onSuccess() {
+		failures = 0;
+	}
+
+	/** @return how long to wait before trying again, doubling with every failure in a row */
+	public synchronized Duration onFailure() {
+		++failures;
+
+		final var backoff = MINIMUM_BACKOFF.multipliedBy(1l << Math.min(failures - 1, 16));
+		return backoff.compareTo(MAXIMUM_BACKOFF) > 0 ? MAXIMUM_BACKOFF : backoff;
+	}
+
+	/** the server sent corrupt data, it is never asked again */
+	public synchronized void ban() {
+		banned = true;
+	}
+
+	public synchronized boolean isGivenUp() {
+		return banned || failures >= MAXIMUM_FAILURES;
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+
+	@FunctionalInterface
+	public interface BlockConsumer {
+
+		/** @param offset in the whole payload */
+		void accept(long offset, byte[] block) throws IOException, InterruptedException;
+
+	}
+
+}
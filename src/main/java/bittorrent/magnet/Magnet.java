@@ -8,6 +8,7 @@ import org.apache.http.client.utils.URLEncodedUtils;
 import bittorrent.Main;
 import bittorrent.tracker.Announceable;
 
+/** the announce is {@code null} for trackerless links, peers must then be found with the dht */
 public record Magnet(
 	byte[] hash,
 	String displayName,
@@ -20,7 +21,6 @@ public record Magnet(
 	public Magnet {
 		Objects.requireNonNull(hash, "hash");
 		Objects.requireNonNull(displayName, "displayName");
-		Objects.requireNonNull(announce, "announce");
 	}
 
 	public Magnet(String exactTopic, String displayName, String announce) {
@@ -0,0 +1,254 @@
+package bittorrent.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittorrent.tracker.Announceable;
+import bittorrent.transport.Transport;
+import bittorrent.transport.Transports;
+
+/** dial candidates of the pool in parallel, so that dead peers never delay the first working connection */
+public class ConnectionManager implements AutoCloseable {
+
+	private final PeerPool peerPool;
+	private final Announceable announceable;
+	private final Options options;
+	private final ExecutorService executor;
+	private final PeerExchange peerExchange;
+
+	/** connection cap shared with other torrents, or {@code null} */
+	private final Semaphore sharedSlots;
+
+	/** connections that were established but not yet handed out */
+	private final BlockingQueue<Peer> ready = new LinkedBlockingQueue<>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger dialingCount = new AtomicInteger();
+
+	private volatile boolean closed;
+
+	public ConnectionManager(PeerPool peerPool, Announceable announceable) {
+		this(peerPool, announceable, Options.DEFAULT);
+	}
+
+	public ConnectionManager(PeerPool peerPool, Announceable announceable, Options options) {
+		this(peerPool, announceable, options, null);
+	}
+
+	public ConnectionManager(PeerPool peerPool, Announceable announceable, Options options, Semaphore sharedSlots) {
+		this.peerPool = peerPool;
+		this.sharedSlots = sharedSlots;
+		this.announceable = announceable;
+		this.options = options;
+		this.executor = Executors.newVirtualThreadPerTaskExecutor();
+		this.peerExchange = new PeerExchange(peerPool);
+	}
+
+	/**
+	 * @return a connected peer, or {@code null} if none could be reached in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Peer acquire(Duration timeout) throws InterruptedException {
+		final var deadline = System.nanoTime() + timeout.toNanos();
+
+		while (!closed) {
+			dial();
+
+			final var remainingNanos = deadline - System.nanoTime();
+			if (remainingNanos <= 0) {
+				return null;
+			}
+
+			final var peer = ready.poll(Math.min(remainingNanos, options.handshakeTimeout().toNanos()), TimeUnit.NANOSECONDS);
+			if (peer != null) {
+				return peer;
+			}
+		}
+
+		return null;
+	}
+
+	/** hand back a peer once done with it, a closed peer is also accepted */
+	public void release(Peer peer, boolean failed) {
+		final var address = peer.getAddress();
+		final var score = peerPool.getScore(address);
+
+		peerExchange.unregister(peer);
+
+		try {
+			peer.close();
+		} catch (Exception exception) {
+			System.err.println("connection manager: could not close %s: %s".formatted(address, exception));
+		}
+
+		connectionCount.decrementAndGet();
+		if (sharedSlots != null) {
+			sharedSlots.release();
+		}
+
+		if (score != null) {
+			final var elapsed = Duration.ofNanos(System.nanoTime() - peer.getConnectedAt());
+			score.onTransfer(peer.getDownloaded(), elapsed);
+
+			if (failed) {
+				score.onFailure();
+			} else if (elapsed.compareTo(options.minimumSampleDuration()) >= 0 && peer.getDownloaded() * 1000 / Math.max(elapsed.toMillis(), 1) < options.slowThroughput()) {
+				score.onSlow();
+			}
+		}
+
+		peerPool.giveBack(address);
+	}
+
+	public void ban(Peer peer) {
+		peerPool.ban(peer.getAddress());
+		release(peer, true);
+	}
+
+	/** the peer is not dialed again nor accepted, a connection to it is to be released by its user */
+	public void ban(InetSocketAddress address) {
+		peerPool.ban(address);
+	}
+
+	/** the peer sent blocks of a piece that failed its hash check, it is tried after the others */
+	public void onHashFailure(InetSocketAddress address) {
+		final var score = peerPool.getScore(address);
+		if (score != null) {
+			score.onHashFailure();
+		}
+	}
+
+	/** start as many dials as the limits allow */
+	private void dial() {
+		final var slots = Math.min(
+			options.parallelDials() - dialingCount.get(),
+			options.maxConnections() - connectionCount.get() - dialingCount.get()
+		);
+
+		if (slots <= 0) {
+			return;
+		}
+
+		for (final var address : peerPool.poll(slots)) {
+			if (sharedSlots != null && !sharedSlots.tryAcquire()) {
+				peerPool.giveBack(address);
+				continue;
+			}
+
+			dialingCount.incrementAndGet();
+			executor.execute(() -> dial(address));
+		}
+	}
+
+	/**
+	 * Take over a connection that the peer made to us, it is then released like any other.
+	 * Its address is not added to the pool, as the port is not the one the peer listens on; it is shared over PEX only with the port of its extended handshake.
+	 * @return {@code false} if a limit is reached or the peer is banned, the peer is closed then
+	 */
+	public boolean adopt(Peer peer) {
+		final var overLimit = closed || connectionCount.get() >= options.maxConnections() || peerPool.isBanned(peer.getAddress().getAddress());
+
+		if (overLimit || (sharedSlots != null && !sharedSlots.tryAcquire())) {
+			try {
+				peer.close();
+			} catch (Exception exception) {
+				System.err.println("connection manager: could not close %s: %s".formatted(peer.getAddress(), exception));
+			}
+
+			return false;
+		}
+
+		connectionCount.incrementAndGet();
+		peerExchange.register(peer, true);
+
+		return true;
+	}
+
+	private void dial(InetSocketAddress address) {
+		final var score = peerPool.getScore(address);
+		final var start = System.nanoTime();
+
+		try {
+			final var peer = Peer.connect(options.transport(), address, announceable, options.connectTimeout(), options.handshakeTimeout(), options.idleTimeout());
+
+			if (score != null) {
+				score.onConnected(Duration.ofNanos(System.nanoTime() - start));
+			}
+
+			connectionCount.incrementAndGet();
+			peerExchange.register(peer, false);
+
+			if (closed) {
+				release(peer, false);
+			} else {
+				ready.add(peer);
+			}
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("connection manager: could not connect to %s: %s".formatted(address, exception));
+
+			if (sharedSlots != null) {
+				sharedSlots.release();
+			}
+
+			if (score != null) {
+				score.onFailure();
+			}
+
+			peerPool.giveBack(address);
+		} finally {
+			dialingCount.decrementAndGet();
+		}
+	}
+
+	public int connectionCount() {
+		return connectionCount.get();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		executor.shutdownNow();
+		peerExchange.close();
+
+		Peer peer;
+		while ((peer = ready.poll()) != null) {
+			release(peer, false);
+		}
+	}
+
+	public record Options(
+		int maxConnections,
+		int parallelDials,
+		Duration connectTimeout,
+		Duration handshakeTimeout,
+		Duration idleTimeout,
+		long slowThroughput,
+		Duration minimumSampleDuration,
+		Transport transport
+	) {
+
+		public static final Options DEFAULT = new Options(
+			50,
+			8,
+			Peer.DEFAULT_CONNECT_TIMEOUT,
+			Peer.DEFAULT_HANDSHAKE_TIMEOUT,
+			Peer.DEFAULT_IDLE_TIMEOUT,
+			8 * 1024,
+			Duration.ofSeconds(30),
+			Transports.DEFAULT
+		);
+
+		public Options withTransport(Transport transport) {
+			return new Options(maxConnections, parallelDials, connectTimeout, handshakeTimeout, idleTimeout, slowThroughput, minimumSampleDuration, transport);
+		}
+
+	}
+
+}
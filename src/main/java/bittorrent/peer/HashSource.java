@@ -0,0 +1,14 @@
+package bittorrent.peer;
+
+import java.io.IOException;
+
+import bittorrent.peer.protocol.Message;
+
+/** where the Merkle hashes requested by v2 peers are computed from */
+@FunctionalInterface
+public interface HashSource {
+
+	/** @return the concatenated hashes, or {@code null} if the request cannot be answered */
+	byte[] hashes(Message.HashRequest request) throws IOException;
+
+}
@@ -4,25 +4,46 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
 
 import bittorrent.Main;
+import bittorrent.bandwidth.BandwidthLimiter;
 import bittorrent.magnet.Magnet;
+import bittorrent.peer.protocol.ExtendedHandshake;
 import bittorrent.peer.protocol.Message;
 import bittorrent.peer.protocol.MetadataMessage;
+import bittorrent.peer.protocol.PexMessage;
 import bittorrent.peer.serial.MessageDescriptor;
 import bittorrent.peer.serial.MessageDescriptors;
-import bittorrent.peer.serial.MessageSerialContext;
+import bittorrent.peer.serial.extension.ExtendedHandshakeSerial;
+import bittorrent.peer.serial.extension.ExtensionDescriptors;
+import bittorrent.peer.serial.extension.MetadataMessageSerial;
+import bittorrent.peer.serial.extension.PexMessageSerial;
+import bittorrent.piece.PieceBitset;
+import bittorrent.piece.PieceValidator;
+import bittorrent.torrent.Torrent;
 import bittorrent.torrent.TorrentInfo;
 import bittorrent.tracker.Announceable;
+import bittorrent.transport.TcpTransport;
+import bittorrent.transport.Transport;
 import bittorrent.util.DigestUtils;
 import bittorrent.util.ExposedByteArrayOutputStream;
 import lombok.Getter;
@@ -30,35 +51,125 @@ import lombok.Getter;
 public class Peer implements AutoCloseable {
 
 	private static final byte[] PROTOCOL_BYTES = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
-	private static final byte[] PADDING_8 = new byte[8];
-	private static final byte[] PADDING_MAGNET_8 = { 0, 0, 0, 0, 0, 0x10, 0, 0 };
+	private static final byte[] PADDING_8 = { 0, 0, 0, 0, 0, 0, 0, 0x04 };
+	private static final byte[] PADDING_MAGNET_8 = { 0, 0, 0, 0, 0, 0x10, 0, 0x04 };
 
-	private static final MessageSerialContext METADATA_CONTEXT = new MessageSerialContext(MetadataMessage.class);
+	/** reserved bit of BEP 52, in the last byte */
+	private static final byte SUPPORT_V2 = 0x10;
+
+	public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	public static final Duration DEFAULT_HANDSHAKE_TIMEOUT = Duration.ofSeconds(10);
+
+	/** peers must send a keep alive every two minutes, a bit of slack is given */
+	public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds(150);
+
+	/** sent in our extended handshake, as suggested by BEP 10 */
+	public static final int REQUEST_QUEUE_SIZE = 250;
+	public static final String VERSION = "bittorrent-java";
+
+	public static final int METADATA_PIECE_SIZE = 16 * 1024;
+
+	/** bigger requests are rejected, like most clients do */
+	public static final int MAXIMUM_REQUEST_LENGTH = 128 * 1024;
+
+	/** rejects of a piece received while unchoked, past which the peer is considered not to serve it */
+	public static final int MAXIMUM_REJECTS = 3;
 
 	private final @Getter byte[] id;
+	private final byte[] infoHash;
 	private final Socket socket;
 	private final boolean supportExtensions;
+	private final @Getter boolean supportFast;
+
+	/** the peer understands the hash messages of BitTorrent v2 */
+	private final @Getter boolean supportV2;
+	private final @Getter long connectedAt;
+	private @Getter long downloaded;
+	private volatile @Getter long uploaded;
 
 	private boolean bitfield;
+
+	/** what we have is told once, before any other message */
+	private boolean piecesSent;
 	private boolean interested;
-	private @Getter int metadataExtensionId = -1;
+	private @Getter boolean choked = true;
+
+	/** number of chokes received, a reject that follows one is for a request the choke discarded */
+	private int chokeCount;
+	private boolean choking = true;
+	private @Getter boolean remoteInterested;
+	private boolean haveAll;
+	private byte[] bitfieldValues = new byte[0];
+	private final Set<Integer> pendingHaves = new HashSet<>();
+	private PieceBitset pieces;
+	private final Set<Integer> allowedFastPieces = new HashSet<>();
+	private volatile @Getter ExtendedHandshake extendedHandshake;
+	private volatile Consumer<PexMessage> peerExchangeListener;
+	private volatile UploadSource uploadSource;
+	private volatile HashSource hashSource;
+	private volatile BandwidthLimiter uploadLimiter;
+
+	/** pieces waiting for upload bandwidth, sent in order by their own thread so that reading never waits for them */
+	private final Deque<Message.Piece> pendingUploads = new ArrayDeque<>();
+	private Thread uploader;
+	private volatile IntConsumer haveListener;
+	private volatile byte[] metadata;
 
 	private List<Message> receiveQueue;
 
-	public Peer(byte[] id, Socket socket, boolean supportExtensions) {
+	public Peer(byte[] id, byte[] infoHash, Socket socket, boolean supportExtensions, boolean supportFast) {
+		this(id, infoHash, socket, supportExtensions, supportFast, false);
+	}
+
+	public Peer(byte[] id, byte[] infoHash, Socket socket, boolean supportExtensions, boolean supportFast, boolean supportV2) {
 		this.id = id;
+		this.infoHash = infoHash;
 		this.socket = socket;
 		this.supportExtensions = supportExtensions;
+		this.supportFast = supportFast;
+		this.supportV2 = supportV2;
+		this.connectedAt = System.nanoTime();
 
 		this.receiveQueue = new LinkedList<>();
 	}
 
-	private Message doReceive(MessageSerialContext context) throws IOException {
-		final var dataInputStream = new DataInputStream(socket.getInputStream());
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) socket.getRemoteSocketAddress();
+	}
+
+	/**
+	 * @param timeout how long to wait for a message to start arriving, or {@code null} for the idle timeout
+	 * @return {@code null} if nothing arrived in time
+	 */
+	private Message doReceive(Duration timeout) throws IOException {
+		final var inputStream = socket.getInputStream();
+
+		/* only the first byte is awaited with the shorter timeout, so that a message is never left half read */
+		final int first;
+		if (timeout == null) {
+			first = inputStream.read();
+		} else {
+			final var idleTimeout = socket.getSoTimeout();
+			socket.setSoTimeout((int) Math.max(1, timeout.toMillis()));
+
+			try {
+				first = inputStream.read();
+			} catch (SocketTimeoutException exception) {
+				return null;
+			} finally {
+				socket.setSoTimeout(idleTimeout);
+			}
+		}
+
+		if (first == -1) {
+			throw new PeerClosedException("end of stream");
+		}
+
+		final var dataInputStream = new DataInputStream(inputStream);
 
 		final int length;
 		try {
-			length = dataInputStream.readInt();
+			length = (first << 24) | (dataInputStream.readUnsignedByte() << 16) | dataInputStream.readUnsignedShort();
 		} catch (EOFException exception) {
 			throw new PeerClosedException(exception);
 		}
@@ -66,14 +177,23 @@ public class Peer implements AutoCloseable {
 		final var typeId = length != 0 ? dataInputStream.readByte() : (byte) -1;
 
 		final var descriptor = MessageDescriptors.getByTypeId(typeId);
-		final var message = descriptor.deserialize(length - 1, dataInputStream, context);
+		final var message = descriptor.deserialize(length - 1, dataInputStream);
+
+		if (message instanceof Message.Piece piece) {
+			downloaded += piece.block().length;
+		}
 
 		System.err.println("recv: typeId=%-2d length=%-6d message=%s".formatted(descriptor.typeId(), length, message));
 
 		return message;
 	}
 
-	public Message receive(boolean lookAtQueue, MessageSerialContext context) throws IOException {
+	public Message receive(boolean lookAtQueue) throws IOException {
+		return receive(lookAtQueue, null);
+	}
+
+	/** @return {@code null} if nothing arrived before the timeout */
+	public Message receive(boolean lookAtQueue, Duration timeout) throws IOException {
 		if (lookAtQueue && !receiveQueue.isEmpty()) {
 			final var message = receiveQueue.removeFirst();
 
@@ -82,17 +202,47 @@ public class Peer implements AutoCloseable {
 			return message;
 		}
 
-		var message = doReceive(context);
+		var message = doReceive(timeout);
+		if (message == null) {
+			return null;
+		}
+
+		apply(message);
 
 		if (message instanceof Message.KeepAlive) {
-			send(message, context);
-			return receive(lookAtQueue, context);
+			send(message);
+			return receive(lookAtQueue, timeout);
+		}
+
+		if (message instanceof Message.Extension extension && extension.content() instanceof PexMessage pex) {
+			final var listener = peerExchangeListener;
+			if (listener != null) {
+				listener.accept(pex);
+			}
+
+			return receive(lookAtQueue, timeout);
+		}
+
+		if (message instanceof Message.Extension extension && extension.content() instanceof MetadataMessage.Request request) {
+			serveMetadata(request);
+			return receive(lookAtQueue, timeout);
 		}
 
 		return message;
 	}
 
-	public Message waitFor(Predicate<Message> predicate, MessageSerialContext context) throws IOException {
+	public Message waitFor(Predicate<Message> predicate) throws IOException {
+		return waitFor(predicate, null);
+	}
+
+	/**
+	 * Unlike the idle timeout, running out of time does not mean that the peer is gone.
+	 * @param timeout {@code null} to only rely on the idle timeout
+	 * @return {@code null} if no matching message arrived in time
+	 */
+	public Message waitFor(Predicate<Message> predicate, Duration timeout) throws IOException {
+		final var deadline = timeout != null ? System.nanoTime() + timeout.toNanos() : 0;
+
 		final var iterator = receiveQueue.listIterator();
 		while (iterator.hasNext()) {
 			final var message = iterator.next();
@@ -106,34 +256,291 @@ public class Peer implements AutoCloseable {
 		}
 
 		while (true) {
-			final var message = receive(false, context);
+			Duration remaining = null;
+			if (timeout != null) {
+				remaining = Duration.ofNanos(deadline - System.nanoTime());
+
+				if (remaining.isNegative() || remaining.isZero()) {
+					return null;
+				}
+			}
+
+			final var message = receive(false, remaining);
+			if (message == null) {
+				return null;
+			}
 
 			if (predicate.test(message)) {
 				return message;
 			}
 
-			System.err.println("wait for: push: message=%s".formatted(message));
-			receiveQueue.add(message);
+			if (!isState(message)) {
+				System.err.println("wait for: push: message=%s".formatted(message));
+				receiveQueue.add(message);
+			}
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	public <T extends Message> T waitFor(Class<T> clazz, MessageSerialContext context) throws IOException {
-		return (T) waitFor((message) -> clazz.equals(message.getClass()), context);
+	/** consume messages until the state of the peer matches, other messages are queued */
+	private void awaitState(BooleanSupplier condition) throws IOException {
+		while (!condition.getAsBoolean()) {
+			final var message = receive(false);
+
+			if (!isState(message)) {
+				System.err.println("await state: push: message=%s".formatted(message));
+				receiveQueue.add(message);
+			}
+		}
+	}
+
+	/** update the state of the peer, as messages are received */
+	private void apply(Message message) throws IOException {
+		switch (message) {
+			case Message.Choke choke -> {
+				choked = true;
+				++chokeCount;
+			}
+			case Message.Unchoke unchoke -> choked = false;
+			case Message.Have have -> {
+				if (pieces == null) {
+					pendingHaves.add(have.pieceIndex());
+				} else if (have.pieceIndex() < pieces.size() && pieces.set(have.pieceIndex())) {
+					final var listener = haveListener;
+					if (listener != null) {
+						listener.accept(have.pieceIndex());
+					}
+				}
+			}
+
+			case Message.Bitfield received -> {
+				bitfieldValues = received.values();
+				pieces = null;
+				bitfield = true;
+			}
+
+			case Message.HaveAll received -> {
+				haveAll = true;
+				if (pieces != null) {
+					pieces.setAll();
+				}
+
+				bitfield = true;
+			}
+
+			case Message.HaveNone received -> bitfield = true;
+			case Message.AllowedFast allowedFast -> allowedFastPieces.add(allowedFast.pieceIndex());
+
+			case Message.Interested __ -> {
+				remoteInterested = true;
+
+				if (choking && uploadSource != null) {
+					send(new Message.Unchoke());
+					choking = false;
+				}
+			}
+
+			case Message.NotInterested __ -> remoteInterested = false;
+			case Message.Request request -> upload(request);
+			case Message.HashRequest request -> answer(request);
+
+			default -> {}
+		}
+	}
+
+	/** requests that cannot be served must be explicitly rejected when possible */
+	private void upload(Message.Request request) throws IOException {
+		final var source = uploadSource;
+
+		byte[] block = null;
+		if (!choking && source != null && request.length() <= MAXIMUM_REQUEST_LENGTH) {
+			block = source.read(request.index(), request.begin(), request.length());
+		}
+
+		if (block == null) {
+			if (supportFast) {
+				send(new Message.RejectRequest(request.index(), request.begin(), request.length()));
+			}
+
+			return;
+		}
+
+		final var piece = new Message.Piece(request.index(), request.begin(), block);
+		final var limiter = uploadLimiter;
+
+		synchronized (pendingUploads) {
+			/* behind the ones already waiting, so that pieces go out in the order they were asked */
+			if (pendingUploads.isEmpty() && (limiter == null || limiter.tryAcquire(block.length))) {
+				sendUpload(piece);
+				return;
+			}
+
+			if (pendingUploads.size() < REQUEST_QUEUE_SIZE) {
+				pendingUploads.addLast(piece);
+
+				if (uploader == null) {
+					uploader = Thread.ofVirtual()
+						.name("peer-upload-%s".formatted(getAddress()))
+						.start(this::drainUploads);
+				}
+
+				return;
+			}
+		}
+
+		/* more than what we said we would queue */
+		if (supportFast) {
+			send(new Message.RejectRequest(request.index(), request.begin(), request.length()));
+		}
+	}
+
+	/** send the waiting pieces as bandwidth becomes available, the thread ends once none is left */
+	private void drainUploads() {
+		try {
+			while (true) {
+				final Message.Piece piece;
+				synchronized (pendingUploads) {
+					piece = pendingUploads.peekFirst();
+
+					if (piece == null) {
+						uploader = null;
+						return;
+					}
+				}
+
+				final var limiter = uploadLimiter;
+				if (limiter != null) {
+					limiter.acquire(piece.block().length);
+				}
+
+				synchronized (pendingUploads) {
+					pendingUploads.removeFirst();
+					sendUpload(piece);
+				}
+			}
+		} catch (IOException | InterruptedException exception) {
+			/* the connection is gone, its reader notices too */
+			synchronized (pendingUploads) {
+				pendingUploads.clear();
+				uploader = null;
+			}
+		}
+	}
+
+	private void sendUpload(Message.Piece piece) throws IOException {
+		send(piece);
+
+		synchronized (this) {
+			uploaded += piece.block().length;
+		}
+	}
+
+	private void answer(Message.HashRequest request) throws IOException {
+		final var source = hashSource;
+
+		final var hashes = source != null ? source.hashes(request) : null;
+		if (hashes != null) {
+			send(new Message.Hashes(request.piecesRoot(), request.baseLayer(), request.index(), request.length(), request.proofLayers(), hashes));
+		} else {
+			send(new Message.HashReject(request.piecesRoot(), request.baseLayer(), request.index(), request.length(), request.proofLayers()));
+		}
 	}
 
-	public void send(Message message) throws IOException {
-		send(message, null);
+	/** @return {@code true} if the message was fully consumed by {@link #apply(Message)} and does not need to be queued */
+	private static boolean isState(Message message) {
+		return switch (message) {
+			case Message.Choke __ -> true;
+			case Message.Unchoke __ -> true;
+			case Message.Interested __ -> true;
+			case Message.NotInterested __ -> true;
+			case Message.Have __ -> true;
+			case Message.Bitfield __ -> true;
+			case Message.HaveAll __ -> true;
+			case Message.HaveNone __ -> true;
+			case Message.AllowedFast __ -> true;
+			case Message.SuggestPiece __ -> true;
+			case Message.Request __ -> true;
+			case Message.HashRequest __ -> true;
+			default -> false;
+		};
+	}
+
+	/** the piece count is not known before the metadata of a magnet is received, so the set is built on first use */
+	public PieceBitset getPieces(int pieceCount) {
+		if (pieces != null) {
+			return pieces;
+		}
+
+		pieces = PieceBitset.fromBitfield(bitfieldValues, pieceCount);
+		if (haveAll) {
+			pieces.setAll();
+		}
+
+		for (final var pieceIndex : pendingHaves) {
+			if (pieceIndex < pieceCount) {
+				pieces.set(pieceIndex);
+			}
+		}
+
+		bitfieldValues = null;
+		pendingHaves.clear();
+
+		return pieces;
+	}
+
+	public boolean hasPiece(TorrentInfo torrentInfo, int pieceIndex) {
+		return getPieces(torrentInfo.pieceCount()).get(pieceIndex);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T extends Message> T waitFor(Class<T> clazz) throws IOException {
+		return (T) waitFor((message) -> clazz.equals(message.getClass()));
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	public void send(Message message, MessageSerialContext context) throws IOException {
+	public synchronized void send(Message message) throws IOException {
+		/* the fast extension requires us to tell what we have first, nothing if it was not told yet */
+		if (!piecesSent) {
+			piecesSent = true;
+
+			if (supportFast) {
+				write(new Message.HaveNone());
+			}
+		}
+
+		write(message);
+	}
+
+	/**
+	 * Tell the peer which pieces we have, with the shortest message: a have all or a have none with the fast extension, a bitfield otherwise.
+	 * It must be the first message, if another one went first the pieces are announced one by one.
+	 */
+	public synchronized void sendPieces(PieceBitset pieces) throws IOException {
+		if (piecesSent) {
+			for (var pieceIndex = pieces.nextSetBit(0); pieceIndex != -1; pieceIndex = pieces.nextSetBit(pieceIndex + 1)) {
+				write(new Message.Have(pieceIndex));
+			}
+
+			return;
+		}
+
+		piecesSent = true;
+
+		if (supportFast && pieces.isEmpty()) {
+			write(new Message.HaveNone());
+		} else if (supportFast && pieces.isComplete()) {
+			write(new Message.HaveAll());
+		} else if (!pieces.isEmpty()) {
+			write(pieces.toMessage());
+		}
+	}
+
+	private void write(Message message) throws IOException {
 		final var dataOutputStream = new DataOutputStream(socket.getOutputStream());
 
 		final MessageDescriptor descriptor = MessageDescriptors.getByClass(message.getClass());
 
 		final var byteArrayOutputStream = new ExposedByteArrayOutputStream();
-		final var length = descriptor.serialize(message, new DataOutputStream(byteArrayOutputStream), context);
+		final var length = descriptor.serialize(message, new DataOutputStream(byteArrayOutputStream));
 
 		System.err.println("send: typeId=%-2d length=%-6d message=%s".formatted(descriptor.typeId(), length, message));
 
@@ -147,199 +554,396 @@ public class Peer implements AutoCloseable {
 	}
 
 	public void awaitBitfield() throws IOException {
-		if (bitfield) {
-			return;
-		}
-
-		if (supportExtensions) {
+		if (supportExtensions && extendedHandshake == null) {
 			send(
 				new Message.Extension(
-					(byte) 0,
-					new MetadataMessage.Handshake(Map.of(
-						"ut_metadata", 42
-					))
-				),
-				METADATA_CONTEXT
+					ExtendedHandshakeSerial.ID,
+					new ExtendedHandshake(
+						ExtensionDescriptors.localIds(),
+						REQUEST_QUEUE_SIZE,
+						metadata != null ? metadata.length : -1,
+						VERSION,
+						-1
+					)
+				)
 			);
 
-			final var extension = waitFor(Message.Extension.class, METADATA_CONTEXT);
-			System.err.println("extension: %s".formatted(extension));
+			final var handshake = waitFor((message) -> message instanceof Message.Extension extension && extension.content() instanceof ExtendedHandshake);
+			extendedHandshake = (ExtendedHandshake) ((Message.Extension) handshake).content();
 
-			final var metadata = (MetadataMessage.Handshake) extension.content();
-			metadataExtensionId = metadata.extensionIds().get("ut_metadata");
+			System.err.println("extension: %s".formatted(extendedHandshake));
 		}
 
-		waitFor(Message.Bitfield.class, null);
-		bitfield = true;
+		/* with the fast extension, peers must send a have all or a have none instead when appropriate */
+		awaitState(() -> bitfield);
 	}
 
 	public byte[] downloadPiece(TorrentInfo torrentInfo, int pieceIndex) throws IOException, InterruptedException {
-		awaitBitfield();
+		/* sent before waiting for the bitfield, so that the unchoke can come back in the same round trip */
 		sendInterested();
+		awaitBitfield();
 
-		final var fileLength = torrentInfo.length();
-		final var pieceLength = torrentInfo.pieceLength();
-
-		var realPieceLength = pieceLength;
-		if (torrentInfo.pieces().size() - 1 == pieceIndex) {
-			realPieceLength = (int) (fileLength % pieceLength);
+		if (!hasPiece(torrentInfo, pieceIndex)) {
+			throw new IllegalStateException("peer does not have piece %d".formatted(pieceIndex));
 		}
 
-		final var pieceHash = torrentInfo.pieces().get(pieceIndex);
+		awaitUnchoke(pieceIndex);
+
+		final var realPieceLength = torrentInfo.pieceLength(pieceIndex);
 
 		final var bytes = new byte[realPieceLength];
 
 		final var blockSize = (int) Math.pow(2, 14);
-		var blockCount = 0;
+		final var blockCount = (realPieceLength + blockSize - 1) / blockSize;
+		final var received = new boolean[blockCount];
+		final var validator = PieceValidator.of(torrentInfo, pieceIndex, ByteBuffer.wrap(bytes));
 
-		var blockStart = 0;
-		for (; blockStart < realPieceLength - blockSize; blockStart += blockSize) {
-			++blockCount;
+		/* choke count when each block was last requested */
+		final var requestedAt = new int[blockCount];
+		Arrays.fill(requestedAt, chokeCount);
 
+		for (var blockStart = 0; blockStart < realPieceLength; blockStart += blockSize) {
 			send(new Message.Request(
 				pieceIndex,
 				blockStart,
-				blockSize
+				Math.min(blockSize, realPieceLength - blockStart)
 			));
 		}
 
-		final var remaining = realPieceLength - blockStart;
-		if (remaining != 0) {
-			++blockCount;
+		var receivedCount = 0;
+		var rejectCount = 0;
+		while (receivedCount < blockCount) {
+			final var message = waitFor((candidate) -> switch (candidate) {
+				case Message.Piece piece -> piece.index() == pieceIndex;
+				case Message.RejectRequest reject -> reject.index() == pieceIndex;
+				default -> false;
+			});
+
+			if (message instanceof Message.RejectRequest reject) {
+				System.err.println("peer rejected: %s".formatted(reject));
+
+				final var blockIndex = reject.begin() / blockSize;
+				if (blockIndex >= blockCount || received[blockIndex]) {
+					continue;
+				}
 
-			send(new Message.Request(
-				pieceIndex,
-				blockStart,
-				remaining
-			));
-		}
+				/* a choke discards the pending requests, they are sent again once allowed; a reject without one is only retried a few times */
+				if (requestedAt[blockIndex] == chokeCount) {
+					if (++rejectCount == MAXIMUM_REJECTS) {
+						throw new PieceRejectedException("piece %d rejected %d times while unchoked".formatted(pieceIndex, rejectCount));
+					}
+				} else {
+					awaitUnchoke(pieceIndex);
+				}
 
-		for (var index = 0; index < blockCount; ++index) {
-			final var piece = waitFor(Message.Piece.class, null);
+				requestedAt[blockIndex] = chokeCount;
+				send(new Message.Request(reject.index(), reject.begin(), reject.length()));
+
+				continue;
+			}
+
+			final var piece = (Message.Piece) message;
+			final var blockIndex = piece.begin() / blockSize;
+			if (received[blockIndex]) {
+				continue;
+			}
 
 			System.arraycopy(piece.block(), 0, bytes, piece.begin(), piece.block().length);
+
+			if (!validator.offer(piece.begin(), piece.block())) {
+				throw new PieceHashException("piece %d block %d hash does not match".formatted(pieceIndex, blockIndex));
+			}
+
+			received[blockIndex] = true;
+			++receivedCount;
 		}
 
-		final var downloadedPieceHash = DigestUtils.sha1(bytes);
-		if (!Arrays.equals(pieceHash, downloadedPieceHash)) {
-			throw new IllegalStateException("piece hash does not match");
+		if (!validator.isValid()) {
+			throw new PieceHashException("piece %d hash does not match".formatted(pieceIndex));
 		}
 
 		return bytes;
 	}
 
-	public void sendInterested() throws IOException, InterruptedException {
+	public void sendInterested() throws IOException {
 		if (interested) {
 			return;
 		}
 
-		while (true) {
-			send(new Message.Interested());
+		send(new Message.Interested());
+		interested = true;
+	}
 
-			final var choke = waitFor((message) -> message instanceof Message.Unchoke || message instanceof Message.Choke, null);
-			if (choke instanceof Message.Unchoke) {
-				interested = true;
-				break;
-			}
+	public void awaitUnchoke() throws IOException {
+		awaitState(() -> !choked);
+	}
 
-			System.err.println("peer is chocked");
-			Thread.sleep(Duration.ofSeconds(1));
+	/** pieces of the allowed fast set can be requested while choked */
+	public void awaitUnchoke(int pieceIndex) throws IOException {
+		if (allowedFastPieces.contains(pieceIndex)) {
+			return;
 		}
+
+		awaitState(() -> !choked || allowedFastPieces.contains(pieceIndex));
+	}
+
+	public boolean isAllowedFast(int pieceIndex) {
+		return allowedFastPieces.contains(pieceIndex);
 	}
 
 	@Override
 	public void close() throws IOException, InterruptedException {
 		socket.close();
+
+		synchronized (pendingUploads) {
+			if (uploader != null) {
+				uploader.interrupt();
+			}
+		}
 	}
 
 	public static Peer connect(InetSocketAddress address, Announceable announceable) throws IOException {
-		System.err.println("peer: trying to connect: %s".formatted(address));
+		return connect(address, announceable, DEFAULT_CONNECT_TIMEOUT, DEFAULT_HANDSHAKE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+	}
 
-		final var socket = new Socket(address.getAddress(), address.getPort());
-		return connect(socket, announceable);
+	public static Peer connect(InetSocketAddress address, Announceable announceable, Duration connectTimeout, Duration handshakeTimeout, Duration idleTimeout) throws IOException {
+		return connect(TcpTransport.INSTANCE, address, announceable, connectTimeout, handshakeTimeout, idleTimeout);
 	}
 
-	public static Peer connect(Socket socket, Announceable announceable) throws IOException {
-		final var infoHash = announceable.getInfoHash();
-		final var padding = announceable instanceof Magnet ? PADDING_MAGNET_8 : PADDING_8;
+	public static Peer connect(Transport transport, InetSocketAddress address, Announceable announceable, Duration connectTimeout, Duration handshakeTimeout, Duration idleTimeout) throws IOException {
+		System.err.println("peer: trying to connect: %s (%s)".formatted(address, transport));
 
-		try {
-			final var inputStream = new DataInputStream(socket.getInputStream());
-			final var outputStream = socket.getOutputStream();
+		final var socket = transport.connect(address, connectTimeout);
 
-			{
-				/* length of the protocol string */
-				outputStream.write(19);
+		return connect(socket, announceable, handshakeTimeout, idleTimeout);
+	}
 
-				/* the string BitTorrent protocol */
-				outputStream.write(PROTOCOL_BYTES);
+	public static Peer connect(Socket socket, Announceable announceable) throws IOException {
+		return connect(socket, announceable, DEFAULT_HANDSHAKE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+	}
 
-				/* eight reserved bytes */
-				outputStream.write(padding);
+	/** a read that waits longer than the idle timeout throws a {@link java.net.SocketTimeoutException} */
+	public static Peer connect(Socket socket, Announceable announceable, Duration handshakeTimeout, Duration idleTimeout) throws IOException {
+		final var infoHash = announceable.getInfoHash();
 
-				/* sha1 infohash */
-				outputStream.write(announceable.getInfoHash());
+		try {
+			socket.setSoTimeout((int) handshakeTimeout.toMillis());
 
-				/* peer id */
-				outputStream.write("42112233445566778899".getBytes(StandardCharsets.US_ASCII));
-			}
+			writeHandshake(socket.getOutputStream(), announceable);
 
-			{
-				final var length = inputStream.readByte();
-				if (length != 19) {
-					throw new IllegalStateException("invalid protocol length: " + length);
-				}
+			final var handshake = readHandshake(new DataInputStream(socket.getInputStream()));
+			if (!Arrays.equals(handshake.infoHash(), infoHash)) {
+				throw new IllegalStateException("invalid info hash: " + Arrays.toString(infoHash));
+			}
 
-				final var receivedProtocol = inputStream.readNBytes(19);
-				if (!Arrays.equals(receivedProtocol, PROTOCOL_BYTES)) {
-					System.out.println(Main.HEX_FORMAT.formatHex(receivedProtocol));
-					throw new IllegalStateException("invalid protocol string: " + new String(receivedProtocol));
-				}
+			return establish(socket, handshake, idleTimeout);
+		} catch (Exception exception) {
+			socket.close();
+			throw exception;
+		}
+	}
 
-				/* padding */
-				final var receivedPadding = inputStream.readNBytes(8);
-				final var supportExtensions = receivedPadding[5] == 0x10; // TODO Bugged https://forum.codecrafters.io/t/pk2-reserved-bit-in-handshake-for-extension-protocol-seems-to-be-set-incorrectly-by-codecrafters-server/2461
-				//				final var supportExtensions = announceable instanceof Magnet;
-				System.err.println("peer: padding: %s".formatted(Main.HEX_FORMAT.formatHex(receivedPadding)));
+	/**
+	 * Answer a connection made to us, the remote side handshakes first and tells which torrent it wants.
+	 * @param lookup find the torrent by its info hash, or {@code null} if it is not served here
+	 */
+	public static Peer accept(Socket socket, Function<byte[], Announceable> lookup, Duration handshakeTimeout, Duration idleTimeout) throws IOException {
+		try {
+			socket.setSoTimeout((int) handshakeTimeout.toMillis());
 
-				final var receivedInfoHash = inputStream.readNBytes(20);
-				if (!Arrays.equals(receivedInfoHash, infoHash)) {
-					throw new IllegalStateException("invalid info hash: " + Arrays.toString(infoHash));
-				}
+			final var handshake = readHandshake(new DataInputStream(socket.getInputStream()));
 
-				final var peerId = inputStream.readNBytes(20);
-				return new Peer(peerId, socket, supportExtensions);
+			final var announceable = lookup.apply(handshake.infoHash());
+			if (announceable == null) {
+				throw new IllegalStateException("unknown info hash: " + Main.HEX_FORMAT.formatHex(handshake.infoHash()));
 			}
+
+			writeHandshake(socket.getOutputStream(), announceable);
+
+			return establish(socket, handshake, idleTimeout);
 		} catch (Exception exception) {
 			socket.close();
 			throw exception;
 		}
 	}
 
+	private static void writeHandshake(OutputStream outputStream, Announceable announceable) throws IOException {
+		final var padding = (announceable instanceof Magnet ? PADDING_MAGNET_8 : PADDING_8).clone();
+
+		/* we answer and ask for Merkle hashes */
+		if (announceable instanceof Torrent torrent && torrent.info().merkle() != null) {
+			padding[7] |= SUPPORT_V2;
+		}
+
+		/* length of the protocol string */
+		outputStream.write(19);
+
+		/* the string BitTorrent protocol */
+		outputStream.write(PROTOCOL_BYTES);
+
+		/* eight reserved bytes */
+		outputStream.write(padding);
+
+		/* sha1 infohash */
+		outputStream.write(announceable.getInfoHash());
+
+		/* peer id */
+		outputStream.write("42112233445566778899".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static Handshake readHandshake(DataInputStream inputStream) throws IOException {
+		final var length = inputStream.readByte();
+		if (length != 19) {
+			throw new IllegalStateException("invalid protocol length: " + length);
+		}
+
+		final var receivedProtocol = inputStream.readNBytes(19);
+		if (!Arrays.equals(receivedProtocol, PROTOCOL_BYTES)) {
+			System.err.println("peer: protocol: %s".formatted(Main.HEX_FORMAT.formatHex(receivedProtocol)));
+			throw new IllegalStateException("invalid protocol string: " + new String(receivedProtocol));
+		}
+
+		/* padding */
+		final var receivedPadding = inputStream.readNBytes(8);
+		System.err.println("peer: padding: %s".formatted(Main.HEX_FORMAT.formatHex(receivedPadding)));
+
+		final var receivedInfoHash = inputStream.readNBytes(20);
+		final var peerId = inputStream.readNBytes(20);
+
+		return new Handshake(receivedPadding, receivedInfoHash, peerId);
+	}
+
+	private static Peer establish(Socket socket, Handshake handshake, Duration idleTimeout) throws IOException {
+		final var supportFast = (handshake.padding()[7] & 0x04) != 0;
+		final var supportV2 = (handshake.padding()[7] & SUPPORT_V2) != 0;
+		final var supportExtensions = handshake.padding()[5] == 0x10; // TODO Bugged https://forum.codecrafters.io/t/pk2-reserved-bit-in-handshake-for-extension-protocol-seems-to-be-set-incorrectly-by-codecrafters-server/2461
+		//				final var supportExtensions = announceable instanceof Magnet;
+
+		socket.setSoTimeout((int) idleTimeout.toMillis());
+		/* what we have is told by the first message, see sendPieces */
+		return new Peer(handshake.peerId(), handshake.infoHash(), socket, supportExtensions, supportFast, supportV2);
+	}
+
+	private record Handshake(
+		byte[] padding,
+		byte[] infoHash,
+		byte[] peerId
+	) {}
+
+	/** @return the id that the peer wants to receive ut_metadata messages with, or {@code -1} */
+	public int getMetadataExtensionId() {
+		return extensionId(MetadataMessageSerial.NAME);
+	}
+
+	/** @return the id that the peer wants to receive ut_pex messages with, or {@code -1} */
+	public int getPexExtensionId() {
+		return extensionId(PexMessageSerial.NAME);
+	}
+
+	private int extensionId(String name) {
+		if (extendedHandshake == null) {
+			return -1;
+		}
+
+		return extendedHandshake.extensionId(name);
+	}
+
+	/** hash requests are rejected until set */
+	public void setHashSource(HashSource source) {
+		this.hashSource = source;
+	}
+
+	/** allow the peer to download from us, it is unchoked as soon as it is interested */
+	public void setUploadSource(UploadSource source) {
+		this.uploadSource = source;
+	}
+
+	/** uploads wait for bandwidth before the piece is written to the socket, without holding up the reading of messages */
+	public void setUploadLimiter(BandwidthLimiter limiter) {
+		this.uploadLimiter = limiter;
+	}
+
+	/** called for each new piece the peer announces, once its piece set is built */
+	public void setHaveListener(IntConsumer listener) {
+		this.haveListener = listener;
+	}
+
+	/** peers received via ut_pex are given to the listener while other messages are being waited for */
+	public void setPeerExchangeListener(Consumer<PexMessage> listener) {
+		this.peerExchangeListener = listener;
+	}
+
+	/** @return {@code false} if the peer does not support ut_pex, or did not complete the extension handshake yet */
+	public boolean sendPeerExchange(PexMessage message) throws IOException {
+		return sendExtension(getPexExtensionId(), message);
+	}
+
+	private boolean sendExtension(int remoteId, Object content) throws IOException {
+		if (remoteId <= 0) {
+			return false;
+		}
+
+		send(new Message.Extension((byte) remoteId, content));
+		return true;
+	}
+
 	public MetadataMessage sendMetadata(MetadataMessage message) throws IOException {
-		send(
-			new Message.Extension(
-				(byte) metadataExtensionId,
-				message
-			),
-			METADATA_CONTEXT
-		);
+		if (!sendExtension(getMetadataExtensionId(), message)) {
+			throw new IllegalStateException("peer does not support %s".formatted(MetadataMessageSerial.NAME));
+		}
 
-		return (MetadataMessage) waitFor(
-			Message.Extension.class,
-			METADATA_CONTEXT
-		).content();
+		final var response = waitFor((received) -> received instanceof Message.Extension extension && (extension.content() instanceof MetadataMessage.Data || extension.content() instanceof MetadataMessage.Reject));
+		return (MetadataMessage) ((Message.Extension) response).content();
 	}
 
-	public TorrentInfo queryTorrentInfoViaMetadataExtension() throws IOException {
+	/** @return the raw info dictionary, verified against the info hash */
+	public byte[] queryMetadata() throws IOException {
 		awaitBitfield();
 
-		final var response = sendMetadata(new MetadataMessage.Request(0));
-		if (!(response instanceof MetadataMessage.Data data)) {
-			throw new IllegalStateException("no data found: %s".formatted(response));
+		final var output = new ExposedByteArrayOutputStream();
+
+		var piece = 0;
+		var pieceCount = 1;
+		while (piece < pieceCount) {
+			final var response = sendMetadata(new MetadataMessage.Request(piece));
+			if (!(response instanceof MetadataMessage.Data data)) {
+				throw new IllegalStateException("no data found: %s".formatted(response));
+			}
+
+			pieceCount = (int) ((data.totalSize() + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE);
+			output.write(data.data());
+
+			++piece;
+		}
+
+		final var metadata = output.toByteArray();
+		if (!DigestUtils.matchesInfoHash(infoHash, metadata)) {
+			throw new IllegalStateException("metadata hash does not match");
+		}
+
+		return metadata;
+	}
+
+	public TorrentInfo queryTorrentInfoViaMetadataExtension() throws IOException {
+		return TorrentInfo.parse(queryMetadata());
+	}
+
+	/** must be set before the extended handshake, for the size to be advertised */
+	public void setMetadata(byte[] metadata) {
+		this.metadata = metadata;
+	}
+
+	private void serveMetadata(MetadataMessage.Request request) throws IOException {
+		final var current = metadata;
+		final var begin = (long) request.piece() * METADATA_PIECE_SIZE;
+
+		if (current == null || request.piece() < 0 || begin >= current.length) {
+			sendExtension(getMetadataExtensionId(), new MetadataMessage.Reject(request.piece()));
+			return;
 		}
 
-		return data.torrentInfo();
+		final var data = Arrays.copyOfRange(current, (int) begin, (int) Math.min(begin + METADATA_PIECE_SIZE, current.length));
+		sendExtension(getMetadataExtensionId(), new MetadataMessage.Data(request.piece(), current.length, data));
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,131 @@
+package bittorrent.peer;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.peer.protocol.PexMessage;
+
+/** ut_pex (BEP 11), peers learned from others go to the pool, the ones they dropped leave it, and our connected peers are shared every minute */
+public class PeerExchange implements AutoCloseable {
+
+	public static final Duration INTERVAL = Duration.ofMinutes(1);
+	public static final int MAXIMUM_PEERS_PER_MESSAGE = 50;
+
+	private final PeerPool peerPool;
+	private final ScheduledExecutorService executor;
+
+	/** what each peer was last told about */
+	private final Map<Peer, Set<InetSocketAddress>> sent = new ConcurrentHashMap<>();
+
+	/** peers that connected to us, their remote port is not the one they listen on */
+	private final Set<Peer> inbound = ConcurrentHashMap.newKeySet();
+
+	public PeerExchange(PeerPool peerPool) {
+		this.peerPool = peerPool;
+		this.executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("peer-exchange").daemon().factory());
+
+		executor.scheduleAtFixedRate(this::broadcast, INTERVAL.toMillis(), INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/** @param inbound whether the peer connected to us, it is then only shared once it told its listen port */
+	public void register(Peer peer, boolean inbound) {
+		/* known as inbound before the broadcast can see it */
+		if (inbound) {
+			this.inbound.add(peer);
+		}
+
+		sent.put(peer, new HashSet<>());
+
+		peer.setPeerExchangeListener((message) -> {
+			/* the peers that left are not tried anymore, unless they are connected */
+			final var forgotten = peerPool.dropAll(message.dropped());
+			final var added = peerPool.addAll(message.added());
+			System.err.println("pex: from=%s added=%d dropped=%d new=%d forgotten=%d".formatted(peer.getAddress(), message.added().size(), message.dropped().size(), added, forgotten));
+		});
+	}
+
+	public void unregister(Peer peer) {
+		peer.setPeerExchangeListener(null);
+		sent.remove(peer);
+		inbound.remove(peer);
+	}
+
+	/** @return where the peer can be reached, or {@code null} if it is not known */
+	private InetSocketAddress listenAddress(Peer peer) {
+		if (!inbound.contains(peer)) {
+			return peer.getAddress();
+		}
+
+		final var handshake = peer.getExtendedHandshake();
+		if (handshake == null || handshake.port() <= 0 || handshake.port() > 0xffff) {
+			return null;
+		}
+
+		return new InetSocketAddress(peer.getAddress().getAddress(), handshake.port());
+	}
+
+	private void broadcast() {
+		final var connected = new HashSet<InetSocketAddress>();
+		for (final var peer : sent.keySet()) {
+			final var address = listenAddress(peer);
+
+			if (address != null) {
+				connected.add(address);
+			}
+		}
+
+		for (final var entry : sent.entrySet()) {
+			final var peer = entry.getKey();
+			final var previous = entry.getValue();
+			final var self = listenAddress(peer);
+
+			final var added = new ArrayList<InetSocketAddress>();
+			for (final var address : connected) {
+				if (added.size() < MAXIMUM_PEERS_PER_MESSAGE && !address.equals(self) && !previous.contains(address)) {
+					added.add(address);
+				}
+			}
+
+			final var dropped = new ArrayList<InetSocketAddress>();
+			for (final var address : previous) {
+				if (dropped.size() < MAXIMUM_PEERS_PER_MESSAGE && !connected.contains(address)) {
+					dropped.add(address);
+				}
+			}
+
+			if (added.isEmpty() && dropped.isEmpty()) {
+				continue;
+			}
+
+			send(peer, previous, added, dropped);
+		}
+	}
+
+	private void send(Peer peer, Set<InetSocketAddress> previous, List<InetSocketAddress> added, List<InetSocketAddress> dropped) {
+		try {
+			if (peer.sendPeerExchange(new PexMessage(added, dropped))) {
+				previous.addAll(added);
+				previous.removeAll(dropped);
+			}
+		} catch (Exception exception) {
+			System.err.println("pex: could not send to %s: %s".formatted(peer.getAddress(), exception));
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		sent.clear();
+		inbound.clear();
+	}
+
+}
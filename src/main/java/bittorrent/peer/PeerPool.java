@@ -0,0 +1,206 @@
+package bittorrent.peer;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** deduplicated set of known peers, with the ones that are waiting to be tried ordered by score */
+public class PeerPool {
+
+	private final Map<InetSocketAddress, PeerScore> known = new HashMap<>();
+	private final Set<InetSocketAddress> candidates = new LinkedHashSet<>();
+
+	/** a banned peer is refused on any port, like when it connects to us */
+	private final Set<InetAddress> bannedHosts = new HashSet<>();
+
+	/** @return {@code true} if the peer was never seen before */
+	public synchronized boolean add(InetSocketAddress address) {
+		if (known.containsKey(address) || bannedHosts.contains(address.getAddress())) {
+			return false;
+		}
+
+		known.put(address, new PeerScore());
+		candidates.add(address);
+		notifyAll();
+
+		return true;
+	}
+
+	/** @return the number of new peers */
+	public int addAll(Collection<InetSocketAddress> addresses) {
+		var added = 0;
+
+		for (final var address : addresses) {
+			if (add(address)) {
+				++added;
+			}
+		}
+
+		return added;
+	}
+
+	/** put back a peer that was polled, like after a disconnect */
+	public synchronized void giveBack(InetSocketAddress address) {
+		final var score = known.get(address);
+		if (score == null || score.isBanned()) {
+			return;
+		}
+
+		candidates.add(address);
+		notifyAll();
+	}
+
+	/** forget about a peer, it can be added again later by another source */
+	public synchronized void remove(InetSocketAddress address) {
+		known.remove(address);
+		candidates.remove(address);
+	}
+
+	/**
+	 * A source told that the peer left the swarm: it is forgotten if it is waiting to be tried, so that a later source can add it back.
+	 * A peer in use, or banned, is kept.
+	 * @return {@code true} if the peer was forgotten
+	 */
+	public synchronized boolean drop(InetSocketAddress address) {
+		final var score = known.get(address);
+		if (score == null || score.isBanned() || !candidates.remove(address)) {
+			return false;
+		}
+
+		known.remove(address);
+		return true;
+	}
+
+	/** @return the number of peers forgotten */
+	public int dropAll(Collection<InetSocketAddress> addresses) {
+		var dropped = 0;
+
+		for (final var address : addresses) {
+			if (drop(address)) {
+				++dropped;
+			}
+		}
+
+		return dropped;
+	}
+
+	/** the peer is remembered, so that no source can add it back */
+	public synchronized void ban(InetSocketAddress address) {
+		known.computeIfAbsent(address, (__) -> new PeerScore()).ban();
+		candidates.remove(address);
+
+		if (address.getAddress() != null) {
+			bannedHosts.add(address.getAddress());
+			candidates.removeIf((candidate) -> address.getAddress().equals(candidate.getAddress()));
+		}
+	}
+
+	public synchronized boolean isBanned(InetAddress host) {
+		return bannedHosts.contains(host);
+	}
+
+	public synchronized PeerScore getScore(InetSocketAddress address) {
+		return known.get(address);
+	}
+
+	/** @return the best available candidate, or {@code null} if none */
+	public synchronized InetSocketAddress poll() {
+		final var batch = poll(1);
+
+		return batch.isEmpty() ? null : batch.getFirst();
+	}
+
+	public synchronized InetSocketAddress poll(Duration timeout) throws InterruptedException {
+		final var deadline = System.nanoTime() + timeout.toNanos();
+
+		while (true) {
+			final var address = poll();
+			if (address != null) {
+				return address;
+			}
+
+			final var remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+			if (remainingMillis <= 0) {
+				return null;
+			}
+
+			/* also wakes up regularly, as backed off peers become available again */
+			wait(Math.min(remainingMillis, 1_000));
+		}
+	}
+
+	/** @return up to {@code count} of the best available candidates, which are no longer candidates */
+	public synchronized List<InetSocketAddress> poll(int count) {
+		final var available = new ArrayList<InetSocketAddress>();
+
+		final var iterator = candidates.iterator();
+		while (iterator.hasNext()) {
+			final var address = iterator.next();
+			final var score = known.get(address);
+
+			if (score.isBanned()) {
+				iterator.remove();
+			} else if (score.isAvailable()) {
+				available.add(address);
+			}
+		}
+
+		/* stable, so that equally scored peers keep their discovery order */
+		available.sort((left, right) -> Double.compare(known.get(right).value(), known.get(left).value()));
+
+		final var batch = interleaveFamilies(available).subList(0, Math.min(count, available.size()));
+		candidates.removeAll(batch);
+
+		return new ArrayList<>(batch);
+	}
+
+	/** alternate between IPv4 and IPv6, so that both families race in a batch and a broken stack cannot stall it */
+	private static List<InetSocketAddress> interleaveFamilies(List<InetSocketAddress> addresses) {
+		final var v4 = new LinkedList<InetSocketAddress>();
+		final var v6 = new LinkedList<InetSocketAddress>();
+
+		for (final var address : addresses) {
+			if (address.getAddress() instanceof Inet4Address) {
+				v4.add(address);
+			} else {
+				v6.add(address);
+			}
+		}
+
+		final var interleaved = new ArrayList<InetSocketAddress>(addresses.size());
+		while (!v4.isEmpty() || !v6.isEmpty()) {
+			if (!v4.isEmpty()) {
+				interleaved.add(v4.removeFirst());
+			}
+
+			if (!v6.isEmpty()) {
+				interleaved.add(v6.removeFirst());
+			}
+		}
+
+		return interleaved;
+	}
+
+	public synchronized boolean contains(InetSocketAddress address) {
+		return known.containsKey(address);
+	}
+
+	public synchronized int size() {
+		return known.size();
+	}
+
+	public synchronized int candidateCount() {
+		return candidates.size();
+	}
+
+}
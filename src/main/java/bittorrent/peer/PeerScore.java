@@ -0,0 +1,107 @@
+package bittorrent.peer;
+
+import java.time.Duration;
+
+/** connection quality of a peer, used to decide who is dialed first and who should be left alone */
+public class PeerScore {
+
+	public static final Duration FIRST_BACKOFF = Duration.ofSeconds(30);
+	public static final Duration MAXIMUM_BACKOFF = Duration.ofMinutes(30);
+	public static final int MAXIMUM_CONSECUTIVE_FAILURES = 5;
+
+	/** weight of the newest sample in the moving averages */
+	private static final double SMOOTHING = 0.3;
+
+	private double handshakeLatencyMillis = -1;
+	private double throughput = -1;
+	private int failures;
+	private int consecutiveFailures;
+	private long backoffUntilNanos;
+	private boolean banned;
+
+	public synchronized void onConnected(Duration handshakeLatency) {
+		handshakeLatencyMillis = smooth(handshakeLatencyMillis, handshakeLatency.toMillis());
+		consecutiveFailures = 0;
+		backoffUntilNanos = 0;
+	}
+
+	public synchronized void onTransfer(long bytes, Duration elapsed) {
+		final var seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+
+		throughput = smooth(throughput, bytes / seconds);
+	}
+
+	public synchronized void onFailure() {
+		++failures;
+		++consecutiveFailures;
+
+		if (consecutiveFailures >= MAXIMUM_CONSECUTIVE_FAILURES) {
+			banned = true;
+			return;
+		}
+
+		backoff(consecutiveFailures);
+	}
+
+	/** took part in a piece that failed its hash check, without being proved guilty, so it is ranked lower */
+	public synchronized void onHashFailure() {
+		++failures;
+	}
+
+	/** connected fine but did not deliver enough, let the others have a chance first */
+	public synchronized void onSlow() {
+		backoff(1);
+	}
+
+	public synchronized void ban() {
+		banned = true;
+	}
+
+	public synchronized boolean isBanned() {
+		return banned;
+	}
+
+	public synchronized boolean isAvailable() {
+		return !banned && System.nanoTime() - backoffUntilNanos >= 0;
+	}
+
+	/** higher is better, a never seen peer is neutral */
+	public synchronized double value() {
+		var value = 0.0;
+
+		if (throughput >= 0) {
+			value += Math.log1p(throughput);
+		}
+
+		if (handshakeLatencyMillis >= 0) {
+			value -= Math.log1p(handshakeLatencyMillis) / 2;
+		}
+
+		value -= failures;
+
+		return value;
+	}
+
+	private void backoff(int exponent) {
+		var delay = FIRST_BACKOFF.multipliedBy(1l << Math.min(exponent - 1, 16));
+		if (delay.compareTo(MAXIMUM_BACKOFF) > 0) {
+			delay = MAXIMUM_BACKOFF;
+		}
+
+		backoffUntilNanos = System.nanoTime() + delay.toNanos();
+	}
+
+	private static double smooth(double previous, double sample) {
+		if (previous < 0) {
+			return sample;
+		}
+
+		return previous + SMOOTHING * (sample - previous);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PeerScore[latency=%.0fms, throughput=%.0fB/s, failures=%d, banned=%s]".formatted(handshakeLatencyMillis, throughput, failures, banned);
+	}
+
+}
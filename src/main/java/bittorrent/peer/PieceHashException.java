@@ -0,0 +1,8 @@
+package bittorrent.peer;
+
+import lombok.experimental.StandardException;
+
+/** the data a peer sent for a piece does not match its hash, the peer alone is to blame */
+@SuppressWarnings("serial")
+@StandardException
+public class PieceHashException extends RuntimeException {}
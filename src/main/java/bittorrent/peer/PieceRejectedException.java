@@ -0,0 +1,8 @@
+package bittorrent.peer;
+
+import lombok.experimental.StandardException;
+
+/** the peer keeps rejecting requests for a piece while unchoking us, it will not serve it */
+@SuppressWarnings("serial")
+@StandardException
+public class PieceRejectedException extends RuntimeException {}
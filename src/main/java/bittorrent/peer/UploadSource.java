@@ -0,0 +1,12 @@
+package bittorrent.peer;
+
+import java.io.IOException;
+
+/** where the blocks requested by peers are read from */
+@FunctionalInterface
+public interface UploadSource {
+
+	/** @return the block, or {@code null} if the piece is not available */
+	byte[] read(int pieceIndex, int begin, int length) throws IOException;
+
+}
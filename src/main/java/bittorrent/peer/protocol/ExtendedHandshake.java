@@ -0,0 +1,25 @@
+package bittorrent.peer.protocol;
+
+import java.util.Map;
+
+/** optional fields are {@code -1} or {@code null} when not sent by the peer */
+public record ExtendedHandshake(
+	Map<String, Integer> extensionIds,
+	int requestQueueSize,
+	long metadataSize,
+	String version,
+	int port
+) {
+
+	/** @return the id that the peer wants to receive this extension with, or {@code -1} if it does not support it */
+	public int extensionId(String name) {
+		final var id = extensionIds.get(name);
+
+		if (id == null || id == 0) {
+			return -1;
+		}
+
+		return id;
+	}
+
+}
@@ -56,6 +56,72 @@ public sealed interface Message {
 		short port
 	) implements Message {}
 
+	public record SuggestPiece(
+		int pieceIndex
+	) implements Message {}
+
+	public record HaveAll() implements Message {}
+
+	public record HaveNone() implements Message {}
+
+	public record RejectRequest(
+		int index,
+		int begin,
+		int length
+	) implements Message {}
+
+	public record AllowedFast(
+		int pieceIndex
+	) implements Message {}
+
+	/** ask for hashes of a layer of the Merkle tree of a file (BEP 52), with the uncles needed to prove them */
+	public record HashRequest(
+		byte[] piecesRoot,
+		int baseLayer,
+		int index,
+		int length,
+		int proofLayers
+	) implements Message {
+
+		@Override
+		public final String toString() {
+			return "HashRequest[baseLayer=%d, index=%d, length=%d, proofLayers=%d]".formatted(baseLayer, index, length, proofLayers);
+		}
+
+	}
+
+	/** @param hashes the requested hashes followed by the proof, concatenated */
+	public record Hashes(
+		byte[] piecesRoot,
+		int baseLayer,
+		int index,
+		int length,
+		int proofLayers,
+		byte[] hashes
+	) implements Message {
+
+		@Override
+		public final String toString() {
+			return "Hashes[baseLayer=%d, index=%d, length=%d, proofLayers=%d, hashes.length=%d]".formatted(baseLayer, index, length, proofLayers, hashes.length);
+		}
+
+	}
+
+	public record HashReject(
+		byte[] piecesRoot,
+		int baseLayer,
+		int index,
+		int length,
+		int proofLayers
+	) implements Message {
+
+		@Override
+		public final String toString() {
+			return "HashReject[baseLayer=%d, index=%d, length=%d, proofLayers=%d]".formatted(baseLayer, index, length, proofLayers);
+		}
+
+	}
+
 	public record Extension(
 		byte id,
 		Object content
@@ -1,15 +1,7 @@
 package bittorrent.peer.protocol;
 
-import java.util.Map;
-
-import bittorrent.torrent.TorrentInfo;
-
 public sealed interface MetadataMessage {
 
-	public record Handshake(
-		Map<String, Integer> extensionIds
-	) implements MetadataMessage {}
-
 	public record Request(
 		int piece
 	) implements MetadataMessage {}
@@ -17,9 +9,18 @@ public sealed interface MetadataMessage {
 	public record Data(
 		int piece,
 		long totalSize,
-		TorrentInfo torrentInfo
-	) implements MetadataMessage {}
+		byte[] data
+	) implements MetadataMessage {
 
-	public record Reject() implements MetadataMessage {}
+		@Override
+		public final String toString() {
+			return "Data[piece=%d, totalSize=%d, data.length=%d]".formatted(piece, totalSize, data.length);
+		}
+
+	}
+
+	public record Reject(
+		int piece
+	) implements MetadataMessage {}
 
-}
\ No newline at end of file
+}
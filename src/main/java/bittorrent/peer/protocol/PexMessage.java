@@ -0,0 +1,9 @@
+package bittorrent.peer.protocol;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+public record PexMessage(
+	List<InetSocketAddress> added,
+	List<InetSocketAddress> dropped
+) {}
@@ -13,12 +13,12 @@ public record MessageDescriptor<T extends Message>(
 	Deserializer<T> deserializer
 ) {
 
-	public int serialize(T message, DataOutputStream output, MessageSerialContext context) throws IOException {
-		return serializer.serialize(message, output, context);
+	public int serialize(T message, DataOutputStream output) throws IOException {
+		return serializer.serialize(message, output);
 	}
 
-	public T deserialize(int payloadLength, DataInputStream input, MessageSerialContext context) throws IOException {
-		return deserializer.deserialize(payloadLength, input, context);
+	public T deserialize(int payloadLength, DataInputStream input) throws IOException {
+		return deserializer.deserialize(payloadLength, input);
 	}
 
 	@Override
@@ -29,14 +29,14 @@ public record MessageDescriptor<T extends Message>(
 	@FunctionalInterface
 	public interface Serializer<T extends Message> {
 
-		int serialize(T message, DataOutputStream output, MessageSerialContext context) throws IOException;
+		int serialize(T message, DataOutputStream output) throws IOException;
 
 	}
 
 	@FunctionalInterface
 	public interface Deserializer<T extends Message> {
 
-		T deserialize(int payloadLength, DataInputStream input, MessageSerialContext context) throws IOException;
+		T deserialize(int payloadLength, DataInputStream input) throws IOException;
 
 	}
 
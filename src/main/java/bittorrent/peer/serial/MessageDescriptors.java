@@ -4,11 +4,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Supplier;
 
-import bittorrent.bencode.BencodeDeserializer;
-import bittorrent.bencode.BencodeSerializer;
 import bittorrent.peer.protocol.Message;
-import bittorrent.peer.protocol.MetadataMessage;
-import bittorrent.peer.serial.extension.MetadataMessageSerial;
+import bittorrent.peer.serial.extension.ExtensionDescriptor;
+import bittorrent.peer.serial.extension.ExtensionDescriptors;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
@@ -63,8 +61,8 @@ public class MessageDescriptors {
 		return register(new MessageDescriptor<>(
 			clazz,
 			typeId,
-			(message, output, context) -> length,
-			(payloadLength, input, context) -> instance
+			(message, output) -> length,
+			(payloadLength, input) -> instance
 		));
 	}
 
@@ -108,12 +106,12 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Have> HAVE = register(
 		Message.Have.class,
 		(byte) 4,
-		(message, output, context) -> {
+		(message, output) -> {
 			output.writeInt(message.pieceIndex());
 
 			return 1 + 4;
 		},
-		(payloadLength, input, context) -> new Message.Have(
+		(payloadLength, input) -> new Message.Have(
 			input.readInt()
 		)
 	);
@@ -121,14 +119,14 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Bitfield> BITFIELD = register(
 		Message.Bitfield.class,
 		(byte) 5,
-		(message, output, context) -> {
+		(message, output) -> {
 			final var values = message.values();
 
 			output.write(values);
 
 			return 1 + values.length;
 		},
-		(payloadLength, input, context) -> new Message.Bitfield(
+		(payloadLength, input) -> new Message.Bitfield(
 			input.readNBytes(payloadLength)
 		)
 	);
@@ -136,14 +134,14 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Request> REQUEST = register(
 		Message.Request.class,
 		(byte) 6,
-		(message, output, context) -> {
+		(message, output) -> {
 			output.writeInt(message.index());
 			output.writeInt(message.begin());
 			output.writeInt(message.length());
 
 			return 1 + 4 + 4 + 4;
 		},
-		(payloadLength, input, context) -> new Message.Request(
+		(payloadLength, input) -> new Message.Request(
 			input.readInt(),
 			input.readInt(),
 			input.readInt()
@@ -153,7 +151,7 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Piece> PIECE = register(
 		Message.Piece.class,
 		(byte) 7,
-		(message, output, context) -> {
+		(message, output) -> {
 			final var block = message.block();
 
 			output.writeInt(message.index());
@@ -162,7 +160,7 @@ public class MessageDescriptors {
 
 			return 1 + 4 + 4 + block.length;
 		},
-		(payloadLength, input, context) -> new Message.Piece(
+		(payloadLength, input) -> new Message.Piece(
 			input.readInt(),
 			input.readInt(),
 			input.readNBytes(payloadLength - 8)
@@ -172,14 +170,14 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Cancel> CANCEL = register(
 		Message.Cancel.class,
 		(byte) 8,
-		(message, output, context) -> {
+		(message, output) -> {
 			output.writeInt(message.index());
 			output.writeInt(message.begin());
 			output.writeInt(message.length());
 
 			return 1 + 4 + 4 + 4;
 		},
-		(payloadLength, input, context) -> new Message.Cancel(
+		(payloadLength, input) -> new Message.Cancel(
 			input.readInt(),
 			input.readInt(),
 			input.readInt()
@@ -189,50 +187,159 @@ public class MessageDescriptors {
 	public static final MessageDescriptor<Message.Port> PORT = register(
 		Message.Port.class,
 		(byte) 9,
-		(message, output, context) -> {
+		(message, output) -> {
 			output.writeShort(message.port());
 
 			return 1 + 2;
 		},
-		(payloadLength, input, context) -> new Message.Port(
+		(payloadLength, input) -> new Message.Port(
 			input.readShort()
 		)
 	);
 
+	public static final MessageDescriptor<Message.SuggestPiece> SUGGEST_PIECE = register(
+		Message.SuggestPiece.class,
+		(byte) 13,
+		(message, output) -> {
+			output.writeInt(message.pieceIndex());
+
+			return 1 + 4;
+		},
+		(payloadLength, input) -> new Message.SuggestPiece(
+			input.readInt()
+		)
+	);
+
+	public static final MessageDescriptor<Message.HaveAll> HAVE_ALL = register(
+		Message.HaveAll.class,
+		(byte) 14,
+		Message.HaveAll::new
+	);
+
+	public static final MessageDescriptor<Message.HaveNone> HAVE_NONE = register(
+		Message.HaveNone.class,
+		(byte) 15,
+		Message.HaveNone::new
+	);
+
+	public static final MessageDescriptor<Message.RejectRequest> REJECT_REQUEST = register(
+		Message.RejectRequest.class,
+		(byte) 16,
+		(message, output) -> {
+			output.writeInt(message.index());
+			output.writeInt(message.begin());
+			output.writeInt(message.length());
+
+			return 1 + 4 + 4 + 4;
+		},
+		(payloadLength, input) -> new Message.RejectRequest(
+			input.readInt(),
+			input.readInt(),
+			input.readInt()
+		)
+	);
+
+	public static final MessageDescriptor<Message.AllowedFast> ALLOWED_FAST = register(
+		Message.AllowedFast.class,
+		(byte) 17,
+		(message, output) -> {
+			output.writeInt(message.pieceIndex());
+
+			return 1 + 4;
+		},
+		(payloadLength, input) -> new Message.AllowedFast(
+			input.readInt()
+		)
+	);
+
+	public static final MessageDescriptor<Message.HashRequest> HASH_REQUEST = register(
+		Message.HashRequest.class,
+		(byte) 21,
+		(message, output) -> {
+			output.write(message.piecesRoot());
+			output.writeInt(message.baseLayer());
+			output.writeInt(message.index());
+			output.writeInt(message.length());
+			output.writeInt(message.proofLayers());
+
+			return 1 + 32 + 4 + 4 + 4 + 4;
+		},
+		(payloadLength, input) -> new Message.HashRequest(
+			input.readNBytes(32),
+			input.readInt(),
+			input.readInt(),
+			input.readInt(),
+			input.readInt()
+		)
+	);
+
+	public static final MessageDescriptor<Message.Hashes> HASHES = register(
+		Message.Hashes.class,
+		(byte) 22,
+		(message, output) -> {
+			final var hashes = message.hashes();
+
+			output.write(message.piecesRoot());
+			output.writeInt(message.baseLayer());
+			output.writeInt(message.index());
+			output.writeInt(message.length());
+			output.writeInt(message.proofLayers());
+			output.write(hashes);
+
+			return 1 + 32 + 4 + 4 + 4 + 4 + hashes.length;
+		},
+		(payloadLength, input) -> new Message.Hashes(
+			input.readNBytes(32),
+			input.readInt(),
+			input.readInt(),
+			input.readInt(),
+			input.readInt(),
+			input.readNBytes(payloadLength - 32 - 4 - 4 - 4 - 4)
+		)
+	);
+
+	public static final MessageDescriptor<Message.HashReject> HASH_REJECT = register(
+		Message.HashReject.class,
+		(byte) 23,
+		(message, output) -> {
+			output.write(message.piecesRoot());
+			output.writeInt(message.baseLayer());
+			output.writeInt(message.index());
+			output.writeInt(message.length());
+			output.writeInt(message.proofLayers());
+
+			return 1 + 32 + 4 + 4 + 4 + 4;
+		},
+		(payloadLength, input) -> new Message.HashReject(
+			input.readNBytes(32),
+			input.readInt(),
+			input.readInt(),
+			input.readInt(),
+			input.readInt()
+		)
+	);
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public static final MessageDescriptor<Message.Extension> EXTENSION = register(
 		Message.Extension.class,
 		(byte) 20,
-		(message, output, context) -> {
-			final byte[] serializedContent;
-
-			final var extensionType = context.extensionType();
-			if (MetadataMessage.class.equals(extensionType)) {
-				final var content = MetadataMessageSerial.serialize((MetadataMessage) message.content());
-				serializedContent = new BencodeSerializer().writeAsBytes(content);
-			} else {
-				throw new UnsupportedOperationException("unknown extension: %s".formatted(extensionType.getName()));
-			}
+		(message, output) -> {
+			final ExtensionDescriptor descriptor = ExtensionDescriptors.getByClass(message.content().getClass());
 
+			final var start = output.size();
 			output.writeByte(message.id());
-			output.write(serializedContent);
+			descriptor.serialize(message.content(), output);
 
-			return 1 + 1 + serializedContent.length;
+			return 1 + output.size() - start;
 		},
-		(payloadLength, input, context) -> {
+		(payloadLength, input) -> {
 			final var id = input.readByte();
-			final var raw = input.readNBytes(payloadLength - 1);
-			System.err.println(new String(raw));
-			final var parsed = new BencodeDeserializer(raw).parseMultiple();
-
-			final var extensionType = context.extensionType();
-			if (MetadataMessage.class.equals(extensionType)) {
-				return new Message.Extension(
-					id,
-					MetadataMessageSerial.deserialize(parsed)
-				);
-			} else {
-				throw new UnsupportedOperationException("unknown extension: %s".formatted(extensionType.getName()));
-			}
+			final var descriptor = ExtensionDescriptors.getByLocalId(id);
+
+			return new Message.Extension(
+				id,
+				descriptor.deserialize(payloadLength - 1, input)
+			);
 		}
 	);
 
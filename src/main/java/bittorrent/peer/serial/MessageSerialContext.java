@@ -1,5 +0,0 @@
-package bittorrent.peer.serial;
-
-public record MessageSerialContext(
-	Class<?> extensionType
-) {}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package bittorrent.peer.serial.extension;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import bittorrent.bencode.BencodeDeserializer;
+import bittorrent.bencode.BencodeSerializer;
+import bittorrent.peer.protocol.ExtendedHandshake;
+import lombok.experimental.UtilityClass;
+
+@UtilityClass
+public class ExtendedHandshakeSerial {
+
+	public static final byte ID = 0;
+
+	public static final String EXTENSION_IDS_KEY = "m";
+	public static final String REQUEST_QUEUE_SIZE_KEY = "reqq";
+	public static final String METADATA_SIZE_KEY = "metadata_size";
+	public static final String VERSION_KEY = "v";
+	public static final String PORT_KEY = "p";
+
+	public static void serialize(ExtendedHandshake handshake, DataOutputStream output) throws IOException {
+		final var content = new TreeMap<String, Object>();
+		content.put(EXTENSION_IDS_KEY, new TreeMap<>(handshake.extensionIds()));
+
+		if (handshake.requestQueueSize() != -1) {
+			content.put(REQUEST_QUEUE_SIZE_KEY, handshake.requestQueueSize());
+		}
+
+		if (handshake.metadataSize() != -1) {
+			content.put(METADATA_SIZE_KEY, handshake.metadataSize());
+		}
+
+		if (handshake.version() != null) {
+			content.put(VERSION_KEY, handshake.version());
+		}
+
+		if (handshake.port() != -1) {
+			content.put(PORT_KEY, handshake.port());
+		}
+
+		new BencodeSerializer().write(content, output);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ExtendedHandshake deserialize(int payloadLength, DataInputStream input) throws IOException {
+		final var content = (Map<String, Object>) new BencodeDeserializer(input.readNBytes(payloadLength)).parse();
+
+		final var extensionIds = ((Map<String, Long>) content.getOrDefault(EXTENSION_IDS_KEY, Map.of()))
+			.entrySet()
+			.stream()
+			.collect(Collectors.toMap(Map.Entry::getKey, (entry) -> entry.getValue().intValue()));
+
+		return new ExtendedHandshake(
+			extensionIds,
+			(int) (long) content.getOrDefault(REQUEST_QUEUE_SIZE_KEY, -1l),
+			(long) content.getOrDefault(METADATA_SIZE_KEY, -1l),
+			(String) content.get(VERSION_KEY),
+			(int) (long) content.getOrDefault(PORT_KEY, -1l)
+		);
+	}
+
+}
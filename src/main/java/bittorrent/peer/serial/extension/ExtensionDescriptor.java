@@ -0,0 +1,42 @@
+package bittorrent.peer.serial.extension;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public record ExtensionDescriptor<T>(
+	Class<T> clazz,
+	String name,
+	byte localId,
+	Serializer<T> serializer,
+	Deserializer<T> deserializer
+) {
+
+	public void serialize(T content, DataOutputStream output) throws IOException {
+		serializer.serialize(content, output);
+	}
+
+	public T deserialize(int payloadLength, DataInputStream input) throws IOException {
+		return deserializer.deserialize(payloadLength, input);
+	}
+
+	@Override
+	public final String toString() {
+		return "ExtensionDescriptor[%d, %s]".formatted(localId, name);
+	}
+
+	@FunctionalInterface
+	public interface Serializer<T> {
+
+		void serialize(T content, DataOutputStream output) throws IOException;
+
+	}
+
+	@FunctionalInterface
+	public interface Deserializer<T> {
+
+		T deserialize(int payloadLength, DataInputStream input) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,94 @@
+package bittorrent.peer.serial.extension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import bittorrent.peer.protocol.ExtendedHandshake;
+import bittorrent.peer.protocol.MetadataMessage;
+import bittorrent.peer.protocol.PexMessage;
+import lombok.experimental.UtilityClass;
+
+/** extensions are keyed by the id that we advertise in our handshake, which is the one peers use when sending to us */
+@UtilityClass
+public class ExtensionDescriptors {
+
+	private static final ExtensionDescriptor<?>[] LOCAL_ID_TO_DESCRIPTOR = new ExtensionDescriptor<?>[256];
+	private static final List<ExtensionDescriptor<?>> DESCRIPTORS = new ArrayList<>();
+
+	@SuppressWarnings("unchecked")
+	public static <T> ExtensionDescriptor<T> getByClass(Class<T> clazz) {
+		for (final var descriptor : DESCRIPTORS) {
+			if (descriptor.clazz().isAssignableFrom(clazz)) {
+				return (ExtensionDescriptor<T>) descriptor;
+			}
+		}
+
+		throw new IllegalArgumentException("unknown or unregistered extension class: %s".formatted(clazz));
+	}
+
+	public static ExtensionDescriptor<?> getByLocalId(byte localId) {
+		final var descriptor = LOCAL_ID_TO_DESCRIPTOR[Byte.toUnsignedInt(localId)];
+
+		if (descriptor == null) {
+			throw new IllegalArgumentException("unknown or unregistered extension id: %s".formatted(localId));
+		}
+
+		return descriptor;
+	}
+
+	/** @return the {@code m} dictionary of our handshake */
+	public static Map<String, Integer> localIds() {
+		final var ids = new TreeMap<String, Integer>();
+
+		for (final var descriptor : DESCRIPTORS) {
+			if (descriptor.localId() != ExtendedHandshakeSerial.ID) {
+				ids.put(descriptor.name(), Byte.toUnsignedInt(descriptor.localId()));
+			}
+		}
+
+		return Collections.unmodifiableMap(ids);
+	}
+
+	private static <T> ExtensionDescriptor<T> register(
+		Class<T> clazz,
+		String name,
+		byte localId,
+		ExtensionDescriptor.Serializer<T> serializer,
+		ExtensionDescriptor.Deserializer<T> deserializer
+	) {
+		final var descriptor = new ExtensionDescriptor<>(clazz, name, localId, serializer, deserializer);
+
+		LOCAL_ID_TO_DESCRIPTOR[Byte.toUnsignedInt(localId)] = descriptor;
+		DESCRIPTORS.add(descriptor);
+
+		return descriptor;
+	}
+
+	public static final ExtensionDescriptor<ExtendedHandshake> HANDSHAKE = register(
+		ExtendedHandshake.class,
+		null,
+		ExtendedHandshakeSerial.ID,
+		ExtendedHandshakeSerial::serialize,
+		ExtendedHandshakeSerial::deserialize
+	);
+
+	public static final ExtensionDescriptor<MetadataMessage> METADATA = register(
+		MetadataMessage.class,
+		MetadataMessageSerial.NAME,
+		MetadataMessageSerial.LOCAL_ID,
+		MetadataMessageSerial::serialize,
+		MetadataMessageSerial::deserialize
+	);
+
+	public static final ExtensionDescriptor<PexMessage> PEX = register(
+		PexMessage.class,
+		PexMessageSerial.NAME,
+		PexMessageSerial.LOCAL_ID,
+		PexMessageSerial::serialize,
+		PexMessageSerial::deserialize
+	);
+
+}
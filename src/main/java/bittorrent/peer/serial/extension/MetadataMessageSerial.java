@@ -1,62 +1,82 @@
 package bittorrent.peer.serial.extension;
 
-import java.util.List;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 
+import bittorrent.bencode.BencodeDeserializer;
+import bittorrent.bencode.BencodeSerializer;
 import bittorrent.peer.protocol.MetadataMessage;
-import bittorrent.torrent.TorrentInfo;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
 public class MetadataMessageSerial {
 
-	public static final String EXTENSION_IDS_KEY = "m";
+	public static final String NAME = "ut_metadata";
+
+	/** id advertised in our handshake, the one that peers use when sending to us */
+	public static final byte LOCAL_ID = 42;
+
 	public static final String PIECE_KEY = "piece";
 	public static final String TOTAL_SIZE = "total_size";
 	public static final String MESSAGE_TYPE_KEY = "msg_type";
 
-	public Map<String, ?> serialize(MetadataMessage message) {
-		return switch (message) {
-			case MetadataMessage.Handshake handshake -> Map.of(
-				EXTENSION_IDS_KEY, handshake.extensionIds()
-			);
+	public static final int REQUEST_TYPE = 0;
+	public static final int DATA_TYPE = 1;
+	public static final int REJECT_TYPE = 2;
 
-			case MetadataMessage.Request request -> Map.of(
-				MESSAGE_TYPE_KEY, 0,
-				PIECE_KEY, request.piece()
-			);
+	public static void serialize(MetadataMessage message, DataOutputStream output) throws IOException {
+		final var content = new TreeMap<String, Object>();
 
-			default -> throw new UnsupportedOperationException();
-		};
+		switch (message) {
+			case MetadataMessage.Request request -> {
+				content.put(MESSAGE_TYPE_KEY, REQUEST_TYPE);
+				content.put(PIECE_KEY, request.piece());
+			}
+
+			case MetadataMessage.Data data -> {
+				content.put(MESSAGE_TYPE_KEY, DATA_TYPE);
+				content.put(PIECE_KEY, data.piece());
+				content.put(TOTAL_SIZE, data.totalSize());
+			}
+
+			case MetadataMessage.Reject reject -> {
+				content.put(MESSAGE_TYPE_KEY, REJECT_TYPE);
+				content.put(PIECE_KEY, reject.piece());
+			}
+		}
+
+		new BencodeSerializer().write(content, output);
+
+		if (message instanceof MetadataMessage.Data data) {
+			output.write(data.data());
+		}
 	}
 
 	@SuppressWarnings("unchecked")
-	public MetadataMessage deserialize(List<Object> objects) {
-		final var content = (Map<String, Object>) objects.getFirst();
+	public static MetadataMessage deserialize(int payloadLength, DataInputStream input) throws IOException {
+		/* the data message has the raw piece right after the dictionary */
+		final var payloadInputStream = new ByteArrayInputStream(input.readNBytes(payloadLength));
+		final var content = (Map<String, Object>) new BencodeDeserializer(payloadInputStream).parse();
 
 		final var type = (Long) content.get(MESSAGE_TYPE_KEY);
-
-		if (type == null) {
-			return new MetadataMessage.Handshake(
-				((Map<String, Long>) content.get(EXTENSION_IDS_KEY)).entrySet()
-					.stream()
-					.collect(Collectors.toMap(Map.Entry::getKey, (entry) -> entry.getValue().intValue()))
-			);
-		}
+		final var piece = ((Long) content.get(PIECE_KEY)).intValue();
 
 		return switch (type.intValue()) {
-			case 0 -> throw new UnsupportedOperationException();
+			case REQUEST_TYPE -> new MetadataMessage.Request(piece);
 
-			case 1 -> new MetadataMessage.Data(
-				((Long) content.get(PIECE_KEY)).intValue(),
+			case DATA_TYPE -> new MetadataMessage.Data(
+				piece,
 				((Long) content.get(TOTAL_SIZE)).longValue(),
-				TorrentInfo.of((Map<String, Object>) objects.get(1))
+				payloadInputStream.readAllBytes()
 			);
 
-			case 2 -> throw new UnsupportedOperationException();
+			case REJECT_TYPE -> new MetadataMessage.Reject(piece);
 			default -> throw new UnsupportedOperationException("unknown type: %s".formatted(type));
 		};
 	}
 
-}
\ No newline at end of file
+}
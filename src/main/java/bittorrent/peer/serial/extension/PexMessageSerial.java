@@ -0,0 +1,83 @@
+package bittorrent.peer.serial.extension;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import bittorrent.bencode.BencodeDeserializer;
+import bittorrent.bencode.BencodeSerializer;
+import bittorrent.peer.protocol.PexMessage;
+import bittorrent.util.NetworkUtils;
+import lombok.experimental.UtilityClass;
+
+@UtilityClass
+public class PexMessageSerial {
+
+	public static final String NAME = "ut_pex";
+
+	/** id advertised in our handshake, the one that peers use when sending to us */
+	public static final byte LOCAL_ID = 43;
+
+	public static final String ADDED_KEY = "added";
+	public static final String ADDED_FLAGS_KEY = "added.f";
+	public static final String ADDED6_KEY = "added6";
+	public static final String ADDED6_FLAGS_KEY = "added6.f";
+	public static final String DROPPED_KEY = "dropped";
+	public static final String DROPPED6_KEY = "dropped6";
+
+	public static void serialize(PexMessage message, DataOutputStream output) throws IOException {
+		final var added = partition(message.added());
+		final var dropped = partition(message.dropped());
+
+		final var content = new TreeMap<String, Object>();
+		content.put(ADDED_KEY, NetworkUtils.toCompactString(added.v4()));
+		content.put(ADDED_FLAGS_KEY, "\0".repeat(added.v4().size()));
+		content.put(ADDED6_KEY, NetworkUtils.toCompactString(added.v6()));
+		content.put(ADDED6_FLAGS_KEY, "\0".repeat(added.v6().size()));
+		content.put(DROPPED_KEY, NetworkUtils.toCompactString(dropped.v4()));
+		content.put(DROPPED6_KEY, NetworkUtils.toCompactString(dropped.v6()));
+
+		new BencodeSerializer().write(content, output);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static PexMessage deserialize(int payloadLength, DataInputStream input) throws IOException {
+		final var content = (Map<String, Object>) new BencodeDeserializer(input.readNBytes(payloadLength)).parse();
+
+		final var added = new ArrayList<InetSocketAddress>();
+		added.addAll(NetworkUtils.parseV4SocketAddresses((String) content.get(ADDED_KEY)));
+		added.addAll(NetworkUtils.parseV6SocketAddresses((String) content.get(ADDED6_KEY)));
+
+		final var dropped = new ArrayList<InetSocketAddress>();
+		dropped.addAll(NetworkUtils.parseV4SocketAddresses((String) content.get(DROPPED_KEY)));
+		dropped.addAll(NetworkUtils.parseV6SocketAddresses((String) content.get(DROPPED6_KEY)));
+
+		return new PexMessage(added, dropped);
+	}
+
+	private static Families partition(List<InetSocketAddress> addresses) {
+		final var families = new Families(new ArrayList<>(), new ArrayList<>());
+
+		for (final var address : addresses) {
+			if (address.getAddress() instanceof Inet4Address) {
+				families.v4().add(address);
+			} else {
+				families.v6().add(address);
+			}
+		}
+
+		return families;
+	}
+
+	private record Families(
+		List<InetSocketAddress> v4,
+		List<InetSocketAddress> v6
+	) {}
+
+}
@@ -0,0 +1,369 @@
+package bittorrent.piece;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+import bittorrent.torrent.TorrentInfo;
+
+/**
+ * State of every block of a torrent, updated with compare and set so that peers never wait on each other.
+ * Each block is one long: the state on the 2 upper bits, then the owner on 22 bits, then the request time on 40 bits.
+ * Big torrents are kept off heap.
+ */
+public class BlockTable {
+
+	public static final int BLOCK_SIZE = 16 * 1024;
+
+	/** above this amount of blocks (8 MiB of state), the table is allocated off heap */
+	public static final int OFF_HEAP_THRESHOLD = 1 << 20;
+
+	/** the most blocks a single direct buffer can hold, about 4 TiB of torrent */
+	public static final int MAXIMUM_BLOCK_COUNT = (Integer.MAX_VALUE - Long.BYTES) / Long.BYTES;
+
+	public static final int FREE = 0;
+	public static final int REQUESTED = 1;
+	public static final int RECEIVED = 2;
+	public static final int VERIFIED = 3;
+
+	public static final int MAXIMUM_OWNER = (1 << 22) - 1;
+
+	private static final int STATE_SHIFT = 62;
+	private static final int OWNER_SHIFT = 40;
+	private static final long TIME_MASK = (1l << OWNER_SHIFT) - 1;
+
+	private static final VarHandle HEAP = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle OFF_HEAP = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final long length;
+	private final int pieceLength;
+	private final int pieceCount;
+	private final int blocksPerPiece;
+	private final int blockCount;
+	private final long createdAt = System.nanoTime();
+
+	private final long[] heap;
+	private final ByteBuffer offHeap;
+
+	/** blocks of each piece that were not received yet */
+	private final AtomicIntegerArray remaining;
+
+	public BlockTable(TorrentInfo torrentInfo) {
+		this(torrentInfo.length(), torrentInfo.pieceLength());
+	}
+
+	public BlockTable(long length, int pieceLength) {
+		this.length = length;
+		this.pieceLength = pieceLength;
+		this.pieceCount = (int) ((length + pieceLength - 1) / pieceLength);
+		this.blocksPerPiece = (pieceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+		final var totalBlockCount = pieceCount == 0 ? 0 : (long) (pieceCount - 1) * blocksPerPiece + blockCount(pieceCount - 1);
+		if (totalBlockCount > MAXIMUM_BLOCK_COUNT) {
+			throw new IllegalArgumentException("too many blocks for a table: %d > %d".formatted(totalBlockCount, MAXIMUM_BLOCK_COUNT));
+		}
+
+		this.blockCount = (int) totalBlockCount;
+
+		if (blockCount > OFF_HEAP_THRESHOLD) {
+			this.heap = null;
+			this.offHeap = ByteBuffer.allocateDirect((blockCount + 1) * Long.BYTES).alignedSlice(Long.BYTES);
+		} else {
+			this.heap = new long[blockCount];
+			this.offHeap = null;
+		}
+
+		this.remaining = new AtomicIntegerArray(pieceCount);
+		for (var pieceIndex = 0; pieceIndex < pieceCount; ++pieceIndex) {
+			remaining.set(pieceIndex, blockCount(pieceIndex));
+		}
+	}
+
+	public int pieceCount() {
+		return pieceCount;
+	}
+
+	public int blockCount(int pieceIndex) {
+		final var pieceSize = (int) Math.min(pieceLength, length - (long) pieceIndex * pieceLength);
+
+		return (pieceSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	public int blockLength(int pieceIndex, int blockIndex) {
+		final var pieceSize = (int) Math.min(pieceLength, length - (long) pieceIndex * pieceLength);
+
+		return Math.min(BLOCK_SIZE, pieceSize - blockIndex * BLOCK_SIZE);
+	}
+
+	public int state(int pieceIndex, int blockIndex) {
+		return state(get(index(pieceIndex, blockIndex)));
+	}
+
+	public int owner(int pieceIndex, int blockIndex) {
+		return owner(get(index(pieceIndex, blockIndex)));
+	}
+
+	/** @return milliseconds since the block was requested, received or reset */
+	public long age(int pieceIndex, int blockIndex) {
+		return now() - (get(index(pieceIndex, blockIndex)) & TIME_MASK);
+	}
+
+	/** @return the index in the piece of the claimed block, or {@code -1} if none is free */
+	public int claim(int pieceIndex, int owner) {
+		return claim(pieceIndex, owner, null);
+	}
+
+	/**
+	 * @param excluded blocks that this owner should not get, like the ones it already sent for a piece that failed, or {@code null}
+	 * @return the index in the piece of the claimed block, or {@code -1} if none is free
+	 */
+	public int claim(int pieceIndex, int owner, IntPredicate excluded) {
+		final var first = index(pieceIndex, 0);
+		final var count = blockCount(pieceIndex);
+
+		for (var blockIndex = 0; blockIndex < count; ++blockIndex) {
+			final var index = first + blockIndex;
+			final var value = get(index);
+
+			if (state(value) == FREE && (excluded == null || !excluded.test(blockIndex)) && compareAndSet(index, value, pack(REQUESTED, owner))) {
+				return blockIndex;
+			}
+		}
+
+		return -1;
+	}
+
+	/** take over a block that another owner requested, like when it is late; the first to deliver wins */
+	public boolean steal(int pieceIndex, int blockIndex, int owner) {
+		final var index = index(pieceIndex, blockIndex);
+		final var value = get(index);
+
+		return state(value) == REQUESTED && compareAndSet(index, value, pack(REQUESTED, owner));
+	}
+
+	/** @return {@code true} if at least one block of the piece is not requested yet */
+	public boolean hasFree(int pieceIndex) {
+		final var first = index(pieceIndex, 0);
+		final var count = blockCount(pieceIndex);
+
+		for (var blockIndex = 0; blockIndex < count; ++blockIndex) {
+			if (state(get(first + blockIndex)) == FREE) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/** @return {@code true} if some blocks of the piece are claimed or received, but not all of them are verified */
+	public boolean isInProgress(int pieceIndex) {
+		final var first = index(pieceIndex, 0);
+		final var count = blockCount(pieceIndex);
+
+		var started = false;
+		for (var blockIndex = 0; blockIndex < count; ++blockIndex) {
+			final var state = state(get(first + blockIndex));
+
+			if (state == VERIFIED) {
+				return false;
+			}
+
+			started |= state != FREE;
+		}
+
+		return started;
+	}
+
+	/**
+	 * Win the right to store a block, a single one of the senders delivering the same block at once gets it.
+	 * The block might have been received from anyone, even if its request expired; it is still missing until {@link #markWritten(int)}.
+	 * @return {@code false} if the block was already received
+	 */
+	public boolean markReceived(int pieceIndex, int blockIndex, int owner) {
+		return markReceived(pieceIndex, blockIndex, owner, false);
+	}
+
+	/**
+	 * @param requested whether only the current owner of the request can deliver the block, like for a piece downloaded again after a hash failure
+	 * @return {@code false} if the block was already received, or is not requested by this owner when it must be
+	 */
+	public boolean markReceived(int pieceIndex, int blockIndex, int owner, boolean requested) {
+		final var index = index(pieceIndex, blockIndex);
+
+		while (true) {
+			final var value = get(index);
+			final var state = state(value);
+
+			if (state == RECEIVED || state == VERIFIED) {
+				return false;
+			}
+
+			if (requested && (state != REQUESTED || owner(value) != owner)) {
+				return false;
+			}
+
+			if (compareAndSet(index, value, pack(RECEIVED, owner))) {
+				return true;
+			}
+		}
+	}
+
+	/** @return the number of blocks of the piece still missing, once a received block is in the piece */
+	public int markWritten(int pieceIndex) {
+		return remaining.decrementAndGet(pieceIndex);
+	}
+
+	/** give back a received block that was refused before being written, like one not matching its hash */
+	public boolean abandon(int pieceIndex, int blockIndex) {
+		final var index = index(pieceIndex, blockIndex);
+		final var value = get(index);
+
+		return state(value) == RECEIVED && compareAndSet(index, value, 0);
+	}
+
+	/** forget a received block found corrupt before the rest of its piece arrived, so that it is requested again */
+	public boolean reject(int pieceIndex, int blockIndex) {
+		final var index = index(pieceIndex, blockIndex);
+		final var value = get(index);
+
+		if (state(value) == RECEIVED && compareAndSet(index, value, 0)) {
+			remaining.incrementAndGet(pieceIndex);
+			return true;
+		}
+
+		return false;
+	}
+
+	/** give back a single requested block, like after a reject */
+	public boolean release(int pieceIndex, int blockIndex, int owner) {
+		final var index = index(pieceIndex, blockIndex);
+		final var value = get(index);
+
+		return state(value) == REQUESTED && owner(value) == owner && compareAndSet(index, value, 0);
+	}
+
+	public void markVerified(int pieceIndex) {
+		setPiece(pieceIndex, pack(VERIFIED, 0));
+		remaining.set(pieceIndex, 0);
+	}
+
+	/** forget everything about the piece, like after a hash failure */
+	public void reset(int pieceIndex) {
+		setPiece(pieceIndex, 0);
+		remaining.set(pieceIndex, blockCount(pieceIndex));
+	}
+
+	private void setPiece(int pieceIndex, long value) {
+		final var first = index(pieceIndex, 0);
+		final var count = blockCount(pieceIndex);
+
+		for (var blockIndex = 0; blockIndex < count; ++blockIndex) {
+			set(first + blockIndex, value);
+		}
+	}
+
+	/** @return the owners of received blocks, the only ones still needed to find who sent a piece that is not verified yet */
+	public BitSet receivedOwners() {
+		final var owners = new BitSet();
+
+		for (var index = 0; index < blockCount; ++index) {
+			final var value = get(index);
+
+			if (state(value) == RECEIVED) {
+				owners.set(owner(value));
+			}
+		}
+
+		return owners;
+	}
+
+	/** give back every block requested by an owner, like when its peer disconnects */
+	public int releaseAll(int owner) {
+		var released = 0;
+
+		for (var index = 0; index < blockCount; ++index) {
+			final var value = get(index);
+
+			if (state(value) == REQUESTED && owner(value) == owner && compareAndSet(index, value, 0)) {
+				++released;
+			}
+		}
+
+		return released;
+	}
+
+	/** give back every block requested for longer than the timeout */
+	public int reclaimExpired(Duration timeout) {
+		final var deadline = now() - timeout.toMillis();
+		var reclaimed = 0;
+
+		for (var index = 0; index < blockCount; ++index) {
+			final var value = get(index);
+
+			if (state(value) == REQUESTED && (value & TIME_MASK) < deadline && compareAndSet(index, value, 0)) {
+				++reclaimed;
+			}
+		}
+
+		return reclaimed;
+	}
+
+	private int index(int pieceIndex, int blockIndex) {
+		return pieceIndex * blocksPerPiece + blockIndex;
+	}
+
+	/** cannot overflow, the table is never bigger than {@link #MAXIMUM_BLOCK_COUNT} */
+	private static int offset(int index) {
+		return index * Long.BYTES;
+	}
+
+	private long pack(int state, int owner) {
+		if (owner < 0 || owner > MAXIMUM_OWNER) {
+			throw new IllegalArgumentException("owner out of range: %d".formatted(owner));
+		}
+
+		return ((long) state << STATE_SHIFT) | ((long) owner << OWNER_SHIFT) | (now() & TIME_MASK);
+	}
+
+	private long now() {
+		return (System.nanoTime() - createdAt) / 1_000_000;
+	}
+
+	private long get(int index) {
+		if (heap != null) {
+			return (long) HEAP.getVolatile(heap, index);
+		}
+
+		return (long) OFF_HEAP.getVolatile(offHeap, offset(index));
+	}
+
+	private void set(int index, long value) {
+		if (heap != null) {
+			HEAP.setVolatile(heap, index, value);
+		} else {
+			OFF_HEAP.setVolatile(offHeap, offset(index), value);
+		}
+	}
+
+	private boolean compareAndSet(int index, long expected, long value) {
+		if (heap != null) {
+			return HEAP.compareAndSet(heap, index, expected, value);
+		}
+
+		return OFF_HEAP.compareAndSet(offHeap, offset(index), expected, value);
+	}
+
+	private static int state(long value) {
+		return (int) (value >>> STATE_SHIFT);
+	}
+
+	private static int owner(long value) {
+		return (int) ((value >>> OWNER_SHIFT) & MAXIMUM_OWNER);
+	}
+
+}
@@ -0,0 +1,116 @@
+package bittorrent.piece;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import bittorrent.torrent.MerkleInfo;
+
+/**
+ * Check the blocks of a v2 piece against its subtree of the Merkle tree.
+ * Until the hashes of the blocks are received from a peer, the blocks are only checked together, once the piece is complete.
+ * Once they are, and proved by the piece layer, each block is checked as soon as it arrives.
+ */
+public class MerklePieceValidator implements PieceValidator {
+
+	/** block hashes asked to a peer that did not answer are asked again after that long */
+	public static final Duration HASH_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+	private final byte[] expectedRoot;
+	private final int width;
+	private final byte[][] leaves;
+
+	/** proved by the piece layer, {@code null} until received */
+	private byte[][] expectedLeaves;
+
+	/** requests are split, answers are kept until every part arrived */
+	private final byte[][] receivedLeaves;
+	private long requestedAt;
+
+	public MerklePieceValidator(MerkleInfo merkle, int pieceIndex, int length) {
+		this.expectedRoot = merkle.pieceLayer().get(pieceIndex);
+		this.width = merkle.pieceWidth();
+		this.leaves = new byte[(length + MerkleTree.BLOCK_SIZE - 1) / MerkleTree.BLOCK_SIZE][];
+		this.receivedLeaves = new byte[width][];
+	}
+
+	@Override
+	public synchronized boolean offer(int begin, byte[] block) {
+		final var blockIndex = begin / MerkleTree.BLOCK_SIZE;
+		final var leaf = MerkleTree.hash(block);
+
+		if (expectedLeaves != null && !Arrays.equals(expectedLeaves[blockIndex], leaf)) {
+			return false;
+		}
+
+		leaves[blockIndex] = leaf;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isValid() {
+		final var complete = Arrays.stream(leaves).allMatch((leaf) -> leaf != null);
+		final var valid = complete && Arrays.equals(expectedRoot, MerkleTree.root(Arrays.asList(leaves), width, MerkleTree.ZERO));
+
+		Arrays.fill(leaves, null);
+		return valid;
+	}
+
+	/** @return {@code true} if the hashes of the blocks should be asked for now, a piece of a single block needs none */
+	public synchronized boolean tryRequestBlockHashes(long now) {
+		if (expectedLeaves != null || width == 1 || (requestedAt != 0 && now - requestedAt < HASH_REQUEST_TIMEOUT.toNanos())) {
+			return false;
+		}
+
+		requestedAt = now;
+		return true;
+	}
+
+	/** the next worker may ask another peer */
+	public synchronized void onBlockHashesRejected() {
+		requestedAt = 0;
+	}
+
+	/**
+	 * @param first index of the first hash under the piece
+	 * @return the blocks already received that turned out corrupt, empty if parts of the hashes are still missing, or {@code null} if the hashes are not the ones of the piece
+	 */
+	public synchronized List<Integer> offerBlockHashes(int first, List<byte[]> hashes) {
+		if (expectedLeaves != null) {
+			return List.of();
+		}
+
+		if (first < 0 || first + hashes.size() > width) {
+			return null;
+		}
+
+		for (var index = 0; index < hashes.size(); ++index) {
+			receivedLeaves[first + index] = hashes.get(index);
+		}
+
+		if (Arrays.stream(receivedLeaves).anyMatch((leaf) -> leaf == null)) {
+			return List.of();
+		}
+
+		if (!Arrays.equals(expectedRoot, MerkleTree.root(Arrays.asList(receivedLeaves), width, MerkleTree.ZERO))) {
+			Arrays.fill(receivedLeaves, null);
+			requestedAt = 0;
+
+			return null;
+		}
+
+		expectedLeaves = receivedLeaves.clone();
+
+		final var corrupt = new ArrayList<Integer>();
+		for (var blockIndex = 0; blockIndex < leaves.length; ++blockIndex) {
+			if (leaves[blockIndex] != null && !Arrays.equals(expectedLeaves[blockIndex], leaves[blockIndex])) {
+				leaves[blockIndex] = null;
+				corrupt.add(blockIndex);
+			}
+		}
+
+		return corrupt;
+	}
+
+}
@@ -0,0 +1,121 @@
+package bittorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+
+/**
+ * SHA-256 Merkle trees of BitTorrent v2 (BEP 52), where the leaves are the hashes of the 16 KiB blocks of a file.
+ * Trees are padded to a power of two, with zero leaves past the end of the file.
+ */
+@UtilityClass
+public class MerkleTree {
+
+	public static final int BLOCK_SIZE = 16 * 1024;
+	public static final int HASH_LENGTH = 32;
+
+	/** most hashes a peer is asked for in a single request */
+	public static final int MAXIMUM_HASH_REQUEST = 512;
+
+	public static final byte[] ZERO = new byte[HASH_LENGTH];
+
+	/** hash the remaining bytes, without moving the position of the buffer */
+	@SneakyThrows
+	public static byte[] hash(ByteBuffer block) {
+		final var digest = MessageDigest.getInstance("SHA-256");
+		digest.update(block.duplicate());
+
+		return digest.digest();
+	}
+
+	@SneakyThrows
+	public static byte[] hash(byte[] block) {
+		return MessageDigest.getInstance("SHA-256").digest(block);
+	}
+
+	@SneakyThrows
+	public static byte[] parent(byte[] left, byte[] right) {
+		final var digest = MessageDigest.getInstance("SHA-256");
+		digest.update(left);
+		digest.update(right);
+
+		return digest.digest();
+	}
+
+	/** @return the smallest power of two that is at least the count */
+	public static int width(int count) {
+		return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+	}
+
+	/** @return the root of a subtree made only of zero leaves, like the ones padding the piece layer */
+	public static byte[] padding(int leafCount) {
+		var hash = ZERO;
+
+		for (var count = 1; count < leafCount; count *= 2) {
+			hash = parent(hash, hash);
+		}
+
+		return hash;
+	}
+
+	/**
+	 * @param width a power of two, the layer is completed with the padding up to it
+	 * @param padding the value of a missing node of the layer
+	 */
+	public static byte[] root(List<byte[]> layer, int width, byte[] padding) {
+		if (layer.size() > width) {
+			throw new IllegalArgumentException("layer is wider than the tree: %d > %d".formatted(layer.size(), width));
+		}
+
+		var current = new ArrayList<byte[]>(width);
+		for (var index = 0; index < width; ++index) {
+			final var node = index < layer.size() ? layer.get(index) : null;
+			current.add(node != null ? node : padding);
+		}
+
+		while (current.size() > 1) {
+			final var next = new ArrayList<byte[]>(current.size() / 2);
+
+			for (var index = 0; index < current.size(); index += 2) {
+				next.add(parent(current.get(index), current.get(index + 1)));
+			}
+
+			current = next;
+		}
+
+		return current.getFirst();
+	}
+
+	/** @return the root of the blocks of a piece, read from the remaining bytes of the buffer */
+	public static byte[] pieceRoot(ByteBuffer piece, int width) {
+		final var leaves = new ArrayList<byte[]>();
+
+		for (var begin = piece.position(); begin < piece.limit(); begin += BLOCK_SIZE) {
+			leaves.add(hash(piece.slice(begin, Math.min(BLOCK_SIZE, piece.limit() - begin))));
+		}
+
+		return root(leaves, width, ZERO);
+	}
+
+	/** @return the hashes of a layer, cut from their concatenation */
+	public static List<byte[]> split(byte[] hashes) {
+		if (hashes.length % HASH_LENGTH != 0) {
+			throw new IllegalArgumentException("hashes are not a multiple of %d bytes: %d".formatted(HASH_LENGTH, hashes.length));
+		}
+
+		final var layer = new ArrayList<byte[]>(hashes.length / HASH_LENGTH);
+		for (var start = 0; start < hashes.length; start += HASH_LENGTH) {
+			final var hash = new byte[HASH_LENGTH];
+			System.arraycopy(hashes, start, hash, 0, HASH_LENGTH);
+
+			layer.add(hash);
+		}
+
+		return layer;
+	}
+
+}
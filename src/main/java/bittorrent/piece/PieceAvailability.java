@@ -0,0 +1,38 @@
+package bittorrent.piece;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** how many connected peers have each piece */
+public class PieceAvailability {
+
+	private final AtomicIntegerArray counts;
+
+	public PieceAvailability(int pieceCount) {
+		this.counts = new AtomicIntegerArray(pieceCount);
+	}
+
+	public int get(int pieceIndex) {
+		return counts.get(pieceIndex);
+	}
+
+	public void increment(int pieceIndex) {
+		counts.incrementAndGet(pieceIndex);
+	}
+
+	public void add(PieceBitset pieces) {
+		for (var index = pieces.nextSetBit(0); index != -1; index = pieces.nextSetBit(index + 1)) {
+			counts.incrementAndGet(index);
+		}
+	}
+
+	public void remove(PieceBitset pieces) {
+		for (var index = pieces.nextSetBit(0); index != -1; index = pieces.nextSetBit(index + 1)) {
+			counts.decrementAndGet(index);
+		}
+	}
+
+	public int size() {
+		return counts.length();
+	}
+
+}
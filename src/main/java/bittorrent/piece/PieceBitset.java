@@ -0,0 +1,286 @@
+package bittorrent.piece;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import bittorrent.peer.protocol.Message;
+
+/**
+ * Fixed size set of piece indexes, safe to share between threads without locking.
+ * Bits are stored most significant first, exactly like the wire bitfield, so that converting is a plain big endian copy.
+ */
+public class PieceBitset {
+
+	private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle BYTES_AS_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final int WORD_SHIFT = 6;
+	private static final int WORD_SIZE = 1 << WORD_SHIFT;
+
+	private final int size;
+	private final long[] words;
+
+	public PieceBitset(int size) {
+		this.size = size;
+		this.words = new long[wordCount(size)];
+	}
+
+	private PieceBitset(int size, long[] words) {
+		this.size = size;
+		this.words = words;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean get(int index) {
+		checkIndex(index);
+
+		return ((long) WORDS.getVolatile(words, index >>> WORD_SHIFT) & mask(index)) != 0;
+	}
+
+	/** @return {@code true} if the bit was not already set */
+	public boolean set(int index) {
+		checkIndex(index);
+
+		final var wordIndex = index >>> WORD_SHIFT;
+		final var mask = mask(index);
+
+		while (true) {
+			final var word = (long) WORDS.getVolatile(words, wordIndex);
+			if ((word & mask) != 0) {
+				return false;
+			}
+
+			if (WORDS.compareAndSet(words, wordIndex, word, word | mask)) {
+				return true;
+			}
+		}
+	}
+
+	/** @return {@code true} if the bit was set */
+	public boolean clear(int index) {
+		checkIndex(index);
+
+		final var wordIndex = index >>> WORD_SHIFT;
+		final var mask = mask(index);
+
+		while (true) {
+			final var word = (long) WORDS.getVolatile(words, wordIndex);
+			if ((word & mask) == 0) {
+				return false;
+			}
+
+			if (WORDS.compareAndSet(words, wordIndex, word, word & ~mask)) {
+				return true;
+			}
+		}
+	}
+
+	public void setAll() {
+		for (var wordIndex = 0; wordIndex < words.length; ++wordIndex) {
+			WORDS.setVolatile(words, wordIndex, validMask(wordIndex));
+		}
+	}
+
+	/** @return the first set index at or after {@code from}, or {@code -1} */
+	public int nextSetBit(int from) {
+		return next(from, null, false, false);
+	}
+
+	/** @return the first clear index at or after {@code from}, or {@code -1} */
+	public int nextClearBit(int from) {
+		return next(from, null, true, false);
+	}
+
+	/** @return the first index at or after {@code from} set in both, or {@code -1} */
+	public int nextSetBitAnd(PieceBitset other, int from) {
+		return next(from, other, false, false);
+	}
+
+	/** @return the first index at or after {@code from} set here but not in the other, like a piece a peer has that we need, or {@code -1} */
+	public int nextSetBitAndNot(PieceBitset other, int from) {
+		return next(from, other, false, true);
+	}
+
+	private int next(int from, PieceBitset other, boolean invert, boolean otherInverted) {
+		if (from < 0 || from >= size) {
+			return -1;
+		}
+
+		if (other != null && other.size != size) {
+			throw new IllegalArgumentException("size mismatch: %d != %d".formatted(size, other.size));
+		}
+
+		var wordIndex = from >>> WORD_SHIFT;
+		var word = read(wordIndex, other, invert, otherInverted) & (-1l >>> (from & (WORD_SIZE - 1)));
+
+		while (true) {
+			if (word != 0) {
+				final var index = (wordIndex << WORD_SHIFT) + Long.numberOfLeadingZeros(word);
+				return index < size ? index : -1;
+			}
+
+			if (++wordIndex == words.length) {
+				return -1;
+			}
+
+			word = read(wordIndex, other, invert, otherInverted);
+		}
+	}
+
+	private long read(int wordIndex, PieceBitset other, boolean invert, boolean otherInverted) {
+		var word = (long) WORDS.getVolatile(words, wordIndex);
+
+		if (invert) {
+			word = ~word & validMask(wordIndex);
+		}
+
+		if (other != null) {
+			final var otherWord = (long) WORDS.getVolatile(other.words, wordIndex);
+			word &= otherInverted ? ~otherWord : otherWord;
+		}
+
+		return word;
+	}
+
+	public int cardinality() {
+		var count = 0;
+
+		for (var wordIndex = 0; wordIndex < words.length; ++wordIndex) {
+			count += Long.bitCount((long) WORDS.getVolatile(words, wordIndex));
+		}
+
+		return count;
+	}
+
+	public boolean isComplete() {
+		return cardinality() == size;
+	}
+
+	public boolean isEmpty() {
+		return nextSetBit(0) == -1;
+	}
+
+	/** @return a new set with the indexes present in both */
+	public PieceBitset and(PieceBitset other) {
+		return combine(other, false);
+	}
+
+	/** @return a new set with the indexes present here but not in the other */
+	public PieceBitset andNot(PieceBitset other) {
+		return combine(other, true);
+	}
+
+	private PieceBitset combine(PieceBitset other, boolean otherInverted) {
+		if (other.size != size) {
+			throw new IllegalArgumentException("size mismatch: %d != %d".formatted(size, other.size));
+		}
+
+		final var result = new long[words.length];
+		for (var wordIndex = 0; wordIndex < words.length; ++wordIndex) {
+			result[wordIndex] = read(wordIndex, other, false, otherInverted);
+		}
+
+		return new PieceBitset(size, result);
+	}
+
+	public PieceBitset copy() {
+		final var result = new long[words.length];
+		for (var wordIndex = 0; wordIndex < words.length; ++wordIndex) {
+			result[wordIndex] = (long) WORDS.getVolatile(words, wordIndex);
+		}
+
+		return new PieceBitset(size, result);
+	}
+
+	/** @return the wire format, spare bits of the last byte are cleared */
+	public byte[] toBitfield() {
+		final var bytes = new byte[(size + 7) / 8];
+
+		final var fullWords = bytes.length / Long.BYTES;
+		for (var wordIndex = 0; wordIndex < fullWords; ++wordIndex) {
+			BYTES_AS_LONG.set(bytes, wordIndex * Long.BYTES, (long) WORDS.getVolatile(words, wordIndex));
+		}
+
+		if (fullWords < words.length) {
+			final var word = (long) WORDS.getVolatile(words, fullWords);
+
+			for (var byteIndex = fullWords * Long.BYTES; byteIndex < bytes.length; ++byteIndex) {
+				final var shift = (Long.BYTES - 1 - (byteIndex - fullWords * Long.BYTES)) * 8;
+				bytes[byteIndex] = (byte) (word >>> shift);
+			}
+		}
+
+		return bytes;
+	}
+
+	public Message.Bitfield toMessage() {
+		return new Message.Bitfield(toBitfield());
+	}
+
+	/** spare bits and missing bytes are ignored */
+	public static PieceBitset fromBitfield(byte[] bytes, int size) {
+		final var words = new long[wordCount(size)];
+		final var length = Math.min(bytes.length, (size + 7) / 8);
+
+		final var fullWords = length / Long.BYTES;
+		for (var wordIndex = 0; wordIndex < fullWords; ++wordIndex) {
+			words[wordIndex] = (long) BYTES_AS_LONG.get(bytes, wordIndex * Long.BYTES);
+		}
+
+		if (fullWords < words.length) {
+			var word = 0l;
+
+			for (var byteIndex = fullWords * Long.BYTES; byteIndex < length; ++byteIndex) {
+				final var shift = (Long.BYTES - 1 - (byteIndex - fullWords * Long.BYTES)) * 8;
+				word |= (bytes[byteIndex] & 0xffl) << shift;
+			}
+
+			words[fullWords] = word;
+		}
+
+		final var bitset = new PieceBitset(size, words);
+		if (words.length != 0) {
+			words[words.length - 1] &= bitset.validMask(words.length - 1);
+		}
+
+		return bitset;
+	}
+
+	public static PieceBitset fromMessage(Message.Bitfield bitfield, int size) {
+		return fromBitfield(bitfield.values(), size);
+	}
+
+	private long validMask(int wordIndex) {
+		final var remaining = size - (wordIndex << WORD_SHIFT);
+
+		if (remaining >= WORD_SIZE) {
+			return -1l;
+		}
+
+		return ~(-1l >>> remaining);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index %d out of bounds for size %d".formatted(index, size));
+		}
+	}
+
+	private static long mask(int index) {
+		return Long.MIN_VALUE >>> (index & (WORD_SIZE - 1));
+	}
+
+	private static int wordCount(int size) {
+		return (size + WORD_SIZE - 1) >>> WORD_SHIFT;
+	}
+
+	@Override
+	public String toString() {
+		return "PieceBitset[size=%d, cardinality=%d]".formatted(size, cardinality());
+	}
+
+}
@@ -0,0 +1,84 @@
+package bittorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable piece sized buffers, with a cap on the memory in flight.
+ * Large pieces are better kept off heap, where they do not end up as humongous objects.
+ */
+public class PieceBufferPool {
+
+	public static final long DEFAULT_MEMORY_CAP = 256 * 1024 * 1024;
+
+	private final int bufferSize;
+	private final long memoryCap;
+	private final boolean direct;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicLong inFlight = new AtomicLong();
+
+	public PieceBufferPool(int bufferSize) {
+		this(bufferSize, DEFAULT_MEMORY_CAP, true);
+	}
+
+	/** at least one buffer is always allowed, even if bigger than the cap */
+	public PieceBufferPool(int bufferSize, long memoryCap, boolean direct) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("buffer size must be positive: %d".formatted(bufferSize));
+		}
+
+		this.bufferSize = bufferSize;
+		this.memoryCap = Math.max(memoryCap, bufferSize);
+		this.direct = direct;
+	}
+
+	/** @return a cleared buffer, or {@code null} if the cap is reached and the caller should not start anything new */
+	public ByteBuffer tryAcquire() {
+		while (true) {
+			final var current = inFlight.get();
+			if (current + bufferSize > memoryCap) {
+				return null;
+			}
+
+			if (inFlight.compareAndSet(current, current + bufferSize)) {
+				break;
+			}
+		}
+
+		final var buffer = free.poll();
+		if (buffer != null) {
+			return buffer.clear();
+		}
+
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize) {
+			throw new IllegalArgumentException("buffer does not come from this pool");
+		}
+
+		free.add(buffer);
+		inFlight.addAndGet(-bufferSize);
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	public long memoryCap() {
+		return memoryCap;
+	}
+
+	/** @return the memory held by acquired buffers */
+	public long inFlight() {
+		return inFlight.get();
+	}
+
+	public boolean isExhausted() {
+		return inFlight.get() + bufferSize > memoryCap;
+	}
+
+}
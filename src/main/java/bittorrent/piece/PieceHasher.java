@@ -0,0 +1,70 @@
+package bittorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.SneakyThrows;
+
+/**
+ * Hash a piece while its blocks arrive, so that it is verified right after the last one without reading it again.
+ * Blocks are hashed from the piece itself: those received out of order are only remembered by their offset, until the gap before them is filled.
+ */
+public class PieceHasher {
+
+	private final ByteBuffer piece;
+	private final MessageDigest digest;
+
+	/** end of each block waiting for the gap before it, by its beginning */
+	private final Map<Integer, Integer> pending = new HashMap<>();
+	private int hashed;
+
+	@SneakyThrows
+	public PieceHasher(ByteBuffer piece) {
+		this.piece = piece;
+		this.digest = MessageDigest.getInstance("SHA-1");
+	}
+
+	/** the block must already be in the piece, blocks already hashed or already pending are ignored, like duplicates */
+	public synchronized void offer(int begin, int length) {
+		if (begin < hashed || begin + length > piece.limit()) {
+			return;
+		}
+
+		if (begin != hashed) {
+			pending.putIfAbsent(begin, begin + length);
+			return;
+		}
+
+		digest.update(piece.slice(begin, length));
+		hashed += length;
+
+		Integer end;
+		while ((end = pending.remove(hashed)) != null) {
+			digest.update(piece.slice(hashed, end - hashed));
+			hashed = end;
+		}
+	}
+
+	public synchronized boolean isComplete() {
+		return hashed == piece.limit();
+	}
+
+	/** @return the hash of the piece, the hasher is reset for another try */
+	public synchronized byte[] digest() {
+		if (hashed != piece.limit()) {
+			throw new IllegalStateException("piece is incomplete: %d/%d bytes hashed".formatted(hashed, piece.limit()));
+		}
+
+		hashed = 0;
+		return digest.digest();
+	}
+
+	public synchronized void reset() {
+		digest.reset();
+		pending.clear();
+		hashed = 0;
+	}
+
+}
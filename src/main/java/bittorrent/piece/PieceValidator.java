@@ -0,0 +1,36 @@
+package bittorrent.piece;
+
+import java.nio.ByteBuffer;
+
+import bittorrent.torrent.TorrentInfo;
+
+/**
+ * Check a piece while its blocks arrive, in any order.
+ * A Merkle tree tells which block is bad once the hashes of the blocks are known, instead of failing the whole piece.
+ */
+public interface PieceValidator {
+
+	/** @return {@code false} if the block is known to be corrupt, it must not be kept then; the block must already be in the piece */
+	boolean offer(int begin, byte[] block);
+
+	/** to be called once every block was offered, the validator is then ready for another try */
+	boolean isValid();
+
+	/**
+	 * The Merkle tree is preferred when its piece layer is known.
+	 * @param piece where the blocks are written, limited to the length of the piece
+	 */
+	static PieceValidator of(TorrentInfo torrentInfo, int pieceIndex, ByteBuffer piece) {
+		final var merkle = torrentInfo.merkle();
+		if (merkle != null && merkle.hasPieceLayer()) {
+			return new MerklePieceValidator(merkle, pieceIndex, torrentInfo.pieceLength(pieceIndex));
+		}
+
+		if (torrentInfo.pieces().isEmpty()) {
+			throw new IllegalStateException("the piece layer of a v2 torrent is needed to verify it");
+		}
+
+		return new Sha1PieceValidator(torrentInfo.pieces().get(pieceIndex), piece);
+	}
+
+}
@@ -0,0 +1,29 @@
+package bittorrent.piece;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** v1 pieces can only be checked as a whole, once the last block arrived */
+public class Sha1PieceValidator implements PieceValidator {
+
+	private final byte[] expected;
+	private final PieceHasher hasher;
+
+	/** @param piece where the blocks are written before being offered, they are hashed from there */
+	public Sha1PieceValidator(byte[] expected, ByteBuffer piece) {
+		this.expected = expected;
+		this.hasher = new PieceHasher(piece);
+	}
+
+	@Override
+	public boolean offer(int begin, byte[] block) {
+		hasher.offer(begin, block.length);
+		return true;
+	}
+
+	@Override
+	public boolean isValid() {
+		return Arrays.equals(expected, hasher.digest());
+	}
+
+}
@@ -0,0 +1,243 @@
+package bittorrent.session;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import bittorrent.Main;
+import bittorrent.bandwidth.TokenBucket;
+import bittorrent.peer.Peer;
+import bittorrent.torrent.TorrentInfo;
+import bittorrent.tracker.Announceable;
+import bittorrent.transport.Transports;
+import bittorrent.transport.utp.UtpTransport;
+
+/**
+ * Many torrents in a single process.
+ * They share one listen port, and the uTP one when enabled, where incoming handshakes are routed by info hash, a connection cap, a disk pool, and the bandwidth, split evenly.
+ */
+public class Session implements AutoCloseable {
+
+	/** how often the uTP listener checks whether the session is closed */
+	private static final Duration ACCEPT_POLL = Duration.ofSeconds(1);
+
+	private final Options options;
+	private final Map<String, SessionTorrent> torrents = new ConcurrentHashMap<>();
+	private final Semaphore connectionSlots;
+	private final ExecutorService diskExecutor;
+	private final ExecutorService handshakeExecutor;
+
+	private ServerSocket serverSocket;
+	private Thread listener;
+	private Thread utpListener;
+	private volatile boolean closed;
+
+	public Session() {
+		this(Options.DEFAULT);
+	}
+
+	public Session(Options options) {
+		this.options = options;
+		this.connectionSlots = new Semaphore(options.maxConnections());
+		this.diskExecutor = Executors.newFixedThreadPool(options.diskThreads(), Thread.ofPlatform().name("session-disk-", 0).daemon().factory());
+		this.handshakeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+	}
+
+	/** listen on the configured port, or any free one if taken */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket();
+		try {
+			serverSocket.bind(new InetSocketAddress(options.port()));
+		} catch (BindException exception) {
+			System.err.println("session: port %d is taken, using another one".formatted(options.port()));
+			serverSocket.bind(new InetSocketAddress(0));
+		}
+
+		listener = Thread.ofPlatform()
+			.name("session-listener")
+			.daemon()
+			.start(this::listen);
+
+		final var utp = Transports.getUtp();
+		if (utp != null) {
+			utp.setAccepting(true);
+
+			utpListener = Thread.ofPlatform()
+				.name("session-utp-listener")
+				.daemon()
+				.start(() -> listen(utp));
+		}
+	}
+
+	public int getPort() {
+		return serverSocket != null ? serverSocket.getLocalPort() : -1;
+	}
+
+	/** the metadata is served to peers that ask for it, it can be {@code null} */
+	public SessionTorrent add(Announceable announceable, TorrentInfo torrentInfo, byte[] metadata, Path output) throws IOException {
+		if (serverSocket == null) {
+			throw new IllegalStateException("session not started, there is no port to announce");
+		}
+
+		final var infoHash = Main.HEX_FORMAT.formatHex(torrentInfo.hash());
+
+		final var torrent = new SessionTorrent(announceable, torrentInfo, metadata, output, getPort(), connectionSlots, diskExecutor);
+		if (torrents.putIfAbsent(infoHash, torrent) != null) {
+			torrent.close();
+			throw new IllegalStateException("torrent already added: %s".formatted(infoHash));
+		}
+
+		rebalance();
+		torrent.start(peerCountPerTorrent());
+
+		return torrent;
+	}
+
+	public void remove(String infoHash) throws IOException {
+		final var torrent = torrents.remove(infoHash);
+		if (torrent == null) {
+			return;
+		}
+
+		torrent.close();
+		rebalance();
+	}
+
+	public SessionTorrent get(String infoHash) {
+		return torrents.get(infoHash);
+	}
+
+	public Collection<SessionTorrent> getTorrents() {
+		return torrents.values();
+	}
+
+	/**
+	 * Every torrent gets the same share of the connections and of the bandwidth.
+	 * The rates of the session are only spent through these shares, the limits of the whole client are left as configured.
+	 */
+	private void rebalance() {
+		final var count = Math.max(torrents.size(), 1);
+		final var peerCount = peerCountPerTorrent();
+
+		for (final var torrent : torrents.values()) {
+			final var downloader = torrent.getDownloader();
+
+			downloader.setPeerCount(peerCount);
+			downloader.getDownloadLimit().setRate(share(options.downloadRate(), count));
+			downloader.getUploadLimit().setRate(share(options.uploadRate(), count));
+		}
+	}
+
+	private int peerCountPerTorrent() {
+		return Math.clamp(options.maxConnections() / Math.max(torrents.size(), 1), 1, options.maxPeersPerTorrent());
+	}
+
+	private static long share(long rate, int count) {
+		if (rate == TokenBucket.UNLIMITED) {
+			return TokenBucket.UNLIMITED;
+		}
+
+		return Math.max(rate / count, 1);
+	}
+
+	private void listen() {
+		while (!closed) {
+			try {
+				final var socket = serverSocket.accept();
+				handshakeExecutor.execute(() -> route(socket));
+			} catch (IOException exception) {
+				if (!closed) {
+					System.err.println("session: accept failed: %s".formatted(exception));
+				}
+			}
+		}
+	}
+
+	/** the uTP transport is shared, it is left open */
+	private void listen(UtpTransport utp) {
+		while (!closed) {
+			try {
+				final var socket = utp.accept(ACCEPT_POLL);
+				if (socket != null) {
+					handshakeExecutor.execute(() -> route(socket));
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void route(Socket socket) {
+		final var found = new SessionTorrent[1];
+
+		try {
+			final var peer = Peer.accept(
+				socket,
+				(infoHash) -> {
+					found[0] = torrents.get(Main.HEX_FORMAT.formatHex(infoHash));
+					return found[0] != null ? found[0].getAnnounceable() : null;
+				},
+				Peer.DEFAULT_HANDSHAKE_TIMEOUT,
+				Peer.DEFAULT_IDLE_TIMEOUT
+			);
+
+			found[0].accept(peer);
+		} catch (IOException | RuntimeException exception) {
+			System.err.println("session: incoming connection from %s failed: %s".formatted(socket.getRemoteSocketAddress(), exception));
+		}
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		closed = true;
+
+		if (serverSocket != null) {
+			serverSocket.close();
+			listener.join();
+		}
+
+		if (utpListener != null) {
+			utpListener.join();
+		}
+
+		handshakeExecutor.shutdownNow();
+
+		for (final var infoHash : torrents.keySet()) {
+			remove(infoHash);
+		}
+
+		diskExecutor.shutdown();
+	}
+
+	public record Options(
+		int port,
+		int maxConnections,
+		int maxPeersPerTorrent,
+		long downloadRate,
+		long uploadRate,
+		int diskThreads
+	) {
+
+		public static final Options DEFAULT = new Options(
+			6881,
+			500,
+			50,
+			TokenBucket.UNLIMITED,
+			TokenBucket.UNLIMITED,
+			4
+		);
+
+	}
+
+}
@@ -0,0 +1,100 @@
+package bittorrent.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import bittorrent.Main;
+import bittorrent.download.Downloader;
+import bittorrent.peer.ConnectionManager;
+import bittorrent.peer.Peer;
+import bittorrent.peer.PeerPool;
+import bittorrent.storage.DiskCache;
+import bittorrent.storage.FileStorage;
+import bittorrent.torrent.TorrentInfo;
+import bittorrent.tracker.AnnounceScheduler;
+import bittorrent.tracker.Announceable;
+import bittorrent.tracker.TransferStatistics;
+import lombok.Getter;
+
+/** one torrent of a session, with everything it owns */
+public class SessionTorrent implements AutoCloseable {
+
+	private final @Getter Announceable announceable;
+	private final @Getter TorrentInfo torrentInfo;
+	private final @Getter Path output;
+	private final @Getter TransferStatistics statistics;
+	private final PeerPool peerPool;
+	private final AnnounceScheduler scheduler;
+	private final ConnectionManager connectionManager;
+	private final DiskCache cache;
+	private final @Getter Downloader downloader;
+
+	/** @param port the listen port of the session, announced to the tracker */
+	SessionTorrent(Announceable announceable, TorrentInfo torrentInfo, byte[] metadata, Path output, int port, Semaphore connectionSlots, Executor diskExecutor) throws IOException {
+		this.announceable = announceable;
+		this.torrentInfo = torrentInfo;
+		this.output = output;
+		this.statistics = new TransferStatistics(torrentInfo.length());
+		this.peerPool = new PeerPool();
+		this.scheduler = announceable.getTrackerUrl() != null ? new AnnounceScheduler(Main.TRACKER_CLIENT, announceable, statistics, peerPool, port) : null;
+		this.connectionManager = new ConnectionManager(peerPool, announceable, ConnectionManager.Options.DEFAULT, connectionSlots);
+		this.cache = new DiskCache(new FileStorage(output, torrentInfo.length()), torrentInfo, DiskCache.Options.DEFAULT, diskExecutor);
+		this.downloader = new Downloader(torrentInfo, connectionManager, statistics, cache);
+
+		downloader.setMetadata(metadata);
+	}
+
+	void start(int peerCount) {
+		if (scheduler != null) {
+			try {
+				scheduler.start();
+			} catch (IOException | RuntimeException exception) {
+				System.err.println("session: %s: announce failed: %s".formatted(getName(), exception));
+			}
+		}
+
+		downloader.start(peerCount, null);
+	}
+
+	/** a peer that connected to us for this torrent */
+	void accept(Peer peer) {
+		if (connectionManager.adopt(peer)) {
+			downloader.accept(peer);
+		}
+	}
+
+	public String getName() {
+		return torrentInfo.name();
+	}
+
+	public String getInfoHash() {
+		return Main.HEX_FORMAT.formatHex(torrentInfo.hash());
+	}
+
+	public boolean isCompleted() {
+		return downloader.getCompleted().isComplete();
+	}
+
+	public void awaitCompletion() throws InterruptedException {
+		downloader.await();
+
+		if (scheduler != null) {
+			scheduler.completed();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (cache) {
+			downloader.close();
+			connectionManager.close();
+
+			if (scheduler != null) {
+				scheduler.close();
+			}
+		}
+	}
+
+}
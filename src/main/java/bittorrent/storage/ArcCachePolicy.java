@@ -0,0 +1,83 @@
+package bittorrent.storage;
+
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Adaptive replacement cache: pieces seen once and pieces seen again are kept in two lists, and the ghosts of evicted keys move the balance between them.
+ * A one time sequential read, like a peer downloading everything, does not flush the pieces that are requested again and again.
+ */
+class ArcCachePolicy implements CachePolicy {
+
+	private final int capacity;
+
+	/** all oldest first */
+	private final LinkedHashSet<Integer> recent = new LinkedHashSet<>();
+	private final LinkedHashSet<Integer> frequent = new LinkedHashSet<>();
+	private final LinkedHashSet<Integer> recentGhosts = new LinkedHashSet<>();
+	private final LinkedHashSet<Integer> frequentGhosts = new LinkedHashSet<>();
+
+	/** target size of the recent list */
+	private int target;
+
+	ArcCachePolicy(int capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void onHit(int key) {
+		recent.remove(key);
+		frequent.remove(key);
+		frequent.add(key);
+	}
+
+	@Override
+	public void onInsert(int key) {
+		if (recentGhosts.remove(key)) {
+			target = Math.min(capacity, target + Math.max(frequentGhosts.size() / Math.max(recentGhosts.size(), 1), 1));
+			frequent.add(key);
+		} else if (frequentGhosts.remove(key)) {
+			target = Math.max(0, target - Math.max(recentGhosts.size() / Math.max(frequentGhosts.size(), 1), 1));
+			frequent.add(key);
+		} else {
+			recent.add(key);
+		}
+
+		trim(recentGhosts, capacity - recent.size());
+		trim(frequentGhosts, 2 * capacity - recent.size() - frequent.size() - recentGhosts.size());
+	}
+
+	@Override
+	public int victim(IntPredicate evictable) {
+		final var preferRecent = !recent.isEmpty() && (recent.size() > target || frequent.isEmpty());
+
+		var key = preferRecent ? evict(recent, recentGhosts, evictable) : evict(frequent, frequentGhosts, evictable);
+		if (key == -1) {
+			key = preferRecent ? evict(frequent, frequentGhosts, evictable) : evict(recent, recentGhosts, evictable);
+		}
+
+		return key;
+	}
+
+	private int evict(LinkedHashSet<Integer> list, LinkedHashSet<Integer> ghosts, IntPredicate evictable) {
+		for (final var key : list) {
+			if (evictable.test(key)) {
+				list.remove(key);
+				ghosts.add(key);
+				return key;
+			}
+		}
+
+		return -1;
+	}
+
+	private static void trim(LinkedHashSet<Integer> ghosts, int maximumSize) {
+		final var iterator = ghosts.iterator();
+
+		while (ghosts.size() > Math.max(maximumSize, 0) && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+}
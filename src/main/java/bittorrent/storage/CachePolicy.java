@@ -0,0 +1,15 @@
+package bittorrent.storage;
+
+import java.util.function.IntPredicate;
+
+/** decide which piece leaves the cache, keys are piece indexes */
+interface CachePolicy {
+
+	void onHit(int key);
+
+	void onInsert(int key);
+
+	/** @return the key to evict among those accepted by the filter, or {@code -1} if none */
+	int victim(IntPredicate evictable);
+
+}
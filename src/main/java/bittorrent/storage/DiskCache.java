@@ -0,0 +1,334 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bittorrent.torrent.TorrentInfo;
+
+/**
+ * Piece cache in front of a storage.
+ * Verified pieces are kept dirty and flushed in batches sorted by offset, where adjacent pieces become a single gathering write.
+ * Reading a block that is not cached loads the whole piece, as the next blocks of the piece are usually requested next.
+ */
+public class DiskCache implements AutoCloseable {
+
+	private final Storage storage;
+	private final long length;
+	private final int pieceLength;
+	private final Options options;
+	private final int maximumEntries;
+	private final CachePolicy policy;
+
+	/** flushes run there when set, like a disk pool shared by every torrent */
+	private final Executor flushExecutor;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private final Map<Integer, Entry> entries = new HashMap<>();
+	private final Queue<ByteBuffer> free = new ArrayDeque<>();
+	private final Object flushLock = new Object();
+	private long dirtyBytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long flushes;
+	private long flushedPieces;
+	private long flushedBytes;
+	private long writes;
+
+	public DiskCache(Storage storage, TorrentInfo torrentInfo) {
+		this(storage, torrentInfo, Options.DEFAULT);
+	}
+
+	public DiskCache(Storage storage, TorrentInfo torrentInfo, Options options) {
+		this(storage, torrentInfo, options, null);
+	}
+
+	public DiskCache(Storage storage, TorrentInfo torrentInfo, Options options, Executor flushExecutor) {
+		this.storage = storage;
+		this.flushExecutor = flushExecutor;
+		this.length = torrentInfo.length();
+		this.pieceLength = torrentInfo.pieceLength();
+		this.options = options;
+		this.maximumEntries = (int) Math.max(1, options.capacity() / pieceLength);
+		this.policy = switch (options.policy()) {
+			case LRU -> new LruCachePolicy();
+			case ARC -> new ArcCachePolicy(maximumEntries);
+		};
+	}
+
+	/** the data is copied, the buffer can be reused as soon as this returns */
+	public void writePiece(int pieceIndex, ByteBuffer data) throws IOException {
+		final long dirty;
+
+		synchronized (this) {
+			var entry = entries.get(pieceIndex);
+			if (entry == null) {
+				entry = insert(pieceIndex, allocate());
+			} else {
+				policy.onHit(pieceIndex);
+
+				if (entry.dirty) {
+					dirtyBytes -= entry.data.limit();
+				}
+			}
+
+			entry.data.clear();
+			entry.data.put(data.duplicate());
+			entry.data.flip();
+
+			entry.dirty = true;
+			++entry.version;
+			dirtyBytes += entry.data.limit();
+			++writes;
+
+			dirty = dirtyBytes;
+		}
+
+		if (dirty < options.flushThreshold()) {
+			return;
+		}
+
+		if (flushExecutor == null) {
+			flush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			flushExecutor.execute(() -> {
+				try {
+					flush();
+				} catch (IOException exception) {
+					System.err.println("disk cache: flush failed: %s".formatted(exception));
+				} finally {
+					flushScheduled.set(false);
+				}
+			});
+		}
+	}
+
+	/** @return a copy of the block, the whole piece is read ahead on a miss */
+	public byte[] readBlock(int pieceIndex, int begin, int length) throws IOException {
+		synchronized (this) {
+			final var entry = entries.get(pieceIndex);
+			if (entry != null) {
+				++hits;
+				policy.onHit(pieceIndex);
+
+				return copy(entry.data, begin, length);
+			}
+
+			++misses;
+		}
+
+		final ByteBuffer buffer;
+		synchronized (this) {
+			buffer = allocate();
+		}
+
+		buffer.limit(pieceLength(pieceIndex));
+		storage.read((long) pieceIndex * pieceLength, buffer);
+		buffer.flip();
+
+		synchronized (this) {
+			/* someone else may have loaded or written it in the meantime */
+			final var entry = entries.get(pieceIndex);
+			if (entry != null) {
+				free.add(buffer);
+				return copy(entry.data, begin, length);
+			}
+
+			insert(pieceIndex, buffer);
+			return copy(buffer, begin, length);
+		}
+	}
+
+	/** write every dirty piece, sorted by offset and coalesced */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			final List<Entry> batch = new ArrayList<>();
+			final Map<Entry, Long> versions = new HashMap<>();
+			synchronized (this) {
+				for (final var entry : entries.values()) {
+					if (entry.dirty) {
+						entry.flushing = true;
+						batch.add(entry);
+						versions.put(entry, entry.version);
+					}
+				}
+			}
+
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			batch.sort(Comparator.comparingInt(Entry::pieceIndex));
+
+			var written = 0l;
+			try {
+				var start = 0;
+				while (start < batch.size()) {
+					var end = start + 1;
+					while (end < batch.size() && batch.get(end).pieceIndex == batch.get(end - 1).pieceIndex + 1) {
+						++end;
+					}
+
+					final var run = batch.subList(start, end);
+					final var buffers = new ByteBuffer[run.size()];
+					for (var index = 0; index < buffers.length; ++index) {
+						buffers[index] = run.get(index).data.duplicate().rewind();
+						written += buffers[index].remaining();
+					}
+
+					storage.write((long) run.getFirst().pieceIndex * pieceLength, buffers);
+					start = end;
+				}
+			} finally {
+				synchronized (this) {
+					for (final var entry : batch) {
+						entry.flushing = false;
+					}
+				}
+			}
+
+			synchronized (this) {
+				for (final var entry : batch) {
+					/* rewritten while being flushed, it stays dirty for the next flush */
+					if (entry.dirty && entry.version == versions.get(entry)) {
+						entry.dirty = false;
+						dirtyBytes -= entry.data.limit();
+					}
+				}
+
+				++flushes;
+				flushedPieces += batch.size();
+				flushedBytes += written;
+
+				trim();
+			}
+		}
+	}
+
+	public synchronized Metrics getMetrics() {
+		return new Metrics(hits, misses, evictions, writes, flushes, flushedPieces, flushedBytes, entries.size(), dirtyBytes);
+	}
+
+	private Entry insert(int pieceIndex, ByteBuffer data) {
+		trim();
+
+		final var entry = new Entry(pieceIndex, data);
+		entries.put(pieceIndex, entry);
+		policy.onInsert(pieceIndex);
+
+		return entry;
+	}
+
+	/** dirty pieces cannot be evicted, the cache grows above its capacity until the next flush */
+	private void trim() {
+		while (entries.size() >= maximumEntries) {
+			final var key = policy.victim((candidate) -> {
+				final var entry = entries.get(candidate);
+				return entry != null && !entry.dirty && !entry.flushing;
+			});
+
+			if (key == -1) {
+				return;
+			}
+
+			free.add(entries.remove(key).data);
+			++evictions;
+		}
+	}
+
+	private ByteBuffer allocate() {
+		final var buffer = free.poll();
+		if (buffer != null) {
+			return buffer.clear();
+		}
+
+		return ByteBuffer.allocateDirect(pieceLength);
+	}
+
+	private int pieceLength(int pieceIndex) {
+		return (int) Math.min(pieceLength, length - (long) pieceIndex * pieceLength);
+	}
+
+	private static byte[] copy(ByteBuffer data, int begin, int length) {
+		if (begin < 0 || length < 0 || begin + length > data.limit()) {
+			return null;
+		}
+
+		final var bytes = new byte[length];
+		data.get(begin, bytes);
+
+		return bytes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			storage.close();
+		}
+	}
+
+	private static class Entry {
+
+		private final int pieceIndex;
+		private final ByteBuffer data;
+		private boolean dirty;
+		private boolean flushing;
+		private long version;
+
+		Entry(int pieceIndex, ByteBuffer data) {
+			this.pieceIndex = pieceIndex;
+			this.data = data;
+		}
+
+		int pieceIndex() {
+			return pieceIndex;
+		}
+
+	}
+
+	public enum Policy {
+
+		LRU,
+		ARC;
+
+	}
+
+	public record Options(
+		long capacity,
+		long flushThreshold,
+		Policy policy
+	) {
+
+		public static final Options DEFAULT = new Options(
+			64 * 1024 * 1024,
+			16 * 1024 * 1024,
+			Policy.ARC
+		);
+
+	}
+
+	public record Metrics(
+		long hits,
+		long misses,
+		long evictions,
+		long writes,
+		long flushes,
+		long flushedPieces,
+		long flushedBytes,
+		int entries,
+		long dirtyBytes
+	) {}
+
+}
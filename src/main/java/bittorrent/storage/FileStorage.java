@@ -0,0 +1,69 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** a single file torrent */
+public class FileStorage implements Storage {
+
+	private final FileChannel channel;
+	private final long length;
+
+	public FileStorage(Path path, long length) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.length = length;
+
+		if (channel.size() > length) {
+			channel.truncate(length);
+		}
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void read(long offset, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			final var read = channel.read(buffer, offset);
+			if (read == -1) {
+				return;
+			}
+
+			offset += read;
+		}
+	}
+
+	/** the channel position is shared, so gathering writes are serialized */
+	@Override
+	public synchronized void write(long offset, ByteBuffer... buffers) throws IOException {
+		if (offset < 0 || offset > length) {
+			throw new IllegalArgumentException("offset out of range: %d".formatted(offset));
+		}
+
+		var remaining = 0l;
+		for (final var buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+
+		channel.position(offset);
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,35 @@
+package bittorrent.storage;
+
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/** evict the least recently used piece */
+class LruCachePolicy implements CachePolicy {
+
+	/** oldest first */
+	private final LinkedHashSet<Integer> keys = new LinkedHashSet<>();
+
+	@Override
+	public void onHit(int key) {
+		keys.remove(key);
+		keys.add(key);
+	}
+
+	@Override
+	public void onInsert(int key) {
+		keys.add(key);
+	}
+
+	@Override
+	public int victim(IntPredicate evictable) {
+		for (final var key : keys) {
+			if (evictable.test(key)) {
+				keys.remove(key);
+				return key;
+			}
+		}
+
+		return -1;
+	}
+
+}
@@ -0,0 +1,194 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bittorrent.piece.MerkleTree;
+import bittorrent.piece.PieceBitset;
+import bittorrent.torrent.TorrentInfo;
+import lombok.SneakyThrows;
+
+/**
+ * Check a payload on disk against the piece hashes, or the piece layer of a v2 torrent, without downloading anything.
+ * The piece range is split in a fork-join pool until a task covers a single mapped region, so that every core hashes its own part of the file.
+ * Pieces past the end of a truncated file are reported as bad.
+ */
+public class PieceVerifier {
+
+	/** bytes hashed by one leaf task, the mapped regions are never bigger */
+	public static final long BATCH_SIZE = 64 * 1024 * 1024;
+
+	private final TorrentInfo torrentInfo;
+	private final Path path;
+
+	public PieceVerifier(TorrentInfo torrentInfo, Path path) {
+		this.torrentInfo = torrentInfo;
+		this.path = path;
+	}
+
+	public Result verify() throws IOException {
+		return verify(ForkJoinPool.commonPool());
+	}
+
+	public Result verify(ForkJoinPool pool) throws IOException {
+		final var merkle = torrentInfo.merkle();
+		if (torrentInfo.pieces().isEmpty() && (merkle == null || !merkle.hasPieceLayer())) {
+			throw new IllegalStateException("the piece layer of a v2 torrent is needed to verify it");
+		}
+
+		final var pieceCount = torrentInfo.pieceCount();
+		final var valid = new PieceBitset(pieceCount);
+		final var piecesPerBatch = (int) Math.max(1, BATCH_SIZE / torrentInfo.pieceLength());
+
+		final var start = System.nanoTime();
+		try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final var size = channel.size();
+
+			pool.invoke(new VerifyTask(channel, size, valid, 0, pieceCount, piecesPerBatch));
+
+			return new Result(valid, Math.min(size, torrentInfo.length()), Duration.ofNanos(System.nanoTime() - start), badRanges(valid));
+		} catch (UncheckedIOException exception) {
+			throw exception.getCause();
+		}
+	}
+
+	@SneakyThrows
+	private void hashBatch(FileChannel channel, long size, PieceBitset valid, int firstPiece, int endPiece) {
+		final var pieceLength = torrentInfo.pieceLength();
+		final var start = (long) firstPiece * pieceLength;
+		final var end = Math.min(Math.min((long) endPiece * pieceLength, torrentInfo.length()), size);
+
+		if (start >= end) {
+			return;
+		}
+
+		final MappedByteBuffer buffer;
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		} catch (IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+
+		/* the piece layer is preferred, a hybrid torrent has both */
+		final var merkle = torrentInfo.merkle() != null && torrentInfo.merkle().hasPieceLayer() ? torrentInfo.merkle() : null;
+
+		final var digest = MessageDigest.getInstance("SHA-1");
+		for (var pieceIndex = firstPiece; pieceIndex < endPiece; ++pieceIndex) {
+			final var offset = (int) ((long) pieceIndex * pieceLength - start);
+			final var length = torrentInfo.pieceLength(pieceIndex);
+
+			/* cut short by the end of the file */
+			if (offset + length > buffer.limit()) {
+				return;
+			}
+
+			final var piece = buffer.slice(offset, length);
+			if (merkle != null) {
+				if (Arrays.equals(merkle.pieceLayer().get(pieceIndex), MerkleTree.pieceRoot(piece, merkle.pieceWidth()))) {
+					valid.set(pieceIndex);
+				}
+
+				continue;
+			}
+
+			digest.update(piece);
+			if (Arrays.equals(torrentInfo.pieces().get(pieceIndex), digest.digest())) {
+				valid.set(pieceIndex);
+			}
+		}
+	}
+
+	/** consecutive bad pieces are merged */
+	private List<BadRange> badRanges(PieceBitset valid) {
+		final var ranges = new ArrayList<BadRange>();
+		final var pieceLength = (long) torrentInfo.pieceLength();
+
+		var first = valid.nextClearBit(0);
+		while (first != -1) {
+			var end = valid.nextSetBit(first);
+			if (end == -1) {
+				end = valid.size();
+			}
+
+			final var lastPiece = end - 1;
+			ranges.add(new BadRange(first, lastPiece, first * pieceLength, lastPiece * pieceLength + torrentInfo.pieceLength(lastPiece)));
+
+			first = end < valid.size() ? valid.nextClearBit(end) : -1;
+		}
+
+		return ranges;
+	}
+
+	@SuppressWarnings("serial")
+	private class VerifyTask extends RecursiveAction {
+
+		private final FileChannel channel;
+		private final long size;
+		private final PieceBitset valid;
+		private final int firstPiece;
+		private final int endPiece;
+		private final int piecesPerBatch;
+
+		VerifyTask(FileChannel channel, long size, PieceBitset valid, int firstPiece, int endPiece, int piecesPerBatch) {
+			this.channel = channel;
+			this.size = size;
+			this.valid = valid;
+			this.firstPiece = firstPiece;
+			this.endPiece = endPiece;
+			this.piecesPerBatch = piecesPerBatch;
+		}
+
+		@Override
+		protected void compute() {
+			if (endPiece - firstPiece <= piecesPerBatch) {
+				hashBatch(channel, size, valid, firstPiece, endPiece);
+				return;
+			}
+
+			final var middle = (firstPiece + endPiece) >>> 1;
+			invokeAll(
+				new VerifyTask(channel, size, valid, firstPiece, middle, piecesPerBatch),
+				new VerifyTask(channel, size, valid, middle, endPiece, piecesPerBatch)
+			);
+		}
+
+	}
+
+	public record Result(
+		PieceBitset valid,
+		long bytes,
+		Duration elapsed,
+		List<BadRange> badRanges
+	) {
+
+		public boolean isComplete() {
+			return valid.isComplete();
+		}
+
+		/** @return bytes read per second */
+		public double throughput() {
+			return bytes / Math.max(elapsed.toNanos() / 1e9, 1e-9);
+		}
+
+	}
+
+	/** @param end exclusive */
+	public record BadRange(
+		int firstPiece,
+		int lastPiece,
+		long start,
+		long end
+	) {}
+
+}
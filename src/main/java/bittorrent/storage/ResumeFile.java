@@ -0,0 +1,64 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import bittorrent.piece.PieceBitset;
+import lombok.experimental.UtilityClass;
+
+/**
+ * The verified pieces of a payload, stored next to it as a wire bitfield, so that a download only fetches the others.
+ * The bitfield follows the info hash of the torrent, so that the file of another torrent is never trusted.
+ */
+@UtilityClass
+public class ResumeFile {
+
+	public static final String EXTENSION = ".resume";
+
+	public static Path pathOf(Path payload) {
+		return payload.resolveSibling(payload.getFileName() + EXTENSION);
+	}
+
+	/** @return the verified pieces, or {@code null} if there is no resume file, or if it is for another torrent */
+	public static PieceBitset load(Path payload, byte[] infoHash, int pieceCount) throws IOException {
+		final byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(pathOf(payload));
+		} catch (NoSuchFileException exception) {
+			return null;
+		}
+
+		if (bytes.length != infoHash.length + (pieceCount + 7) / 8 || !Arrays.equals(bytes, 0, infoHash.length, infoHash, 0, infoHash.length)) {
+			System.err.println("resume: %s is not for this torrent, ignoring it".formatted(pathOf(payload)));
+			return null;
+		}
+
+		return PieceBitset.fromBitfield(Arrays.copyOfRange(bytes, infoHash.length, bytes.length), pieceCount);
+	}
+
+	public static void save(Path payload, byte[] infoHash, PieceBitset verified) throws IOException {
+		final var path = pathOf(payload).toAbsolutePath();
+
+		final var bitfield = verified.toBitfield();
+
+		final var bytes = Arrays.copyOf(infoHash, infoHash.length + bitfield.length);
+		System.arraycopy(bitfield, 0, bytes, infoHash.length, bitfield.length);
+
+		final var temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporary, bytes);
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	public static void delete(Path payload) throws IOException {
+		Files.deleteIfExists(pathOf(payload));
+	}
+
+}
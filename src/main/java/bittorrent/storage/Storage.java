@@ -0,0 +1,22 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** where the content of a torrent is stored, addressed by its offset in the torrent */
+public interface Storage extends AutoCloseable {
+
+	long length();
+
+	/** read until the buffer is full or the end is reached */
+	void read(long offset, ByteBuffer buffer) throws IOException;
+
+	/** write the buffers one after the other, as a single sequential write */
+	void write(long offset, ByteBuffer... buffers) throws IOException;
+
+	void force() throws IOException;
+
+	@Override
+	void close() throws IOException;
+
+}
@@ -0,0 +1,103 @@
+package bittorrent.torrent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.StreamSupport;
+
+/**
+ * Files of a torrent, laid out end to end like the pieces see them.
+ * A directory is walked in a stable order, so that the same tree always gives the same torrent.
+ */
+public record FileLayout(
+	Path root,
+	boolean directory,
+	List<Entry> entries,
+	long length
+) {
+
+	public static final int MINIMUM_PIECE_LENGTH = 16 * 1024;
+	public static final int MAXIMUM_PIECE_LENGTH = 16 * 1024 * 1024;
+
+	/** enough pieces to spread the transfer over peers, but not so many that the metainfo gets big */
+	public static final int TARGET_PIECE_COUNT = 1500;
+
+	public String name() {
+		return root.getFileName().toString();
+	}
+
+	/** @return the smallest power of two that keeps the piece count around the target */
+	public int choosePieceLength() {
+		var pieceLength = MINIMUM_PIECE_LENGTH;
+
+		while (pieceLength < MAXIMUM_PIECE_LENGTH && length / pieceLength > TARGET_PIECE_COUNT) {
+			pieceLength *= 2;
+		}
+
+		return pieceLength;
+	}
+
+	/** @return the entries holding bytes of the range, in order */
+	public List<Entry> overlapping(long start, long end) {
+		final var result = new ArrayList<Entry>();
+
+		for (final var entry : entries) {
+			if (entry.offset() < end && entry.offset() + entry.length() > start) {
+				result.add(entry);
+			}
+		}
+
+		return result;
+	}
+
+	public static FileLayout of(Path path) throws IOException {
+		final var root = path.toAbsolutePath().normalize();
+
+		if (Files.isRegularFile(root)) {
+			final var length = Files.size(root);
+
+			return new FileLayout(root, false, List.of(new Entry(root, List.of(), 0, length)), length);
+		}
+
+		if (!Files.isDirectory(root)) {
+			throw new IllegalArgumentException("not a file or a directory: %s".formatted(root));
+		}
+
+		final List<Path> paths;
+		try (final var stream = Files.walk(root)) {
+			paths = stream
+				.filter(Files::isRegularFile)
+				.sorted(Comparator.comparing((file) -> root.relativize(file).toString()))
+				.toList();
+		}
+
+		final var entries = new ArrayList<Entry>(paths.size());
+		var offset = 0l;
+		for (final var file : paths) {
+			final var length = Files.size(file);
+			final var components = StreamSupport.stream(root.relativize(file).spliterator(), false)
+				.map(Path::toString)
+				.toList();
+
+			entries.add(new Entry(file, components, offset, length));
+			offset += length;
+		}
+
+		if (entries.isEmpty()) {
+			throw new IllegalArgumentException("no file in %s".formatted(root));
+		}
+
+		return new FileLayout(root, true, entries, offset);
+	}
+
+	public record Entry(
+		Path path,
+		List<String> components,
+		long offset,
+		long length
+	) {}
+
+}
@@ -0,0 +1,52 @@
+package bittorrent.torrent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** files of a BitTorrent v2 torrent (BEP 52), flattened from the nested dictionaries of its file tree */
+public record FileTree(
+	List<Entry> files
+) {
+
+	public static FileTree of(Map<String, Object> root) {
+		final var files = new ArrayList<Entry>();
+		walk(root, new ArrayList<>(), files);
+
+		return new FileTree(files);
+	}
+
+	/** a file is a dictionary with a single empty key, holding its properties */
+	@SuppressWarnings("unchecked")
+	private static void walk(Map<String, Object> directory, List<String> path, List<Entry> files) {
+		for (final var child : directory.entrySet()) {
+			final var node = (Map<String, Object>) child.getValue();
+
+			if (child.getKey().isEmpty()) {
+				final var length = (long) node.get("length");
+				final var piecesRoot = (String) node.get("pieces root");
+
+				files.add(new Entry(
+					List.copyOf(path),
+					length,
+					piecesRoot != null ? piecesRoot.getBytes(StandardCharsets.ISO_8859_1) : null
+				));
+
+				continue;
+			}
+
+			path.add(child.getKey());
+			walk(node, path, files);
+			path.removeLast();
+		}
+	}
+
+	/** @param piecesRoot root of the Merkle tree of the file, {@code null} if the file is empty */
+	public record Entry(
+		List<String> path,
+		long length,
+		byte[] piecesRoot
+	) {}
+
+}
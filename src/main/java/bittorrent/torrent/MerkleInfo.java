@@ -0,0 +1,93 @@
+package bittorrent.torrent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import bittorrent.piece.MerkleTree;
+
+/**
+ * The BitTorrent v2 part of a single file torrent (BEP 52).
+ * The piece layer is outside of the info dictionary, so it is unknown when only the metadata was fetched, unless the file is a single piece.
+ * @param hash the full SHA-256 of the info dictionary
+ * @param pieceLayer root of the subtree of every piece, or {@code null} if unknown
+ */
+public record MerkleInfo(
+	byte[] hash,
+	byte[] piecesRoot,
+	long fileLength,
+	int pieceLength,
+	List<byte[]> pieceLayer
+) {
+
+	public int pieceCount() {
+		return (int) ((fileLength + pieceLength - 1) / pieceLength);
+	}
+
+	/** @return the leaves under each piece, a file smaller than a piece has a smaller tree */
+	public int pieceWidth() {
+		if (pieceCount() > 1) {
+			return pieceLength / MerkleTree.BLOCK_SIZE;
+		}
+
+		return MerkleTree.width((int) ((fileLength + MerkleTree.BLOCK_SIZE - 1) / MerkleTree.BLOCK_SIZE));
+	}
+
+	public boolean hasPieceLayer() {
+		return pieceLayer != null;
+	}
+
+	/**
+	 * @param layers the piece layers dictionary of the torrent, keyed by pieces root, or {@code null}
+	 * @throws IllegalArgumentException if the layer does not lead to the pieces root
+	 */
+	public MerkleInfo withPieceLayers(Map<String, Object> layers) {
+		if (hasPieceLayer() || layers == null) {
+			return this;
+		}
+
+		final var value = (String) layers.get(new String(piecesRoot, StandardCharsets.ISO_8859_1));
+		if (value == null) {
+			return this;
+		}
+
+		final var layer = MerkleTree.split(value.getBytes(StandardCharsets.ISO_8859_1));
+		if (layer.size() != pieceCount()) {
+			throw new IllegalArgumentException("piece layer has %d hashes instead of %d".formatted(layer.size(), pieceCount()));
+		}
+
+		final var root = MerkleTree.root(layer, MerkleTree.width(layer.size()), MerkleTree.padding(pieceWidth()));
+		if (!Arrays.equals(root, piecesRoot)) {
+			throw new IllegalArgumentException("piece layer does not match the pieces root");
+		}
+
+		return new MerkleInfo(hash, piecesRoot, fileLength, pieceLength, layer);
+	}
+
+	/**
+	 * @param hash the full SHA-256 of the info dictionary
+	 * @return {@code null} if the tree does not hold a single non empty file, which is all that can be stored
+	 */
+	public static MerkleInfo of(byte[] hash, Map<String, Object> fileTree, int pieceLength) {
+		final var files = FileTree.of(fileTree).files();
+		if (files.size() != 1 || files.getFirst().piecesRoot() == null) {
+			return null;
+		}
+
+		if (pieceLength < MerkleTree.BLOCK_SIZE || Integer.bitCount(pieceLength) != 1) {
+			throw new IllegalArgumentException("piece length must be a power of two of at least 16 KiB: %d".formatted(pieceLength));
+		}
+
+		final var file = files.getFirst();
+		final var merkle = new MerkleInfo(hash, file.piecesRoot(), file.length(), pieceLength, null);
+
+		/* the root of a single piece is the pieces root itself */
+		if (merkle.pieceCount() == 1) {
+			return new MerkleInfo(hash, file.piecesRoot(), file.length(), pieceLength, List.of(file.piecesRoot()));
+		}
+
+		return merkle;
+	}
+
+}
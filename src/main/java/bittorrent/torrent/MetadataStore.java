@@ -0,0 +1,73 @@
+package bittorrent.torrent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import bittorrent.Main;
+import bittorrent.util.DigestUtils;
+
+/** raw info dictionaries, one file per info hash, so that a magnet is only resolved once */
+public class MetadataStore {
+
+	public static final String EXTENSION = ".info";
+
+	private final Path directory;
+
+	public MetadataStore(Path directory) {
+		this.directory = directory;
+	}
+
+	/** @return the raw info dictionary, or {@code null} if unknown or corrupted */
+	public byte[] load(byte[] infoHash) throws IOException {
+		final var path = pathOf(infoHash);
+
+		final byte[] metadata;
+		try {
+			metadata = Files.readAllBytes(path);
+		} catch (NoSuchFileException exception) {
+			return null;
+		}
+
+		if (!DigestUtils.matchesInfoHash(infoHash, metadata)) {
+			System.err.println("metadata store: %s is corrupted, removing it".formatted(path));
+
+			Files.deleteIfExists(path);
+			return null;
+		}
+
+		return metadata;
+	}
+
+	/** @return the parsed info, or {@code null} if unknown */
+	public TorrentInfo loadInfo(byte[] infoHash) throws IOException {
+		final var metadata = load(infoHash);
+		if (metadata == null) {
+			return null;
+		}
+
+		return TorrentInfo.parse(metadata);
+	}
+
+	/** the metadata must be verified against the info hash before */
+	public void save(byte[] infoHash, byte[] metadata) throws IOException {
+		Files.createDirectories(directory);
+
+		final var path = pathOf(infoHash);
+		final var temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+		try {
+			Files.write(temporary, metadata);
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private Path pathOf(byte[] infoHash) {
+		return directory.resolve(Main.HEX_FORMAT.formatHex(infoHash) + EXTENSION);
+	}
+
+}
@@ -1,14 +1,21 @@
 package bittorrent.torrent;
 
+import java.util.List;
 import java.util.Map;
 
 import bittorrent.tracker.Announceable;
 
+/** @param webSeeds HTTP mirrors of the payload from {@code url-list}, possibly empty */
 public record Torrent(
 	String announce,
-	TorrentInfo info
+	TorrentInfo info,
+	List<String> webSeeds
 ) implements Announceable {
 
+	public Torrent(String announce, TorrentInfo info) {
+		this(announce, info, List.of());
+	}
+
 	@Override
 	public String getTrackerUrl() {
 		return announce;
@@ -27,9 +34,24 @@ public record Torrent(
 	@SuppressWarnings("unchecked")
 	public static Torrent of(Map<String, Object> root) {
 		final var announce = (String) root.get("announce");
-		final var info = TorrentInfo.of((Map<String, Object>) root.get("info"));
+		final var info = TorrentInfo.of((Map<String, Object>) root.get("info"))
+			.withPieceLayers((Map<String, Object>) root.get("piece layers"));
+
+		return new Torrent(announce, info, parseUrlList(root.get("url-list")));
+	}
 
-		return new Torrent(announce, info);
+	/** a single url is allowed instead of a list */
+	public static List<String> parseUrlList(Object value) {
+		return switch (value) {
+			case null -> List.of();
+			case String url -> url.isEmpty() ? List.of() : List.of(url);
+			case List<?> urls -> urls.stream()
+				.filter(String.class::isInstance)
+				.map(String.class::cast)
+				.filter((url) -> !url.isEmpty())
+				.toList();
+			default -> throw new IllegalArgumentException("invalid url-list: %s".formatted(value));
+		};
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,183 @@
+package bittorrent.torrent;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bittorrent.bencode.BencodeSerializer;
+import bittorrent.peer.Peer;
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+/**
+ * Build a metainfo from files on disk.
+ * Pieces are hashed in batches of consecutive pieces, each reading its files through mapped regions, so that batches can run on every core.
+ * A piece spanning two files is fed from both mappings into the same digest.
+ */
+public class TorrentCreator {
+
+	/** bytes hashed by one task, the mapped regions are never bigger */
+	public static final long BATCH_SIZE = 64 * 1024 * 1024;
+
+	private final @Getter FileLayout layout;
+	private final @Getter int pieceLength;
+
+	public TorrentCreator(FileLayout layout) {
+		this(layout, layout.choosePieceLength());
+	}
+
+	public TorrentCreator(FileLayout layout, int pieceLength) {
+		if (pieceLength < FileLayout.MINIMUM_PIECE_LENGTH || Integer.bitCount(pieceLength) != 1) {
+			throw new IllegalArgumentException("piece length must be a power of two of at least %d: %d".formatted(FileLayout.MINIMUM_PIECE_LENGTH, pieceLength));
+		}
+
+		this.layout = layout;
+		this.pieceLength = pieceLength;
+	}
+
+	public int pieceCount() {
+		return (int) ((layout.length() + pieceLength - 1) / pieceLength);
+	}
+
+	/** @return the concatenated hashes of every piece */
+	public byte[] hashPieces(int parallelism) throws IOException, InterruptedException {
+		final var pieceCount = pieceCount();
+		final var hashes = new byte[pieceCount * TorrentFile.PIECE_HASH_LENGTH];
+		final var piecesPerBatch = (int) Math.max(1, BATCH_SIZE / pieceLength);
+
+		if (parallelism <= 1) {
+			for (var first = 0; first < pieceCount; first += piecesPerBatch) {
+				hashBatch(first, Math.min(first + piecesPerBatch, pieceCount), hashes);
+			}
+
+			return hashes;
+		}
+
+		try (final var executor = Executors.newFixedThreadPool(parallelism, Thread.ofPlatform().name("piece-hasher-", 0).daemon().factory())) {
+			final List<Future<Void>> futures = new ArrayList<>();
+
+			for (var first = 0; first < pieceCount; first += piecesPerBatch) {
+				final var start = first;
+				final var end = Math.min(first + piecesPerBatch, pieceCount);
+
+				futures.add(executor.submit((Callable<Void>) () -> {
+					hashBatch(start, end, hashes);
+					return null;
+				}));
+			}
+
+			for (final var future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException exception) {
+					futures.forEach((other) -> other.cancel(true));
+
+					if (exception.getCause() instanceof IOException cause) {
+						throw cause;
+					}
+
+					throw new IllegalStateException("hashing failed", exception.getCause());
+				}
+			}
+		}
+
+		return hashes;
+	}
+
+	@SneakyThrows
+	private void hashBatch(int firstPiece, int endPiece, byte[] hashes) throws IOException {
+		final var length = layout.length();
+		final var start = (long) firstPiece * pieceLength;
+		final var end = Math.min((long) endPiece * pieceLength, length);
+
+		final var digest = MessageDigest.getInstance("SHA-1");
+		var pieceIndex = firstPiece;
+		var pieceEnd = Math.min(start + pieceLength, length);
+		var position = start;
+
+		for (final var entry : layout.overlapping(start, end)) {
+			final var regionStart = Math.max(start, entry.offset());
+			final var regionEnd = Math.min(end, entry.offset() + entry.length());
+
+			try (final var channel = FileChannel.open(entry.path(), StandardOpenOption.READ)) {
+				final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart - entry.offset(), regionEnd - regionStart);
+
+				while (buffer.hasRemaining()) {
+					final var chunk = (int) Math.min(buffer.remaining(), pieceEnd - position);
+
+					digest.update(buffer.slice(buffer.position(), chunk));
+					buffer.position(buffer.position() + chunk);
+					position += chunk;
+
+					if (position == pieceEnd) {
+						digest.digest(hashes, pieceIndex * TorrentFile.PIECE_HASH_LENGTH, TorrentFile.PIECE_HASH_LENGTH);
+
+						++pieceIndex;
+						pieceEnd = Math.min(pieceEnd + pieceLength, length);
+					}
+				}
+			}
+		}
+
+		if (pieceIndex != endPiece) {
+			throw new IllegalStateException("files changed while hashing, piece %d is incomplete".formatted(pieceIndex));
+		}
+	}
+
+	/** @param announce {@code null} for a trackerless torrent */
+	public Map<String, Object> metainfo(String announce, byte[] hashes) {
+		final var info = new TreeMap<String, Object>();
+		info.put("name", encode(layout.name()));
+		info.put("piece length", (long) pieceLength);
+		info.put("pieces", new String(hashes, StandardCharsets.ISO_8859_1));
+
+		if (layout.directory()) {
+			final var files = new ArrayList<Map<String, Object>>();
+
+			for (final var entry : layout.entries()) {
+				final var file = new TreeMap<String, Object>();
+				file.put("length", entry.length());
+				file.put("path", entry.components().stream().map(TorrentCreator::encode).toList());
+
+				files.add(file);
+			}
+
+			info.put("files", files);
+		} else {
+			info.put("length", layout.length());
+		}
+
+		/* the serializer writes the keys in iteration order, and the specification wants them sorted */
+		final var root = new TreeMap<String, Object>();
+		if (announce != null) {
+			root.put("announce", announce);
+		}
+
+		root.put("created by", Peer.VERSION);
+		root.put("creation date", Instant.now().getEpochSecond());
+		root.put("info", info);
+
+		return root;
+	}
+
+	public byte[] create(String announce, int parallelism) throws IOException, InterruptedException {
+		return new BencodeSerializer().writeAsBytes(metainfo(announce, hashPieces(parallelism)));
+	}
+
+	/** names are stored as utf-8, while the serializer writes each char as a byte */
+	private static String encode(String value) {
+		return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+	}
+
+}
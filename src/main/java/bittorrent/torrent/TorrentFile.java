@@ -0,0 +1,184 @@
+package bittorrent.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import bittorrent.bencode.BencodeScanner;
+import bittorrent.bencode.BencodeScanner.Span;
+import lombok.SneakyThrows;
+
+/**
+ * A mapped {@code .torrent} file, where only the position of the fields is known after opening.
+ * Values are decoded on first access, and piece hashes are read straight from the mapping.
+ */
+public class TorrentFile {
+
+	public static final int PIECE_HASH_LENGTH = 20;
+
+	private final BencodeScanner scanner;
+	private final Map<String, Span> root;
+	private final Span infoSpan;
+	private final Map<String, Span> info;
+	private final Span piecesContent;
+
+	private volatile byte[] hash;
+
+	private TorrentFile(ByteBuffer buffer) {
+		this.scanner = new BencodeScanner(buffer);
+		this.root = scanner.index(0);
+
+		this.infoSpan = root.get("info");
+		if (infoSpan == null) {
+			throw new IllegalArgumentException("missing info dictionary");
+		}
+
+		this.info = scanner.index(infoSpan.start());
+
+		/* absent from v2 only torrents */
+		final var pieces = info.get("pieces");
+		this.piecesContent = pieces != null ? scanner.content(pieces) : null;
+	}
+
+	public String announce() {
+		final var span = root.get("announce");
+		return span != null ? scanner.readString(span) : null;
+	}
+
+	/** @return the HTTP mirrors, possibly none */
+	public List<String> webSeeds() throws IOException {
+		final var span = root.get("url-list");
+		return Torrent.parseUrlList(span != null ? scanner.decode(span) : null);
+	}
+
+	public String name() {
+		return scanner.readString(require("name"));
+	}
+
+	/** @return the length, or {@code -1} if this is a multi file torrent */
+	public long length() {
+		final var span = info.get("length");
+		return span != null ? scanner.readNumber(span) : -1;
+	}
+
+	public int pieceLength() {
+		return (int) scanner.readNumber(require("piece length"));
+	}
+
+	/** @return the number of v1 piece hashes */
+	public int pieceCount() {
+		return piecesContent != null ? piecesContent.length() / PIECE_HASH_LENGTH : 0;
+	}
+
+	public byte[] pieceHash(int pieceIndex) {
+		if (pieceIndex < 0 || pieceIndex >= pieceCount()) {
+			throw new IndexOutOfBoundsException(pieceIndex);
+		}
+
+		final var start = piecesContent.start() + pieceIndex * PIECE_HASH_LENGTH;
+		return scanner.readBytes(new Span(start, start + PIECE_HASH_LENGTH));
+	}
+
+	/** @return a view over the mapping, hashes are read on each access */
+	public List<byte[]> pieces() {
+		return new PieceHashes();
+	}
+
+	/** the hash is computed from the raw bytes of the dictionary, without decoding it */
+	@SneakyThrows
+	public byte[] hash() {
+		var value = hash;
+
+		if (value == null) {
+			final var digest = MessageDigest.getInstance("SHA-1");
+			digest.update(scanner.slice(infoSpan));
+
+			value = hash = digest.digest();
+		}
+
+		return value;
+	}
+
+	/** @return the v2 part of a single file torrent with its piece layer, or {@code null} for a v1 torrent */
+	@SneakyThrows
+	@SuppressWarnings("unchecked")
+	public MerkleInfo merkle() {
+		final var metaVersion = info.get("meta version");
+		final var fileTree = info.get("file tree");
+		if (metaVersion == null || scanner.readNumber(metaVersion) != 2 || fileTree == null) {
+			return null;
+		}
+
+		final var digest = MessageDigest.getInstance("SHA-256");
+		digest.update(scanner.slice(infoSpan));
+
+		final var merkle = MerkleInfo.of(digest.digest(), (Map<String, Object>) scanner.decode(fileTree), pieceLength());
+		if (merkle == null) {
+			return null;
+		}
+
+		final var layers = root.get("piece layers");
+		return merkle.withPieceLayers(layers != null ? (Map<String, Object>) scanner.decode(layers) : null);
+	}
+
+	/** @return a copy of the raw info dictionary, like served to peers */
+	public byte[] metadata() {
+		return scanner.readBytes(infoSpan);
+	}
+
+	public TorrentInfo info() {
+		final var merkle = merkle();
+		if (piecesContent == null && merkle == null) {
+			throw new IllegalArgumentException("neither v1 pieces nor a single file v2 tree");
+		}
+
+		/* peers and trackers of a v2 only torrent know it by its truncated hash */
+		final var hash = piecesContent != null ? hash() : Arrays.copyOf(merkle.hash(), 20);
+		final var length = merkle != null && length() == -1 ? merkle.fileLength() : length();
+
+		return new TorrentInfo(hash, length, name(), pieceLength(), pieces(), merkle);
+	}
+
+	public Torrent toTorrent() throws IOException {
+		return new Torrent(announce(), info(), webSeeds());
+	}
+
+	private Span require(String key) {
+		final var span = info.get(key);
+		if (span == null) {
+			throw new IllegalArgumentException("missing %s in info dictionary".formatted(key));
+		}
+
+		return span;
+	}
+
+	/** the mapping stays valid after the channel is closed */
+	public static TorrentFile open(Path path) throws IOException {
+		try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new TorrentFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private class PieceHashes extends AbstractList<byte[]> implements RandomAccess {
+
+		@Override
+		public byte[] get(int index) {
+			return pieceHash(index);
+		}
+
+		@Override
+		public int size() {
+			return pieceCount();
+		}
+
+	}
+
+}
@@ -1,35 +1,93 @@
 package bittorrent.torrent;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import bittorrent.bencode.BencodeDeserializer;
 import bittorrent.util.DigestUtils;
 
+/**
+ * @param hash the v1 info hash, or the truncated v2 one for a torrent without v1 pieces
+ * @param pieces the v1 piece hashes, empty for a v2 only torrent
+ * @param merkle the v2 part of the torrent (BEP 52), or {@code null} for a v1 torrent
+ */
 public record TorrentInfo(
 	byte[] hash,
 	long length,
 	String name,
 	int pieceLength,
-	List<byte[]> pieces
+	List<byte[]> pieces,
+	MerkleInfo merkle
 ) {
 
+	public TorrentInfo(byte[] hash, long length, String name, int pieceLength, List<byte[]> pieces) {
+		this(hash, length, name, pieceLength, pieces, null);
+	}
+
+	/** @return the length of the piece, the last one is usually shorter */
+	public int pieceLength(int pieceIndex) {
+		return (int) Math.min(pieceLength, length - (long) pieceIndex * pieceLength);
+	}
+
+	public int pieceCount() {
+		if (pieces.isEmpty()) {
+			return (int) ((length + pieceLength - 1) / pieceLength);
+		}
+
+		return pieces.size();
+	}
+
+	/** @param layers the piece layers dictionary, found next to the info dictionary */
+	public TorrentInfo withPieceLayers(Map<String, Object> layers) {
+		if (merkle == null) {
+			return this;
+		}
+
+		return new TorrentInfo(hash, length, name, pieceLength, pieces, merkle.withPieceLayers(layers));
+	}
+
+	/** @param metadata a raw bencoded info dictionary */
+	@SuppressWarnings("unchecked")
+	public static TorrentInfo parse(byte[] metadata) throws IOException {
+		return of((Map<String, Object>) new BencodeDeserializer(metadata).parse());
+	}
+
+	@SuppressWarnings("unchecked")
 	public static TorrentInfo of(Map<String, Object> root) {
-		final var hash = DigestUtils.shaInfo(root);
-		final var length = (long) root.getOrDefault("length", -1l);
+		var length = (long) root.getOrDefault("length", -1l);
 		final var name = (String) root.get("name");
 		final var pieceLength = (int) (long) root.get("piece length");
 
-		final var pieceHashes = ((String) root.get("pieces")).getBytes(StandardCharsets.ISO_8859_1);
 		final var pieces = new ArrayList<byte[]>();
-		for (var start = 0; start < pieceHashes.length; start += 20) {
-			final var piece = Arrays.copyOfRange(pieceHashes, start, start + 20);
-			pieces.add(piece);
+		if (root.get("pieces") instanceof String pieceHashString) {
+			final var pieceHashes = pieceHashString.getBytes(StandardCharsets.ISO_8859_1);
+			for (var start = 0; start < pieceHashes.length; start += 20) {
+				final var piece = Arrays.copyOfRange(pieceHashes, start, start + 20);
+				pieces.add(piece);
+			}
+		}
+
+		MerkleInfo merkle = null;
+		if ((long) root.getOrDefault("meta version", 1l) == 2 && root.get("file tree") instanceof Map<?, ?> fileTree) {
+			merkle = MerkleInfo.of(DigestUtils.sha256Info(root), (Map<String, Object>) fileTree, pieceLength);
+
+			if (merkle != null && length == -1) {
+				length = merkle.fileLength();
+			}
 		}
 
-		return new TorrentInfo(hash, length, name, pieceLength, pieces);
+		if (pieces.isEmpty() && merkle == null) {
+			throw new IllegalArgumentException("neither v1 pieces nor a single file v2 tree");
+		}
+
+		/* peers and trackers of a v2 only torrent know it by its truncated hash */
+		final var hash = pieces.isEmpty() ? Arrays.copyOf(merkle.hash(), 20) : DigestUtils.shaInfo(root);
+
+		return new TorrentInfo(hash, length, name, pieceLength, pieces, merkle);
 	}
 
-}
\ No newline at end of file
+}
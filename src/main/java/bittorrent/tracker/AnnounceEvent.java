@@ -0,0 +1,22 @@
+package bittorrent.tracker;
+
+public enum AnnounceEvent {
+
+	/** regular announce performed at the tracker's interval */
+	NONE(null),
+	STARTED("started"),
+	COMPLETED("completed"),
+	STOPPED("stopped");
+
+	private final String value;
+
+	private AnnounceEvent(String value) {
+		this.value = value;
+	}
+
+	/** @return the value of the {@code event} query parameter, or {@code null} if it must be omitted */
+	public String value() {
+		return value;
+	}
+
+}
@@ -11,18 +11,26 @@ import lombok.SneakyThrows;
 
 public record AnnounceResponse(
 	long interval,
+	long minInterval,
 	List<InetSocketAddress> peers
 ) {
 
 	@SneakyThrows
-	public static AnnounceResponse of(Map<String, Object> root, short selfPort) {
+	public static AnnounceResponse of(Map<String, Object> root, int selfPort) {
 		if (Main.DEBUG) {
 			System.err.println("AnnounceResponse: %s".formatted(root));
 		}
 
+		final var failureReason = (String) root.get("failure reason");
+		if (failureReason != null) {
+			throw new IllegalStateException("tracker failure: %s".formatted(failureReason));
+		}
+
+		final var minInterval = (long) root.getOrDefault("min interval", 0l);
+
 		var interval = (Long) root.get("interval");
 		if (interval == null) {
-			interval = (long) root.get("mininterval");
+			interval = minInterval;
 		}
 
 		final var peers = new ArrayList<InetSocketAddress>();
@@ -31,9 +39,11 @@ public record AnnounceResponse(
 
 		// peers.removeIf((x) -> x.getPort() == selfPort);
 		// peers.removeIf((x) -> x.getAddress() instanceof Inet4Address);
-		System.out.println(peers);
+		if (Main.DEBUG) {
+			System.err.println(peers);
+		}
 
-		return new AnnounceResponse(interval, peers);
+		return new AnnounceResponse(interval, minInterval, peers);
 	}
 
-}
\ No newline at end of file
+}
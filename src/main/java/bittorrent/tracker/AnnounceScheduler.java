@@ -0,0 +1,205 @@
+package bittorrent.tracker;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.peer.PeerPool;
+
+/** re-announce in the background at the tracker's interval, and feed the new peers to the pool */
+public class AnnounceScheduler implements AutoCloseable {
+
+	public static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(30);
+	public static final Duration MINIMUM_INTERVAL = Duration.ofSeconds(30);
+	public static final Duration FIRST_RETRY_DELAY = Duration.ofSeconds(15);
+
+	/** below this amount of peers waiting to be tried, the {@code min interval} is used instead */
+	public static final int LOW_CANDIDATE_COUNT = 5;
+
+	private final TrackerClient trackerClient;
+	private final Announceable announceable;
+	private final TransferStatistics statistics;
+	private final PeerPool peerPool;
+	private final int port;
+	private final ScheduledExecutorService executor;
+
+	private ScheduledFuture<?> next;
+	private Duration retryDelay = FIRST_RETRY_DELAY;
+	private boolean started;
+	private boolean completed;
+	private boolean completedSent;
+	private boolean closed;
+
+	public AnnounceScheduler(TrackerClient trackerClient, Announceable announceable, TransferStatistics statistics, PeerPool peerPool) {
+		this(trackerClient, announceable, statistics, peerPool, TrackerClient.DEFAULT_PORT);
+	}
+
+	/** @param port where peers can connect to us, announced every time */
+	public AnnounceScheduler(TrackerClient trackerClient, Announceable announceable, TransferStatistics statistics, PeerPool peerPool, int port) {
+		this.trackerClient = trackerClient;
+		this.announceable = announceable;
+		this.statistics = statistics;
+		this.peerPool = peerPool;
+		this.port = port;
+		this.executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("announce-scheduler").daemon().factory());
+	}
+
+	/** announce the {@code started} event synchronously, so that the pool is filled once it returns, it is retried later on failure */
+	public AnnounceResponse start() throws IOException {
+		synchronized (this) {
+			if (started) {
+				throw new IllegalStateException("already started");
+			}
+
+			started = true;
+		}
+
+		try {
+			final var response = trackerClient.announce(announceable, AnnounceEvent.STARTED, statistics, port);
+
+			synchronized (this) {
+				onResponse(response, null);
+			}
+
+			return response;
+		} catch (IOException | RuntimeException exception) {
+			synchronized (this) {
+				/* the tracker might only be down for a moment */
+				retry(AnnounceEvent.STARTED, null);
+			}
+
+			throw exception;
+		}
+	}
+
+	/** announce the {@code completed} event, only once */
+	public synchronized void completed() {
+		if (completed || closed) {
+			return;
+		}
+
+		completed = true;
+		reschedule(AnnounceEvent.COMPLETED, Duration.ZERO);
+	}
+
+	/** the request is made outside of the lock, so that {@link #completed()} and {@link #close()} never wait for a slow tracker */
+	private void announce(AnnounceEvent event) {
+		final ScheduledFuture<?> current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			current = next;
+		}
+
+		try {
+			final var response = trackerClient.announce(announceable, event, statistics, port);
+
+			synchronized (this) {
+				if (AnnounceEvent.COMPLETED.equals(event)) {
+					completedSent = true;
+				}
+
+				onResponse(response, current);
+			}
+		} catch (Exception exception) {
+			System.err.println("announce: failed: event=%s exception=%s".formatted(event, exception));
+
+			synchronized (this) {
+				/* the tracker did not receive it, it must be sent again */
+				retry(event, current);
+			}
+		}
+	}
+
+	/** @param current what was scheduled when the request was made, the next announce is left alone if it changed meanwhile, like for the completed event */
+	private void onResponse(AnnounceResponse response, ScheduledFuture<?> current) {
+		final var added = peerPool.addAll(response.peers());
+		System.err.println("announce: peers=%d new=%d %s".formatted(response.peers().size(), added, statistics));
+
+		retryDelay = FIRST_RETRY_DELAY;
+
+		if (!closed && next == current) {
+			reschedule(AnnounceEvent.NONE, nextInterval(response));
+		}
+	}
+
+	private void retry(AnnounceEvent event, ScheduledFuture<?> current) {
+		if (closed || next != current) {
+			return;
+		}
+
+		reschedule(event, retryDelay);
+		retryDelay = min(retryDelay.multipliedBy(2), DEFAULT_INTERVAL);
+	}
+
+	private Duration nextInterval(AnnounceResponse response) {
+		var interval = response.interval() > 0 ? Duration.ofSeconds(response.interval()) : DEFAULT_INTERVAL;
+
+		if (response.minInterval() > 0 && peerPool.candidateCount() < LOW_CANDIDATE_COUNT) {
+			interval = min(interval, Duration.ofSeconds(response.minInterval()));
+		}
+
+		return max(interval, MINIMUM_INTERVAL);
+	}
+
+	private void reschedule(AnnounceEvent event, Duration delay) {
+		if (next != null) {
+			next.cancel(false);
+		}
+
+		next = executor.schedule(() -> announce(event), delay.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/** cancel the pending announce and tell the tracker that we are leaving */
+	@Override
+	public void close() {
+		final boolean sendCompleted;
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			sendCompleted = completed && !completedSent;
+
+			if (next != null) {
+				next.cancel(false);
+			}
+		}
+
+		executor.shutdownNow();
+
+		if (!started) {
+			return;
+		}
+
+		if (sendCompleted) {
+			sendQuietly(AnnounceEvent.COMPLETED);
+		}
+
+		sendQuietly(AnnounceEvent.STOPPED);
+	}
+
+	private void sendQuietly(AnnounceEvent event) {
+		try {
+			trackerClient.announce(announceable, event, statistics, port);
+		} catch (Exception exception) {
+			System.err.println("announce: could not send %s: %s".formatted(event, exception));
+		}
+	}
+
+	private static Duration min(Duration left, Duration right) {
+		return left.compareTo(right) <= 0 ? left : right;
+	}
+
+	private static Duration max(Duration left, Duration right) {
+		return left.compareTo(right) >= 0 ? left : right;
+	}
+
+}
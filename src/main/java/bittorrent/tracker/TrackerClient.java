@@ -1,8 +1,12 @@
 package bittorrent.tracker;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import bittorrent.Main;
 import bittorrent.bencode.BencodeDeserializer;
 import bittorrent.util.DigestUtils;
 import okhttp3.HttpUrl;
@@ -11,26 +15,60 @@ import okhttp3.Request;
 
 public class TrackerClient {
 
-	public final OkHttpClient client = new OkHttpClient();
+	/** the port announced when nothing listens for this torrent */
+	public static final int DEFAULT_PORT = 6881;
+
+	/** shared, so that connections to the trackers stay open between announces */
+	public final OkHttpClient client = Main.CLIENT;
+
+	/** lookups are answered from there until the tracker's interval is over */
+	private final Map<String, CachedResponse> cache = new ConcurrentHashMap<>();
+
+	/** announce without an event, or reuse the last answer for this torrent if it is still fresh */
+	public AnnounceResponse lookup(Announceable announceable) throws IOException {
+		final var key = Main.HEX_FORMAT.formatHex(announceable.getInfoHash());
+
+		final var cached = cache.get(key);
+		if (cached != null && Instant.now().isBefore(cached.expiresAt())) {
+			return cached.response();
+		}
+
+		final var response = announce(announceable);
+
+		final var interval = Duration.ofSeconds(Math.max(response.interval(), 0));
+		cache.put(key, new CachedResponse(response, Instant.now().plus(interval)));
+
+		return response;
+	}
 
-	@SuppressWarnings("unchecked")
 	public AnnounceResponse announce(Announceable announceable) throws IOException {
-		final var selfPort = (short) 6881;
+		return announce(announceable, AnnounceEvent.NONE, new TransferStatistics(announceable.getInfoLength()));
+	}
+
+	public AnnounceResponse announce(Announceable announceable, AnnounceEvent event, TransferStatistics statistics) throws IOException {
+		return announce(announceable, event, statistics, DEFAULT_PORT);
+	}
+
+	/** @param port where peers can connect to us */
+	@SuppressWarnings("unchecked")
+	public AnnounceResponse announce(Announceable announceable, AnnounceEvent event, TransferStatistics statistics, int port) throws IOException {
+		final var urlBuilder = HttpUrl.parse(announceable.getTrackerUrl())
+			.newBuilder()
+			.addEncodedQueryParameter("info_hash", DigestUtils.urlEncode(announceable.getInfoHash()))
+			.addQueryParameter("peer_id", "00112233445566778899")
+			.addQueryParameter("port", String.valueOf(port))
+			.addQueryParameter("uploaded", String.valueOf(statistics.uploaded()))
+			.addQueryParameter("downloaded", String.valueOf(statistics.downloaded()))
+			.addQueryParameter("left", String.valueOf(statistics.left()))
+			.addQueryParameter("compact", "1");
+
+		if (event.value() != null) {
+			urlBuilder.addQueryParameter("event", event.value());
+		}
 
 		final var request = new Request.Builder()
 			.get()
-			.url(
-				HttpUrl.parse(announceable.getTrackerUrl())
-					.newBuilder()
-					.addEncodedQueryParameter("info_hash", DigestUtils.urlEncode(announceable.getInfoHash()))
-					.addQueryParameter("peer_id", "00112233445566778899")
-					.addQueryParameter("port", String.valueOf(selfPort))
-					.addQueryParameter("uploaded", "0")
-					.addQueryParameter("downloaded", "0")
-					.addQueryParameter("left", String.valueOf(announceable.getInfoLength()))
-					.addQueryParameter("compact", "1")
-					.build()
-			)
+			.url(urlBuilder.build())
 			.build();
 
 		try (
@@ -45,9 +83,14 @@ public class TrackerClient {
 				final var deserializer = new BencodeDeserializer(inputStream);
 				final var root = deserializer.parse();
 
-				return AnnounceResponse.of((Map<String, Object>) root, selfPort);
+				return AnnounceResponse.of((Map<String, Object>) root, port);
 			}
 		}
 	}
 
-}
\ No newline at end of file
+	private record CachedResponse(
+		AnnounceResponse response,
+		Instant expiresAt
+	) {}
+
+}
@@ -0,0 +1,48 @@
+package bittorrent.tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TransferStatistics {
+
+	private final LongAdder uploaded = new LongAdder();
+	private final LongAdder downloaded = new LongAdder();
+	private final AtomicLong left;
+
+	public TransferStatistics(long left) {
+		this.left = new AtomicLong(left);
+	}
+
+	public void addUploaded(long bytes) {
+		uploaded.add(bytes);
+	}
+
+	/** count verified bytes, the amount left is decreased by the same amount */
+	public void addDownloaded(long bytes) {
+		downloaded.add(bytes);
+		left.updateAndGet((previous) -> Math.max(0, previous - bytes));
+	}
+
+	/** used once the real size is known, like after the metadata exchange of a magnet */
+	public void setLeft(long bytes) {
+		left.set(bytes);
+	}
+
+	public long uploaded() {
+		return uploaded.sum();
+	}
+
+	public long downloaded() {
+		return downloaded.sum();
+	}
+
+	public long left() {
+		return left.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TransferStatistics[uploaded=%d, downloaded=%d, left=%d]".formatted(uploaded(), downloaded(), left());
+	}
+
+}
@@ -0,0 +1,35 @@
+package bittorrent.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+
+/** try the first transport, and the second one if the peer does not answer, like uTP then TCP */
+public class FallbackTransport implements Transport {
+
+	private final Transport primary;
+	private final Transport fallback;
+
+	public FallbackTransport(Transport primary, Transport fallback) {
+		this.primary = primary;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public Socket connect(InetSocketAddress address, Duration timeout) throws IOException {
+		try {
+			return primary.connect(address, timeout);
+		} catch (IOException exception) {
+			System.err.println("transport: %s to %s failed, trying %s: %s".formatted(primary, address, fallback, exception));
+
+			return fallback.connect(address, timeout);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "%s,%s".formatted(primary, fallback);
+	}
+
+}
@@ -0,0 +1,31 @@
+package bittorrent.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+
+public class TcpTransport implements Transport {
+
+	public static final TcpTransport INSTANCE = new TcpTransport();
+
+	@Override
+	public Socket connect(InetSocketAddress address, Duration timeout) throws IOException {
+		final var socket = new Socket();
+
+		try {
+			socket.connect(address, (int) timeout.toMillis());
+		} catch (IOException exception) {
+			socket.close();
+			throw exception;
+		}
+
+		return socket;
+	}
+
+	@Override
+	public String toString() {
+		return "tcp";
+	}
+
+}
@@ -0,0 +1,13 @@
+package bittorrent.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+
+/** how connections to peers are opened, the wire protocol runs on top of the returned socket */
+public interface Transport {
+
+	Socket connect(InetSocketAddress address, Duration timeout) throws IOException;
+
+}
@@ -0,0 +1,96 @@
+package bittorrent.transport;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+
+import bittorrent.transport.utp.UtpTransport;
+import lombok.experimental.UtilityClass;
+
+/**
+ * The transports used to reach peers, set with the {@code bittorrent.transport} system property.
+ * It lists {@code tcp} and {@code utp} by preference, like {@code utp,tcp} to try uTP first, and TCP if the peer does not answer.
+ * uTP takes any free UDP port if its own is taken, and is left out if none can be opened.
+ */
+@UtilityClass
+public class Transports {
+
+	public static final String PROPERTY = "bittorrent.transport";
+
+	/** uTP listens on this port, by default the same number as the TCP one */
+	public static final String UTP_PORT_PROPERTY = "bittorrent.utp.port";
+
+	/** resolved on the first connection, so that no port is opened unless uTP is used */
+	public static final Transport DEFAULT = (address, timeout) -> resolve().connect(address, timeout);
+
+	private static Transport resolved;
+	private static UtpTransport utp;
+
+	public static synchronized Transport resolve() throws IOException {
+		if (resolved == null) {
+			resolved = parse(System.getProperty(PROPERTY, "tcp"));
+		}
+
+		return resolved;
+	}
+
+	/** @return {@code null} if uTP is not enabled */
+	public static synchronized UtpTransport getUtp() throws IOException {
+		resolve();
+		return utp;
+	}
+
+	public static boolean isUtpEnabled() {
+		return System.getProperty(PROPERTY, "tcp").contains("utp");
+	}
+
+	/** a transport that cannot be opened is left out, so that the others still work */
+	private static Transport parse(String value) {
+		final var transports = new ArrayList<Transport>();
+
+		for (final var name : value.split(",")) {
+			final var transport = switch (name.strip()) {
+				case "tcp" -> TcpTransport.INSTANCE;
+				case "utp" -> openUtp();
+				default -> throw new IllegalArgumentException("unknown transport: %s".formatted(name));
+			};
+
+			if (transport != null) {
+				transports.add(transport);
+			}
+		}
+
+		if (transports.isEmpty()) {
+			throw new IllegalStateException("no transport could be opened in: %s".formatted(value));
+		}
+
+		var transport = transports.getLast();
+		for (var index = transports.size() - 2; index >= 0; --index) {
+			transport = new FallbackTransport(transports.get(index), transport);
+		}
+
+		return transport;
+	}
+
+	/** @return {@code null} if no UDP port could be opened */
+	private static UtpTransport openUtp() {
+		if (utp == null) {
+			final var port = Integer.getInteger(UTP_PORT_PROPERTY, 6881);
+
+			try {
+				try {
+					utp = UtpTransport.open(port);
+				} catch (BindException exception) {
+					/* like when the DHT already listens on it */
+					System.err.println("transport: udp port %d is taken, using another one for utp".formatted(port));
+					utp = UtpTransport.open(0);
+				}
+			} catch (IOException exception) {
+				System.err.println("transport: could not open utp, going without it: %s".formatted(exception));
+			}
+		}
+
+		return utp;
+	}
+
+}
@@ -0,0 +1,28 @@
+package bittorrent.transport.utp;
+
+import java.time.Duration;
+
+/**
+ * Network faults applied to outgoing datagrams, to exercise the retransmissions and the congestion control over the loopback.
+ * @param lossRate probability of dropping a datagram, between 0 and 1
+ * @param jitter random extra delay, up to this value, which also reorders datagrams
+ */
+public record Impairment(
+	double lossRate,
+	Duration delay,
+	Duration jitter
+) {
+
+	public static final Impairment NONE = new Impairment(0, Duration.ZERO, Duration.ZERO);
+
+	public Impairment {
+		if (lossRate < 0 || lossRate > 1) {
+			throw new IllegalArgumentException("loss rate must be between 0 and 1: %s".formatted(lossRate));
+		}
+	}
+
+	public boolean isNone() {
+		return lossRate == 0 && delay.isZero() && jitter.isZero();
+	}
+
+}
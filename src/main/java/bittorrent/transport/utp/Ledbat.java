@@ -0,0 +1,95 @@
+package bittorrent.transport.utp;
+
+import java.util.Arrays;
+
+/**
+ * Delay based congestion window, as described by LEDBAT and used by libutp.
+ * The window grows while the one way delay stays under the target, and shrinks as soon as queues build up, so that the transfer yields to interactive traffic.
+ * Delays are in microseconds, windows in bytes.
+ */
+class Ledbat {
+
+	static final long TARGET_DELAY = 100_000;
+	static final long MAXIMUM_INCREASE_PER_RTT = 3000;
+	static final int MINIMUM_WINDOW = UtpConnection.MAXIMUM_PACKET_SIZE;
+	static final int MAXIMUM_WINDOW = 1024 * 1024;
+
+	/** the base delay is the minimum over the last minutes, so that a clock drift or a route change is forgotten */
+	private static final long BASE_DELAY_SLOT_MICROSECONDS = 60_000_000;
+	private static final int BASE_DELAY_SLOTS = 2;
+
+	private final long[] baseDelays = new long[BASE_DELAY_SLOTS];
+	private long baseDelaySlotStart;
+	private int baseDelaySlot;
+	private long lastDelay = -1;
+
+	private double window = 2 * MINIMUM_WINDOW;
+
+	Ledbat() {
+		Arrays.fill(baseDelays, Long.MAX_VALUE);
+	}
+
+	int window() {
+		return (int) window;
+	}
+
+	/** @return the delay above the base, or {@code -1} if unknown */
+	long queuingDelay() {
+		final var base = baseDelay();
+		return lastDelay < 0 || base == Long.MAX_VALUE ? -1 : lastDelay - base;
+	}
+
+	/**
+	 * @param acknowledgedBytes bytes newly acknowledged by the packet
+	 * @param delay one way delay of our packets, as measured by the remote, or {@code -1}
+	 * @param now in microseconds
+	 */
+	void onAcknowledged(int acknowledgedBytes, long delay, long now) {
+		if (acknowledgedBytes <= 0) {
+			return;
+		}
+
+		var delayFactor = 1d;
+		if (delay >= 0) {
+			updateBaseDelay(delay, now);
+			lastDelay = delay;
+
+			final var queuingDelay = delay - baseDelay();
+			delayFactor = (TARGET_DELAY - queuingDelay) / (double) TARGET_DELAY;
+		}
+
+		final var windowFactor = Math.min(acknowledgedBytes, window) / Math.max(window, acknowledgedBytes);
+		window += MAXIMUM_INCREASE_PER_RTT * windowFactor * delayFactor;
+		window = Math.clamp(window, MINIMUM_WINDOW, MAXIMUM_WINDOW);
+	}
+
+	/** a packet was lost, while others still arrive */
+	void onLoss() {
+		window = Math.max(window / 2, MINIMUM_WINDOW);
+	}
+
+	/** nothing came back before the retransmission timeout */
+	void onTimeout() {
+		window = MINIMUM_WINDOW;
+	}
+
+	private void updateBaseDelay(long delay, long now) {
+		if (now - baseDelaySlotStart > BASE_DELAY_SLOT_MICROSECONDS) {
+			baseDelaySlotStart = now;
+			baseDelaySlot = (baseDelaySlot + 1) % BASE_DELAY_SLOTS;
+			baseDelays[baseDelaySlot] = Long.MAX_VALUE;
+		}
+
+		baseDelays[baseDelaySlot] = Math.min(baseDelays[baseDelaySlot], delay);
+	}
+
+	private long baseDelay() {
+		var minimum = Long.MAX_VALUE;
+		for (final var baseDelay : baseDelays) {
+			minimum = Math.min(minimum, baseDelay);
+		}
+
+		return minimum;
+	}
+
+}
@@ -0,0 +1,663 @@
+package bittorrent.transport.utp;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * State of a single uTP connection.
+ * Packets are only sent and received by the thread of the transport, while the application reads and writes from its own threads, everything under the monitor of the connection.
+ * Times are in microseconds.
+ */
+class UtpConnection {
+
+	static final int MAXIMUM_PACKET_SIZE = 1400;
+	static final int MAXIMUM_SELECTIVE_ACK = 32;
+	static final int MAXIMUM_PAYLOAD = MAXIMUM_PACKET_SIZE - UtpPacket.HEADER_SIZE - 2 - MAXIMUM_SELECTIVE_ACK;
+
+	static final int SEND_BUFFER = 1024 * 1024;
+	static final int RECEIVE_BUFFER = 1024 * 1024;
+
+	/** packets received too far ahead are dropped instead of being buffered */
+	static final int MAXIMUM_OUT_OF_ORDER = MAXIMUM_SELECTIVE_ACK * 8;
+
+	/** an unacknowledged packet followed by that many acknowledged ones is considered lost */
+	static final int DUPLICATE_ACKS = 3;
+	static final int MAXIMUM_TRANSMISSIONS = 8;
+
+	static final long INITIAL_TIMEOUT = 1_000_000;
+	static final long MINIMUM_TIMEOUT = 500_000;
+	static final long MAXIMUM_TIMEOUT = 60_000_000;
+
+	/** pacing assumes at least this round trip, so that the loopback is not flooded in a single burst */
+	static final long MINIMUM_PACING_RTT = 10_000;
+
+	/** how long to wait for the remote to close too, once our end is closed and acknowledged */
+	static final long LINGER = 5_000_000;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final UtpTransport transport;
+	private final InetSocketAddress address;
+	private final int receiveId;
+	private final int sendId;
+	private final Ledbat ledbat = new Ledbat();
+
+	private State state;
+	private String failure;
+
+	/** next sequence number to use */
+	private int sequenceNumber;
+
+	/** last sequence number received in order */
+	private int acknowledgementNumber;
+
+	private final ArrayDeque<Outgoing> inFlight = new ArrayDeque<>();
+	private int inFlightBytes;
+	private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+	private int pendingOffset;
+	private int pendingBytes;
+
+	private final Map<Integer, UtpPacket> outOfOrder = new HashMap<>();
+	private final ArrayDeque<byte[]> readable = new ArrayDeque<>();
+	private int readableOffset;
+	private int readableBytes;
+	private boolean endOfStream;
+
+	private long rtt = -1;
+	private long rttVariance;
+	private long timeout = INITIAL_TIMEOUT;
+	private long lastReceivedAt;
+	private long lastLossAt;
+	private int replyMicroseconds;
+	private long peerWindow = Ledbat.MINIMUM_WINDOW;
+	private int lastAcknowledgementNumber = -1;
+	private int duplicateAcks;
+	private boolean ackNeeded;
+
+	private long retransmissions;
+
+	private double pacingBudget;
+	private long lastTickAt;
+
+	private boolean closing;
+	private boolean finSent;
+	private boolean finAcknowledged;
+	private long finSentAt;
+
+	private UtpConnection(UtpTransport transport, InetSocketAddress address, int receiveId, int sendId, State state, long now) {
+		this.transport = transport;
+		this.address = address;
+		this.receiveId = receiveId;
+		this.sendId = sendId;
+		this.state = state;
+		this.lastReceivedAt = now;
+		this.lastTickAt = now;
+	}
+
+	/** the syn is sent on the next tick of the transport */
+	static UtpConnection connect(UtpTransport transport, InetSocketAddress address, int receiveId, long now) {
+		final var connection = new UtpConnection(transport, address, receiveId, (receiveId + 1) & UtpPacket.SEQUENCE_MASK, State.SYN_SENT, now);
+		connection.sequenceNumber = 1;
+		connection.queue(UtpPacket.ST_SYN, EMPTY);
+
+		return connection;
+	}
+
+	static UtpConnection accept(UtpTransport transport, InetSocketAddress address, UtpPacket syn, long now) {
+		final var connection = new UtpConnection(transport, address, (syn.connectionId() + 1) & UtpPacket.SEQUENCE_MASK, syn.connectionId(), State.CONNECTED, now);
+		connection.sequenceNumber = ThreadLocalRandom.current().nextInt(UtpPacket.SEQUENCE_MASK + 1);
+		connection.acknowledgementNumber = syn.sequenceNumber();
+		connection.onPacket(syn, now);
+
+		return connection;
+	}
+
+	InetSocketAddress address() {
+		return address;
+	}
+
+	int receiveId() {
+		return receiveId;
+	}
+
+	synchronized void onPacket(UtpPacket packet, long now) {
+		lastReceivedAt = now;
+		replyMicroseconds = (int) now - packet.timestamp();
+		peerWindow = Integer.toUnsignedLong(packet.windowSize());
+
+		switch (packet.type()) {
+			case UtpPacket.ST_RESET -> {
+				fail("connection reset by peer");
+				return;
+			}
+
+			case UtpPacket.ST_SYN -> {
+				/* our state packet was lost */
+				ackNeeded = true;
+				return;
+			}
+
+			default -> {}
+		}
+
+		if (state == State.SYN_SENT) {
+			if (packet.type() != UtpPacket.ST_STATE) {
+				return;
+			}
+
+			/* the state does not use a sequence number, the first data packet will have the same one */
+			state = State.CONNECTED;
+			acknowledgementNumber = (packet.sequenceNumber() - 1) & UtpPacket.SEQUENCE_MASK;
+		}
+
+		onAcknowledgement(packet, now);
+
+		if (packet.type() == UtpPacket.ST_DATA || packet.type() == UtpPacket.ST_FIN) {
+			onData(packet);
+		}
+
+		notifyAll();
+	}
+
+	private void onAcknowledgement(UtpPacket packet, long now) {
+		final var acknowledgement = packet.acknowledgementNumber();
+
+		var acknowledgedBytes = 0;
+		var sample = -1l;
+		for (final var outgoing : inFlight) {
+			if (outgoing.acknowledged || outgoing.transmissions == 0) {
+				continue;
+			}
+
+			if (UtpPacket.notAfter(outgoing.sequenceNumber, acknowledgement) || isSelectivelyAcknowledged(packet, outgoing.sequenceNumber)) {
+				outgoing.acknowledged = true;
+				acknowledgedBytes += outgoing.payload.length;
+				inFlightBytes -= outgoing.payload.length;
+
+				/* only packets sent once tell the round trip, as an acknowledgement cannot be matched to a retransmission */
+				if (outgoing.transmissions == 1) {
+					sample = now - outgoing.sentAt;
+				}
+
+				if (outgoing.type == UtpPacket.ST_FIN) {
+					finAcknowledged = true;
+				}
+			}
+		}
+
+		if (sample >= 0) {
+			updateRtt(sample);
+		}
+
+		final var delay = Integer.toUnsignedLong(packet.timestampDifference());
+		ledbat.onAcknowledged(acknowledgedBytes, delay != 0 ? delay : -1, now);
+
+		while (!inFlight.isEmpty() && inFlight.peekFirst().acknowledged) {
+			inFlight.removeFirst();
+		}
+
+		var lost = false;
+		if (acknowledgedBytes == 0 && packet.type() == UtpPacket.ST_STATE && acknowledgement == lastAcknowledgementNumber && !inFlight.isEmpty()) {
+			if (++duplicateAcks == DUPLICATE_ACKS) {
+				lost |= markLost(inFlight.peekFirst());
+			}
+		} else if (acknowledgedBytes != 0) {
+			duplicateAcks = 0;
+		}
+
+		lastAcknowledgementNumber = acknowledgement;
+
+		var acknowledgedAfter = 0;
+		for (final var iterator = inFlight.descendingIterator(); iterator.hasNext();) {
+			final var outgoing = iterator.next();
+
+			if (outgoing.acknowledged) {
+				++acknowledgedAfter;
+			} else if (acknowledgedAfter >= DUPLICATE_ACKS) {
+				lost |= markLost(outgoing);
+			}
+		}
+
+		/* a single reduction per round trip, however many packets were lost */
+		if (lost && now - lastLossAt > Math.max(rtt, MINIMUM_TIMEOUT)) {
+			ledbat.onLoss();
+			lastLossAt = now;
+		}
+	}
+
+	private boolean markLost(Outgoing outgoing) {
+		if (outgoing.resend || outgoing.transmissions == 0) {
+			return false;
+		}
+
+		outgoing.resend = true;
+		return true;
+	}
+
+	private void updateRtt(long sample) {
+		if (rtt < 0) {
+			rtt = sample;
+			rttVariance = sample / 2;
+		} else {
+			rttVariance += (Math.abs(rtt - sample) - rttVariance) / 4;
+			rtt += (sample - rtt) / 8;
+		}
+
+		timeout = Math.clamp(rtt + 4 * rttVariance, MINIMUM_TIMEOUT, MAXIMUM_TIMEOUT);
+	}
+
+	private void onData(UtpPacket packet) {
+		ackNeeded = true;
+
+		if (endOfStream) {
+			return;
+		}
+
+		final var expected = (acknowledgementNumber + 1) & UtpPacket.SEQUENCE_MASK;
+		final var distance = UtpPacket.distance(expected, packet.sequenceNumber());
+
+		/* an old duplicate, its acknowledgement was probably lost */
+		if (distance >= 0x8000) {
+			return;
+		}
+
+		if (distance != 0) {
+			if (distance < MAXIMUM_OUT_OF_ORDER) {
+				outOfOrder.putIfAbsent(packet.sequenceNumber(), packet);
+			}
+
+			return;
+		}
+
+		deliver(packet);
+
+		UtpPacket next;
+		while (!endOfStream && (next = outOfOrder.remove((acknowledgementNumber + 1) & UtpPacket.SEQUENCE_MASK)) != null) {
+			deliver(next);
+		}
+	}
+
+	private void deliver(UtpPacket packet) {
+		acknowledgementNumber = packet.sequenceNumber();
+
+		if (packet.type() == UtpPacket.ST_FIN) {
+			endOfStream = true;
+			outOfOrder.clear();
+		} else if (packet.payload().length != 0) {
+			readable.add(packet.payload());
+			readableBytes += packet.payload().length;
+		}
+	}
+
+	/** @return {@code true} once the connection is over and can be forgotten */
+	synchronized boolean tick(long now) {
+		if (state == State.RESET || state == State.CLOSED) {
+			return true;
+		}
+
+		final var oldest = inFlight.peekFirst();
+		if (oldest != null && oldest.transmissions != 0 && !oldest.resend && now - oldest.sentAt > timeout) {
+			if (oldest.transmissions >= MAXIMUM_TRANSMISSIONS) {
+				fail(state == State.SYN_SENT ? "connection timed out" : "too many retransmissions");
+				return true;
+			}
+
+			oldest.resend = true;
+			ledbat.onTimeout();
+			timeout = Math.min(timeout * 2, MAXIMUM_TIMEOUT);
+		}
+
+		final var pacingRtt = Math.max(rtt, MINIMUM_PACING_RTT);
+		final var window = (int) Math.min(ledbat.window(), peerWindow);
+		pacingBudget = Math.min(pacingBudget + (double) window * (now - lastTickAt) / pacingRtt, Math.max(window, 2 * MAXIMUM_PACKET_SIZE));
+		lastTickAt = now;
+
+		for (final var outgoing : inFlight) {
+			if (pacingBudget <= 0) {
+				break;
+			}
+
+			if (outgoing.resend && !outgoing.acknowledged) {
+				transmit(outgoing, now);
+			}
+		}
+
+		final var pendingBefore = pendingBytes;
+		while (state == State.CONNECTED && pendingBytes != 0 && pacingBudget > 0 && inFlight.size() < MAXIMUM_OUT_OF_ORDER * 4) {
+			final var size = Math.min(pendingBytes, MAXIMUM_PAYLOAD);
+
+			/* a single packet always goes, to probe a closed window */
+			if (inFlightBytes != 0 && inFlightBytes + size > window) {
+				break;
+			}
+
+			transmit(queue(UtpPacket.ST_DATA, takePending(size)), now);
+		}
+
+		if (pendingBytes != pendingBefore) {
+			notifyAll();
+		}
+
+		if (closing && !finSent && pendingBytes == 0 && state == State.CONNECTED) {
+			transmit(queue(UtpPacket.ST_FIN, EMPTY), now);
+			finSent = true;
+			finSentAt = now;
+		}
+
+		if (ackNeeded) {
+			send(UtpPacket.ST_STATE, sequenceNumber, EMPTY, now);
+		}
+
+		if (finSent && finAcknowledged && (endOfStream || now - finSentAt > LINGER)) {
+			state = State.CLOSED;
+			notifyAll();
+			return true;
+		}
+
+		return false;
+	}
+
+	private Outgoing queue(int type, byte[] payload) {
+		final var outgoing = new Outgoing(type, sequenceNumber, payload);
+		sequenceNumber = (sequenceNumber + 1) & UtpPacket.SEQUENCE_MASK;
+
+		inFlight.add(outgoing);
+		inFlightBytes += payload.length;
+
+		return outgoing;
+	}
+
+	private void transmit(Outgoing outgoing, long now) {
+		outgoing.sentAt = now;
+		outgoing.resend = false;
+		if (++outgoing.transmissions > 1) {
+			++retransmissions;
+		}
+
+		send(outgoing.type, outgoing.sequenceNumber, outgoing.payload, now);
+	}
+
+	/** every packet carries the acknowledgement */
+	private void send(int type, int sequenceNumber, byte[] payload, long now) {
+		final var packet = new UtpPacket(
+			type,
+			type == UtpPacket.ST_SYN ? receiveId : sendId,
+			(int) now,
+			replyMicroseconds,
+			Math.max(0, RECEIVE_BUFFER - readableBytes),
+			sequenceNumber,
+			acknowledgementNumber,
+			type == UtpPacket.ST_SYN ? null : selectiveAck(),
+			payload
+		);
+
+		transport.send(packet, address);
+
+		pacingBudget -= packet.size();
+		ackNeeded = false;
+	}
+
+	/** @return the bitmask of the packets received after the missing one, or {@code null} if none */
+	private byte[] selectiveAck() {
+		if (outOfOrder.isEmpty()) {
+			return null;
+		}
+
+		final var first = (acknowledgementNumber + 2) & UtpPacket.SEQUENCE_MASK;
+
+		var maximum = 0;
+		for (final var sequenceNumber : outOfOrder.keySet()) {
+			maximum = Math.max(maximum, UtpPacket.distance(first, sequenceNumber));
+		}
+
+		final var mask = new byte[Math.min((maximum / 32 + 1) * 4, MAXIMUM_SELECTIVE_ACK)];
+		for (final var sequenceNumber : outOfOrder.keySet()) {
+			final var bit = UtpPacket.distance(first, sequenceNumber);
+
+			if (bit < mask.length * 8) {
+				mask[bit >>> 3] |= (byte) (1 << (bit & 7));
+			}
+		}
+
+		return mask;
+	}
+
+	private static boolean isSelectivelyAcknowledged(UtpPacket packet, int sequenceNumber) {
+		final var mask = packet.selectiveAck();
+		if (mask == null) {
+			return false;
+		}
+
+		final var bit = UtpPacket.distance((packet.acknowledgementNumber() + 2) & UtpPacket.SEQUENCE_MASK, sequenceNumber);
+		return bit < mask.length * 8 && (mask[bit >>> 3] & (1 << (bit & 7))) != 0;
+	}
+
+	private byte[] takePending(int size) {
+		final var payload = new byte[size];
+
+		var offset = 0;
+		while (offset < size) {
+			final var chunk = pending.peekFirst();
+			final var length = Math.min(chunk.length - pendingOffset, size - offset);
+
+			System.arraycopy(chunk, pendingOffset, payload, offset, length);
+			offset += length;
+			pendingOffset += length;
+
+			if (pendingOffset == chunk.length) {
+				pending.removeFirst();
+				pendingOffset = 0;
+			}
+		}
+
+		pendingBytes -= size;
+		return payload;
+	}
+
+	synchronized int read(byte[] buffer, int offset, int length, int timeoutMillis) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		final var deadline = System.nanoTime() + Duration.ofMillis(timeoutMillis).toNanos();
+		while (readableBytes == 0) {
+			if (endOfStream || state == State.CLOSED) {
+				return -1;
+			}
+
+			checkFailure();
+
+			if (timeoutMillis == 0) {
+				waitUninterruptibly(0);
+			} else {
+				final var remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("read timed out");
+				}
+
+				waitUninterruptibly(Math.max(1, Duration.ofNanos(remaining).toMillis()));
+			}
+		}
+
+		final var windowWasSmall = RECEIVE_BUFFER - readableBytes < MAXIMUM_PACKET_SIZE;
+
+		var read = 0;
+		while (read < length && readableBytes != 0) {
+			final var chunk = readable.peekFirst();
+			final var count = Math.min(chunk.length - readableOffset, length - read);
+
+			System.arraycopy(chunk, readableOffset, buffer, offset + read, count);
+			read += count;
+			readableOffset += count;
+			readableBytes -= count;
+
+			if (readableOffset == chunk.length) {
+				readable.removeFirst();
+				readableOffset = 0;
+			}
+		}
+
+		/* tell the remote that it can send again */
+		if (windowWasSmall) {
+			ackNeeded = true;
+			transport.wakeup();
+		}
+
+		return read;
+	}
+
+	synchronized int available() {
+		return readableBytes;
+	}
+
+	synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			while (pendingBytes >= SEND_BUFFER && isOpen()) {
+				waitUninterruptibly(0);
+			}
+
+			if (closing) {
+				throw new SocketException("socket closed");
+			}
+
+			checkFailure();
+
+			final var chunk = Math.min(length, SEND_BUFFER - pendingBytes);
+			pending.add(Arrays.copyOfRange(buffer, offset, offset + chunk));
+			pendingBytes += chunk;
+
+			offset += chunk;
+			length -= chunk;
+
+			transport.wakeup();
+		}
+	}
+
+	synchronized void awaitConnected(Duration timeout) throws IOException {
+		final var deadline = System.nanoTime() + timeout.toNanos();
+
+		while (state == State.SYN_SENT) {
+			final var remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				fail("connect timed out");
+				throw new SocketTimeoutException("connect timed out");
+			}
+
+			waitUninterruptibly(Math.max(1, Duration.ofNanos(remaining).toMillis()));
+		}
+
+		if (state == State.RESET) {
+			throw new ConnectException(failure);
+		}
+	}
+
+	/** pending data is still sent, followed by a fin */
+	synchronized void close() {
+		if (closing) {
+			return;
+		}
+
+		closing = true;
+		if (state == State.SYN_SENT) {
+			state = State.CLOSED;
+		}
+
+		notifyAll();
+		transport.wakeup();
+	}
+
+	synchronized boolean isClosing() {
+		return closing;
+	}
+
+	synchronized boolean isConnected() {
+		return state == State.CONNECTED;
+	}
+
+	synchronized void fail(String reason) {
+		if (state == State.RESET || state == State.CLOSED) {
+			return;
+		}
+
+		state = State.RESET;
+		failure = reason;
+		notifyAll();
+	}
+
+	private boolean isOpen() {
+		return !closing && state != State.RESET && state != State.CLOSED;
+	}
+
+	private void checkFailure() throws SocketException {
+		if (state == State.RESET) {
+			throw new SocketException(failure);
+		}
+	}
+
+	private void waitUninterruptibly(long millis) throws IOException {
+		try {
+			wait(millis);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new SocketException("interrupted");
+		}
+	}
+
+	synchronized Statistics statistics() {
+		return new Statistics(ledbat.window(), rtt, ledbat.queuingDelay(), inFlight.size(), inFlightBytes, retransmissions);
+	}
+
+	@Override
+	public String toString() {
+		return "UtpConnection[address=%s, receiveId=%d, state=%s]".formatted(address, receiveId, state);
+	}
+
+	enum State {
+
+		SYN_SENT,
+		CONNECTED,
+		CLOSED,
+		RESET;
+
+	}
+
+	/** @param rtt in microseconds, or {@code -1} if unknown */
+	public record Statistics(
+		int window,
+		long rtt,
+		long queuingDelay,
+		int packetsInFlight,
+		int bytesInFlight,
+		long retransmissions
+	) {}
+
+	private static class Outgoing {
+
+		private final int type;
+		private final int sequenceNumber;
+		private final byte[] payload;
+		private long sentAt;
+		private int transmissions;
+		private boolean acknowledged;
+
+		/** waiting to be sent again, or for the first time */
+		private boolean resend = true;
+
+		Outgoing(int type, int sequenceNumber, byte[] payload) {
+			this.type = type;
+			this.sequenceNumber = sequenceNumber;
+			this.payload = payload;
+		}
+
+	}
+
+}
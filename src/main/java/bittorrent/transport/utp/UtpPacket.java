@@ -0,0 +1,135 @@
+package bittorrent.transport.utp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A uTP packet, as described by BEP 29.
+ * Numbers are kept unsigned in ints, sequence numbers wrap at 16 bits.
+ * @param selectiveAck bitmask of the packets received after {@code acknowledgementNumber + 1}, or {@code null}
+ */
+public record UtpPacket(
+	int type,
+	int connectionId,
+	int timestamp,
+	int timestampDifference,
+	int windowSize,
+	int sequenceNumber,
+	int acknowledgementNumber,
+	byte[] selectiveAck,
+	byte[] payload
+) {
+
+	public static final int ST_DATA = 0;
+	public static final int ST_FIN = 1;
+	public static final int ST_STATE = 2;
+	public static final int ST_RESET = 3;
+	public static final int ST_SYN = 4;
+
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+
+	public static final int EXTENSION_NONE = 0;
+	public static final int EXTENSION_SELECTIVE_ACK = 1;
+
+	public static final int SEQUENCE_MASK = 0xffff;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	public int size() {
+		return HEADER_SIZE + (selectiveAck != null ? 2 + selectiveAck.length : 0) + payload.length;
+	}
+
+	public void write(ByteBuffer buffer) {
+		buffer.put((byte) ((type << 4) | VERSION));
+		buffer.put((byte) (selectiveAck != null ? EXTENSION_SELECTIVE_ACK : EXTENSION_NONE));
+		buffer.putShort((short) connectionId);
+		buffer.putInt(timestamp);
+		buffer.putInt(timestampDifference);
+		buffer.putInt(windowSize);
+		buffer.putShort((short) sequenceNumber);
+		buffer.putShort((short) acknowledgementNumber);
+
+		if (selectiveAck != null) {
+			buffer.put((byte) EXTENSION_NONE);
+			buffer.put((byte) selectiveAck.length);
+			buffer.put(selectiveAck);
+		}
+
+		buffer.put(payload);
+	}
+
+	/** @throws IllegalArgumentException if this is not a uTP packet */
+	public static UtpPacket read(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_SIZE) {
+			throw new IllegalArgumentException("too short: %d".formatted(buffer.remaining()));
+		}
+
+		final var typeAndVersion = buffer.get() & 0xff;
+		final var type = typeAndVersion >>> 4;
+		if ((typeAndVersion & 0xf) != VERSION || type > ST_SYN) {
+			throw new IllegalArgumentException("unknown type or version: %#x".formatted(typeAndVersion));
+		}
+
+		var extension = buffer.get() & 0xff;
+		final var connectionId = buffer.getShort() & 0xffff;
+		final var timestamp = buffer.getInt();
+		final var timestampDifference = buffer.getInt();
+		final var windowSize = buffer.getInt();
+		final var sequenceNumber = buffer.getShort() & 0xffff;
+		final var acknowledgementNumber = buffer.getShort() & 0xffff;
+
+		byte[] selectiveAck = null;
+		while (extension != EXTENSION_NONE) {
+			if (buffer.remaining() < 2) {
+				throw new IllegalArgumentException("truncated extension");
+			}
+
+			final var next = buffer.get() & 0xff;
+			final var length = buffer.get() & 0xff;
+			if (buffer.remaining() < length) {
+				throw new IllegalArgumentException("truncated extension");
+			}
+
+			final var content = new byte[length];
+			buffer.get(content);
+
+			if (extension == EXTENSION_SELECTIVE_ACK) {
+				selectiveAck = content;
+			}
+
+			extension = next;
+		}
+
+		final var payload = buffer.hasRemaining() ? new byte[buffer.remaining()] : EMPTY;
+		buffer.get(payload);
+
+		return new UtpPacket(type, connectionId, timestamp, timestampDifference, windowSize, sequenceNumber, acknowledgementNumber, selectiveAck, payload);
+	}
+
+	/** @return how far {@code to} is after {@code from}, wrapping */
+	public static int distance(int from, int to) {
+		return (to - from) & SEQUENCE_MASK;
+	}
+
+	/** @return {@code true} if {@code a} comes before or is {@code b}, wrapping */
+	public static boolean notAfter(int a, int b) {
+		return distance(a, b) < 0x8000;
+	}
+
+	public static String typeName(int type) {
+		return switch (type) {
+			case ST_DATA -> "DATA";
+			case ST_FIN -> "FIN";
+			case ST_STATE -> "STATE";
+			case ST_RESET -> "RESET";
+			case ST_SYN -> "SYN";
+			default -> String.valueOf(type);
+		};
+	}
+
+	@Override
+	public final String toString() {
+		return "UtpPacket[type=%s, connectionId=%d, sequenceNumber=%d, acknowledgementNumber=%d, windowSize=%d, payload.length=%d]".formatted(typeName(type), connectionId, sequenceNumber, acknowledgementNumber, windowSize, payload.length);
+	}
+
+}
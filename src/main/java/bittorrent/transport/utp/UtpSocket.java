@@ -0,0 +1,158 @@
+package bittorrent.transport.utp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+
+/**
+ * A uTP connection seen as a {@link Socket}, so that the wire protocol runs on top of it unchanged.
+ * Only streams, timeouts and closing are supported, options are ignored.
+ */
+public class UtpSocket extends Socket {
+
+	private final UtpConnection connection;
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+	private volatile int soTimeout;
+	private volatile boolean closed;
+
+	UtpSocket(UtpConnection connection) throws SocketException {
+		super((SocketImpl) null);
+
+		this.connection = connection;
+		this.inputStream = new UtpInputStream();
+		this.outputStream = new UtpOutputStream();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		checkOpen();
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		checkOpen();
+		return outputStream;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+
+		soTimeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() {
+		return soTimeout;
+	}
+
+	public UtpConnection.Statistics getStatistics() {
+		return connection.statistics();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return connection.address();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return connection.address().getAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return connection.address().getPort();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) {}
+
+	@Override
+	public void setKeepAlive(boolean on) {}
+
+	@Override
+	public void close() {
+		closed = true;
+		connection.close();
+	}
+
+	private void checkOpen() throws SocketException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UtpSocket[address=%s]".formatted(connection.address());
+	}
+
+	private class UtpInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			final var buffer = new byte[1];
+
+			final var read = read(buffer, 0, 1);
+			return read == -1 ? -1 : buffer[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			checkOpen();
+			return connection.read(buffer, offset, length, soTimeout);
+		}
+
+		@Override
+		public int available() {
+			return connection.available();
+		}
+
+		@Override
+		public void close() {
+			UtpSocket.this.close();
+		}
+
+	}
+
+	private class UtpOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			checkOpen();
+			connection.write(buffer, offset, length);
+		}
+
+		@Override
+		public void close() {
+			UtpSocket.this.close();
+		}
+
+	}
+
+}
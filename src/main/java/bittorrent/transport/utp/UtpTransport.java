@@ -0,0 +1,304 @@
+package bittorrent.transport.utp;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.transport.Transport;
+
+/**
+ * uTP (BEP 29) connections multiplexed over a single datagram channel.
+ * A single thread receives the packets, and ticks every connection to send data, retransmit and pace, so that the protocol state is never touched concurrently by the network side.
+ */
+public class UtpTransport implements Transport, AutoCloseable {
+
+	/** interval of the timer loop, which is also the pacing granularity */
+	public static final Duration TICK = Duration.ofMillis(5);
+
+	/** incoming connections nobody accepted yet, more are reset */
+	public static final int BACKLOG = 64;
+
+	public static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread thread;
+	private final Map<ConnectionKey, UtpConnection> connections = new ConcurrentHashMap<>();
+	private final BlockingQueue<UtpSocket> accepted = new LinkedBlockingQueue<>(BACKLOG);
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(UtpConnection.MAXIMUM_PACKET_SIZE + 64);
+
+	/** only used by the thread of the transport */
+	private final PriorityQueue<DelayedDatagram> delayed = new PriorityQueue<>();
+
+	private volatile boolean accepting;
+	private volatile Impairment impairment = Impairment.NONE;
+	private volatile boolean closed;
+
+	private UtpTransport(DatagramChannel channel, Selector selector) {
+		this.channel = channel;
+		this.selector = selector;
+		this.thread = Thread.ofPlatform()
+			.name("utp-transport")
+			.daemon()
+			.unstarted(this::loop);
+	}
+
+	/** @param port {@code 0} for any free port */
+	public static UtpTransport open(int port) throws IOException {
+		final var channel = DatagramChannel.open();
+
+		try {
+			/* bursts from many connections arrive between two ticks */
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+
+			final var selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+
+			final var transport = new UtpTransport(channel, selector);
+			transport.thread.start();
+
+			return transport;
+		} catch (IOException exception) {
+			channel.close();
+			throw exception;
+		}
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	public void setImpairment(Impairment impairment) {
+		this.impairment = impairment;
+	}
+
+	/** incoming connections are refused until enabled */
+	public void setAccepting(boolean accepting) {
+		this.accepting = accepting;
+	}
+
+	@Override
+	public Socket connect(InetSocketAddress address, Duration timeout) throws IOException {
+		if (closed) {
+			throw new ConnectException("transport closed");
+		}
+
+		UtpConnection connection;
+		while (true) {
+			final var receiveId = ThreadLocalRandom.current().nextInt(UtpPacket.SEQUENCE_MASK + 1);
+
+			connection = UtpConnection.connect(this, address, receiveId, now());
+			if (connections.putIfAbsent(new ConnectionKey(address, receiveId), connection) == null) {
+				break;
+			}
+		}
+
+		wakeup();
+
+		try {
+			connection.awaitConnected(timeout);
+		} catch (IOException exception) {
+			connection.close();
+			throw exception;
+		}
+
+		return new UtpSocket(connection);
+	}
+
+	/** @return an incoming connection, or {@code null} if none arrived in time */
+	public Socket accept(Duration timeout) throws InterruptedException {
+		return accepted.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	public Socket accept() throws InterruptedException {
+		return accepted.take();
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/** called from the thread of the transport only */
+	void send(UtpPacket packet, InetSocketAddress address) {
+		final var impairment = this.impairment;
+
+		if (!impairment.isNone()) {
+			final var random = ThreadLocalRandom.current();
+			if (random.nextDouble() < impairment.lossRate()) {
+				return;
+			}
+
+			var delay = impairment.delay().toNanos();
+			if (!impairment.jitter().isZero()) {
+				delay += random.nextLong(impairment.jitter().toNanos());
+			}
+
+			if (delay > 0) {
+				delayed.add(new DelayedDatagram(System.nanoTime() + delay, packet, address));
+				return;
+			}
+		}
+
+		transmit(packet, address);
+	}
+
+	private void transmit(UtpPacket packet, InetSocketAddress address) {
+		sendBuffer.clear();
+		packet.write(sendBuffer);
+		sendBuffer.flip();
+
+		try {
+			channel.send(sendBuffer, address);
+		} catch (IOException exception) {
+			System.err.println("utp: could not send to %s: %s".formatted(address, exception));
+		}
+	}
+
+	private void loop() {
+		final var buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		while (!closed) {
+			try {
+				selector.select(TICK.toMillis());
+				selector.selectedKeys().clear();
+
+				InetSocketAddress address;
+				while ((address = (InetSocketAddress) channel.receive(buffer.clear())) != null) {
+					onDatagram(buffer.flip(), address);
+				}
+			} catch (IOException exception) {
+				if (!closed) {
+					System.err.println("utp: receive failed: %s".formatted(exception));
+				}
+			}
+
+			final var nanoTime = System.nanoTime();
+			while (!delayed.isEmpty() && delayed.peek().dueAt() <= nanoTime) {
+				final var datagram = delayed.poll();
+				transmit(datagram.packet(), datagram.address());
+			}
+
+			final var now = now();
+			connections.values().removeIf((connection) -> connection.tick(now));
+		}
+	}
+
+	private void onDatagram(ByteBuffer buffer, InetSocketAddress address) {
+		final UtpPacket packet;
+		try {
+			packet = UtpPacket.read(buffer);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException exception) {
+			return;
+		}
+
+		final var now = now();
+
+		if (packet.type() == UtpPacket.ST_SYN) {
+			final var key = new ConnectionKey(address, (packet.connectionId() + 1) & UtpPacket.SEQUENCE_MASK);
+
+			final var existing = connections.get(key);
+			if (existing != null) {
+				existing.onPacket(packet, now);
+				return;
+			}
+
+			if (!accepting || accepted.remainingCapacity() == 0) {
+				reset(packet, address, packet.connectionId());
+				return;
+			}
+
+			final var connection = UtpConnection.accept(this, address, packet, now);
+			try {
+				accepted.add(new UtpSocket(connection));
+			} catch (SocketException exception) {
+				reset(packet, address, packet.connectionId());
+				return;
+			}
+
+			connections.put(key, connection);
+			return;
+		}
+
+		final var connection = connections.get(new ConnectionKey(address, packet.connectionId()));
+		if (connection != null) {
+			connection.onPacket(packet, now);
+		} else if (packet.type() != UtpPacket.ST_RESET) {
+			reset(packet, address, packet.connectionId());
+		}
+	}
+
+	private void reset(UtpPacket packet, InetSocketAddress address, int connectionId) {
+		send(new UtpPacket(UtpPacket.ST_RESET, connectionId, (int) now(), 0, 0, 0, packet.sequenceNumber(), null, new byte[0]), address);
+	}
+
+	public int connectionCount() {
+		return connections.size();
+	}
+
+	/** @return microseconds, the clock of the timestamps */
+	static long now() {
+		return System.nanoTime() / 1000;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+
+		try {
+			thread.join();
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (final var connection : connections.values()) {
+			connection.fail("transport closed");
+		}
+
+		connections.clear();
+		selector.close();
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "utp";
+	}
+
+	private record ConnectionKey(
+		InetSocketAddress address,
+		int receiveId
+	) {}
+
+	private record DelayedDatagram(
+		long dueAt,
+		UtpPacket packet,
+		InetSocketAddress address
+	) implements Comparable<DelayedDatagram> {
+
+		@Override
+		public int compareTo(DelayedDatagram other) {
+			return Long.compare(dueAt, other.dueAt);
+		}
+
+	}
+
+}
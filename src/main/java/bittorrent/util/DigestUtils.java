@@ -2,8 +2,10 @@ package bittorrent.util;
 
 import java.io.ByteArrayOutputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 import bittorrent.bencode.BencodeSerializer;
 import lombok.SneakyThrows;
@@ -17,12 +19,43 @@ public class DigestUtils {
 		return MessageDigest.getInstance("SHA-1").digest(array);
 	}
 
+	/** hash the remaining bytes, without moving the position of the buffer */
+	@SneakyThrows
+	public static byte[] sha1(ByteBuffer buffer) {
+		final var digest = MessageDigest.getInstance("SHA-1");
+		digest.update(buffer.duplicate());
+
+		return digest.digest();
+	}
+
+	@SneakyThrows
+	public static byte[] sha256(byte[] array) {
+		return MessageDigest.getInstance("SHA-256").digest(array);
+	}
+
+	/** whether raw info bytes match an info hash, either the v1 one or the truncated v2 one */
+	public static boolean matchesInfoHash(byte[] infoHash, byte[] metadata) {
+		return Arrays.equals(infoHash, sha1(metadata))
+			|| Arrays.equals(infoHash, Arrays.copyOf(sha256(metadata), infoHash.length));
+	}
+
 	@SneakyThrows
 	public static byte[] shaInfo(final Object infoRoot) {
+		return sha1(encode(infoRoot));
+	}
+
+	/** the BitTorrent v2 info hash, in full */
+	@SneakyThrows
+	public static byte[] sha256Info(final Object infoRoot) {
+		return sha256(encode(infoRoot));
+	}
+
+	@SneakyThrows
+	private static byte[] encode(final Object infoRoot) {
 		final var infoOutputStream = new ByteArrayOutputStream();
 		new BencodeSerializer().write(infoRoot, infoOutputStream);
 
-		return sha1(infoOutputStream.toByteArray());
+		return infoOutputStream.toByteArray();
 	}
 
 	@SneakyThrows
@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -22,6 +23,28 @@ public class NetworkUtils {
 		return parseSocketAddresses(128 / 8, input);
 	}
 
+	/** @return the address followed by the port in network byte order, as used by compact peer lists */
+	public static byte[] toCompact(InetSocketAddress address) {
+		final var ip = address.getAddress().getAddress();
+		final var port = address.getPort();
+
+		final var bytes = Arrays.copyOf(ip, ip.length + 2);
+		bytes[ip.length] = (byte) (port >> 8);
+		bytes[ip.length + 1] = (byte) port;
+
+		return bytes;
+	}
+
+	public static String toCompactString(Collection<InetSocketAddress> addresses) {
+		final var builder = new StringBuilder();
+
+		for (final var address : addresses) {
+			builder.append(new String(toCompact(address), StandardCharsets.ISO_8859_1));
+		}
+
+		return builder.toString();
+	}
+
 	@SneakyThrows
 	private static List<InetSocketAddress> parseSocketAddresses(int length, String input) {
 		if (input == null) {